@@ -0,0 +1,211 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.voip;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background writer for the Logger.
+ *
+ * Messages are put in a fixed size ring buffer by the threads which
+ * log them and written to the log file and System.out by this thread.
+ * Adding a message never blocks and never takes a lock.  When the ring
+ * is full the message is dropped and counted.  The number of dropped
+ * messages is written to the log as soon as there is room.
+ */
+class AsyncLogWriter extends Thread {
+
+    static final int PRINTLN       = 0;
+    static final int FORCE_PRINTLN = 1;
+    static final int WRITE_FILE    = 2;
+    static final int EXCEPTION     = 3;
+
+    /*
+     * How long to sleep when there's nothing to write
+     */
+    private static final long IDLE_NANOS = 10000000;
+
+    static class LogEntry {
+	public int type;
+	public long time;
+	public String msg;
+	public Exception exception;
+
+	public LogEntry(int type, long time, String msg, Exception exception) {
+	    this.type = type;
+	    this.time = time;
+	    this.msg = msg;
+	    this.exception = exception;
+	}
+    }
+
+    private AtomicReferenceArray<LogEntry> entries;
+    private int capacity;
+    private int mask;
+
+    /*
+     * Next slot for a producer to claim
+     */
+    private AtomicLong tail = new AtomicLong();
+
+    /*
+     * Next slot to write
+     */
+    private AtomicLong head = new AtomicLong();
+
+    private AtomicLong dropped = new AtomicLong();
+    private long droppedReported;
+
+    private AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private boolean done;
+
+    public AsyncLogWriter(int size) {
+	capacity = 1;
+
+	while (capacity < size) {
+	    capacity <<= 1;
+	}
+
+	mask = capacity - 1;
+
+	entries = new AtomicReferenceArray<LogEntry>(capacity);
+
+	setName("AsyncLogWriter");
+	setDaemon(true);
+	start();
+    }
+
+    /**
+     * Add a message to the ring.
+     * @return false if the ring is full and the message was dropped.
+     */
+    public boolean add(int type, String msg, Exception exception) {
+	LogEntry entry = new LogEntry(type, System.currentTimeMillis(), msg,
+	    exception);
+
+	while (true) {
+	    long t = tail.get();
+
+	    if (t - head.get() >= capacity) {
+		dropped.incrementAndGet();
+		return false;
+	    }
+
+	    if (tail.compareAndSet(t, t + 1)) {
+		entries.set((int) (t & mask), entry);
+		return true;
+	    }
+	}
+    }
+
+    public long getDropped() {
+	return dropped.get();
+    }
+
+    public int getCapacity() {
+	return capacity;
+    }
+
+    public void requestFlush() {
+	flushRequested.set(true);
+	LockSupport.unpark(this);
+    }
+
+    public void done() {
+	synchronized (this) {
+	    done = true;
+	}
+
+	LockSupport.unpark(this);
+    }
+
+    public void run() {
+	while (true) {
+	    synchronized (this) {
+		if (done) {
+		    break;
+		}
+	    }
+
+	    if (drain() == 0 && flushRequested.get() == false) {
+	        LockSupport.parkNanos(IDLE_NANOS);
+	    }
+	}
+
+	drain();
+    }
+
+    /**
+     * Write everything that is in the ring.  This is called by the writer
+     * thread and by the Logger when it's closing, one at a time.
+     * @return the number of messages written
+     */
+    public synchronized int drain() {
+	int n = 0;
+
+	while (true) {
+	    long h = head.get();
+
+	    int ix = (int) (h & mask);
+
+	    LogEntry entry = entries.get(ix);
+
+	    if (entry == null) {
+		/*
+		 * Either the ring is empty or the producer which claimed
+		 * this slot hasn't stored its message yet.
+		 */
+		break;
+	    }
+
+	    entries.set(ix, null);
+	    head.set(h + 1);
+
+	    Logger.write(entry);
+	    n++;
+	}
+
+	long d = dropped.get();
+
+	if (d != droppedReported) {
+	    Logger.write(new LogEntry(PRINTLN, System.currentTimeMillis(),
+		"Logger dropped " + (d - droppedReported) + " messages, "
+		+ d + " total", null));
+
+	    droppedReported = d;
+	}
+
+	if (flushRequested.getAndSet(false)) {
+	    Logger.flushNow();
+	}
+
+	return n;
+    }
+
+}
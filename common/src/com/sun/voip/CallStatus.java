@@ -48,5 +48,6 @@ public class CallStatus {
     public static final String CANT_START_CONFERENCE = "900 Can't start conference";
     public static final String CANT_CREATE_MEMBER    = "910 Can't create member";
     public static final String H323_NOT_IMPLEMENTED  = "920 H323 is not implemented";
+    public static final String BRIDGE_FULL           = "930 Bridge is full";
 
 }
@@ -249,6 +249,25 @@ public class JitterManager {
     private int failedToRecover;
     private int oldTossed;
 
+    /*
+     * Totals for all calls
+     */
+    private static MetricsRegistry.Counter missingCounter =
+	MetricsRegistry.counter("voicebridge_jitter_missing_packets_total",
+	    "Packets which never arrived or arrived out of order");
+
+    private static MetricsRegistry.Counter failedToRecoverCounter =
+	MetricsRegistry.counter("voicebridge_jitter_failed_to_recover_total",
+	    "Missing packets which had to be repaired");
+
+    private static MetricsRegistry.Counter oldTossedCounter =
+	MetricsRegistry.counter("voicebridge_jitter_late_packets_total",
+	    "Packets which arrived too late to be used");
+
+    private static MetricsRegistry.Counter insertedSilenceCounter =
+	MetricsRegistry.counter("voicebridge_jitter_inserted_silence_total",
+	    "Times silence was inserted because the jitter buffer was empty");
+
     private int[] packetArrivalDistribution = new int[500];
 
     /*
@@ -371,6 +390,7 @@ public class JitterManager {
 	    }
 
 	    oldTossed++;
+	    oldTossedCounter.increment();
 	}
 
 	return silenceCount;
@@ -380,6 +400,7 @@ public class JitterManager {
 	int jitterIndex = getJitterIndex();
 
 	insertedSilence++;
+	insertedSilenceCounter.increment();
 
 	firstSequence = (short) (jo.sequence - (short) jitterIndex);
 
@@ -472,6 +493,7 @@ public class JitterManager {
 	}
 
 	outOfOrderPackets += missingPackets;
+	missingCounter.add(missingPackets);
 
 	// XXX if there are too many missing packets, reset and start over
 	if (missingPackets >= maxJitterBufferSize) {
@@ -586,6 +608,7 @@ public class JitterManager {
 	         * Try to repair the damage.
 	         */
 	        failedToRecover++;
+	        failedToRecoverCounter.increment();
 
 		if (Logger.logLevel >= Logger.LOG_INFO) {
 		    Logger.println(id + ":  Failed to recover packet "
@@ -56,6 +56,21 @@ public class Logger {
 
     public final static String LOG_LEVEL = "com.sun.voip.server.LOGLEVEL";
 
+    public final static String ASYNC_LOGGING = 
+	"com.sun.voip.server.ASYNC_LOGGING";
+
+    /*
+     * Number of messages which can be queued in asynchronous mode
+     */
+    public final static String LOG_BUFFER_SIZE = 
+	"com.sun.voip.server.LOG_BUFFER_SIZE";
+
+    private final static int DEFAULT_LOG_BUFFER_SIZE = 8192;
+
+    private static boolean async;
+    private static AsyncLogWriter asyncLogWriter;
+    private static boolean shutdownHook;
+
     /*
      * Takes about 15ms to flush
      */
@@ -119,26 +134,193 @@ public class Logger {
             println(getDate() + "could not open log file: " 
 		+ logFileName);
         }
+
+	if (Boolean.getBoolean(ASYNC_LOGGING)) {
+	    setAsync(true);
+	}
     }
 
     public static String getLogFileName() {
 	return logFileName;
     }
 
+    /**
+     * In asynchronous mode messages are queued and written by a
+     * background thread so that the threads which log never wait for
+     * the log file, System.out or each other.  If messages are logged
+     * faster than they can be written, the excess is dropped and counted.
+     * @param async true for asynchronous mode
+     */
+    public static void setAsync(boolean async) {
+	AsyncLogWriter writer;
+
+	synchronized (Logger.class) {
+	    if (async == Logger.async) {
+		return;
+	    }
+
+	    Logger.async = async;
+
+	    if (async) {
+		int size = DEFAULT_LOG_BUFFER_SIZE;
+
+		try {
+		    size = Integer.parseInt(System.getProperty(LOG_BUFFER_SIZE,
+			String.valueOf(DEFAULT_LOG_BUFFER_SIZE)));
+		} catch (NumberFormatException e) {
+		}
+
+		asyncLogWriter = new AsyncLogWriter(size);
+
+		if (shutdownHook == false) {
+		    shutdownHook = true;
+
+		    Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+			    drain();
+			    flushNow();
+			}
+		    });
+		}
+		return;
+	    }
+
+	    writer = asyncLogWriter;
+	    asyncLogWriter = null;
+	}
+
+	writer.done();
+
+	try {
+	    writer.join();
+	} catch (InterruptedException e) {
+	}
+
+	/*
+	 * Pick up anything added while the writer was finishing.
+	 */
+	writer.drain();
+    }
+
+    public static boolean isAsync() {
+	return async;
+    }
+
+    /**
+     * @return the number of messages dropped in asynchronous mode
+     */
+    public static long getDroppedMessages() {
+	AsyncLogWriter writer = asyncLogWriter;
+
+	if (writer == null) {
+	    return 0;
+	}
+
+	return writer.getDropped();
+    }
+
+    /*
+     * Queue a message for the writer.
+     * @return false if not in asynchronous mode.
+     */
+    private static boolean enqueue(int type, String msg, Exception e) {
+	AsyncLogWriter writer = asyncLogWriter;
+
+	if (async == false || writer == null) {
+	    return false;
+	}
+
+	writer.add(type, msg, e);
+	return true;
+    }
+
+    /*
+     * Write everything which is queued.
+     */
+    private static void drain() {
+	AsyncLogWriter writer = asyncLogWriter;
+
+	if (writer != null) {
+	    writer.drain();
+	}
+    }
+
+    /*
+     * Called by the writer thread to write a queued message.
+     */
+    static synchronized void write(AsyncLogWriter.LogEntry entry) {
+	switch (entry.type) {
+	case AsyncLogWriter.PRINTLN:
+	    printlnNow(entry.time, entry.msg);
+	    break;
+
+	case AsyncLogWriter.FORCE_PRINTLN:
+	    forcePrintlnNow(entry.time, entry.msg);
+	    break;
+
+	case AsyncLogWriter.WRITE_FILE:
+	    writeFileNow(entry.time, entry.msg);
+	    break;
+
+	case AsyncLogWriter.EXCEPTION:
+	    exceptionNow(entry.time, entry.msg, entry.exception);
+	    break;
+	}
+    }
+
     /**
      * Logs an error message.
      * @param error the message to log
      */
-    public static synchronized void error(String msg) {
+    public static void error(String msg) {
 	println("ERROR:  " + msg);
     }
 
+    /**
+     * Logs an error message unless the call site is logging too often.
+     * @param rateLimiter the rate limiter for the call site
+     * @param error the message to log
+     * @return true if the message was logged
+     */
+    public static boolean error(RateLimiter rateLimiter, String msg) {
+	return println(rateLimiter, "ERROR:  " + msg);
+    }
+
     /**
      * Logs an exception.
      * @param e the exception to log
      */
-    public static synchronized void exception(String s, Exception e) {
-	error(s);
+    public static void exception(String s, Exception e) {
+	if (enqueue(AsyncLogWriter.EXCEPTION, s, e)) {
+	    return;
+	}
+
+	synchronized (Logger.class) {
+	    exceptionNow(System.currentTimeMillis(), s, e);
+	}
+    }
+
+    /**
+     * Logs an exception unless the call site is logging too often.
+     * @param rateLimiter the rate limiter for the call site
+     * @param e the exception to log
+     * @return true if the exception was logged
+     */
+    public static boolean exception(RateLimiter rateLimiter, String s,
+	    Exception e) {
+
+	int suppressed = rateLimiter.allow();
+
+	if (suppressed < 0) {
+	    return false;
+	}
+
+	exception(RateLimiter.annotate(s, suppressed), e);
+	return true;
+    }
+
+    private static void exceptionNow(long time, String s, Exception e) {
+	printlnNow(time, "ERROR:  " + s);
 	e.printStackTrace();
 	System.out.flush();
     }
@@ -147,16 +329,45 @@ public class Logger {
      * Logs a message.
      * @param msg the message to log.
      */
-    public static synchronized void println(String msg) {
+    public static void println(String msg) {
+	if (enqueue(AsyncLogWriter.PRINTLN, msg, null)) {
+	    return;
+	}
+
+	synchronized (Logger.class) {
+	    printlnNow(System.currentTimeMillis(), msg);
+	}
+    }
+
+    /**
+     * Logs a message unless the call site is logging too often.
+     * When messages have been suppressed, the count is added to the
+     * next message which is logged.
+     * @param rateLimiter the rate limiter for the call site
+     * @param msg the message to log.
+     * @return true if the message was logged
+     */
+    public static boolean println(RateLimiter rateLimiter, String msg) {
+	int suppressed = rateLimiter.allow();
+
+	if (suppressed < 0) {
+	    return false;
+	}
+
+	println(RateLimiter.annotate(msg, suppressed));
+	return true;
+    }
+
+    private static void printlnNow(long time, String msg) {
 	if (bw != null) {
-	    writeFile(msg);
+	    writeFileNow(time, msg);
 
 	    if (suppressSystemOut == true) {
 	    	return;
 	    }
 	}
 
-        System.out.println(getDate() + msg);
+        System.out.println(getDate(time) + msg);
         System.out.flush();
     }
         
@@ -164,12 +375,22 @@ public class Logger {
      * Logs a message.
      * @param msg the message to log.
      */
-    public static synchronized void forcePrintln(String msg) {
+    public static void forcePrintln(String msg) {
+	if (enqueue(AsyncLogWriter.FORCE_PRINTLN, msg, null)) {
+	    return;
+	}
+
+	synchronized (Logger.class) {
+	    forcePrintlnNow(System.currentTimeMillis(), msg);
+	}
+    }
+
+    private static void forcePrintlnNow(long time, String msg) {
         if (bw != null) {
-            writeFile(msg);
+            writeFileNow(time, msg);
         }
 
-        System.out.println(getDate() + msg);
+        System.out.println(getDate(time) + msg);
         System.out.flush();
     }
        
@@ -178,31 +399,54 @@ public class Logger {
      * so as to not disrupt timing.
      * @param msg the message to log.
      */
-    public static synchronized void writeFile(String msg) {
+    public static void writeFile(String msg) {
+	if (enqueue(AsyncLogWriter.WRITE_FILE, msg, null)) {
+	    return;
+	}
+
+	synchronized (Logger.class) {
+	    writeFileNow(System.currentTimeMillis(), msg);
+	}
+    }
+
+    private static void writeFileNow(long time, String msg) {
 	if (bw != null) {
 	    try {
 		synchronized(bw) {
-                    bw.write(getDate() + msg + "\n");
+                    bw.write(getDate(time) + msg + "\n");
 		}
 	    } catch (IOException e) {
 		System.out.println(getDate() + "Unable to writeFile! " 
 		    + e.getMessage());
-		close();
+		closeNow();
 	    }
 
 	    if (writeThru) {
-		flush();
+		flushNow();
 	    }
 	} else {
-            System.out.println(getDate() + msg);
+            System.out.println(getDate(time) + msg);
             System.out.flush();
 	}
     }
 
     /**
-     * flushes the buffered writer.
+     * flushes the buffered writer.  In asynchronous mode the
+     * writer thread is asked to flush once it has written
+     * what is queued.
      */
     public static void flush() {
+	AsyncLogWriter writer = asyncLogWriter;
+
+	if (async && writer != null) {
+	    writer.requestFlush();
+	    return;
+	}
+
+	flushNow();
+    }
+
+    static void flushNow() {
 	try {
 	    if (bw != null) {
 		bw.flush();
@@ -219,7 +463,15 @@ public class Logger {
     /**
      * Closes the log file.
      */
-    public static synchronized void close() {
+    public static void close() {
+	drain();
+
+	synchronized (Logger.class) {
+	    closeNow();
+	}
+    }
+
+    private static void closeNow() {
 	try {
 	    if (bw != null) {
 		bw.flush();
@@ -243,6 +495,60 @@ public class Logger {
 	fw = null;
     }
     
+    /**
+     * Limits how often a call site may log.  A call site which logs on
+     * every packet can otherwise flood the log when something goes wrong.
+     */
+    public static class RateLimiter {
+	private int maxMessages;
+	private long interval;
+
+	private long intervalStart;
+	private int count;
+	private int suppressed;
+
+	/**
+	 * @param maxMessages the number of messages allowed each interval
+	 * @param interval the interval in milliseconds
+	 */
+	public RateLimiter(int maxMessages, long interval) {
+	    this.maxMessages = maxMessages;
+	    this.interval = interval;
+	}
+
+	/**
+	 * @return -1 if the message should be suppressed, otherwise
+	 * the number of messages suppressed since the last one allowed.
+	 */
+	public synchronized int allow() {
+	    long now = System.currentTimeMillis();
+
+	    if (now - intervalStart >= interval) {
+		intervalStart = now;
+		count = 0;
+	    }
+
+	    if (count >= maxMessages) {
+		suppressed++;
+		return -1;
+	    }
+
+	    count++;
+
+	    int n = suppressed;
+	    suppressed = 0;
+	    return n;
+	}
+
+	static String annotate(String msg, int suppressed) {
+	    if (suppressed == 0) {
+		return msg;
+	    }
+
+	    return msg + " (" + suppressed + " similar messages suppressed)";
+	}
+    }
+
     private static String[] month = {
 	"Jan",
 	"Feb",
@@ -259,8 +565,14 @@ public class Logger {
     };
 
     public static String getDate() {
+	return getDate(System.currentTimeMillis());
+    }
+
+    public static String getDate(long time) {
         Calendar now = Calendar.getInstance();
 
+	now.setTimeInMillis(time);
+
 	String m = month[now.get(Calendar.MONTH)];
 	String ms = String.valueOf(now.get(Calendar.MILLISECOND));
 
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.voip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of counters, gauges and histograms.
+ *
+ * Metrics are identified by name and a list of label name / value
+ * pairs such as "conference", "Lobby".  Asking for the same name and
+ * labels again returns the same metric, so callers look up a metric
+ * once and keep it.
+ *
+ * Counters and histograms are updated by the media threads.  Their
+ * values are spread across several slots chosen by thread so that
+ * threads updating the same metric rarely touch the same cache line.
+ * The slots are added up when the metrics are written.
+ *
+ * The metrics are written in the Prometheus text exposition format.
+ */
+public class MetricsRegistry {
+
+    /*
+     * Number of slots for striped values.  Must be a power of 2.
+     */
+    private static final int STRIPES = 8;
+
+    /*
+     * Longs between slots so that each slot is in its own cache line.
+     */
+    private static final int PAD = 8;
+
+    /**
+     * Bucket bounds in seconds for timing per-packet work.
+     */
+    public static final double[] PACKET_TIME_BOUNDS = {
+	.00005, .0001, .00025, .0005, .001, .0025, .005, .01, .02, .05
+    };
+
+    private static final String COUNTER   = "counter";
+    private static final String GAUGE     = "gauge";
+    private static final String HISTOGRAM = "histogram";
+
+    private static ConcurrentHashMap<String, Family> families =
+	new ConcurrentHashMap<String, Family>();
+
+    private MetricsRegistry() {
+    }
+
+    /**
+     * Get or create a counter.
+     * @param labels label name / value pairs
+     */
+    public static Counter counter(String name, String help,
+	    String... labels) {
+
+	Family family = getFamily(name, help, COUNTER);
+
+	String key = formatLabels(labels);
+
+	Metric metric = family.series.get(key);
+
+	if (metric == null) {
+	    metric = new Counter(key);
+
+	    Metric m = family.series.putIfAbsent(key, metric);
+
+	    if (m != null) {
+		metric = m;
+	    }
+	}
+
+	return (Counter) metric;
+    }
+
+    /**
+     * Get or create a gauge.
+     * @param labels label name / value pairs
+     */
+    public static Gauge gauge(String name, String help, String... labels) {
+	return gauge(name, help, null, labels);
+    }
+
+    /**
+     * Get or create a gauge whose value is read from source when
+     * the metrics are written.
+     * @param labels label name / value pairs
+     */
+    public static Gauge gauge(String name, String help, GaugeSource source,
+	    String... labels) {
+
+	Family family = getFamily(name, help, GAUGE);
+
+	String key = formatLabels(labels);
+
+	Metric metric = family.series.get(key);
+
+	if (metric == null) {
+	    metric = new Gauge(key, source);
+
+	    Metric m = family.series.putIfAbsent(key, metric);
+
+	    if (m != null) {
+		metric = m;
+	    }
+	}
+
+	return (Gauge) metric;
+    }
+
+    /**
+     * Get or create a histogram.
+     * @param bounds upper bounds of the buckets in ascending order,
+     *               in the units which are written
+     * @param scale  observed values are divided by scale when written.
+     *               Use 1000000000 to observe nanoseconds and write seconds.
+     * @param labels label name / value pairs
+     */
+    public static Histogram histogram(String name, String help,
+	    double[] bounds, double scale, String... labels) {
+
+	Family family = getFamily(name, help, HISTOGRAM);
+
+	String key = formatLabels(labels);
+
+	Metric metric = family.series.get(key);
+
+	if (metric == null) {
+	    metric = new Histogram(key, bounds, scale);
+
+	    Metric m = family.series.putIfAbsent(key, metric);
+
+	    if (m != null) {
+		metric = m;
+	    }
+	}
+
+	return (Histogram) metric;
+    }
+
+    /**
+     * Remove every metric which has the given label value,
+     * for example all of the metrics for a conference which ended.
+     */
+    public static void remove(String labelName, String labelValue) {
+	String s = labelName + "=\"" + escape(labelValue) + "\"";
+
+	for (Family family : families.values()) {
+	    Iterator<String> it = family.series.keySet().iterator();
+
+	    while (it.hasNext()) {
+		String key = it.next();
+
+		if (key.equals(s) || key.startsWith(s + ",")
+			|| key.indexOf("," + s + ",") >= 0
+			|| key.endsWith("," + s)) {
+
+		    it.remove();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format.
+     */
+    public static String getMetrics() {
+	StringBuffer sb = new StringBuffer();
+
+	ArrayList<String> names = new ArrayList<String>(families.keySet());
+
+	Collections.sort(names);
+
+	for (String name : names) {
+	    Family family = families.get(name);
+
+	    if (family == null || family.series.size() == 0) {
+		continue;
+	    }
+
+	    sb.append("# HELP ").append(name).append(" ")
+		.append(family.help).append("\n");
+	    sb.append("# TYPE ").append(name).append(" ")
+		.append(family.type).append("\n");
+
+	    for (Metric metric : family.series.values()) {
+		metric.write(name, sb);
+	    }
+	}
+
+	return sb.toString();
+    }
+
+    private static Family getFamily(String name, String help, String type) {
+	Family family = families.get(name);
+
+	if (family == null) {
+	    family = new Family(help, type);
+
+	    Family f = families.putIfAbsent(name, family);
+
+	    if (f != null) {
+		family = f;
+	    }
+	}
+
+	if (family.type.equals(type) == false) {
+	    throw new IllegalArgumentException(name + " is a " + family.type);
+	}
+
+	return family;
+    }
+
+    private static String formatLabels(String[] labels) {
+	if (labels.length % 2 != 0) {
+	    throw new IllegalArgumentException(
+		"Labels must be name / value pairs");
+	}
+
+	StringBuffer sb = new StringBuffer();
+
+	for (int i = 0; i < labels.length; i += 2) {
+	    if (i > 0) {
+		sb.append(",");
+	    }
+
+	    sb.append(labels[i]).append("=\"").append(escape(labels[i + 1]))
+		.append("\"");
+	}
+
+	return sb.toString();
+    }
+
+    private static String escape(String s) {
+	if (s == null) {
+	    return "";
+	}
+
+	return s.replace("\\", "\\\\").replace("\"", "\\\"")
+	    .replace("\n", "\\n");
+    }
+
+    private static int stripe() {
+	return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+    }
+
+    private static String format(double d) {
+	if (d == (long) d) {
+	    return String.valueOf((long) d);
+	}
+
+	return String.valueOf(d);
+    }
+
+    static class Family {
+	public String help;
+	public String type;
+
+	public ConcurrentHashMap<String, Metric> series =
+	    new ConcurrentHashMap<String, Metric>();
+
+	public Family(String help, String type) {
+	    this.help = help;
+	    this.type = type;
+	}
+    }
+
+    static abstract class Metric {
+	protected String labels;
+
+	public Metric(String labels) {
+	    this.labels = labels;
+	}
+
+	protected void writeSample(String name, String extraLabel,
+		String value, StringBuffer sb) {
+
+	    sb.append(name);
+
+	    if (labels.length() > 0 || extraLabel != null) {
+		sb.append("{").append(labels);
+
+		if (extraLabel != null) {
+		    if (labels.length() > 0) {
+			sb.append(",");
+		    }
+		    sb.append(extraLabel);
+		}
+
+		sb.append("}");
+	    }
+
+	    sb.append(" ").append(value).append("\n");
+	}
+
+	abstract void write(String name, StringBuffer sb);
+    }
+
+    /**
+     * A value which only goes up.
+     */
+    public static class Counter extends Metric {
+	private AtomicLongArray values = new AtomicLongArray(STRIPES * PAD);
+
+	Counter(String labels) {
+	    super(labels);
+	}
+
+	public void increment() {
+	    values.incrementAndGet(stripe());
+	}
+
+	public void add(long n) {
+	    values.addAndGet(stripe(), n);
+	}
+
+	public long getValue() {
+	    long n = 0;
+
+	    for (int i = 0; i < STRIPES; i++) {
+		n += values.get(i * PAD);
+	    }
+
+	    return n;
+	}
+
+	void write(String name, StringBuffer sb) {
+	    writeSample(name, null, String.valueOf(getValue()), sb);
+	}
+    }
+
+    /**
+     * Supplies the value of a gauge when the metrics are written.
+     */
+    public interface GaugeSource {
+	public double getValue();
+    }
+
+    /**
+     * A value which can go up and down.
+     */
+    public static class Gauge extends Metric {
+	private GaugeSource source;
+
+	private AtomicLong value = new AtomicLong();
+
+	Gauge(String labels, GaugeSource source) {
+	    super(labels);
+
+	    this.source = source;
+	}
+
+	public void set(double d) {
+	    value.set(Double.doubleToLongBits(d));
+	}
+
+	public double getValue() {
+	    if (source != null) {
+		return source.getValue();
+	    }
+
+	    return Double.longBitsToDouble(value.get());
+	}
+
+	void write(String name, StringBuffer sb) {
+	    writeSample(name, null, format(getValue()), sb);
+	}
+    }
+
+    /**
+     * Counts observations in buckets.
+     */
+    public static class Histogram extends Metric {
+	private long[] bounds;
+	private double[] writtenBounds;
+	private double scale;
+
+	/*
+	 * For each stripe, a count for each bucket, the +Inf bucket,
+	 * and the sum of the observations.
+	 */
+	private int width;
+	private AtomicLongArray values;
+
+	Histogram(String labels, double[] bounds, double scale) {
+	    super(labels);
+
+	    this.scale = scale;
+
+	    writtenBounds = bounds.clone();
+
+	    this.bounds = new long[bounds.length];
+
+	    for (int i = 0; i < bounds.length; i++) {
+		this.bounds[i] = Math.round(bounds[i] * scale);
+	    }
+
+	    /*
+	     * Round up so each stripe starts in its own cache line.
+	     */
+	    width = ((bounds.length + 2 + PAD - 1) / PAD) * PAD;
+
+	    values = new AtomicLongArray(STRIPES * width);
+	}
+
+	/**
+	 * @param value the observation in units of 1 / scale
+	 */
+	public void observe(long value) {
+	    int base = (stripe() / PAD) * width;
+
+	    int i = 0;
+
+	    while (i < bounds.length && value > bounds[i]) {
+		i++;
+	    }
+
+	    values.incrementAndGet(base + i);
+	    values.addAndGet(base + bounds.length + 1, value);
+	}
+
+	void write(String name, StringBuffer sb) {
+	    long[] counts = new long[bounds.length + 1];
+	    long sum = 0;
+
+	    for (int s = 0; s < STRIPES; s++) {
+		int base = s * width;
+
+		for (int i = 0; i < counts.length; i++) {
+		    counts[i] += values.get(base + i);
+		}
+
+		sum += values.get(base + bounds.length + 1);
+	    }
+
+	    long cumulative = 0;
+
+	    for (int i = 0; i < counts.length; i++) {
+		cumulative += counts[i];
+
+		String le;
+
+		if (i < writtenBounds.length) {
+		    le = format(writtenBounds[i]);
+		} else {
+		    le = "+Inf";
+		}
+
+		writeSample(name + "_bucket", "le=\"" + le + "\"",
+		    String.valueOf(cumulative), sb);
+	    }
+
+	    writeSample(name + "_sum", null, format(sum / scale), sb);
+	    writeSample(name + "_count", null, String.valueOf(cumulative), sb);
+	}
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.Iterator;
+import java.util.Vector;
+
+import com.sun.stun.StunServerImpl;
+
+/**
+ * Receive RTCP reports for all calls.
+ *
+ * Each RtcpReceiver with a channel is registered with one of a few
+ * selectors so that the number of threads depends on the number of
+ * processors rather than the number of calls.  Each selector thread
+ * receives into one buffer and reports are parsed where they are.
+ */
+public class RtcpMultiplexer {
+
+    private static final String RTCP_SELECTORS = 
+	"com.sun.voip.RTCP_SELECTORS";
+
+    private static RtcpMultiplexer rtcpMultiplexer;
+
+    private SelectorThread[] selectorThreads;
+
+    private int next;
+
+    public static synchronized RtcpMultiplexer getInstance() {
+	if (rtcpMultiplexer == null) {
+	    rtcpMultiplexer = new RtcpMultiplexer();
+	}
+
+	return rtcpMultiplexer;
+    }
+
+    private RtcpMultiplexer() {
+	/*
+	 * Reports are small and infrequent so one selector
+	 * can keep up with the calls for several processors.
+	 */
+	int n = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+
+	String s = System.getProperty(RTCP_SELECTORS);
+
+	if (s != null && s.length() > 0) {
+	    try {
+		n = Math.max(1, Integer.parseInt(s));
+	    } catch (NumberFormatException e) {
+		Logger.println("Invalid number of RTCP selectors, using " + n
+		    + ":  " + s);
+	    }
+	}
+
+	selectorThreads = new SelectorThread[n];
+
+	for (int i = 0; i < n; i++) {
+	    try {
+		selectorThreads[i] = new SelectorThread(i);
+	    } catch (IOException e) {
+		Logger.println("RtcpMultiplexer failed to open selector "
+		    + e.getMessage());
+	    }
+	}
+
+	Logger.println("Receiving RTCP with " + n + " selectors");
+    }
+
+    /**
+     * Start receiving reports for rtcpReceiver.  The receiver 
+     * is unregistered when its channel is closed.
+     */
+    public void register(RtcpReceiver rtcpReceiver) throws IOException {
+	SelectorThread selectorThread;
+
+	synchronized (this) {
+	    selectorThread = selectorThreads[next];
+
+	    next = (next + 1) % selectorThreads.length;
+	}
+
+	if (selectorThread == null) {
+	    throw new IOException("No RTCP selector");
+	}
+
+	selectorThread.register(rtcpReceiver);
+    }
+
+    /**
+     * Have the selectors notice channels which have been closed.
+     */
+    public void wakeup() {
+	for (int i = 0; i < selectorThreads.length; i++) {
+	    if (selectorThreads[i] != null) {
+		selectorThreads[i].selector.wakeup();
+	    }
+	}
+    }
+
+    public String toString() {
+	String s = "RtcpMultiplexer";
+
+	for (int i = 0; i < selectorThreads.length; i++) {
+	    if (selectorThreads[i] != null) {
+		s += ", " + selectorThreads[i];
+	    }
+	}
+
+	return s;
+    }
+
+    class SelectorThread extends Thread {
+
+	private Selector selector;
+
+	private StunServerImpl stunServerImpl = new StunServerImpl();
+
+	/*
+	 * Register from the selector thread, like the ConferenceReceiver,
+	 * so register() never blocks on a select in progress.
+	 */
+	private Vector<RtcpReceiver> receiversToRegister = 
+	    new Vector<RtcpReceiver>();
+
+	private ByteBuffer buffer = ByteBuffer.allocate(1500);
+
+	private long received;
+
+	public SelectorThread(int i) throws IOException {
+	    selector = Selector.open();
+
+	    setName("RtcpMultiplexer-" + i);
+	    setDaemon(true);
+	    start();
+	}
+
+	public void register(RtcpReceiver rtcpReceiver) {
+	    receiversToRegister.add(rtcpReceiver);
+	    selector.wakeup();
+	}
+
+	private void registerReceivers() {
+	    synchronized (receiversToRegister) {
+		for (RtcpReceiver rtcpReceiver : receiversToRegister) {
+		    try {
+			rtcpReceiver.getChannel().register(selector,
+			    SelectionKey.OP_READ, rtcpReceiver);
+		    } catch (ClosedChannelException e) {
+			/*
+			 * The call ended before it was registered
+			 */
+		    }
+		}
+
+		receiversToRegister.clear();
+	    }
+	}
+
+	public void run() {
+	    byte[] data = buffer.array();
+
+	    while (true) {
+		try {
+		    registerReceivers();
+
+		    if (selector.select() <= 0) {
+			continue;
+		    }
+
+		    Iterator<SelectionKey> it = 
+			selector.selectedKeys().iterator();
+
+		    while (it.hasNext()) {
+			SelectionKey sk = it.next();
+
+			it.remove();
+
+			receive(sk, data);
+		    }
+		} catch (Exception e) {
+		    Logger.println("RtcpMultiplexer:  unexpected exception "
+			+ e.getMessage());
+		    e.printStackTrace();
+		}
+	    }
+	}
+
+	/*
+	 * Take every report which is waiting on this channel.
+	 */
+	private void receive(SelectionKey sk, byte[] data) {
+	    DatagramChannel datagramChannel = (DatagramChannel) sk.channel();
+
+	    RtcpReceiver rtcpReceiver = (RtcpReceiver) sk.attachment();
+
+	    while (true) {
+		InetSocketAddress isa;
+
+		buffer.clear();
+
+		try {
+		    isa = (InetSocketAddress) datagramChannel.receive(buffer);
+		} catch (IOException e) {
+		    sk.cancel();	// the call ended
+		    return;
+		}
+
+		if (isa == null) {
+		    return;
+		}
+
+		received++;
+
+		if (RtcpReceiver.isStunBindingRequest(data) == true) {
+		    stunServerImpl.processStunRequest(datagramChannel, isa, 
+			data, buffer.position());
+		    continue;
+		}
+
+		try {
+		    rtcpReceiver.process(data, buffer.position(), isa);
+		} catch (Exception e) {
+		    Logger.println("RtcpMultiplexer:  bad report from " + isa
+			+ " " + e.getMessage());
+		}
+	    }
+	}
+
+	public String toString() {
+	    return getName() + " " + received + " packets";
+	}
+    }
+
+}
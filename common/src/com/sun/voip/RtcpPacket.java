@@ -49,22 +49,40 @@ public class RtcpPacket {
 	from = packet.getSocketAddress();
     }
 
+    /*
+     * This constructor is used for a packet which is parsed in place.
+     * wrap() points it at each packet received.
+     */
+    protected RtcpPacket() {
+    }
+
+    /**
+     * Parse the packet in data without copying it.
+     */
+    public void wrap(byte[] data, SocketAddress from) {
+	rtcpData = data;
+	this.from = from;
+    }
+
     /*
      * This constructor is used to create a packet to send
      */
     public RtcpPacket(int SSRC, boolean isSenderReport) {
+	/*
+	 * The length is in 32 bit words minus one.
+	 */
 	if (isSenderReport) {
 	    rtcpData = new byte[SENDER_REPORT_LENGTH];
 	    rtcpData[0] = (byte) 0x81;
 	    rtcpData[1] = (byte) 200;
 	    rtcpData[2] = (byte) 0;
-	    rtcpData[3] = (byte) SENDER_REPORT_LENGTH;
+	    rtcpData[3] = (byte) (SENDER_REPORT_LENGTH / 4 - 1);
 	} else {
 	    rtcpData = new byte[RECEIVER_REPORT_LENGTH];
 	    rtcpData[0] = (byte) 0x81;
 	    rtcpData[1] = (byte) 201;
 	    rtcpData[2] = (byte) 0;
-	    rtcpData[3] = (byte) RECEIVER_REPORT_LENGTH;
+	    rtcpData[3] = (byte) (RECEIVER_REPORT_LENGTH / 4 - 1);
 	}
 
 	rtcpData[4] = (byte) ((SSRC >> 24) & 0xff);
@@ -79,6 +97,13 @@ public class RtcpPacket {
 	return rtcpData;
     }
 
+    /**
+     * The number of report blocks in a sender or receiver report.
+     */
+    public int getReportCount() {
+	return rtcpData[0] & 0x1f;
+    }
+
     public int getSynchronizationSource() {
         return ((rtcpData[4] << 24) & 0xff000000) | 
 	   ((rtcpData[5] << 16) & 0x00ff0000) | 
@@ -93,6 +118,47 @@ public class RtcpPacket {
         rtcpData[7] = (byte) (synchronizationSource & 0xff);
     }
 
+    /**
+     * Append an SDES packet with the canonical name of the sender.
+     * A report which is sent has to be a compound packet with a CNAME.
+     */
+    public void addCanonicalName(String cname) {
+	byte[] name = cname.getBytes();
+
+	int nameLength = Math.min(name.length, 255);
+
+	/*
+	 * The chunk is the SSRC, the CNAME item and at least one
+	 * null octet, padded to a 32 bit boundary.
+	 */
+	int chunkLength = (4 + 2 + nameLength + 1 + 3) & ~3;
+
+	int sdesLength = 4 + chunkLength;
+
+	byte[] data = new byte[rtcpData.length + sdesLength];
+
+	System.arraycopy(rtcpData, 0, data, 0, rtcpData.length);
+
+	int i = rtcpData.length;
+
+	data[i++] = (byte) 0x81;
+	data[i++] = (byte) 202;
+	data[i++] = (byte) 0;
+	data[i++] = (byte) (sdesLength / 4 - 1);
+
+	System.arraycopy(rtcpData, 4, data, i, 4);	// SSRC
+	i += 4;
+
+	data[i++] = (byte) 1;				// CNAME
+	data[i++] = (byte) nameLength;
+
+	System.arraycopy(name, 0, data, i, nameLength);
+
+	rtcpData = data;
+
+	packet = new DatagramPacket(rtcpData, rtcpData.length);
+    }
+
     public DatagramPacket getDatagramPacket() {
 	return packet;
     }
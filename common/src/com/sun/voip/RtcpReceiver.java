@@ -21,6 +21,7 @@
  * code. 
  */
 
+
 package com.sun.voip;
 
 import java.io.IOException;
@@ -29,17 +30,30 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+
+import java.nio.channels.DatagramChannel;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sun.stun.StunServerImpl;
 
 public class RtcpReceiver extends Thread {
     private boolean done;
     private DatagramSocket rtcpSocket;
+    private DatagramChannel rtcpChannel;
     private byte[] rtcpData;
 
     private StunServerImpl stunServerImpl;
 
+    /*
+     * Reports are parsed in place by these.
+     */
+    private RtcpSenderPacket senderReport = new RtcpSenderPacket();
+    private RtcpReceiverPacket receiverReport = new RtcpReceiverPacket();
+
     /*
      * The rtcpSocket needs to be passed in here because
      * it is obtained the same the the rtpSocket is obtained
@@ -49,7 +63,7 @@ public class RtcpReceiver extends Thread {
 	this.rtcpSocket = rtcpSocket;
 
 	if (loneChannel) {
-	    timeLastReceivedMap = new HashMap();
+	    sources = new ConcurrentHashMap<InetSocketAddress, Source>();
 	}
 
         stunServerImpl = new StunServerImpl();
@@ -59,15 +73,114 @@ public class RtcpReceiver extends Thread {
         start();
     }
 
+    /*
+     * There's no thread for a channel.  The RtcpMultiplexer 
+     * receives reports for all channels and hands them to process().
+     */
+    public RtcpReceiver(DatagramChannel rtcpChannel, boolean loneChannel) 
+	    throws IOException {
+
+	this.rtcpChannel = rtcpChannel;
+	rtcpSocket = rtcpChannel.socket();
+
+	if (loneChannel) {
+	    sources = new ConcurrentHashMap<InetSocketAddress, Source>();
+	}
+
+	rtcpChannel.configureBlocking(false);
+
+	RtcpMultiplexer.getInstance().register(this);
+    }
+
+    DatagramChannel getChannel() {
+	return rtcpChannel;
+    }
+
     public void end() {
 	done = true;
-	rtcpSocket.close();
+
+	if (rtcpChannel != null) {
+	    try {
+		rtcpChannel.close();
+	    } catch (IOException e) {
+		Logger.println("RtcpReceiver:  close failed " + e.getMessage());
+	    }
+
+	    /*
+	     * The socket isn't really closed until the selector
+	     * notices the channel is.
+	     */
+	    RtcpMultiplexer.getInstance().wakeup();
+	} else {
+	    rtcpSocket.close();
+	}
     }
 
-    private HashMap<String, Long> timeLastReceivedMap;
+    /*
+     * What's known about a sender of reports to a lone receiver.
+     */
+    private static class Source {
+	public AtomicLong timeLastReceived;
+	public RtpStatistics statistics;
+
+	public Source(long timeLastReceived, RtpStatistics statistics) {
+	    this.timeLastReceived = new AtomicLong(timeLastReceived);
+	    this.statistics = statistics;
+	}
+    }
+
+    /*
+     * A lone receiver handles reports for many calls and
+     * keeps track of each by the sender's address.
+     */
+    private ConcurrentHashMap<InetSocketAddress, Source> sources;
 
     private long timeLastReceived;
 
+    private RtpStatistics statistics;
+
+    /**
+     * Account for reports from isa in statistics.
+     */
+    public void addStatistics(InetSocketAddress isa, RtpStatistics statistics) {
+	if (sources == null) {
+	    synchronized (this) {
+		this.statistics = statistics;
+	    }
+	    return;
+	}
+
+	sources.put(isa, new Source(System.currentTimeMillis(), statistics));
+    }
+
+    public void removeStatistics(InetSocketAddress isa) {
+	if (sources == null) {
+	    synchronized (this) {
+	        statistics = null;
+	    }
+	    return;
+	}
+
+	sources.remove(isa);
+    }
+
+    /**
+     * Send a report from the RTCP socket.
+     */
+    public void send(RtcpPacket rtcpPacket, InetSocketAddress isa) 
+	    throws IOException {
+
+	if (rtcpChannel != null) {
+	    rtcpChannel.send(ByteBuffer.wrap(rtcpPacket.getData()), isa);
+	    return;
+	}
+
+	DatagramPacket packet = rtcpPacket.getDatagramPacket();
+
+	packet.setSocketAddress(isa);
+	rtcpSocket.send(packet);
+    }
+
     /*
      * Receive both sender and receiver reports.
      */
@@ -80,44 +193,13 @@ public class RtcpReceiver extends Thread {
             try {
                 rtcpSocket.receive(packet);
 
-		if (Logger.logLevel >= Logger.LOG_INFO) {
-		    Logger.println("Got RTCP Packet from " + packet.getSocketAddress());
-		}
-
-		byte[] data = packet.getData();
-
-		RtcpPacket rtcpPacket = null;
-
-		if (isStunBindingRequest(data) == true) {
+		if (isStunBindingRequest(rtcpData) == true) {
                     stunServerImpl.processStunRequest(rtcpSocket, packet);
                     continue;
                 }
 
-		if ((data[1] & 0xff) == 200) {
-	            rtcpPacket = new RtcpSenderPacket(packet);
-		    ((RtcpSenderPacket)rtcpPacket).printReport();
-		} else if ((data[1] & 0xff) == 201) {
-	    	    rtcpPacket = new RtcpReceiverPacket(packet);
-		    ((RtcpReceiverPacket)rtcpPacket).printReport();
-		} else {
-	    	    Util.dump("unknown RTCP packet", data, 0, 16);
-		}
-
-		if (rtcpPacket != null) {
-		    timeLastReceived = System.currentTimeMillis();
-
-		    if (timeLastReceivedMap != null) {
-			if (Logger.logLevel >= Logger.LOG_INFO) {
-			    Logger.println("Updated map for " + packet.getSocketAddress() 
-			        + " " + timeLastReceived);
-			}
-
-		        synchronized (timeLastReceivedMap) {
-			    timeLastReceivedMap.put(packet.getSocketAddress().toString(),
-			        new Long(timeLastReceived));
-		        }
-		    }
-		}
+		process(rtcpData, packet.getLength(), 
+		    (InetSocketAddress) packet.getSocketAddress());
             } catch (Exception e) {
                 if (!done) {
                     Logger.error("RtcpReceiver:  receive failed! " 
@@ -128,7 +210,7 @@ public class RtcpReceiver extends Thread {
         }
     }
 
-    private boolean isStunBindingRequest(byte[] data) {
+    static boolean isStunBindingRequest(byte[] data) {
         /*
          * If this is an RTP packet, the first byte
          * must have bit 7 set indicating RTP v2.
@@ -138,43 +220,107 @@ public class RtcpReceiver extends Thread {
         return data[0] == 0 && data[1] == 1;
     }
 
-    public long secondsSinceLastReport(InetSocketAddress isa) {
-	if (timeLastReceivedMap != null && isa == null) {
-	    return 0;
+    /*
+     * Handle a report which has been received.  The report is only
+     * valid until this returns.
+     */
+    void process(byte[] data, int length, InetSocketAddress from) {
+	if (Logger.logLevel >= Logger.LOG_INFO) {
+	    Logger.println("Got RTCP Packet from " + from);
+	}
+
+	if (length < 8) {
+	    return;
+	}
+
+	/*
+	 * Only the first report block is looked at
+	 */
+	int blockLength = Math.min(data[0] & 0x1f, 1) * 24;
+
+	RtcpPacket rtcpPacket;
+
+	if ((data[1] & 0xff) == 200 && length >= 28 + blockLength) {
+	    senderReport.wrap(data, from);
+	    senderReport.printReport();
+	    rtcpPacket = senderReport;
+	} else if ((data[1] & 0xff) == 201 && length >= 8 + blockLength) {
+	    receiverReport.wrap(data, from);
+	    receiverReport.printReport();
+	    rtcpPacket = receiverReport;
+	} else {
+	    Util.dump("unknown RTCP packet", data, 0, 16);
+	    return;
 	}
 
 	long now = System.currentTimeMillis();
 
-	if (timeLastReceivedMap == null) {
-	    if (timeLastReceived == 0) {
+	if (sources == null) {
+	    RtpStatistics statistics;
+
+	    synchronized (this) {
 		timeLastReceived = now;
+		statistics = this.statistics;
+	    }
+
+	    if (statistics != null) {
+		statistics.reportReceived(rtcpPacket);
 	    }
+	    return;
+	}
 
-	    long elapsed = now - timeLastReceived;
+	Source source = sources.get(from);
 
-	    timeLastReceived = now;
-	    return elapsed;
+	if (source == null) {
+	    if (Logger.logLevel >= Logger.LOG_INFO) {
+		Logger.println("RTCP report from unknown sender " + from);
+	    }
+	    return;
 	}
 
-	Long t;
+	if (Logger.logLevel >= Logger.LOG_INFO) {
+	    Logger.println("Updated map for " + from + " " + now);
+	}
+
+	source.timeLastReceived.set(now);
 
-	synchronized (timeLastReceivedMap) {
-            t = timeLastReceivedMap.get(isa.toString());
+	if (source.statistics != null) {
+	    source.statistics.reportReceived(rtcpPacket);
 	}
+    }
 
-	if (t == null) {
-	    synchronized (timeLastReceivedMap) {
-                if (Logger.logLevel >= Logger.LOG_INFO) {
-		    Logger.println("Putting " + isa);
-		}
+    public long secondsSinceLastReport(InetSocketAddress isa) {
+	if (sources != null && isa == null) {
+	    return 0;
+	}
+
+	long now = System.currentTimeMillis();
+
+	if (sources == null) {
+	    synchronized (this) {
+	        if (timeLastReceived == 0) {
+		    timeLastReceived = now;
+	        }
+
+	        long elapsed = now - timeLastReceived;
 
-	        timeLastReceivedMap.put(isa.toString(), new Long(now));
+	        timeLastReceived = now;
+	        return elapsed;
 	    }
-	    
+	}
+
+	Source source = sources.get(isa);
+
+	if (source == null) {
+            if (Logger.logLevel >= Logger.LOG_INFO) {
+		Logger.println("Putting " + isa);
+	    }
+
+	    sources.putIfAbsent(isa, new Source(now, null));
 	    return 0;
 	}
 
-	return (now - t.longValue()) / 1000;
+	return (now - source.timeLastReceived.get()) / 1000;
     }
 
 }
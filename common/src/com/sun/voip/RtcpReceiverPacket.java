@@ -68,6 +68,12 @@ public class RtcpReceiverPacket extends RtcpPacket {
 	super(packet);
     }
 
+    /*
+     * This constructor is used for a packet which is parsed in place.
+     */
+    public RtcpReceiverPacket() {
+    }
+
     /*
      * This constructor is used to create a packet to send
      */
@@ -82,6 +88,13 @@ public class RtcpReceiverPacket extends RtcpPacket {
         rtcpData[10] = (byte) ((SSRC >> 8) & 0xff);
         rtcpData[11] = (byte) (SSRC & 0xff);
     }
+
+    public int getSSRC_1() {
+	return ((((int)rtcpData[8]) << 24) & 0xff000000) |
+               ((((int)rtcpData[9]) << 16) & 0x00ff0000) |
+               ((((int)rtcpData[10]) << 8)  & 0x0000ff00) |
+               (rtcpData[11] & 0xff);
+    }
  
     public void setFractionLost(byte fractionLost) {
 	rtcpData[12] = fractionLost;
@@ -158,6 +171,13 @@ public class RtcpReceiverPacket extends RtcpPacket {
         rtcpData[31] = (byte) (DLSR & 0xff);
     }
 
+    public int getDLSR() {
+	return ((((int)rtcpData[28]) << 24) & 0xff000000) |
+               ((((int)rtcpData[29]) << 16) & 0x00ff0000) |
+               ((((int)rtcpData[30]) << 8)  & 0x0000ff00) |
+               (rtcpData[31] & 0xff);
+    }
+
     public void printReport() {
 	if (Logger.logLevel >= Logger.LOG_INFO) {
             Logger.writeFile(" RTCP Receiver report:  "
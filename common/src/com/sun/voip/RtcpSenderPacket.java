@@ -78,6 +78,12 @@ public class RtcpSenderPacket extends RtcpPacket {
 	super(packet);
     }
 
+    /*
+     * This constructor is used for a packet which is parsed in place.
+     */
+    public RtcpSenderPacket() {
+    }
+
     /*
      * This constructor is used to create a packet to send
      */
@@ -129,7 +135,7 @@ public class RtcpSenderPacket extends RtcpPacket {
 	rtcpData[24] = (byte) ((octetCount >> 24) & 0xff);
 	rtcpData[25] = (byte) ((octetCount >> 16) & 0xff);
 	rtcpData[26] = (byte) ((octetCount >> 8) & 0xff);
-	rtcpData[27] = (byte) (octetCount >> 0xff);
+	rtcpData[27] = (byte) (octetCount & 0xff);
     }
 
     public int getOctetCount() {
@@ -139,6 +145,16 @@ public class RtcpSenderPacket extends RtcpPacket {
                (rtcpData[27] & 0xff);
     }
 
+    public long getNTPTimestamp() {
+	long ts = 0;
+
+	for (int i = 8; i < 16; i++) {
+	    ts = (ts << 8) | (rtcpData[i] & 0xff);
+	}
+
+	return ts;
+    }
+
     public void setSSRC_1(int SSRC) {
 	rtcpData[28] = (byte) ((SSRC >> 24) & 0xff);
 	rtcpData[29] = (byte) ((SSRC >> 16) & 0xff);
@@ -146,6 +162,13 @@ public class RtcpSenderPacket extends RtcpPacket {
 	rtcpData[31] = (byte) (SSRC & 0xff);
     }
 
+    public int getSSRC_1() {
+        return ((((int)rtcpData[28]) << 24) & 0xff000000) |
+               ((((int)rtcpData[29]) << 16) & 0x00ff0000) |
+               ((((int)rtcpData[30]) << 8)  & 0x0000ff00) |
+               (rtcpData[31] & 0xff);
+    }
+
     public void setFractionLost(byte fractionLost) {
 	rtcpData[32] = fractionLost;
     }
@@ -221,6 +244,13 @@ public class RtcpSenderPacket extends RtcpPacket {
 	rtcpData[51] = (byte) (DLSR & 0xff);
     }
 
+    public int getDLSR() {
+        return ((((int)rtcpData[48]) << 24) & 0xff000000) |
+               ((((int)rtcpData[49]) << 16) & 0x00ff0000) |
+               ((((int)rtcpData[50]) << 8)  & 0x0000ff00) |
+               (rtcpData[51] & 0xff);
+    }
+
     public void printReport() {
 	if (Logger.logLevel >= Logger.LOG_INFO) {
             Logger.writeFile(" RTCP Sender report:  from " + from
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RTP statistics for one call and the RTCP reports made from them.
+ * See RFC 3550, sections 6.4 and A.1 through A.8.
+ *
+ * Each kind of update comes from a single thread.  received() is called
+ * by the thread receiving RTP, sent() by the thread sending RTP,
+ * reportReceived() by the thread receiving RTCP and createReport() by
+ * the thread sending RTCP.  The values one thread publishes for the
+ * others are kept in atomic counters so none of these threads lock.
+ */
+public class RtpStatistics {
+
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+
+    /*
+     * Seconds from 1900, the start of NTP time, to 1970
+     */
+    private static final long NTP_OFFSET = 2208988800L;
+
+    private static final double[] ROUND_TRIP_BOUNDS = {
+	.01, .025, .05, .1, .15, .2, .3, .5, 1, 2
+    };
+
+    private static final double[] JITTER_BOUNDS = {
+	.001, .0025, .005, .01, .02, .04, .08, .16
+    };
+
+    private static final double[] LOSS_BOUNDS = {
+	.001, .005, .01, .02, .05, .1, .2, .5
+    };
+
+    private String id;
+    private int clockRate = 8000;
+
+    private long startTime = System.nanoTime();
+
+    /*
+     * Reception, written only by received()
+     */
+    private boolean started;
+    private int maxSeq;
+    private int cycles;
+    private int lastTransit;
+
+    private AtomicInteger remoteSsrc = new AtomicInteger();
+    private AtomicLong received = new AtomicLong();
+    private AtomicLong extendedBase = new AtomicLong();
+    private AtomicLong extendedMax = new AtomicLong();
+    private AtomicInteger jitter = new AtomicInteger();	// times 16
+
+    /*
+     * Transmission, written only by sent()
+     */
+    private AtomicInteger localSsrc = new AtomicInteger();
+    private AtomicInteger packetsSent = new AtomicInteger();
+    private AtomicLong octetsSent = new AtomicLong();
+
+    /*
+     * The RTP timestamp of the last packet sent and
+     * the time in milliseconds it was sent.
+     */
+    private AtomicLong lastSent = new AtomicLong();
+
+    /*
+     * From the remote's reports, written only by reportReceived().
+     * lastSenderReport holds the middle 32 bits of the NTP timestamp
+     * of the last sender report and the time in milliseconds it arrived.
+     */
+    private AtomicLong lastSenderReport = new AtomicLong();
+    private AtomicInteger roundTripTime = new AtomicInteger(-1);	// ms
+    private AtomicInteger remoteFractionLost = new AtomicInteger();
+    private AtomicInteger remoteCumulativeLost = new AtomicInteger();
+    private AtomicInteger remoteJitter = new AtomicInteger();
+    private AtomicInteger reportsReceived = new AtomicInteger();
+
+    /*
+     * Written only by createReport()
+     */
+    private long expectedPrior;
+    private long receivedPrior;
+    private int sentPrior;
+    private AtomicInteger fractionLost = new AtomicInteger();
+    private AtomicInteger reportsSent = new AtomicInteger();
+
+    private MetricsRegistry.Histogram roundTripHistogram;
+    private MetricsRegistry.Histogram receivedLossHistogram;
+    private MetricsRegistry.Histogram sentLossHistogram;
+    private MetricsRegistry.Histogram receivedJitterHistogram;
+    private MetricsRegistry.Histogram sentJitterHistogram;
+    private MetricsRegistry.Counter reportsSentCounter;
+    private MetricsRegistry.Counter reportsReceivedCounter;
+
+    /**
+     * @param id the call, for logging
+     * @param conference the conference the call is in, for metrics
+     */
+    public RtpStatistics(String id, String conference) {
+	this.id = id;
+
+	roundTripHistogram = MetricsRegistry.histogram(
+	    "voicebridge_rtcp_round_trip_seconds",
+	    "Round trip time to members from RTCP reports", 
+	    ROUND_TRIP_BOUNDS, 1000, "conference", conference);
+
+	receivedLossHistogram = MetricsRegistry.histogram(
+	    "voicebridge_rtcp_fraction_lost",
+	    "Fraction of RTP packets lost per RTCP report interval", 
+	    LOSS_BOUNDS, 1000000, "conference", conference,
+	    "direction", "received");
+
+	sentLossHistogram = MetricsRegistry.histogram(
+	    "voicebridge_rtcp_fraction_lost",
+	    "Fraction of RTP packets lost per RTCP report interval", 
+	    LOSS_BOUNDS, 1000000, "conference", conference,
+	    "direction", "sent");
+
+	receivedJitterHistogram = MetricsRegistry.histogram(
+	    "voicebridge_rtcp_jitter_seconds",
+	    "RTP interarrival jitter from RTCP reports", 
+	    JITTER_BOUNDS, 1000000, "conference", conference,
+	    "direction", "received");
+
+	sentJitterHistogram = MetricsRegistry.histogram(
+	    "voicebridge_rtcp_jitter_seconds",
+	    "RTP interarrival jitter from RTCP reports", 
+	    JITTER_BOUNDS, 1000000, "conference", conference,
+	    "direction", "sent");
+
+	reportsSentCounter = MetricsRegistry.counter(
+	    "voicebridge_rtcp_reports_sent_total",
+	    "RTCP reports sent to members", "conference", conference);
+
+	reportsReceivedCounter = MetricsRegistry.counter(
+	    "voicebridge_rtcp_reports_received_total",
+	    "RTCP reports received from members", "conference", conference);
+    }
+
+    /**
+     * Set the RTP clock rate of the media.
+     */
+    public void setClockRate(int clockRate) {
+	this.clockRate = clockRate;
+    }
+
+    /**
+     * Account for an RTP packet which has been received.
+     */
+    public void received(RtpPacket packet) {
+	int seq = packet.getRtpSequenceNumber() & 0xffff;
+
+	int ssrc = packet.getSynchronizationSource();
+
+	/*
+	 * Arrival time in RTP timestamp units
+	 */
+	long arrival = (System.nanoTime() - startTime) / 1000 
+	    * clockRate / 1000000;
+
+	int transit = (int) arrival - (int) packet.getRtpTimestamp();
+
+	if (started == false || ssrc != remoteSsrc.get()) {
+	    restart(ssrc, seq, transit);
+	    return;
+	}
+
+	int udelta = (seq - maxSeq) & 0xffff;
+
+	if (udelta < MAX_DROPOUT) {
+	    if (seq < maxSeq) {
+		cycles += 65536;	// sequence number wrapped
+	    }
+
+	    maxSeq = seq;
+	    extendedMax.set(cycles + maxSeq);
+	} else if (udelta <= 65536 - MAX_MISORDER) {
+	    /*
+	     * A very large jump.  Assume the sender restarted.
+	     */
+	    restart(ssrc, seq, transit);
+	    return;
+	}
+
+	/*
+	 * Otherwise it's a duplicate or out of order
+	 */
+	received.incrementAndGet();
+
+	int d = transit - lastTransit;
+
+	lastTransit = transit;
+
+	if (d < 0) {
+	    d = -d;
+	}
+
+	int j = jitter.get();
+
+	jitter.set(j + d - ((j + 8) >> 4));
+    }
+
+    private void restart(int ssrc, int seq, int transit) {
+	started = true;
+	remoteSsrc.set(ssrc);
+	maxSeq = seq;
+	cycles = 0;
+	lastTransit = transit;
+
+	extendedBase.set(seq);
+	extendedMax.set(seq);
+	received.set(1);
+    }
+
+    /**
+     * Account for an RTP packet which has been sent.
+     * @param octets the number of payload octets
+     */
+    public void sent(int ssrc, int rtpTimestamp, int octets) {
+	localSsrc.set(ssrc);
+	packetsSent.incrementAndGet();
+	octetsSent.addAndGet(octets);
+	lastSent.set(pack(rtpTimestamp, System.currentTimeMillis()));
+    }
+
+    /**
+     * Take what the remote reports about the stream we send,
+     * and note when its last sender report arrived.
+     */
+    public void reportReceived(RtcpPacket packet) {
+	long now = System.currentTimeMillis();
+
+	reportsReceived.incrementAndGet();
+	reportsReceivedCounter.increment();
+
+	if (packet instanceof RtcpSenderPacket) {
+	    RtcpSenderPacket sr = (RtcpSenderPacket) packet;
+
+	    lastSenderReport.set(pack((int) (sr.getNTPTimestamp() >> 16), now));
+
+	    if (sr.getReportCount() > 0 && sr.getSSRC_1() == localSsrc.get()) {
+		reportBlock(sr.getFractionLost(), sr.getCumulativeLost(),
+		    sr.getInterArrivalJitter(), sr.getLSR(), sr.getDLSR(), now);
+	    }
+	} else if (packet instanceof RtcpReceiverPacket) {
+	    RtcpReceiverPacket rr = (RtcpReceiverPacket) packet;
+
+	    if (rr.getReportCount() > 0 && rr.getSSRC_1() == localSsrc.get()) {
+		reportBlock(rr.getFractionLost(), rr.getCumulativeLost(),
+		    rr.getInterArrivalJitter(), rr.getLSR(), rr.getDLSR(), now);
+	    }
+	}
+    }
+
+    private void reportBlock(byte fraction, int cumulativeLost, int jitter,
+	    int lsr, int dlsr, long now) {
+
+	remoteFractionLost.set(fraction & 0xff);
+	remoteCumulativeLost.set(cumulativeLost);
+	remoteJitter.set(jitter);
+
+	sentLossHistogram.observe((fraction & 0xff) * 1000000L / 256);
+	sentJitterHistogram.observe((jitter & 0xffffffffL) * 1000000 / clockRate);
+
+	if (lsr == 0) {
+	    return;	// it hasn't had a sender report from us yet
+	}
+
+	/*
+	 * The round trip time in units of 1/65536 seconds
+	 */
+	int rtt = (int) (toNtp(now) >> 16) - lsr - dlsr;
+
+	if (rtt < 0) {
+	    return;
+	}
+
+	int ms = (int) (((long) rtt * 1000) >> 16);
+
+	roundTripTime.set(ms);
+	roundTripHistogram.observe(ms);
+    }
+
+    /**
+     * Create the next report to send.  It's a sender report if packets
+     * have been sent since the last report and a receiver report
+     * otherwise.
+     *
+     * @return the report or null if nothing has been received yet.
+     */
+    public RtcpPacket createReport(String cname) {
+	long rcv = received.get();
+
+	if (rcv == 0) {
+	    return null;
+	}
+
+	long now = System.currentTimeMillis();
+
+	int ssrc = localSsrc.get();
+	int sent = packetsSent.get();
+
+	long extMax = extendedMax.get();
+	long expected = extMax - extendedBase.get() + 1;
+
+	long lost = Math.max(-0x800000, Math.min(0x7fffff, expected - rcv));
+
+	long expectedInterval = expected - expectedPrior;
+	long receivedInterval = rcv - receivedPrior;
+
+	expectedPrior = expected;
+	receivedPrior = rcv;
+
+	long lostInterval = expectedInterval - receivedInterval;
+
+	int fraction = 0;
+
+	if (expectedInterval > 0 && lostInterval > 0) {
+	    fraction = (int) Math.min(255, (lostInterval << 8) / expectedInterval);
+	}
+
+	fractionLost.set(fraction);
+
+	int j = jitter.get() >> 4;
+
+	int lsr = 0;
+	int dlsr = 0;
+
+	long lastReport = lastSenderReport.get();
+
+	if (lastReport != 0) {
+	    lsr = (int) (lastReport >> 32);
+	    dlsr = (int) ((((int) now - (int) lastReport) & 0xffffffffL) 
+		* 65536 / 1000);
+	}
+
+	RtcpPacket packet;
+
+	if (sent != sentPrior) {
+	    RtcpSenderPacket sr = new RtcpSenderPacket(ssrc);
+
+	    long last = lastSent.get();
+
+	    sr.setNTPTimestamp(toNtp(now));
+	    sr.setRTPTimestamp((int) (last >> 32) 
+		+ (int) (((int) now - (int) last) * (long) clockRate / 1000));
+	    sr.setPacketCount(sent);
+	    sr.setOctetCount((int) octetsSent.get());
+	    sr.setSSRC_1(remoteSsrc.get());
+	    sr.setFractionLost((byte) fraction);
+	    sr.setCumulativeLost((int) lost);
+	    sr.setHighestSeqReceived((int) extMax);
+	    sr.setInterArrivalJitter(j);
+	    sr.setLSR(lsr);
+	    sr.setDLSR(dlsr);
+	    packet = sr;
+	} else {
+	    RtcpReceiverPacket rr = new RtcpReceiverPacket(ssrc);
+
+	    rr.setSSRC_1(remoteSsrc.get());
+	    rr.setFractionLost((byte) fraction);
+	    rr.setCumulativeLost((int) lost);
+	    rr.setHighestSeqReceived((int) extMax);
+	    rr.setInterArrivalJitter(j);
+	    rr.setLSR(lsr);
+	    rr.setDLSR(dlsr);
+	    packet = rr;
+	}
+
+	sentPrior = sent;
+
+	packet.addCanonicalName(cname);
+
+	receivedLossHistogram.observe(fraction * 1000000L / 256);
+	receivedJitterHistogram.observe(j * 1000000L / clockRate);
+
+	reportsSent.incrementAndGet();
+	reportsSentCounter.increment();
+	return packet;
+    }
+
+    /**
+     * @return the round trip time in milliseconds or -1 if it isn't known.
+     */
+    public int getRoundTripTime() {
+	return roundTripTime.get();
+    }
+
+    /**
+     * @return the fraction of packets from the remote lost 
+     * in the last report interval.
+     */
+    public double getFractionLost() {
+	return fractionLost.get() / 256.;
+    }
+
+    /**
+     * @return the number of packets from the remote which were lost.
+     */
+    public long getCumulativeLost() {
+	return extendedMax.get() - extendedBase.get() + 1 - received.get();
+    }
+
+    /**
+     * @return the interarrival jitter of packets from the remote in ms.
+     */
+    public double getJitter() {
+	return (jitter.get() >> 4) * 1000. / clockRate;
+    }
+
+    /**
+     * @return the fraction of packets we sent which the remote 
+     * reported lost.
+     */
+    public double getRemoteFractionLost() {
+	return remoteFractionLost.get() / 256.;
+    }
+
+    public int getRemoteCumulativeLost() {
+	return remoteCumulativeLost.get();
+    }
+
+    /**
+     * @return the interarrival jitter the remote reported in ms.
+     */
+    public double getRemoteJitter() {
+	return (remoteJitter.get() & 0xffffffffL) * 1000. / clockRate;
+    }
+
+    private static long pack(int value, long ms) {
+	return ((long) value << 32) | (ms & 0xffffffffL);
+    }
+
+    /*
+     * NTP time is seconds since 1900 in the high 32 bits
+     * and the fraction of a second in the low 32 bits.
+     */
+    private static long toNtp(long ms) {
+	long seconds = ms / 1000 + NTP_OFFSET;
+	long fraction = ((ms % 1000) << 32) / 1000;
+
+	return (seconds << 32) | fraction;
+    }
+
+    public String toString() {
+	return "Rtcp reports sent " + reportsSent.get() + ", received "
+	    + reportsReceived.get() + ", round trip ms " + roundTripTime.get()
+	    + ", received lost " + Math.round(getFractionLost() * 1000) / 10.
+	    + "% (" + getCumulativeLost() + "), jitter ms "
+	    + Math.round(getJitter() * 10) / 10.
+	    + ", sent lost " + Math.round(getRemoteFractionLost() * 1000) / 10.
+	    + "% (" + getRemoteCumulativeLost() + "), jitter ms "
+	    + Math.round(getRemoteJitter() * 10) / 10.;
+    }
+
+}
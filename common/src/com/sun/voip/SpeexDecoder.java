@@ -35,6 +35,12 @@ public class SpeexDecoder {
     private int decodes;
     private long decodeTime;
 
+    private static MetricsRegistry.Histogram decodeTimeHistogram =
+	MetricsRegistry.histogram("voicebridge_speex_decode_seconds",
+	    "Time to decode a speex packet",
+	    MetricsRegistry.PACKET_TIME_BOUNDS,
+	    CurrentTime.getTimeUnitsPerSecond());
+
     private boolean bigEndian = true;
 
     public SpeexDecoder(int sampleRate, int channels) throws SpeexException {
@@ -128,7 +134,11 @@ public class SpeexDecoder {
 	}
 
         decodes++;
-        decodeTime += (CurrentTime.getTime() - start);
+
+	long elapsed = CurrentTime.getTime() - start;
+
+        decodeTime += elapsed;
+	decodeTimeHistogram.observe(elapsed);
 
 	return byteData;
     }
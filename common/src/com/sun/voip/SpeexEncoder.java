@@ -38,6 +38,12 @@ public class SpeexEncoder {
     private int bytesEncoded = 0;
     private long encodeTime;
 
+    private static MetricsRegistry.Histogram encodeTimeHistogram =
+	MetricsRegistry.histogram("voicebridge_speex_encode_seconds",
+	    "Time to encode a speex packet",
+	    MetricsRegistry.PACKET_TIME_BOUNDS,
+	    CurrentTime.getTimeUnitsPerSecond());
+
     private boolean bigEndian = true;
 
     public SpeexEncoder(int sampleRate, int channels) 
@@ -103,6 +109,10 @@ public class SpeexEncoder {
 	speexEncoder.getEncoder().setComplexity(complexity);
     }
 
+    public int getComplexity() {
+	return speexEncoder.getEncoder().getComplexity();
+    }
+
     public int getPcmPacketSize() {
 	return pcmPacketSize;
     }
@@ -158,7 +168,11 @@ public class SpeexEncoder {
 	int encSize = speexEncoder.getProcessedDataByteSize();
 
         encodes++;
-        encodeTime += (CurrentTime.getTime() - start);
+
+	long elapsed = CurrentTime.getTime() - start;
+
+        encodeTime += elapsed;
+	encodeTimeHistogram.observe(elapsed);
         bytesEncoded += inData.length;
 
 	speexEncoder.getProcessedData(outData, outOffset);
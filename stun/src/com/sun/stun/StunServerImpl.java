@@ -37,8 +37,17 @@ import java.net.ServerSocket;
 import java.net.UnknownHostException;
 
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.ByteBuffer;
 
+import java.util.Iterator;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,6 +60,54 @@ public class StunServerImpl implements StunServer {
 
     private static int stunServerPort = StunServer.STUN_SERVER_PORT;
 
+    /*
+     * Requests answered per second from one address and port, and how
+     * many more can be answered in a burst.  A client retransmits a 
+     * request which isn't answered.  The limit is per port so clients
+     * behind the same NAT don't use up each other's requests when
+     * they all rebind at once.
+     */
+    private static int requestsPerSecond = 10;
+    private static final int REQUEST_BURST = 20;
+
+    /*
+     * Requests answered per second from one IP address over all of its
+     * ports.  A host can't get more by sending from more ports.
+     */
+    private static int hostRequestsPerSecond = 100;
+    private static final int HOST_REQUEST_BURST = 200;
+
+    /*
+     * Requests from new hosts or ports are dropped while this many are
+     * being tracked.  Those which haven't sent a request for 
+     * SOURCE_IDLE_TIME are forgotten in the background.
+     */
+    private static final int MAX_HOSTS = 20000;
+    private static final int MAX_SOURCES = 100000;
+    private static final long SOURCE_IDLE_TIME = 10000;	// ms
+
+    private static final int MAX_RESPONSE_LENGTH = 512;
+
+    private static ConcurrentHashMap<InetAddress, RateLimit> hosts =
+	new ConcurrentHashMap<InetAddress, RateLimit>();
+
+    private static ConcurrentHashMap<InetSocketAddress, RateLimit> sources =
+	new ConcurrentHashMap<InetSocketAddress, RateLimit>();
+
+    /*
+     * Responses are built in these buffers
+     */
+    private static ConcurrentLinkedQueue<ByteBuffer> bufferPool =
+	new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /*
+     * For responses which have to come from a different port
+     */
+    private static DatagramChannel changedPortChannel;
+
+    private static AtomicLong requestsAnswered = new AtomicLong();
+    private static AtomicLong requestsDropped = new AtomicLong();
+
     static {
 	String s = System.getProperty(
 	    "gov.nist.javax.sip.stack.STUN_SERVER_PORT");
@@ -63,14 +120,37 @@ public class StunServerImpl implements StunServer {
 		   + " defaulting to " + stunServerPort);
 	    }
 	}
+
+	s = System.getProperty("com.sun.stun.REQUESTS_PER_SECOND");
+
+	if (s != null) {
+	    try {
+		requestsPerSecond = Integer.parseInt(s);
+	    } catch (NumberFormatException e) {
+		System.out.println("Invalid stun requests per second " + s
+		   + " defaulting to " + requestsPerSecond);
+	    }
+	}
+
+	s = System.getProperty("com.sun.stun.HOST_REQUESTS_PER_SECOND");
+
+	if (s != null) {
+	    try {
+		hostRequestsPerSecond = Integer.parseInt(s);
+	    } catch (NumberFormatException e) {
+		System.out.println("Invalid stun host requests per second " + s
+		   + " defaulting to " + hostRequestsPerSecond);
+	    }
+	}
+
+	new SourcePurger();
     }
 
     public StunServerImpl() {
     }
 
     public void startServer() throws IOException {
-	new StunUdpListener(stunServerPort);
-	new StunUdpListener(stunServerPort + 1);
+	new StunUdpListener(stunServerPort, stunServerPort + 1);
 
 	new StunTcpListener(stunServerPort);
 	new StunTcpListener(stunServerPort + 1);
@@ -80,45 +160,77 @@ public class StunServerImpl implements StunServer {
         logger.setLevel(newLevel);
     }
 
+    /*
+     * One thread answers UDP requests on both ports.
+     */
     class StunUdpListener extends Thread {
 
-	private DatagramSocket socket;
-	private int stunServerPort;
+	private Selector selector;
+	private int[] ports;
 
-	public StunUdpListener(int stunServerPort) throws IOException {
-            try {
-                socket = new DatagramSocket(stunServerPort);
-            } catch (SocketException e) {
-                throw new IOException("Can't create DatagramSocket:  "
-		    + e.getMessage());
-            }
+	private ByteBuffer buffer = ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
 
-	    this.stunServerPort = stunServerPort;
+	public StunUdpListener(int... ports) throws IOException {
+	    this.ports = ports;
 
-	    synchronized (this) {
-	        start();
+	    selector = Selector.open();
 
-	        try {
-		    wait();
-	        } catch (InterruptedException e) {
-	        }
+	    for (int i = 0; i < ports.length; i++) {
+		DatagramChannel channel = DatagramChannel.open();
+
+		try {
+		    channel.socket().bind(new InetSocketAddress(ports[i]));
+		} catch (SocketException e) {
+		    channel.close();
+
+		    throw new IOException("Can't create DatagramSocket:  "
+		        + e.getMessage());
+		}
+
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
 	    }
+
+	    setName("StunUdpListener");
+	    setDaemon(true);
+	    start();
         }
 
         public void run() {
-	    logger.warning("STUN Server:  Listening for Stun requests on UDP port "
-	        + stunServerPort + "...");
-
-	    synchronized (this) {
-	        notifyAll();
+	    for (int i = 0; i < ports.length; i++) {
+	        logger.warning("STUN Server:  Listening for Stun requests on "
+		    + "UDP port " + ports[i] + "...");
 	    }
 
+	    byte[] request = buffer.array();
+
 	    while (true) {
 	        try {
-		    byte[] buf = new byte[10000];
-        	    DatagramPacket packet = new DatagramPacket(buf, buf.length);
-	            socket.receive(packet);
-		    processStunRequest(socket, packet);
+		    selector.select();
+
+		    Iterator<SelectionKey> it = 
+			selector.selectedKeys().iterator();
+
+		    while (it.hasNext()) {
+			SelectionKey sk = it.next();
+
+			it.remove();
+
+			DatagramChannel channel = (DatagramChannel) sk.channel();
+
+			InetSocketAddress isa;
+
+			buffer.clear();
+
+			while ((isa = (InetSocketAddress) 
+				channel.receive(buffer)) != null) {
+
+			    processStunRequest(channel, isa, request, 
+				buffer.position());
+
+			    buffer.clear();
+			}
+		    }
                 } catch (IOException e) {
                     logger.warning(
 		        "STUN Server:  send or received failed " + e.toString());
@@ -187,76 +299,233 @@ public class StunServerImpl implements StunServer {
     public void processStunRequest(DatagramChannel channel,
 	    InetSocketAddress isa, byte[] request) {
 
-	logger.warning("Got UDP Stun request for channel " + request.length 
-	    + " bytes from " + isa);
+	processStunRequest(channel, isa, request, request.length);
+    }
 
-	byte[] response = getStunResponse(isa, request, request.length);
+    /*
+     * This is called on the threads which receive media so it must
+     * never block.  The response is built in a pooled buffer and sent
+     * without waiting.  If the send buffer is full, it's dropped.
+     */
+    public void processStunRequest(DatagramChannel channel,
+	    InetSocketAddress isa, byte[] request, int length) {
 
-	InetSocketAddress responseAddress = StunHeader.getAddress(request,
-	    StunHeader.RESPONSE_ADDRESS);
+	if (logger.isLoggable(Level.FINE)) {
+	    logger.fine("Got UDP Stun request for channel " + length
+	        + " bytes from " + isa);
+	}
 
-	if (responseAddress != null) {
-	    isa = new InetSocketAddress(responseAddress.getAddress(),
-	        responseAddress.getPort());
+	if (allowRequest(isa) == false) {
+	    return;
 	}
 
-        int changeRequest = StunHeader.getChangeRequest(request);
+	ByteBuffer response = getBuffer();
 
-        if ((changeRequest & StunHeader.CHANGE_IP_MASK) != 0) {
-            /*
-             * Not sure we can change our IP Source Address.
-             * Just ignore the request so the client thinks it failed
-             * to get a response.
-             */
-             return;
-        }
+	try {
+	    putStunResponse(isa, request, length, response);
 
-        if ((changeRequest & StunHeader.CHANGE_PORT_MASK) == 0) {
-	    try {
-		channel.send(ByteBuffer.wrap(response), isa);
-	    } catch (IOException ee) {
-		logger.warning("Can't send Binding Error response on channel: "
-		    + ee.getMessage());
+	    InetSocketAddress responseAddress = StunHeader.getAddress(request,
+		StunHeader.RESPONSE_ADDRESS);
+
+	    if (responseAddress != null) {
+		isa = responseAddress;
 	    }
-	    return;
+
+	    int changeRequest = StunHeader.getChangeRequest(request);
+
+	    if ((changeRequest & StunHeader.CHANGE_IP_MASK) != 0) {
+		/*
+		 * Not sure we can change our IP Source Address.
+		 * Just ignore the request so the client thinks it failed
+		 * to get a response.
+		 */
+		return;
+	    }
+
+	    if ((changeRequest & StunHeader.CHANGE_PORT_MASK) != 0) {
+		/*
+		 * We have been asked to change our source port.
+		 */
+		channel = getChangedPortChannel();
+	    }
+
+	    channel.send(response, isa);
+	    requestsAnswered.incrementAndGet();
+	} catch (Exception e) {
+	    /*
+	     * A malformed request or a send which failed.
+	     */
+	    if (logger.isLoggable(Level.FINE)) {
+		logger.fine("Can't send STUN response to " + isa + ":  " 
+		    + e.getMessage());
+	    }
+	} finally {
+	    returnBuffer(response);
+	}
+    }
+
+    private static synchronized DatagramChannel getChangedPortChannel() 
+	    throws IOException {
+
+	if (changedPortChannel == null) {
+	    changedPortChannel = DatagramChannel.open();
+	    changedPortChannel.socket().bind(null);
+	    changedPortChannel.configureBlocking(false);
 	}
 
+	return changedPortChannel;
+    }
+
+    private static ByteBuffer getBuffer() {
+	ByteBuffer buffer = bufferPool.poll();
+
+	if (buffer == null) {
+	    buffer = ByteBuffer.allocateDirect(MAX_RESPONSE_LENGTH);
+	}
+
+	buffer.clear();
+	return buffer;
+    }
+
+    private static void returnBuffer(ByteBuffer buffer) {
+	bufferPool.offer(buffer);
+    }
+
+    /*
+     * A token bucket for each address, or address and port, 
+     * which sends requests.
+     */
+    static class RateLimit {
+	private int rate;
+	private int burst;
+
+	private double tokens;
+	private long lastTime;
+
+	public RateLimit(long now, int rate, int burst) {
+	    this.rate = rate;
+	    this.burst = burst;
+
+	    tokens = burst;
+	    lastTime = now;
+	}
+
+	public synchronized boolean allow(long now) {
+	    tokens = Math.min(burst, tokens + (now - lastTime) * rate / 1000.);
+
+	    lastTime = now;
+
+	    if (tokens < 1) {
+		return false;
+	    }
+
+	    tokens--;
+	    return true;
+	}
+
+	public synchronized long getLastTime() {
+	    return lastTime;
+	}
+    }
+
+    private static boolean allowRequest(InetSocketAddress address) {
+	long now = System.currentTimeMillis();
+
 	/*
-	 * We have been asked to change our source port.
-	 * Rather than use a channel, we might as well use a socket.
+	 * The host's limit comes first so a host which sends from 
+	 * many ports doesn't get a new burst for each.
 	 */
-        DatagramSocket responseSocket = null;
+	RateLimit hostLimit = getRateLimit(hosts, address.getAddress(),
+	    MAX_HOSTS, now, hostRequestsPerSecond, HOST_REQUEST_BURST);
 
-	String s = null;
+	RateLimit rateLimit = null;
 
-        try {
-            responseSocket = new DatagramSocket();
+	if (hostLimit != null && hostLimit.allow(now)) {
+	    rateLimit = getRateLimit(sources, address, MAX_SOURCES, now,
+		requestsPerSecond, REQUEST_BURST);
+	}
+
+	if (rateLimit == null || rateLimit.allow(now) == false) {
+	    if (requestsDropped.incrementAndGet() % 1000 == 1) {
+		logger.info("Dropping STUN requests from " + address 
+		    + ", " + getStatistics());
+	    }
+	    return false;
+	}
 
-	    DatagramPacket packet = new DatagramPacket(response,
-		response.length, isa);
+	return true;
+    }
 
-	    responseSocket.send(packet);
-	    return;
-        } catch (SocketException e) {
-            s = "CHANGE_PORT set but can't create new socket! "
-                + e.getMessage();
-	} catch (IOException e) {
-	    s = ("Can't send Binding Response on socket:  " 
-		+ e.getMessage());
+    /*
+     * Find the token bucket for a host or address and port.  
+     * Returns null if it's new and there are already too many.
+     */
+    private static <K> RateLimit getRateLimit(
+	    ConcurrentHashMap<K, RateLimit> rateLimits, K key, int max,
+	    long now, int rate, int burst) {
+
+	RateLimit rateLimit = rateLimits.get(key);
+
+	if (rateLimit != null) {
+	    return rateLimit;
 	}
 
-	logger.warning(s);
-        response = getBindingErrorResponse(request, StunHeader.GLOBAL_ERROR, s);
+	if (rateLimits.size() >= max) {
+	    return null;
+	}
 
-	try {
-	    channel.send(ByteBuffer.wrap(response), isa);
-	} catch (IOException e) {
-	    logger.warning("Can't send Binding Error response on channel: "
-		+ e.getMessage());
-	    return;
+	rateLimit = new RateLimit(now, rate, burst);
+
+	RateLimit r = rateLimits.putIfAbsent(key, rateLimit);
+
+	if (r != null) {
+	    rateLimit = r;
+	}
+
+	return rateLimit;
+    }
+
+    /*
+     * Forget hosts and ports which haven't sent a request recently.
+     * This isn't done on the threads which receive requests.
+     */
+    static class SourcePurger extends Thread {
+
+	public SourcePurger() {
+	    setName("StunSourcePurger");
+	    setDaemon(true);
+	    start();
+	}
+
+	public void run() {
+	    while (true) {
+		try {
+		    Thread.sleep(SOURCE_IDLE_TIME / 10);
+		} catch (InterruptedException e) {
+		}
+
+		long now = System.currentTimeMillis();
+
+		purge(hosts.values().iterator(), now);
+		purge(sources.values().iterator(), now);
+	    }
+	}
+
+	private void purge(Iterator<RateLimit> it, long now) {
+	    while (it.hasNext()) {
+		if (now - it.next().getLastTime() > SOURCE_IDLE_TIME) {
+		    it.remove();
+		}
+	    }
 	}
     }
 
+    public static String getStatistics() {
+	return "STUN requests answered " + requestsAnswered.get() 
+	    + ", dropped " + requestsDropped.get() + ", hosts " 
+	    + hosts.size() + ", addresses " + sources.size();
+    }
+
     /*
      * This is called from the NIST SIP Stack UDPMessageProcessor.java
      * to get the public address of the SIP Listening point.
@@ -270,9 +539,15 @@ public class StunServerImpl implements StunServer {
 
 	InetSocketAddress isa = (InetSocketAddress) packet.getSocketAddress();
 
-	logger.warning("Got UDP Stun request on socket " 
-	    + socket.getLocalAddress() + ":" + socket.getLocalPort()
-	    + " length " + length + " bytes " + " from " + isa);
+	if (logger.isLoggable(Level.FINE)) {
+	    logger.fine("Got UDP Stun request on socket " 
+	        + socket.getLocalAddress() + ":" + socket.getLocalPort()
+	        + " length " + length + " bytes " + " from " + isa);
+	}
+
+	if (allowRequest(isa) == false) {
+	    return;
+	}
 
 	byte[] response = getStunResponse(isa, request, length);
 
@@ -337,7 +612,9 @@ public class StunServerImpl implements StunServer {
 		s = privateAddress + ":" + port;
   	    } 
 
-	    logger.warning("Sent STUN Binding Response from "
+	    requestsAnswered.incrementAndGet();
+
+	    logger.fine("Sent STUN Binding Response from "
 		+ responseSocket.getLocalAddress() + ":" 
 		+ responseSocket.getLocalPort()
 		+ " to " + packet.getAddress() + ":" + packet.getPort() + s);
@@ -347,8 +624,10 @@ public class StunServerImpl implements StunServer {
     }
 
     public void processStunRequest(Socket socket) {
-	logger.warning("Got TCP Stun request from " + socket.getInetAddress()
-	    + ":" + socket.getPort());
+	if (logger.isLoggable(Level.FINE)) {
+	    logger.fine("Got TCP Stun request from " + socket.getInetAddress()
+		+ ":" + socket.getPort());
+	}
 		
 	try {
 	    DataInputStream input = new DataInputStream(
@@ -383,11 +662,25 @@ public class StunServerImpl implements StunServer {
     private byte[] getStunResponse(InetSocketAddress isa, byte[] request, 
 	    int length) {
 
+	ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
+
+	putStunResponse(isa, request, length, response);
+
+	return toArray(response);
+    }
+
+    /*
+     * Put the response in the buffer and flip it, ready to send.
+     */
+    private void putStunResponse(InetSocketAddress isa, byte[] request,
+	    int length, ByteBuffer response) {
+
 	if (length < StunHeader.STUN_HEADER_LENGTH) {
 	    String msg = "Too short to have STUN HEADER " + length;
 	    logger.warning(msg);
-	    return getBindingErrorResponse(request, StunHeader.BAD_REQUEST, 
-		msg);
+	    putBindingErrorResponse(request, StunHeader.BAD_REQUEST, msg,
+		response);
+	    return;
 	}
 	
 	int messageType = (int) (((request[0] << 8) & 0xff00) |
@@ -395,101 +688,96 @@ public class StunServerImpl implements StunServer {
 	
 	if (messageType != StunHeader.BINDING_REQUEST) {
 	    String msg = "Only Binding Request is supported";
-	    return getBindingErrorResponse(request, StunHeader.GLOBAL_ERROR, 
-		msg);
+	    putBindingErrorResponse(request, StunHeader.GLOBAL_ERROR, msg,
+		response);
+	    return;
 	}
 
-	return processBindingRequest(isa, request, length);
+	putBindingResponse(isa, request, response);
     }
 
-    private byte[] processBindingRequest(InetSocketAddress isa,
-	    byte[] request, int length) {
-
- 	byte[] response = new byte[StunHeader.STUN_HEADER_LENGTH 
-	    + StunHeader.TLV_LENGTH + StunHeader.MAPPED_ADDRESS_LENGTH 
-	    + StunHeader.TLV_LENGTH + StunHeader.CHANGED_ADDRESS_LENGTH];
+    private void putBindingResponse(InetSocketAddress isa,
+	    byte[] request, ByteBuffer response) {
 
-	System.arraycopy(request, 0, response, 0, 
-	    StunHeader.STUN_HEADER_LENGTH);
+	response.clear();
 
-	response[0] = 1;	// set Binding Response
-	
-	response[3] = (byte) 
-	    StunHeader.TLV_LENGTH + StunHeader.MAPPED_ADDRESS_LENGTH +
-	    StunHeader.TLV_LENGTH + StunHeader.CHANGED_ADDRESS_LENGTH;
+	response.put(request, 0, StunHeader.STUN_HEADER_LENGTH);
 
-	response[StunHeader.STUN_HEADER_LENGTH + 1] = 
-	    StunHeader.MAPPED_ADDRESS;	// type
+	response.put(0, (byte) 1);	// set Binding Response
 
-	response[StunHeader.STUN_HEADER_LENGTH + 3] = 
-	    StunHeader.MAPPED_ADDRESS_LENGTH;  // length
+	response.put(2, (byte) 0);
+	response.put(3, (byte) (StunHeader.TLV_LENGTH 
+	    + StunHeader.MAPPED_ADDRESS_LENGTH + StunHeader.TLV_LENGTH 
+	    + StunHeader.CHANGED_ADDRESS_LENGTH));
 
-	response[StunHeader.STUN_HEADER_LENGTH + 5] = 1;  // address family
+	if (logger.isLoggable(Level.FINE)) {
+	    logger.fine("responding with " + isa);
+	}
 
-	logger.fine("responding with " + isa);
+	putAddress(StunHeader.MAPPED_ADDRESS, isa, response);
+	putAddress(StunHeader.CHANGED_ADDRESS, isa, response);
 
-	int sourcePort = isa.getPort();
+	response.flip();
+    }
 
-	response[StunHeader.STUN_HEADER_LENGTH + 6] = (byte) (sourcePort >> 8);
-	response[StunHeader.STUN_HEADER_LENGTH + 7] = (byte) 
-	    (sourcePort & 0xff);
+    private void putAddress(int type, InetSocketAddress isa, 
+	    ByteBuffer response) {
 
-	byte[] sourceAddress = isa.getAddress().getAddress();
+	response.putShort((short) type);
+	response.putShort((short) StunHeader.MAPPED_ADDRESS_LENGTH);
+	response.put((byte) 0);
+	response.put((byte) 1);		// address family
+	response.putShort((short) isa.getPort());
+	response.put(isa.getAddress().getAddress(), 0, 4);
+    }
 
- 	response[StunHeader.STUN_HEADER_LENGTH + 8] = sourceAddress[0];
- 	response[StunHeader.STUN_HEADER_LENGTH + 9] = sourceAddress[1];
- 	response[StunHeader.STUN_HEADER_LENGTH + 10] = sourceAddress[2];
- 	response[StunHeader.STUN_HEADER_LENGTH + 11] = sourceAddress[3];
+    private byte[] getBindingErrorResponse(byte[] request, 
+	    int responseCode, String reason) {
 
- 	response[StunHeader.STUN_HEADER_LENGTH + 13] = 
-	    StunHeader.CHANGED_ADDRESS;
+	ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
 
- 	response[StunHeader.STUN_HEADER_LENGTH + 15] = 
-	    StunHeader.CHANGED_ADDRESS_LENGTH;
-	
- 	response[StunHeader.STUN_HEADER_LENGTH + 17] = 1;  // address family
+	putBindingErrorResponse(request, responseCode, reason, response);
 
- 	response[StunHeader.STUN_HEADER_LENGTH + 18] = (byte) (sourcePort >> 8);
- 	response[StunHeader.STUN_HEADER_LENGTH + 19] = (byte) 
-	    (sourcePort & 0xff);
+	return toArray(response);
+    }
 
- 	response[StunHeader.STUN_HEADER_LENGTH + 20] = sourceAddress[0];
- 	response[StunHeader.STUN_HEADER_LENGTH + 21] = sourceAddress[1];
- 	response[StunHeader.STUN_HEADER_LENGTH + 22] = sourceAddress[2];
- 	response[StunHeader.STUN_HEADER_LENGTH + 23] = sourceAddress[3];
+    private void putBindingErrorResponse(byte[] request, 
+	    int responseCode, String reason, ByteBuffer response) {
 
-	return response;
-    }
+	byte[] reasonBytes = reason.getBytes();
 
-    private byte[] getBindingErrorResponse(byte[] request, 
-	    int responseCode, String reason) {
+	int reasonLength = Math.min(reasonBytes.length, MAX_RESPONSE_LENGTH 
+	    - StunHeader.STUN_HEADER_LENGTH - StunHeader.ERROR_CODE_LENGTH);
 
- 	byte[] response = new byte[StunHeader.STUN_HEADER_LENGTH 
-	    + StunHeader.ERROR_CODE_LENGTH + reason.length()];
+	int length = StunHeader.STUN_HEADER_LENGTH 
+	    + StunHeader.ERROR_CODE_LENGTH + reasonLength;
 
-	System.arraycopy(request, 0, response, 0, 
-	    StunHeader.STUN_HEADER_LENGTH);
+	response.clear();
 
-	response[0] = 1;	// set Binding Error Response
-	response[1] = 0x11;
+	response.put(request, 0, Math.min(request.length, 
+	    StunHeader.STUN_HEADER_LENGTH));
 
-	response[StunHeader.STUN_HEADER_LENGTH + 2] = (byte) 
-	    (responseCode >> 8);
+	response.position(StunHeader.STUN_HEADER_LENGTH);
 
-	response[StunHeader.STUN_HEADER_LENGTH + 3] = (byte) 
-	    (responseCode & 0xff);
+	response.put(0, (byte) 1);	// set Binding Error Response
+	response.put(1, (byte) 0x11);
+	response.put(2, (byte) (length >> 8));
+	response.put(3, (byte) (length & 0xff));
 
-	byte[] reasonBytes = reason.getBytes();
+	response.put((byte) 0);
+	response.put((byte) 0);
+	response.putShort((short) responseCode);
 
-	System.arraycopy(reasonBytes, 0, response, 24, reasonBytes.length);
+	response.put(reasonBytes, 0, reasonLength);
 
-	int length = StunHeader.STUN_HEADER_LENGTH 
-	    + StunHeader.ERROR_CODE_LENGTH + reasonBytes.length;
+	response.flip();
+    }
 
-	response[2] = (byte) (length >> 8);
-	response[3] = (byte) (length & 0xff);
+    private static byte[] toArray(ByteBuffer buffer) {
+	byte[] data = new byte[buffer.remaining()];
 
-	return response;
+	buffer.get(data);
+	return data;
     }
 
     /* For debugging */
@@ -26,6 +26,7 @@ package com.sun.mpk20.voicelib.impl.service.voice;
 import com.sun.mpk20.voicelib.app.BridgeInfo;
 
 import com.sun.voip.CallParticipant;
+import com.sun.voip.MetricsRegistry;
 import com.sun.voip.client.connector.CallStatus;
 import com.sun.voip.client.connector.impl.VoiceBridgeConnection;
 import java.io.BufferedReader;
@@ -46,6 +47,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -54,10 +56,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.LinkedList;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -72,6 +75,10 @@ public class BridgeConnection extends VoiceBridgeConnection {
     /** the end-of-message pattern */
     private static final Pattern END_OF_MESSAGE = 
             Pattern.compile("^END -- (.*)");
+
+    /** the request id prefix of a tagged response line */
+    private static final Pattern REQUEST_ID = 
+            Pattern.compile("^\\[([^\\]]*)\\](.*)");
     
     /** the underlying connection to the bridge */
     private Socket socket;
@@ -92,6 +99,8 @@ public class BridgeConnection extends VoiceBridgeConnection {
 
     private boolean synchronous;
 
+    private boolean bulkPrivateMix;
+
     private Hashtable<String, String> conferences = 
 	new Hashtable<String, String>();
 
@@ -105,14 +114,54 @@ public class BridgeConnection extends VoiceBridgeConnection {
     private static int watchdogTimeout;
     private static int bridgePingTimeout;
 
+    /*
+     * Number of connections for commands, including the first one
+     */
+    private static int controlChannels = 2;
+
     private long bridgePingTime;
 
     private boolean pingTimeout = false;
 
+    /*
+     * A bridge which turned away a call is considered full until
+     * it says it isn't or until this time.
+     */
+    private static final long FULL_TIME = 10000;	// ms
+
+    private long fullUntil;
+
     private BridgeOfflineListener offlineListener;
 
+    private volatile PrivateMixListener privateMixListener;
+
     private SocketChannel socketChannel;
 
+    /*
+     * Reads tagged responses when the bridge supports request ids.
+     * If null, requests are sent one at a time.
+     */
+    private ResponseReader responseReader;
+
+    /*
+     * Additional connections for commands for calls.
+     * Empty if the bridge doesn't support request ids.
+     */
+    private ControlChannel[] channels = new ControlChannel[0];
+
+    private AtomicLong requestIdGenerator = new AtomicLong();
+
+    /*
+     * Bucket bounds in seconds for response times
+     */
+    private static final double[] RESPONSE_TIME_BOUNDS = {
+	.0005, .001, .0025, .005, .01, .025, .05, .1, .25, .5, 1, 2.5
+    };
+
+    private MetricsRegistry.Histogram responseTime;
+
+    private MetricsRegistry.Counter responseTimeouts;
+
     static {
         String s = System.getProperty(
             "com.sun.sgs.impl.service.voice.watchdog.timeout");
@@ -141,6 +190,18 @@ public class BridgeConnection extends VoiceBridgeConnection {
         }
 
 	logger.info("Bridge ping timeout is " + bridgePingTimeout + " seconds");
+
+        s = System.getProperty(
+            "com.sun.sgs.impl.service.voice.bridge.control.channels");
+
+        if (s != null) {
+            try {
+                controlChannels = Math.max(1, Integer.parseInt(s));
+            } catch (NumberFormatException e) {
+                logger.info("Invalid number of control channels:  " + s
+                    + ".  Defaulting to " + controlChannels);
+            }
+        }
     }
 
     /**
@@ -169,6 +230,15 @@ public class BridgeConnection extends VoiceBridgeConnection {
 	this.publicSipPort = publicSipPort;
 	this.synchronous = synchronous;
 
+	responseTime = MetricsRegistry.histogram(
+	    "voicelib_bridge_response_seconds",
+	    "Time for the bridge to answer a request",
+	    RESPONSE_TIME_BOUNDS, 1000000000., "bridge", toString());
+
+	responseTimeouts = MetricsRegistry.counter(
+	    "voicelib_bridge_response_timeouts_total",
+	    "Requests the bridge didn't answer in time", "bridge", toString());
+
 	/*
 	 * Connect to get bridge status
 	 */
@@ -194,6 +264,8 @@ public class BridgeConnection extends VoiceBridgeConnection {
 
 	logger.info("Created a socket channel to " + bridgeSocketAddress
 	    + " sendBufferSize " + socket.getSendBufferSize());
+
+	new PrivateMixReader(socketChannel);
     }
 
     public void addBridgeOfflineListener(
@@ -202,10 +274,32 @@ public class BridgeConnection extends VoiceBridgeConnection {
 	this.offlineListener = offlineListener;
     }
 
+    public void addPrivateMixListener(PrivateMixListener privateMixListener) {
+	this.privateMixListener = privateMixListener;
+    }
+
     public static CallStatus parseCallStatus(String s) throws IOException {
 	return VoiceBridgeConnection.parseCallStatus(s);
     }
 
+    /*
+     * Forget calls which have ended so that the number of calls
+     * is the number of calls on the bridge now.
+     */
+    protected void notifyListeners(CallStatus status) {
+	if (status.getCode() == CallStatus.ENDED && status.getCallId() != null) {
+	    removeCall(status.getCallId());
+	} else if (status.getCode() == CallStatus.BRIDGE_FULL) {
+	    setAcceptingCalls(false);
+
+	    if (status.getCallId() != null) {
+		removeCall(status.getCallId());
+	    }
+	}
+
+	super.notifyListeners(status);
+    }
+
     public String getPrivateHost() {
 	return privateHost;
     }
@@ -316,6 +410,28 @@ public class BridgeConnection extends VoiceBridgeConnection {
     public int getNumberOfCalls() {
         return callParticipantMap.size();
     }
+
+    /*
+     * Set from the bridge's status, its online messages and
+     * calls it turns away because it's full.
+     */
+    public synchronized void setAcceptingCalls(boolean acceptingCalls) {
+	if (acceptingCalls) {
+	    fullUntil = 0;
+	} else {
+	    long now = System.currentTimeMillis();
+
+	    if (now >= fullUntil) {
+		logger.info("Bridge " + this + " is full");
+	    }
+
+	    fullUntil = now + FULL_TIME;
+	}
+    }
+
+    public synchronized boolean isAcceptingCalls() {
+	return System.currentTimeMillis() >= fullUntil;
+    }
 	
     public CallParticipant getCallParticipant(String callId) {
 	return callParticipantMap.get(callId);
@@ -326,7 +442,8 @@ public class BridgeConnection extends VoiceBridgeConnection {
 
 	addCall(cp);
 
-	BridgeResponse br = sendWithResponse(cp.getCallSetupRequest());
+	BridgeResponse br = sendWithResponse(cp.getCallId(), 
+	    cp.getCallSetupRequest());
 
         logger.fine("setupCall status " + br.getStatus());
         
@@ -351,10 +468,11 @@ public class BridgeConnection extends VoiceBridgeConnection {
 	BridgeResponse br;
 
 	if (cancel == true) {
-	    br = sendWithResponse("cancelMigration=" + cp.getCallId() + "\n");
+	    br = sendWithResponse(cp.getCallId(), 
+		"cancelMigration=" + cp.getCallId() + "\n");
 	} else {
 	    cp.setMigrateCall(true);
-	    br = sendWithResponse(cp.getCallSetupRequest());
+	    br = sendWithResponse(cp.getCallId(), cp.getCallSetupRequest());
 	}
 
         logger.fine("migrate status " + br.getStatus());
@@ -382,7 +500,7 @@ public class BridgeConnection extends VoiceBridgeConnection {
 
 	BridgeResponse br;
 
-	br = sendWithResponse("cancel=" + callId + "\n");
+	br = sendWithResponse(callId, "cancel=" + callId + "\n");
 
         logger.fine("endCall status " + br.getStatus());
         
@@ -390,6 +508,8 @@ public class BridgeConnection extends VoiceBridgeConnection {
 	case SUCCESS:
             logger.finest("endCall contents " + br.getContents());
 
+	    removeCall(callId);
+
 	    return;
 
 	default:
@@ -397,10 +517,65 @@ public class BridgeConnection extends VoiceBridgeConnection {
 	}
     }
 
+    /*
+     * Maximum number of outstanding requests when ending many calls
+     */
+    private static final int END_CALLS_WINDOW = 100;
+
+    /**
+     * End calls which this connection may not know about, for example
+     * calls which were left over when the voice service restarted.
+     * Requests are sent without waiting for the previous responses
+     * so ending thousands of calls doesn't take a round trip for each.
+     * @param callIds the calls to end
+     * @return the number of calls the bridge ended
+     * @throws IOException if the bridge doesn't respond
+     */
+    public int endCalls(Collection<String> callIds) throws IOException {
+	LinkedList<PendingRequest> pendingRequests = 
+	    new LinkedList<PendingRequest>();
+
+	LinkedList<String> pendingCallIds = new LinkedList<String>();
+
+	int ended = 0;
+
+	for (String callId : callIds) {
+	    if (pendingRequests.size() >= END_CALLS_WINDOW) {
+		ended += endCallResponse(pendingRequests.removeFirst(),
+		    pendingCallIds.removeFirst());
+	    }
+
+	    pendingRequests.add(sendRequest(callId, "cancel=" + callId + "\n"));
+	    pendingCallIds.add(callId);
+	}
+
+	while (pendingRequests.size() > 0) {
+	    ended += endCallResponse(pendingRequests.removeFirst(),
+		pendingCallIds.removeFirst());
+	}
+
+	return ended;
+    }
+
+    private int endCallResponse(PendingRequest pendingRequest, String callId)
+	    throws IOException {
+
+	BridgeResponse br = pendingRequest.getResponse();
+
+	if (br.getStatus() != BridgeResponse.Status.SUCCESS) {
+	    logger.fine("Unable to end call " + callId + ":  " 
+		+ br.getMessage());
+	    return 0;
+	}
+
+	removeCall(callId);
+	return 1;
+    }
+
     public void muteCall(String callId, boolean isMuted) throws IOException {
         BridgeResponse br;
 
-        br = sendWithResponse("mute=" + isMuted + ":" + callId + "\n");
+        br = sendWithResponse(callId, "mute=" + isMuted + ":" + callId + "\n");
 
         logger.fine("muteCall status " + br.getStatus());
 
@@ -418,7 +593,7 @@ public class BridgeConnection extends VoiceBridgeConnection {
     public void transferCall(String callId, String conferenceId) throws IOException {
         BridgeResponse br;
 
-        br = sendWithResponse("transferCall=" + callId + ":" + conferenceId
+        br = sendWithResponse(callId, "transferCall=" + callId + ":" + conferenceId
 	    + "\n");
 
         logger.fine("transferCall status " + br.getStatus());
@@ -479,23 +654,35 @@ if (false) {
 }
     }
 
+    /**
+     * Send private mix commands in one write.
+     */
     public void setPrivateMix(String commands) throws IOException {
-	int n = socketChannel.write(ByteBuffer.wrap(commands.getBytes(), 0, 
-	    commands.length()));
+	byte[] bytes = commands.getBytes();
+
+	int n = socketChannel.write(ByteBuffer.wrap(bytes));
 
-	if (n < commands.length()) {
-	    logger.info("Tried to write " + commands.length() 
+	if (n < bytes.length) {
+	    logger.info("Tried to write " + bytes.length 
 		+ ", actually wrote " + n);
 	}
     }
 
+    /**
+     * Determine if the bridge accepts private mixes in batches
+     * with bulkPrivateMix.
+     */
+    public boolean supportsBulkPrivateMix() {
+	return bulkPrivateMix;
+    }
+
     /**
      * Start a new input treatment
      */
     public void newInputTreatment(String callId, String treatment) 
 	    throws IOException {
 
-        BridgeResponse br = sendWithResponse("startInputTreatment="
+        BridgeResponse br = sendWithResponse(callId, "startInputTreatment="
 	    + treatment + ":" + callId + "\n");
 
         logger.finest("newInputTreatment status " + br.getStatus());
@@ -512,7 +699,7 @@ if (false) {
     }
 
     public void pauseInputTreatment(String callId, boolean isPaused) throws IOException {
-        BridgeResponse br = sendWithResponse("pauseInputTreatment="
+        BridgeResponse br = sendWithResponse(callId, "pauseInputTreatment="
 	    + isPaused + ":" + callId + "\n");
 
         logger.finest("pauseInputTreatment status " + br.getStatus());
@@ -529,7 +716,7 @@ if (false) {
     }
 
     public void resumeInputTreatment(String callId) throws IOException {
-        BridgeResponse br = sendWithResponse("resumeTreatmentToCall="
+        BridgeResponse br = sendWithResponse(callId, "resumeTreatmentToCall="
 	    + callId + "\n");
 
         logger.finest("resumeTreatment status " + br.getStatus());
@@ -546,7 +733,7 @@ if (false) {
     }
 
     public void stopInputTreatment(String callId) throws IOException {
-        BridgeResponse br = sendWithResponse("stopInputTreatment="
+        BridgeResponse br = sendWithResponse(callId, "stopInputTreatment="
 	    + callId + "\n");
 
         logger.finest("stopInputTreatment status " + br.getStatus());
@@ -566,7 +753,7 @@ if (false) {
      * Restart input treatment for a call
      */
     public void restartInputTreatment(String callId) throws IOException {
-        BridgeResponse br = sendWithResponse("restartInputTreatment="
+        BridgeResponse br = sendWithResponse(callId, "restartInputTreatment="
 	    + callId + "\n");
 
         logger.finest("restartInputTreatment status " + br.getStatus());
@@ -585,7 +772,7 @@ if (false) {
     public void playTreatmentToCall(String callId, String treatment) 
 	    throws IOException {
 
-        BridgeResponse br = sendWithResponse("playTreatmentToCall="
+        BridgeResponse br = sendWithResponse(callId, "playTreatmentToCall="
             + treatment + ":" + callId + "\n");
 
         logger.finest("playTreatmentToCall status " + br.getStatus());
@@ -604,7 +791,7 @@ if (false) {
     public void pauseTreatmentToCall(String callId, String treatment)
 	    throws IOException {
 
-        BridgeResponse br = sendWithResponse("pauseTreatmentToCall="
+        BridgeResponse br = sendWithResponse(callId, "pauseTreatmentToCall="
             + callId + ":" + treatment + "\n");
 
         logger.finest("pauseTreatmentToCall status " + br.getStatus());
@@ -623,7 +810,7 @@ if (false) {
     public void stopTreatmentToCall(String callId, String treatment) 
 	    throws IOException {
 
-        BridgeResponse br = sendWithResponse("stopTreatmentToCall="
+        BridgeResponse br = sendWithResponse(callId, "stopTreatmentToCall="
             + callId  + ":" + treatment + "\n");
 
         logger.finest("stopTreatmentToCall status " + br.getStatus());
@@ -803,7 +990,7 @@ if (false) {
     public String getCallStatus(String callId) throws IOException {
        String cmd = "gcs=" + callId + "\n";
 
-        BridgeResponse br = sendWithResponse(cmd);
+        BridgeResponse br = sendWithResponse(callId, cmd);
 
         logger.finest("getCallStatus " + br.getStatus());
 
@@ -867,7 +1054,7 @@ if (false) {
 	String cmd = "recordToMember=t:" + callId + ":" + recordingFile 
 	    + ":" + "au" + "\n";
 
-        BridgeResponse br = sendWithResponse(cmd);
+        BridgeResponse br = sendWithResponse(callId, cmd);
 
         logger.finest("getStatus " + br.getStatus());
 
@@ -885,7 +1072,7 @@ if (false) {
     public void stopRecordingToCall(String callId) throws IOException {
 	String cmd = "recordToMember=f:" + callId + "\n";
 
-        BridgeResponse br = sendWithResponse(cmd);
+        BridgeResponse br = sendWithResponse(callId, cmd);
 
         logger.finest("getStatus " + br.getStatus());
 
@@ -907,7 +1094,7 @@ if (false) {
 	String cmd = "recordFromMember=" + isRecording + ":" + callId + ":" + recordingFile 
 	    + ":" + "au" + "\n";
 
-        BridgeResponse br = sendWithResponse(cmd);
+        BridgeResponse br = sendWithResponse(callId, cmd);
 
         logger.finest("getStatus " + br.getStatus());
 
@@ -934,26 +1121,179 @@ if (false) {
 	return this;
     }
 
-    private synchronized BridgeResponse sendWithResponse(String message)
+    /*
+     * Requests for a call are always sent on the same connection
+     * so the bridge handles them in the order they were sent.
+     * Requests for different calls are spread across the connections
+     * and handled in parallel.
+     */
+    private BridgeResponse sendWithResponse(String callId, String message)
+	    throws IOException {
+
+	ControlChannel channel = getChannel(callId);
+
+	if (channel == null) {
+	    return sendWithResponse(message);
+	}
+
+	return sendRequest(channel.getResponseReader(), channel, 
+	    message).getResponse();
+    }
+
+    private ControlChannel getChannel(String callId) {
+	ControlChannel[] channels = this.channels;
+
+	if (callId == null || channels.length == 0) {
+	    return null;
+	}
+
+	int i = (callId.hashCode() & 0x7fffffff) % (channels.length + 1);
+
+	if (i == 0) {
+	    return null;	// use the first connection
+	}
+
+	ControlChannel channel = channels[i - 1];
+
+	if (channel.isConnected() == false) {
+	    return null;
+	}
+
+	return channel;
+    }
+
+    private BridgeResponse sendWithResponse(String message)
+        throws IOException
+    {
+	ResponseReader responseReader = this.responseReader;
+
+	if (responseReader == null) {
+	    return sendAndWait(message);
+	}
+
+	return sendRequest(responseReader, null, message).getResponse();
+    }
+
+    /**
+     * Send a message to the bridge without waiting for the response.
+     * Many requests may be outstanding at once.  Responses are matched
+     * to requests by request id and may arrive in any order.
+     * @param message the message to send
+     * @return the pending request to wait on for the response
+     * @throws IOException if there is an error sending the message
+     */
+    PendingRequest sendRequest(String message) throws IOException {
+	ResponseReader responseReader = this.responseReader;
+
+	if (responseReader == null) {
+	    /*
+	     * The bridge doesn't support request ids.
+	     */
+	    return new PendingRequest(sendAndWait(message));
+	}
+
+	return sendRequest(responseReader, null, message);
+    }
+
+    /*
+     * Send a request on the connection used for callId
+     * without waiting for the response.
+     */
+    private PendingRequest sendRequest(String callId, String message)
+	    throws IOException {
+
+	ControlChannel channel = getChannel(callId);
+
+	if (channel == null) {
+	    return sendRequest(message);
+	}
+
+	return sendRequest(channel.getResponseReader(), channel, message);
+    }
+
+    /*
+     * Send a tagged request on channel, or on the first
+     * connection if channel is null.
+     */
+    private PendingRequest sendRequest(ResponseReader responseReader,
+	    ControlChannel channel, String message) throws IOException {
+
+	String requestId = String.valueOf(requestIdGenerator.incrementAndGet());
+
+        logger.finest("sendRequest() - send: [" + requestId + "] '" 
+	    + message + "'");
+
+	PendingRequest pendingRequest = new PendingRequest(requestId);
+
+	responseReader.addPendingRequest(pendingRequest);
+
+	pendingRequest.startTimer();
+
+	try {
+	    if (channel == null) {
+	        sendImpl(tagRequest(requestId, message));
+	    } else {
+		channel.send(tagRequest(requestId, message));
+	    }
+	} catch (IOException e) {
+	    responseReader.removePendingRequest(requestId);
+	    pendingRequest.cancelTimer();
+	    throw e;
+	}
+
+	return pendingRequest;
+    }
+
+    /*
+     * Prefix each line of the message with the request id.
+     */
+    private String tagRequest(String requestId, String message) {
+	String tag = "[" + requestId + "]";
+
+	StringBuffer sb = new StringBuffer();
+
+	String[] lines = message.split("\n", -1);
+
+	/*
+	 * The last element is whatever follows the final newline.
+	 */
+	for (int i = 0; i < lines.length; i++) {
+	    if (i == lines.length - 1 && lines[i].length() == 0) {
+		break;
+	    }
+
+	    sb.append(tag).append(lines[i]).append("\n");
+	}
+
+	return sb.toString();
+    }
+
+    /*
+     * Send a message and read lines until the end of the response.
+     * This is used when the bridge doesn't support request ids.
+     */
+    private synchronized BridgeResponse sendAndWait(String message)
         throws IOException
     {
         logger.finest("sendWithResponse() - send: '" + message + "'");
         
 	checkConnection();
 
+	long start = System.nanoTime();
+
         // send the message
         sendImpl(message);
     
-	Timer timer = new Timer();
+	TimeoutWheel.Timeout timeout = null;
 
 	if (watchdogTimeout > 0) {
-	    timer.schedule(new TimerTask() {
+	    timeout = TimeoutWheel.getInstance().schedule(new Runnable() {
                 public void run() {
 		    logger.info("No response from bridge! " 
 			+ getBridgeConnection());
 
-		    disconnect();
-		    sendBridgeOfflineNotification();
+		    responseTimeouts.increment();
+		    bridgeNotResponding();
                 }}, watchdogTimeout * 1000);
 	}
 
@@ -962,10 +1302,16 @@ if (false) {
         String line;
 
         while ((line = reader.readLine()) != null) {
-	    timer.cancel();
+	    if (timeout != null) {
+		timeout.cancel();
+		timeout = null;
+	    }
+
             // see if this was an end-of-message line
             Matcher m = END_OF_MESSAGE.matcher(line);
             if (m.matches()) {
+		responseTime.observe(System.nanoTime() - start);
+
                 String status = m.group(1).trim();
                 return new BridgeResponse(status, contents.toString());
             }
@@ -975,7 +1321,9 @@ if (false) {
             contents.append(line + "\n");
         }
         
-        timer.cancel();
+	if (timeout != null) {
+	    timeout.cancel();
+	}
 
         // if we got here, the stream closed before we received the
         // end-of-message line.  This means an abnormal termination.
@@ -1103,12 +1451,125 @@ if (false) {
 	    } 
 
 	    logger.info("Bridge public address is " + publicAddress);
+
+	    checkBulkPrivateMix();
+	    enableRequestIds();
+	    openChannels();
         } else {
 	    logger.info("Already connected to " + socket);
 	}
     }
     
+    /*
+     * An empty bulkPrivateMix succeeds on bridges which support it.
+     * Older bridges reject it as an unknown request.
+     */
+    private void checkBulkPrivateMix() throws IOException {
+	bulkPrivateMix = false;
+
+	writer.println("bulkPrivateMix=0");
+	writer.flush();
+
+	String line;
+
+	while ((line = reader.readLine()) != null) {
+	    Matcher m = END_OF_MESSAGE.matcher(line);
+
+	    if (m.matches() == false) {
+		continue;
+	    }
+
+	    BridgeResponse br = new BridgeResponse(m.group(1).trim(), "");
+
+	    bulkPrivateMix = br.getStatus() == BridgeResponse.Status.SUCCESS;
+
+	    logger.info("Bridge " + (bulkPrivateMix ? "supports" : 
+		"doesn't support") + " bulk private mixes " + this);
+	    return;
+	}
+
+	throw new IOException(
+	    "Unexpected end of stream checking for bulk private mixes");
+    }
+
+    /*
+     * Ask the bridge to tag responses with request ids.  Older bridges
+     * don't understand the request and we fall back to sending
+     * one request at a time.
+     */
+    private void enableRequestIds() throws IOException {
+	responseReader = null;
+
+	writer.println("requestIds=true");
+	writer.flush();
+
+	String line;
+
+	while ((line = reader.readLine()) != null) {
+	    Matcher m = END_OF_MESSAGE.matcher(line);
+
+	    if (m.matches() == false) {
+		continue;
+	    }
+
+	    BridgeResponse br = new BridgeResponse(m.group(1).trim(), "");
+
+	    if (br.getStatus() == BridgeResponse.Status.SUCCESS) {
+		socket.setTcpNoDelay(true);
+		responseReader = new ResponseReader(reader);
+		logger.info("Bridge supports request ids " + this);
+	    } else {
+		logger.info("Bridge doesn't support request ids " + this
+		    + ", " + br.getMessage());
+	    }
+	    return;
+	}
+
+	throw new IOException("Unexpected end of stream enabling request ids");
+    }
+
+    /*
+     * Open the additional connections for commands.  They need
+     * request ids because responses are read by a ResponseReader.
+     */
+    private void openChannels() {
+	closeChannels();
+
+	if (responseReader == null) {
+	    return;
+	}
+
+	ArrayList<ControlChannel> list = new ArrayList<ControlChannel>();
+
+	for (int i = 1; i < controlChannels; i++) {
+	    try {
+		list.add(new ControlChannel());
+	    } catch (IOException e) {
+		logger.info("Unable to open control channel to " + this 
+		    + ":  " + e.getMessage());
+		break;
+	    }
+	}
+
+	channels = list.toArray(new ControlChannel[0]);
+
+	logger.info("Using " + (channels.length + 1) 
+	    + " control connections to " + this);
+    }
+
+    private void closeChannels() {
+	ControlChannel[] channels = this.channels;
+
+	this.channels = new ControlChannel[0];
+
+	for (int i = 0; i < channels.length; i++) {
+	    channels[i].close();
+	}
+    }
+
     public void disconnect() {
+	closeChannels();
+
         if (socket == null) {
 	    return;
 	}
@@ -1117,6 +1578,11 @@ if (false) {
 
 	super.disconnect();
 
+	try {
+	    socketChannel.close();
+	} catch (IOException e) {
+	}
+
 	try {
 	    socket.close();
 	} catch (IOException e) {
@@ -1169,6 +1635,401 @@ if (false) {
         }
     }
 
+    /**
+     * A request which has been sent to the bridge and is waiting
+     * for a response.
+     */
+    class PendingRequest {
+
+	private String requestId;
+
+	private StringBuffer contents = new StringBuffer();
+
+	private BridgeResponse response;
+
+	private IOException exception;
+
+	private long startTime;
+
+	private TimeoutWheel.Timeout timeout;
+
+	public PendingRequest(String requestId) {
+	    this.requestId = requestId;
+	}
+
+	public PendingRequest(BridgeResponse response) {
+	    this.response = response;
+	}
+
+	public String getRequestId() {
+	    return requestId;
+	}
+
+	public void addContents(String line) {
+	    contents.append(line + "\n");
+	}
+
+	/*
+	 * If the bridge doesn't answer within the watchdog timeout,
+	 * the bridge is considered to be offline.
+	 */
+	public void startTimer() {
+	    startTime = System.nanoTime();
+
+	    if (watchdogTimeout <= 0) {
+		return;
+	    }
+
+	    TimeoutWheel.Timeout t = TimeoutWheel.getInstance().schedule(
+		new Runnable() {
+		    public void run() {
+			timedOut();
+		    }
+		}, watchdogTimeout * 1000);
+
+	    synchronized (this) {
+		timeout = t;
+	    }
+	}
+
+	public synchronized void cancelTimer() {
+	    if (timeout != null) {
+		timeout.cancel();
+		timeout = null;
+	    }
+	}
+
+	private void timedOut() {
+	    synchronized (this) {
+		if (isDone()) {
+		    return;
+		}
+
+		exception = new IOException(
+		    "No response from bridge for request " + requestId);
+
+		notifyAll();
+	    }
+
+	    logger.info("No response from bridge! " + getBridgeConnection()
+		+ " request " + requestId);
+
+	    responseTimeouts.increment();
+	    bridgeNotResponding();
+	}
+
+	public synchronized void setResponse(String status) {
+	    response = new BridgeResponse(status, contents.toString());
+
+	    if (startTime != 0) {
+		responseTime.observe(System.nanoTime() - startTime);
+	    }
+
+	    cancelTimer();
+	    notifyAll();
+	}
+
+	public synchronized void setException(IOException exception) {
+	    this.exception = exception;
+	    cancelTimer();
+	    notifyAll();
+	}
+
+	public synchronized boolean isDone() {
+	    return response != null || exception != null;
+	}
+
+	/**
+	 * Wait for the response.  The timer started when the request
+	 * was sent ends the wait if the bridge doesn't answer.
+	 */
+	public synchronized BridgeResponse getResponse() throws IOException {
+	    while (response == null && exception == null) {
+		try {
+		    wait();
+		} catch (InterruptedException e) {
+		    throw new IOException("Interrupted waiting for response to "
+			+ requestId);
+		}
+	    }
+
+	    if (exception != null) {
+		throw exception;
+	    }
+
+	    return response;
+	}
+    }
+
+    /*
+     * Read tagged responses from the bridge and hand them to
+     * the request waiting for them.
+     */
+    class ResponseReader extends Thread {
+
+	private BufferedReader reader;
+
+	private ConcurrentHashMap<String, PendingRequest> pendingRequests =
+	    new ConcurrentHashMap<String, PendingRequest>();
+
+	private boolean done;
+
+	public ResponseReader(BufferedReader reader) {
+	    this.reader = reader;
+
+	    setName("ResponseReader-" + getBridgeConnection());
+	    setDaemon(true);
+	    start();
+	}
+
+	public synchronized void addPendingRequest(
+		PendingRequest pendingRequest) throws IOException {
+
+	    if (done) {
+		throw new IOException("Not connected");
+	    }
+
+	    pendingRequests.put(pendingRequest.getRequestId(), pendingRequest);
+	}
+
+	public void removePendingRequest(String requestId) {
+	    pendingRequests.remove(requestId);
+	}
+
+	public synchronized boolean isDone() {
+	    return done;
+	}
+
+	public void run() {
+	    String line;
+
+	    try {
+	        while ((line = reader.readLine()) != null) {
+		    Matcher m = REQUEST_ID.matcher(line);
+
+		    if (m.matches() == false) {
+		        /*
+		         * Status arrives on the status connection.
+		         */
+		        logger.finest("Ignoring untagged line " + line);
+		        continue;
+		    }
+
+		    String requestId = m.group(1);
+
+		    PendingRequest pendingRequest = 
+			pendingRequests.get(requestId);
+
+		    if (pendingRequest == null) {
+		        logger.fine("No request for response [" + requestId
+			    + "] " + m.group(2));
+		        continue;
+		    }
+
+		    Matcher end = END_OF_MESSAGE.matcher(m.group(2));
+
+		    if (end.matches()) {
+		        pendingRequests.remove(requestId);
+		        pendingRequest.setResponse(end.group(1).trim());
+		    } else {
+		        pendingRequest.addContents(m.group(2));
+		    }
+	        }
+	    } catch (IOException e) {
+		logger.info("Unable to read response from bridge "
+		    + getBridgeConnection() + " " + e.getMessage());
+	    }
+
+	    synchronized (this) {
+	        done = true;
+	    }
+
+	    IOException e = new IOException("Unexpected end of stream.");
+
+	    Iterator<PendingRequest> it = pendingRequests.values().iterator();
+
+	    while (it.hasNext()) {
+		it.next().setException(e);
+		it.remove();
+	    }
+
+	    logger.info("ResponseReader done " + getBridgeConnection());
+	}
+    }
+
+    /*
+     * Another connection to the bridge for commands.  The bridge handles
+     * the requests on each connection with a separate thread.
+     */
+    class ControlChannel {
+
+	private Socket socket;
+
+	private PrintWriter writer;
+
+	private ResponseReader responseReader;
+
+	public ControlChannel() throws IOException {
+	    socket = new Socket(privateHost, privateControlPort);
+
+	    socket.setTcpNoDelay(true);
+
+	    BufferedReader reader = new BufferedReader(
+		new InputStreamReader(socket.getInputStream()));
+
+	    writer = new PrintWriter(
+		new OutputStreamWriter(socket.getOutputStream()));
+
+	    writer.println("sm=true");
+	    writer.flush();
+
+	    reader.readLine();	// skip the first line
+
+	    writer.println("requestIds=true");
+	    writer.flush();
+
+	    String line;
+
+	    while ((line = reader.readLine()) != null) {
+		Matcher m = END_OF_MESSAGE.matcher(line);
+
+		if (m.matches() == false) {
+		    continue;
+		}
+
+		BridgeResponse br = new BridgeResponse(m.group(1).trim(), "");
+
+		if (br.getStatus() != BridgeResponse.Status.SUCCESS) {
+		    close();
+		    throw new IOException("Unable to enable request ids:  " 
+			+ br.getMessage());
+		}
+
+		responseReader = new ResponseReader(reader);
+		return;
+	    }
+
+	    close();
+	    throw new IOException("Unexpected end of stream enabling request ids");
+	}
+
+	public ResponseReader getResponseReader() {
+	    return responseReader;
+	}
+
+	public boolean isConnected() {
+	    return socket.isClosed() == false && responseReader.isDone() == false;
+	}
+
+	public synchronized void send(String message) throws IOException {
+	    writer.print(message);
+	    writer.flush();
+
+	    if (writer.checkError()) {
+		throw new IOException("Unable to send to " + socket);
+	    }
+	}
+
+	public void close() {
+	    try {
+		socket.close();
+	    } catch (IOException e) {
+	    }
+	}
+    }
+
+    /*
+     * Nothing waits for responses to private mixes.  Read whatever
+     * the bridge sends back so that it never blocks writing to us,
+     * and tell the listener about private mixes which weren't set.
+     */
+    class PrivateMixReader extends Thread {
+
+	private static final String NOT_SET = "Private mix not set:  ";
+
+	private SocketChannel socketChannel;
+
+	public PrivateMixReader(SocketChannel socketChannel) {
+	    this.socketChannel = socketChannel;
+
+	    setName("PrivateMixReader-" + getBridgeConnection());
+	    setDaemon(true);
+	    start();
+	}
+
+	public void run() {
+	    ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+	    /*
+	     * A line may be split across reads.
+	     */
+	    StringBuilder line = new StringBuilder();
+
+	    try {
+		while (socketChannel.read(buffer) >= 0) {
+		    for (int i = 0; i < buffer.position(); i++) {
+			char c = (char) buffer.get(i);
+
+			if (c != '\n') {
+			    line.append(c);
+			    continue;
+			}
+
+			response(line.toString().trim());
+			line.setLength(0);
+		    }
+
+		    buffer.clear();
+		}
+	    } catch (IOException e) {
+		logger.fine("Unable to read private mix response from "
+		    + getBridgeConnection() + " " + e.getMessage());
+	    }
+	}
+
+	private void response(String s) {
+	    if (logger.isLoggable(Level.FINE)) {
+		logger.fine("Private mix response from " 
+		    + getBridgeConnection() + ":  " + s);
+	    }
+
+	    if (s.length() == 0 || s.startsWith("SIPDialer/") 
+		    || s.startsWith("END -- SUCCESS")) {
+
+		return;
+	    }
+
+	    PrivateMixListener listener = privateMixListener;
+
+	    if (listener == null) {
+		return;
+	    }
+
+	    if (s.startsWith(NOT_SET)) {
+		/*
+		 * The record follows the reason.
+		 * <frontBack>:<leftRight>:<upDown>:<volume>:<source>:<target>
+		 */
+		String[] tokens = s.substring(s.lastIndexOf(":  ") + 3).split(":");
+
+		if (tokens.length == 6) {
+		    listener.privateMixNotSet(getBridgeConnection(), tokens[4],
+			tokens[5]);
+		    return;
+		}
+	    }
+
+	    /*
+	     * An older bridge fails the whole batch without saying 
+	     * which records were bad.
+	     */
+	    logger.info("Private mixes not set on " + getBridgeConnection()
+		+ ":  " + s);
+
+	    listener.privateMixesNotSet(getBridgeConnection());
+	}
+    }
+
     public void bridgeOffline(BridgeConnection bc) {
 	String s = bc.getPrivateHost() + "_" + bc.getPrivateControlPort();
 
@@ -1236,6 +2097,32 @@ if (false) {
 
     private boolean offlineNotificationSent;
 
+    /*
+     * Set by the first request to notice the bridge isn't responding.
+     * A connection isn't reused once it's been disconnected so there
+     * is one outage per connection.
+     */
+    private AtomicBoolean notResponding = new AtomicBoolean();
+
+    /*
+     * Called on the TimeoutWheel thread, which mustn't block, so
+     * the bridge offline listener is notified on a separate thread.
+     * Every request outstanding when the bridge hangs times out, 
+     * but only the first one does anything about it.
+     */
+    private void bridgeNotResponding() {
+	if (notResponding.compareAndSet(false, true) == false) {
+	    return;
+	}
+
+	new Thread("BridgeNotResponding-" + this) {
+	    public void run() {
+		disconnect();
+		sendBridgeOfflineNotification();
+	    }
+	}.start();
+    }
+
     private void sendBridgeOfflineNotification() {
 	synchronized (this) {
 	    if (offlineNotificationSent == false && offlineListener != null) {
@@ -1247,62 +2134,65 @@ if (false) {
 	}
     }
 
-    class ConnectionWatchdog extends Thread {
+    /*
+     * Check the connection every watchdogTimeout seconds.  The check
+     * runs on the TimeoutWheel thread and reschedules itself for as
+     * long as the bridge is connected.
+     */
+    class ConnectionWatchdog implements Runnable {
 
 	private BridgeConnection bridgeConnection;
 
 	public ConnectionWatchdog(BridgeConnection bridgeConnection) {
 	    this.bridgeConnection = bridgeConnection;
 
-	    start();
+	    bridgePingTime = System.currentTimeMillis();
+
+	    schedule();
+	}
+
+	private void schedule() {
+	    TimeoutWheel.getInstance().schedule(this, watchdogTimeout * 1000);
 	}
 
 	public void run() {
-	    bridgePingTime = System.currentTimeMillis();
+	    long elapsed = 0;
 
-	    while (bridgeConnection.isConnected()) {
-	        long elapsed = 0;
-
-	        while (bridgeConnection.isConnected()) {
-		    long now = System.currentTimeMillis();
-		    if (bridgePingTimeout != 0) {
-		        elapsed = now - bridgePingTime;
-
-		        if (elapsed > bridgePingTimeout * 1000) {
-			    if (pingTimeout == false) {
-				pingTimeout = true;
-		                break;	// we haven't heard from the bridge
-			    }
-		        } else {
-			    logger.finest("elapsed " + elapsed);
-			    pingTimeout = false;
-			}
+	    if (bridgeConnection.isConnected()) {
+		if (bridgePingTimeout != 0) {
+		    elapsed = System.currentTimeMillis() - bridgePingTime;
+
+		    if (elapsed <= bridgePingTimeout * 1000) {
+			logger.finest("elapsed " + elapsed);
+			pingTimeout = false;
+			schedule();
+			return;
 		    }
 
-		    try {
-		        Thread.sleep(watchdogTimeout * 1000);
-		    } catch (InterruptedException e) {
-			logger.info("sleep interrupted!");
+		    if (pingTimeout) {
+			schedule();
+			return;
 		    }
 
-		    continue;
-	        }
+		    pingTimeout = true;	// we haven't heard from the bridge
+		} else {
+		    schedule();
+		    return;
+		}
+	    }
 
-	        if (bridgeConnection.isConnected() == false) {
-	            logger.info("Bridge " + bridgeConnection.toString()
-		        + " disconnected " + callParticipantMap.size() 
-			+ " calls");
-	        } else {
-	            logger.info("Bridge " + bridgeConnection.toString()
-		        + " went offline, elapsed " + (elapsed / 1000.)
-			+ " seconds, " + callParticipantMap.size() + " calls");
-	        }
-		
-		disconnect();
-		sendBridgeOfflineNotification();
-		break;
+	    if (bridgeConnection.isConnected() == false) {
+	        logger.info("Bridge " + bridgeConnection.toString()
+		    + " disconnected " + callParticipantMap.size() 
+		    + " calls");
+	    } else {
+	        logger.info("Bridge " + bridgeConnection.toString()
+		    + " went offline, elapsed " + (elapsed / 1000.)
+		    + " seconds, " + callParticipantMap.size() + " calls");
 	    }
 
+	    bridgeNotResponding();
+
 	    logger.info("ConnectionWatchdog done watching " + bridgeConnection);
  	}
 
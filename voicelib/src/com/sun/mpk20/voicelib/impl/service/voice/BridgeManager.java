@@ -26,6 +26,7 @@ package com.sun.mpk20.voicelib.impl.service.voice;
 import com.sun.mpk20.voicelib.impl.service.voice.work.player.SetPrivateMixWork;
 
 import com.sun.mpk20.voicelib.app.BridgeInfo;
+import com.sun.mpk20.voicelib.app.Player;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -43,6 +44,7 @@ import java.util.Properties;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Enumeration;
+import java.util.Iterator;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -50,6 +52,7 @@ import java.util.logging.Logger;
 import java.text.ParseException;
 
 import com.sun.voip.CallParticipant;
+import com.sun.voip.MetricsRegistry;
 
 import com.sun.voip.client.connector.CallStatus;
 import com.sun.voip.client.connector.CallStatusListener;
@@ -78,6 +81,67 @@ public class BridgeManager extends Thread
     private PrivateMixManager privateMixManager;
 
     private Reconnector reconnector;
+
+    private BridgePlacement placement;
+
+    private BridgeRebalancer rebalancer;
+
+    /*
+     * How long to wait for a call being moved to another bridge
+     * to be established there.
+     */
+    private static final long MOVE_TIMEOUT = 60000;
+
+    /*
+     * How long a call stays on a bridge after being moved there
+     * before it can be moved again.
+     */
+    private static final long MOVE_HOLD_TIME = 300000;
+
+    class MovingCall {
+	public CallInfo previousCallInfo;
+	public BridgeConnection bridgeConnection;
+	public long startTime;
+
+	/*
+	 * The call is up on the new bridge and the call on the
+	 * previous bridge is being ended.
+	 */
+	public boolean migrated;
+
+	/*
+	 * The call couldn't be set up on the new bridge.
+	 */
+	public boolean failed;
+
+	public MovingCall(CallInfo previousCallInfo, 
+		BridgeConnection bridgeConnection) {
+
+	    this.previousCallInfo = previousCallInfo;
+	    this.bridgeConnection = bridgeConnection;
+
+	    startTime = System.currentTimeMillis();
+	}
+    }
+
+    /*
+     * Calls being moved from one bridge to another
+     */
+    private ConcurrentHashMap<String, MovingCall> movingCalls =
+	new ConcurrentHashMap<String, MovingCall>();
+
+    /*
+     * When calls were last moved
+     */
+    private ConcurrentHashMap<String, Long> movedCalls =
+	new ConcurrentHashMap<String, Long>();
+
+    /*
+     * Calls which initiateCall() is setting up.  If the bridge 
+     * is full, initiateCall() places the call on another bridge.
+     */
+    private ConcurrentHashMap<String, CallParticipant> callsBeingSetUp =
+	new ConcurrentHashMap<String, CallParticipant>();
   
     public BridgeManager(VoiceServiceImpl voiceService) {
 	this.voiceService = voiceService;
@@ -98,6 +162,10 @@ public class BridgeManager extends Thread
 
 	privateMixManager = new PrivateMixManager(this);
 
+	placement = new BridgePlacement(this);
+
+	rebalancer = new BridgeRebalancer(this, placement);
+
 	start();
     }
 
@@ -212,7 +280,8 @@ public class BridgeManager extends Thread
 		true);
 
 	    bc.addBridgeOfflineListener(this);
-	    bc.addCallStatusListener(this);
+	    bc.addPrivateMixListener(privateMixManager);
+	    bc.addCallStatusListener(new BridgeStatusListener(bc));
 	    bc.monitorIncomingCalls(true);
 
 	    synchronized (bridgeConnections) {
@@ -340,6 +409,7 @@ public class BridgeManager extends Thread
 
     public void removeCallConnection(String callId) {
 	callConnectionMap.remove(callId);
+	movedCalls.remove(callId);
     }
 
     public void initiateCall(CallParticipant cp) throws IOException,
@@ -351,6 +421,7 @@ public class BridgeManager extends Thread
     /*
      * Initiate a call.  bridgeInfo must be what was returned
      * from getVoiceBridge().  This is <bridge public address>:<public sip port>
+     * If the bridge is full, the call is placed on another bridge.
      */
     public void initiateCall(CallParticipant cp, BridgeInfo bridgeInfo) 
 	    throws IOException, ParseException {
@@ -361,7 +432,7 @@ public class BridgeManager extends Thread
 
 	if (bridgeInfo == null) {
 	    try {
-	        bc = getBridgeConnection();
+	        bc = placeCall(callId);
 	    } catch (IOException e) {
 	        throw new IOException(
 		    "No voice bridge available " + cp + " " + e.getMessage());
@@ -375,6 +446,55 @@ public class BridgeManager extends Thread
 	    }
 	}
 
+	callsBeingSetUp.put(callId, cp);
+
+	try {
+	    while (true) {
+		try {
+		    setupCall(cp, bc);
+		    return;
+		} catch (IOException e) {
+		    if (e.getMessage() == null ||
+			    e.getMessage().indexOf("Bridge is full") < 0) {
+
+			throw e;
+		    }
+
+		    /*
+		     * The bridge may not have told us yet.
+		     */
+		    bc.setAcceptingCalls(false);
+
+		    BridgeConnection next;
+
+		    try {
+			next = placeCall(callId);
+		    } catch (IOException ee) {
+			throw e;
+		    }
+
+		    if (next == bc || next.isAcceptingCalls() == false) {
+			logger.info("Every bridge is full, unable to place call "
+			    + callId);
+			throw e;
+		    }
+
+		    logger.info("Bridge " + bc + " is full, placing call " 
+			+ callId + " on " + next);
+
+		    bc = next;
+		}
+	    }
+	} finally {
+	    callsBeingSetUp.remove(callId);
+	}
+    }
+
+    private void setupCall(CallParticipant cp, BridgeConnection bc)
+	    throws IOException, ParseException {
+
+	String callId = cp.getCallId();
+
 	/*
 	 * Make sure a call with the same id is ended before starting a new call.
 	 */
@@ -564,6 +684,11 @@ public class BridgeManager extends Thread
 	dumpCallConnections();
 	reconnector.dump();
 	privateMixManager.dump();
+	logger.info(placement.getStatistics() + ", " + movingCalls.size()
+	    + " calls moving");
+	logger.info(rebalancer.getStatistics());
+	logger.info(TimeoutWheel.getInstance().toString());
+	logger.fine(MetricsRegistry.getMetrics());
     }
 
     public void dumpBridgeConnections() {
@@ -633,40 +758,13 @@ public class BridgeManager extends Thread
 	return null;
     }
 
+    /*
+     * Choose a bridge for a call which doesn't have an id yet.
+     * Bridges which are overloaded or full are avoided
+     * unless every bridge is.
+     */
     public BridgeConnection getBridgeConnection() throws IOException {
-	BridgeConnection bridgeConnection = null;
-
-	synchronized (bridgeConnections) {
-	    if (bridgeConnections.size() == 0) {
-	        throw new IOException("There are no voice bridges available!");
-	    }
-
-	    for (BridgeConnection bc : bridgeConnections) {
-	        if (bc.isConnected() == false) {
-	            logger.warning("Skipping Voice bridge " + bc 
-		        + " which is DOWN!");
-
-		    continue;
-	        }
-
-	        if (bridgeConnection == null) {
-		    bridgeConnection = bc;
-	        } else {
-		    /*
-		     * Choose bridge with least number of calls
-		     */
-	            if (bc.getNumberOfCalls() < bridgeConnection.getNumberOfCalls()) {
-		        bridgeConnection = bc;
-	            }
-	    	}
-	    } 
-	}
-
-	if (bridgeConnection == null) {
-	    throw new IOException("There are no voice bridges available!");
-	}
-
-	return bridgeConnection;
+	return placeCall(null);
     }
 
     public BridgeConnection getBridgeConnection(String callId) 
@@ -688,7 +786,350 @@ public class BridgeManager extends Thread
 	    throw new IOException("Cannot find bridgeConnection for " + callId);
 	}
 
-	return getBridgeConnection();
+	return placeCall(callId);
+    }
+
+    /*
+     * Choose the bridge for a new call.
+     */
+    private BridgeConnection placeCall(String callId) throws IOException {
+	ArrayList<BridgeConnection> bridges = getConnectedBridges();
+
+	if (bridges.size() == 0) {
+	    throw new IOException("There are no voice bridges available!");
+	}
+
+	return placement.chooseBridge(callId, bridges);
+    }
+
+    public ArrayList<BridgeConnection> getConnectedBridges() {
+	ArrayList<BridgeConnection> bridges = new ArrayList<BridgeConnection>();
+
+	synchronized (bridgeConnections) {
+	    for (BridgeConnection bc : bridgeConnections) {
+		if (bc.isConnected()) {
+		    bridges.add(bc);
+		}
+	    }
+	}
+
+	return bridges;
+    }
+
+    /*
+     * Determine if a call can be moved to another bridge.
+     * Virtual calls and two party calls stay where they are.
+     */
+    public boolean isMovable(String callId) {
+	if (callId.startsWith("V-") || movingCalls.get(callId) != null) {
+	    return false;
+	}
+
+	Long moveTime = movedCalls.get(callId);
+
+	if (moveTime != null && 
+		System.currentTimeMillis() - moveTime.longValue() < MOVE_HOLD_TIME) {
+
+	    return false;
+	}
+
+	CallInfo callInfo = callConnectionMap.get(callId);
+
+	if (callInfo == null || callInfo.bridgeConnection == null ||
+		callInfo.bridgeConnection.isConnected() == false) {
+
+	    return false;
+	}
+
+	CallParticipant cp = callInfo.cp;
+
+	return cp.getPhoneNumber() != null && cp.getSecondPartyNumber() == null
+	    && cp.getConferenceId() != null;
+    }
+
+    /**
+     * Move a call to another bridge without the caller noticing.
+     *
+     * The call is set up again on the new bridge as a migrating call.
+     * When the new call is established the call on the previous bridge
+     * is ended and the private mixes for the call are set again.
+     * Status for the call changing bridges isn't passed on.
+     *
+     * @return false if the call couldn't be moved.
+     */
+    public boolean moveCall(String callId, BridgeConnection bc) {
+	if (isMovable(callId) == false || bc.isConnected() == false) {
+	    return false;
+	}
+
+	CallInfo callInfo = callConnectionMap.get(callId);
+
+	if (callInfo.bridgeConnection == bc) {
+	    return false;
+	}
+
+	MovingCall movingCall = new MovingCall(callInfo, bc);
+
+	if (movingCalls.putIfAbsent(callId, movingCall) != null) {
+	    return false;
+	}
+
+	logger.info("Moving call " + callId + " from " 
+	    + callInfo.bridgeConnection + " to " + bc);
+
+	CallParticipant cp = callInfo.cp;
+
+	/*
+	 * The bridge calls the second party number of a migrating call
+	 * which it doesn't already have.
+	 */
+	cp.setSecondPartyNumber(cp.getPhoneNumber());
+
+	putCallConnection(callId, new CallInfo(cp, bc));
+
+	try {
+	    bc.monitorConference(cp.getConferenceId());
+	    bc.migrateCall(cp, false);
+	    bc.addCall(cp);
+	} catch (IOException e) {
+	    logger.info("Unable to move call " + callId + " to " + bc
+		+ ":  " + e.getMessage());
+
+	    movingCalls.remove(callId);
+	    putCallConnection(callId, callInfo);
+	    return false;
+	} finally {
+	    cp.setMigrateCall(false);
+	    cp.setSecondPartyNumber(null);
+	}
+
+	movedCalls.put(callId, new Long(System.currentTimeMillis()));
+	return true;
+    }
+
+    /*
+     * New calls aren't placed on a bridge which is overloaded
+     * or which has said it's full unless every bridge is.
+     */
+    public boolean isOverloaded(BridgeConnection bc) {
+	return bc.isAcceptingCalls() == false ||
+	    (rebalancer != null && rebalancer.isOverloaded(bc));
+    }
+
+    /*
+     * Handle status for a call which is moving to another bridge.
+     * bc is the bridge which sent the status or null if it
+     * didn't come from a bridge.
+     *
+     * Until the call has migrated, status from the new bridge is 
+     * for setting up the new call.  Once it has migrated, the end of 
+     * the call on the previous bridge is ours.  Everything else is 
+     * for the call itself and is passed on.
+     *
+     * Returns true if the status should not be passed on.
+     */
+    private boolean handleMovingCall(MovingCall movingCall, 
+	    BridgeConnection bc, CallStatus status) {
+
+	if (bc == null) {
+	    return false;
+	}
+
+	if (bc == movingCall.bridgeConnection) {
+	    return handleNewBridgeStatus(movingCall, status);
+	}
+
+	if (bc == movingCall.previousCallInfo.bridgeConnection) {
+	    return handlePreviousBridgeStatus(movingCall, status);
+	}
+
+	return false;
+    }
+
+    private boolean handleNewBridgeStatus(MovingCall movingCall,
+	    CallStatus status) {
+
+	String callId = status.getCallId();
+
+	if (movingCall.migrated) {
+	    /*
+	     * The call lives on the new bridge now.
+	     */
+	    return false;
+	}
+
+	if (movingCall.failed) {
+	    /*
+	     * Status from cancelling the new call.
+	     */
+	    if (status.getCode() == CallStatus.ENDED) {
+		movingCalls.remove(callId);
+	    }
+	    return true;
+	}
+
+	switch (status.getCode()) {
+	case CallStatus.MIGRATED:
+	    movingCall.migrated = true;
+
+	    BridgeConnection previous = 
+		movingCall.previousCallInfo.bridgeConnection;
+
+	    logger.info("Call " + callId + " moved from " + previous
+		+ " to " + movingCall.bridgeConnection);
+
+	    try {
+		previous.endCall(callId);
+	    } catch (IOException e) {
+		logger.info("Unable to end call " + callId + " on " 
+		    + previous + ":  " + e.getMessage());
+	    }
+
+	    /*
+	     * Forwarding to and from the previous bridge is no longer needed
+	     * and the new bridge has none of the private mixes.
+	     */
+	    privateMixManager.endCall(callId);
+	    privateMixManager.callEstablished(callId);
+
+	    Player player = VoiceImpl.getInstance().getPlayer(callId);
+
+	    if (player != null) {
+		player.setPrivateMixes(true);
+	    }
+	    return true;
+
+	case CallStatus.ENDED:
+	    movingCalls.remove(callId);
+	    moveFailed(callId, movingCall, status);
+	    return true;
+
+	case CallStatus.MIGRATE_FAILED:
+	case CallStatus.NOANSWER:
+	case CallStatus.BUSY:
+	case CallStatus.TIMEOUT:
+	    moveFailed(callId, movingCall, status);
+	    return true;
+	}
+
+	/*
+	 * INVITED, ANSWERED, ESTABLISHED, ENDING and the like
+	 * are for the new call which the caller doesn't know about.
+	 */
+	return true;
+    }
+
+    private boolean handlePreviousBridgeStatus(MovingCall movingCall,
+	    CallStatus status) {
+
+	String callId = status.getCallId();
+
+	if (movingCall.migrated) {
+	    /*
+	     * We ended the call on the previous bridge.
+	     */
+	    switch (status.getCode()) {
+	    case CallStatus.ENDED:
+		movingCalls.remove(callId);
+		return true;
+
+	    case CallStatus.ENDING:
+		return true;
+	    }
+	    return false;
+	}
+
+	if (status.getCode() == CallStatus.ENDED && movingCall.failed == false) {
+	    /*
+	     * The call ended before it got to the new bridge.
+	     * Cancel the new call and let everybody know the call ended.
+	     */
+	    logger.info("Call " + callId + " ended while moving to "
+		+ movingCall.bridgeConnection);
+
+	    movingCall.failed = true;
+	    movingCall.startTime = System.currentTimeMillis();
+
+	    removeCallConnection(callId);
+
+	    try {
+		movingCall.bridgeConnection.migrateCall(
+		    movingCall.previousCallInfo.cp, true);
+	    } catch (IOException e) {
+		logger.info("Unable to cancel moving call " + callId
+		    + ":  " + e.getMessage());
+	    }
+	}
+
+	return false;
+    }
+
+    /*
+     * The call is still on the previous bridge.
+     */
+    private void moveFailed(String callId, MovingCall movingCall,
+	    CallStatus status) {
+
+	logger.info("Unable to move call " + callId + " to " 
+	    + movingCall.bridgeConnection + ":  " + status);
+
+	movingCall.failed = true;
+
+	putCallConnection(callId, movingCall.previousCallInfo);
+    }
+
+    /*
+     * Give up on calls which have been moving too long.
+     */
+    public void expireMovingCalls() {
+	long now = System.currentTimeMillis();
+
+	Iterator<Long> it = movedCalls.values().iterator();
+
+	while (it.hasNext()) {
+	    if (now - it.next().longValue() >= MOVE_HOLD_TIME) {
+		it.remove();
+	    }
+	}
+
+	Enumeration<String> keys = movingCalls.keys();
+
+	while (keys.hasMoreElements()) {
+	    String callId = keys.nextElement();
+
+	    MovingCall movingCall = movingCalls.get(callId);
+
+	    if (movingCall == null || 
+		    now - movingCall.startTime < MOVE_TIMEOUT) {
+
+		continue;
+	    }
+
+	    if (movingCall.migrated || movingCall.failed) {
+		movingCalls.remove(callId);
+		continue;
+	    }
+
+	    logger.info("Timed out moving call " + callId + " to "
+		+ movingCall.bridgeConnection);
+
+	    /*
+	     * Keep the entry a while longer so the status from
+	     * cancelling the new call isn't passed on.
+	     */
+	    movingCall.failed = true;
+	    movingCall.startTime = now;
+
+	    putCallConnection(callId, movingCall.previousCallInfo);
+
+	    try {
+		movingCall.bridgeConnection.migrateCall(
+		    movingCall.previousCallInfo.cp, true);
+	    } catch (IOException e) {
+		logger.info("Unable to cancel moving call " + callId
+		    + ":  " + e.getMessage());
+	    }
+	}
     }
 
     public BridgeConnection waitForBridge() {
@@ -835,8 +1276,29 @@ public class BridgeManager extends Thread
 	}
     }
 
+    /*
+     * Status from each bridge comes through its own listener
+     * so we know which bridge sent it.
+     */
+    class BridgeStatusListener implements CallStatusListener {
+
+	private BridgeConnection bc;
+
+	public BridgeStatusListener(BridgeConnection bc) {
+	    this.bc = bc;
+	}
+
+	public void callStatusChanged(CallStatus status) {
+	    BridgeManager.this.callStatusChanged(bc, status);
+	}
+    }
+
     public void callStatusChanged(CallStatus status) {
-        logger.finest("Call status changed:  " + status + " " + this);
+	callStatusChanged(null, status);
+    }
+
+    private void callStatusChanged(BridgeConnection bc, CallStatus status) {
+        logger.finest("Call status changed:  " + status + " " + bc);
 
 	String callId = status.getCallId();
 
@@ -846,6 +1308,26 @@ public class BridgeManager extends Thread
             return;
         }
 
+	MovingCall movingCall = null;
+
+	if (callId != null) {
+	    movingCall = movingCalls.get(callId);
+	}
+
+	if (movingCall != null && handleMovingCall(movingCall, bc, status)) {
+	    return;
+	}
+
+	if (status.getCode() == CallStatus.BRIDGE_FULL && 
+		callsBeingSetUp.get(callId) != null) {
+
+	    /*
+	     * The bridge also answers the setup request with this.
+	     * initiateCall() places the call on another bridge.
+	     */
+	    return;
+	}
+
         if (status.getCode() == CallStatus.ESTABLISHED) {
             privateMixManager.callEstablished(callId);
 	} else if (status.getCode() == CallStatus.ENDED) {
@@ -906,8 +1388,20 @@ public class BridgeManager extends Thread
 		     */
 	            String s = "BridgeUP:";
 
+		    boolean full = false;
+
 	            int ix = bridgeAddress.indexOf(s);
 
+		    if (ix < 0) {
+			/*
+			 * The bridge is up but has no room for new calls
+			 */
+			s = "BridgeFULL:";
+
+			ix = bridgeAddress.indexOf(s);
+			full = true;
+		    }
+
 	            if (ix >= 0) {
 		        bridgeAddress = bridgeAddress.substring(s.length());
 
@@ -917,6 +1411,12 @@ public class BridgeManager extends Thread
 			 */
 			try {
 	                    connect(bridgeAddress);
+
+			    BridgeConnection bc = findBridge(bridgeAddress);
+
+			    if (bc != null) {
+				bc.setAcceptingCalls(full == false);
+			    }
 			} catch (IOException e) {
 			    /*
 			     * We weren't able to connect.  Got back and wait for
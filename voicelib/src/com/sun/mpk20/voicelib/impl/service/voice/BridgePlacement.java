@@ -0,0 +1,509 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.mpk20.voicelib.impl.service.voice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import java.util.logging.Logger;
+
+import com.sun.mpk20.voicelib.app.AudioGroup;
+import com.sun.mpk20.voicelib.app.Call;
+import com.sun.mpk20.voicelib.app.Player;
+
+/**
+ * Decide which bridge a call should be on.
+ *
+ * When players who can hear each other are on different bridges,
+ * audio has to be forwarded between the bridges with virtual calls.
+ * With the "locality" policy a call is placed on the bridge which has
+ * the most calls for players near the call's player or in the same
+ * audio groups, as long as that bridge isn't carrying much more than
+ * its share of the calls.  If the player isn't known yet or has no
+ * neighbors, the bridge with the fewest calls is used.
+ *
+ * Players move after their calls are placed, so if
+ * PLACEMENT_REBALANCE_INTERVAL is set, calls are periodically moved
+ * to the bridge most of their neighbors are on.
+ */
+class BridgePlacement extends Thread {
+
+    private static final Logger logger =
+        Logger.getLogger(BridgePlacement.class.getName());
+
+    private static final String PREFIX =
+	"com.sun.mpk20.voicelib.impl.service.voice.";
+
+    /*
+     * "locality" or "leastCalls".  leastCalls places a call on the
+     * bridge with the fewest calls but, unlike before placement was
+     * added, still avoids bridges which are overloaded or full.
+     */
+    public static final String BRIDGE_PLACEMENT = PREFIX + "BRIDGE_PLACEMENT";
+
+    /*
+     * A bridge may have this many times the average number of calls
+     */
+    public static final String BRIDGE_LOAD_FACTOR =
+	PREFIX + "BRIDGE_LOAD_FACTOR";
+
+    /*
+     * Calls are never placed on a bridge which has this many calls
+     * unless every bridge has.  0 means no limit.
+     */
+    public static final String BRIDGE_MAXIMUM_CALLS =
+	PREFIX + "BRIDGE_MAXIMUM_CALLS";
+
+    /*
+     * Seconds between moving calls closer to their neighbors.
+     * 0 means calls are never moved.
+     */
+    public static final String PLACEMENT_REBALANCE_INTERVAL =
+	PREFIX + "PLACEMENT_REBALANCE_INTERVAL";
+
+    /*
+     * A call is only moved if the new bridge has at least this
+     * many more of its neighbors than the bridge it's on.
+     */
+    public static final String PLACEMENT_MIGRATION_THRESHOLD =
+	PREFIX + "PLACEMENT_MIGRATION_THRESHOLD";
+
+    /*
+     * Maximum number of calls to move each time
+     */
+    public static final String PLACEMENT_MAXIMUM_MOVES =
+	PREFIX + "PLACEMENT_MAXIMUM_MOVES";
+
+    private static final String LOCALITY = "locality";
+    private static final String LEAST_CALLS = "leastCalls";
+
+    private static final double DEFAULT_LOAD_FACTOR = 1.25;
+
+    private static final int DEFAULT_MIGRATION_THRESHOLD = 2;
+
+    private static final int DEFAULT_MAXIMUM_MOVES = 10;
+
+    private BridgeManager bridgeManager;
+
+    private boolean locality = true;
+
+    private double loadFactor;
+
+    private int maximumCalls;
+
+    private long rebalanceInterval;
+
+    private int migrationThreshold;
+
+    private int maximumMoves;
+
+    private boolean done;
+
+    /*
+     * Statistics
+     */
+    private long placements;
+    private long localPlacements;
+    private long moves;
+
+    public BridgePlacement(BridgeManager bridgeManager) {
+	this.bridgeManager = bridgeManager;
+
+	String s = System.getProperty(BRIDGE_PLACEMENT, LOCALITY);
+
+	if (s.equalsIgnoreCase(LEAST_CALLS)) {
+	    locality = false;
+	} else if (s.equalsIgnoreCase(LOCALITY) == false) {
+	    logger.warning("Invalid bridge placement '" + s
+		+ "'.  Using " + LOCALITY);
+	}
+
+	loadFactor = getProperty(BRIDGE_LOAD_FACTOR, DEFAULT_LOAD_FACTOR);
+
+	if (loadFactor < 1) {
+	    logger.warning("Invalid load factor " + loadFactor + ".  Using 1");
+	    loadFactor = 1;
+	}
+
+	maximumCalls = (int) getProperty(BRIDGE_MAXIMUM_CALLS, 0);
+
+	rebalanceInterval =
+	    Math.round(getProperty(PLACEMENT_REBALANCE_INTERVAL, 0) * 1000);
+
+	migrationThreshold = (int) getProperty(PLACEMENT_MIGRATION_THRESHOLD,
+	    DEFAULT_MIGRATION_THRESHOLD);
+
+	if (migrationThreshold < 1) {
+	    migrationThreshold = 1;
+	}
+
+	maximumMoves = (int) getProperty(PLACEMENT_MAXIMUM_MOVES,
+	    DEFAULT_MAXIMUM_MOVES);
+
+	logger.info("Bridge placement " + (locality ? LOCALITY : LEAST_CALLS)
+	    + ", load factor " + loadFactor + ", maximum calls "
+	    + maximumCalls + ", rebalance interval " + rebalanceInterval
+	    + " ms");
+
+	if (locality && rebalanceInterval > 0) {
+	    setName("BridgePlacement");
+	    setDaemon(true);
+	    start();
+	}
+    }
+
+    private double getProperty(String name, double defaultValue) {
+	String s = System.getProperty(name);
+
+	if (s == null) {
+	    return defaultValue;
+	}
+
+	try {
+	    return Double.parseDouble(s);
+	} catch (NumberFormatException e) {
+	    logger.warning("Invalid value '" + s + "' for " + name
+		+ ".  Using " + defaultValue);
+	    return defaultValue;
+	}
+    }
+
+    /**
+     * Choose a bridge for a new call.
+     * @param callId the call to place, or null if it isn't known yet.
+     * @param bridges the bridges which are connected.
+     */
+    public BridgeConnection chooseBridge(String callId,
+	    ArrayList<BridgeConnection> bridges) {
+
+	BridgeConnection leastLoaded = getLeastLoaded(bridges);
+
+	synchronized (this) {
+	    placements++;
+	}
+
+	if (locality == false || callId == null || bridges.size() < 2) {
+	    return leastLoaded;
+	}
+
+	HashMap<BridgeConnection, Integer> neighbors = countNeighbors(callId);
+
+	BridgeConnection bc = getBestBridge(neighbors, bridges, null);
+
+	if (bc == null) {
+	    return leastLoaded;
+	}
+
+	logger.fine("Placing " + callId + " on " + bc + " with "
+	    + neighbors.get(bc) + " neighbors");
+
+	synchronized (this) {
+	    localPlacements++;
+	}
+
+	return bc;
+    }
+
+    /**
+     * Choose a bridge to move a call to from an overloaded bridge.
+     * @param bridges the bridges which can take more calls.
+     */
+    public BridgeConnection chooseTarget(String callId,
+	    ArrayList<BridgeConnection> bridges) {
+
+	if (locality == false) {
+	    return getLeastLoaded(bridges);
+	}
+
+	BridgeConnection bc = getBestBridge(countNeighbors(callId), bridges,
+	    null);
+
+	if (bc == null) {
+	    return getLeastLoaded(bridges);
+	}
+
+	return bc;
+    }
+
+    public double getLoadFactor() {
+	return loadFactor;
+    }
+
+    /**
+     * The number of calls a bridge may have before it's
+     * considered too busy for more calls.
+     */
+    public int getCallLimit(ArrayList<BridgeConnection> bridges) {
+	int calls = 0;
+
+	for (BridgeConnection bc : bridges) {
+	    calls += bc.getNumberOfCalls();
+	}
+
+	double average = (double) (calls + 1) / bridges.size();
+
+	/*
+	 * Allow at least one more than the average so that a small
+	 * number of calls can still be put together.
+	 */
+	int limit = Math.max((int) Math.ceil(average * loadFactor),
+	    (int) Math.ceil(average) + 1);
+
+	if (maximumCalls > 0 && limit > maximumCalls) {
+	    limit = maximumCalls;
+	}
+
+	return limit;
+    }
+
+    /*
+     * Find the bridge with the fewest calls, avoiding overloaded bridges.
+     */
+    private BridgeConnection getLeastLoaded(ArrayList<BridgeConnection> bridges) {
+	BridgeConnection bridgeConnection = null;
+
+	for (BridgeConnection bc : bridges) {
+	    if (bridgeConnection == null) {
+		bridgeConnection = bc;
+		continue;
+	    }
+
+	    boolean overloaded = bridgeManager.isOverloaded(bc);
+
+	    if (overloaded != bridgeManager.isOverloaded(bridgeConnection)) {
+		if (overloaded == false) {
+		    bridgeConnection = bc;
+		}
+		continue;
+	    }
+
+	    if (bc.getNumberOfCalls() < bridgeConnection.getNumberOfCalls()) {
+		bridgeConnection = bc;
+	    }
+	}
+
+	return bridgeConnection;
+    }
+
+    /*
+     * Find the bridge with the most neighbors which has room for
+     * another call.  The call's current bridge always has room for it.
+     * Returns null if no bridge with room has any neighbors.
+     */
+    private BridgeConnection getBestBridge(
+	    HashMap<BridgeConnection, Integer> neighbors,
+	    ArrayList<BridgeConnection> bridges, BridgeConnection current) {
+
+	int limit = getCallLimit(bridges);
+
+	BridgeConnection best = null;
+	int bestCount = 0;
+
+	for (BridgeConnection bc : bridges) {
+	    if (bc != current && (bc.getNumberOfCalls() >= limit ||
+		    bridgeManager.isOverloaded(bc))) {
+
+		continue;
+	    }
+
+	    Integer n = neighbors.get(bc);
+
+	    if (n == null) {
+		continue;
+	    }
+
+	    if (best == null || n.intValue() > bestCount ||
+		    (n.intValue() == bestCount &&
+		    bc.getNumberOfCalls() < best.getNumberOfCalls())) {
+
+		best = bc;
+		bestCount = n.intValue();
+	    }
+	}
+
+	return best;
+    }
+
+    /*
+     * Count the calls on each bridge for players who are likely
+     * to hear or be heard by the player for callId.  Players who
+     * can be heard everywhere are left out because their audio has
+     * to reach every bridge anyway.
+     */
+    HashMap<BridgeConnection, Integer> countNeighbors(String callId) {
+	HashMap<BridgeConnection, Integer> neighbors =
+	    new HashMap<BridgeConnection, Integer>();
+
+	VoiceImpl voiceImpl = VoiceImpl.getInstance();
+
+	Player player = voiceImpl.getPlayer(callId);
+
+	if (player == null) {
+	    return neighbors;
+	}
+
+	HashSet<Player> players = new HashSet<Player>();
+
+	SpatialGrid spatialGrid = voiceImpl.getSpatialGrid();
+
+	if (spatialGrid != null) {
+	    spatialGrid.getNearbyPlayers(player.getX(), player.getZ(), players);
+
+	    for (Player p : players.toArray(new Player[0])) {
+		if (spatialGrid.isUnbounded(p)) {
+		    players.remove(p);
+		}
+	    }
+	}
+
+	for (AudioGroup audioGroup : player.getAudioGroups()) {
+	    players.addAll(Arrays.asList(audioGroup.getPlayers()));
+	}
+
+	for (Player p : players) {
+	    Call call = p.getCall();
+
+	    if (call == null || call.getId().equals(callId)) {
+		continue;
+	    }
+
+	    CallInfo callInfo = bridgeManager.getCallConnection(call.getId());
+
+	    if (callInfo == null) {
+		continue;
+	    }
+
+	    Integer n = neighbors.get(callInfo.bridgeConnection);
+
+	    neighbors.put(callInfo.bridgeConnection,
+		new Integer(n == null ? 1 : n.intValue() + 1));
+	}
+
+	return neighbors;
+    }
+
+    public void done() {
+	synchronized (this) {
+	    done = true;
+	    notifyAll();
+	}
+    }
+
+    public void run() {
+	while (true) {
+	    synchronized (this) {
+		try {
+		    wait(rebalanceInterval);
+		} catch (InterruptedException e) {
+		}
+
+		if (done) {
+		    break;
+		}
+	    }
+
+	    try {
+		rebalance();
+	    } catch (Exception e) {
+		logger.warning("Bridge rebalancing failed:  " + e.getMessage());
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /*
+     * Move calls to the bridge most of their neighbors are on.
+     */
+    private void rebalance() {
+	bridgeManager.expireMovingCalls();
+
+	ArrayList<BridgeConnection> bridges = bridgeManager.getConnectedBridges();
+
+	if (bridges.size() < 2) {
+	    return;
+	}
+
+	int n = 0;
+
+	for (Player player : VoiceImpl.getInstance().getPlayers()) {
+	    if (n >= maximumMoves) {
+		break;
+	    }
+
+	    Call call = player.getCall();
+
+	    if (call == null || player.getSetup().isLivePlayer == false ||
+		    call.getSetup().incomingCall == true ||
+		    bridgeManager.isMovable(call.getId()) == false) {
+
+		continue;
+	    }
+
+	    CallInfo callInfo = bridgeManager.getCallConnection(call.getId());
+
+	    if (callInfo == null) {
+		continue;
+	    }
+
+	    HashMap<BridgeConnection, Integer> neighbors =
+		countNeighbors(call.getId());
+
+	    BridgeConnection bc = getBestBridge(neighbors, bridges,
+		callInfo.bridgeConnection);
+
+	    if (bc == null || bc == callInfo.bridgeConnection) {
+		continue;
+	    }
+
+	    Integer here = neighbors.get(callInfo.bridgeConnection);
+
+	    int gain = neighbors.get(bc).intValue() -
+		(here == null ? 0 : here.intValue());
+
+	    if (gain < migrationThreshold) {
+		continue;
+	    }
+
+	    logger.info("Moving " + call.getId() + " to " + bc + " which has "
+		+ gain + " more of its neighbors");
+
+	    if (bridgeManager.moveCall(call.getId(), bc)) {
+		n++;
+	    }
+	}
+
+	synchronized (this) {
+	    moves += n;
+	}
+    }
+
+    public synchronized String getStatistics() {
+	return "Bridge placement " + (locality ? LOCALITY : LEAST_CALLS)
+	    + ":  " + placements + " calls placed, " + localPlacements
+	    + " near neighbors, " + moves + " moved";
+    }
+
+}
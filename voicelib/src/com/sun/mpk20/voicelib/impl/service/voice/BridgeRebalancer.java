@@ -0,0 +1,527 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.mpk20.voicelib.impl.service.voice;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import java.util.logging.Logger;
+
+import com.sun.mpk20.voicelib.app.Call;
+import com.sun.mpk20.voicelib.app.Player;
+
+/**
+ * Move calls off of overloaded bridges.
+ *
+ * Every LOAD_CHECK_INTERVAL seconds each bridge is asked for its status.
+ * A bridge is overloaded when it has OVERLOAD_FACTOR times the average
+ * number of calls or when the time it takes to send a packet to all of
+ * its calls is more than SEND_TIME_HIGH (average) or MAX_SEND_TIME_HIGH
+ * (maximum) for OVERLOAD_CHECKS checks in a row.  Calls are then moved
+ * to bridges which aren't busy until the bridge is back under the
+ * placement load factor and SEND_TIME_LOW.  The gap between the
+ * two levels keeps calls from moving back and forth.
+ *
+ * At most MIGRATIONS_PER_MINUTE calls are moved each minute.  The calls
+ * which have the fewest neighbors on the overloaded bridge are moved
+ * first, to the bridge where they have the most neighbors.
+ */
+class BridgeRebalancer extends Thread {
+
+    private static final Logger logger =
+        Logger.getLogger(BridgeRebalancer.class.getName());
+
+    private static final String PREFIX =
+	"com.sun.mpk20.voicelib.impl.service.voice.";
+
+    /*
+     * Seconds between checks.  0 disables rebalancing.
+     */
+    public static final String LOAD_CHECK_INTERVAL =
+	PREFIX + "LOAD_CHECK_INTERVAL";
+
+    public static final String OVERLOAD_FACTOR = PREFIX + "OVERLOAD_FACTOR";
+
+    /*
+     * Seconds to send a packet to every call
+     */
+    public static final String SEND_TIME_HIGH = PREFIX + "SEND_TIME_HIGH";
+    public static final String SEND_TIME_LOW = PREFIX + "SEND_TIME_LOW";
+    public static final String MAX_SEND_TIME_HIGH =
+	PREFIX + "MAX_SEND_TIME_HIGH";
+
+    public static final String OVERLOAD_CHECKS = PREFIX + "OVERLOAD_CHECKS";
+
+    public static final String MIGRATIONS_PER_MINUTE =
+	PREFIX + "MIGRATIONS_PER_MINUTE";
+
+    private static final double DEFAULT_LOAD_CHECK_INTERVAL = 10;
+
+    private static final double DEFAULT_OVERLOAD_FACTOR = 1.5;
+
+    /*
+     * A packet is sent every 20ms
+     */
+    private static final double DEFAULT_SEND_TIME_HIGH = .010;
+    private static final double DEFAULT_SEND_TIME_LOW = .007;
+    private static final double DEFAULT_MAX_SEND_TIME_HIGH = .018;
+
+    private static final int DEFAULT_OVERLOAD_CHECKS = 2;
+
+    private static final int DEFAULT_MIGRATIONS_PER_MINUTE = 10;
+
+    class BridgeLoad {
+	public int calls;
+
+	/*
+	 * -1 if the bridge doesn't report send times
+	 */
+	public double sendTime = -1;
+	public double maxSendTime = -1;
+
+	public int highChecks;
+	public boolean overloaded;
+
+	public String toString() {
+	    return calls + " calls, send time " + sendTime
+		+ ", max send time " + maxSendTime
+		+ (overloaded ? " OVERLOADED" : "");
+	}
+    }
+
+    private HashMap<BridgeConnection, BridgeLoad> loads =
+	new HashMap<BridgeConnection, BridgeLoad>();
+
+    private BridgeManager bridgeManager;
+
+    private BridgePlacement placement;
+
+    private long checkInterval;
+
+    private double overloadFactor;
+
+    private double sendTimeHigh;
+    private double sendTimeLow;
+    private double maxSendTimeHigh;
+
+    private int overloadChecks;
+
+    private int migrationsPerMinute;
+
+    /*
+     * When calls were moved in the last minute
+     */
+    private ArrayList<Long> moveTimes = new ArrayList<Long>();
+
+    private long moves;
+
+    private boolean done;
+
+    public BridgeRebalancer(BridgeManager bridgeManager,
+	    BridgePlacement placement) {
+
+	this.bridgeManager = bridgeManager;
+	this.placement = placement;
+
+	checkInterval = Math.round(getProperty(LOAD_CHECK_INTERVAL,
+	    DEFAULT_LOAD_CHECK_INTERVAL) * 1000);
+
+	overloadFactor = getProperty(OVERLOAD_FACTOR, DEFAULT_OVERLOAD_FACTOR);
+
+	if (overloadFactor < placement.getLoadFactor()) {
+	    logger.warning("Overload factor " + overloadFactor
+		+ " is less than the load factor " + placement.getLoadFactor());
+
+	    overloadFactor = placement.getLoadFactor();
+	}
+
+	sendTimeHigh = getProperty(SEND_TIME_HIGH, DEFAULT_SEND_TIME_HIGH);
+	sendTimeLow = getProperty(SEND_TIME_LOW, DEFAULT_SEND_TIME_LOW);
+
+	if (sendTimeLow > sendTimeHigh) {
+	    sendTimeLow = sendTimeHigh;
+	}
+
+	maxSendTimeHigh = getProperty(MAX_SEND_TIME_HIGH,
+	    DEFAULT_MAX_SEND_TIME_HIGH);
+
+	overloadChecks = Math.max(1, (int) getProperty(OVERLOAD_CHECKS,
+	    DEFAULT_OVERLOAD_CHECKS));
+
+	migrationsPerMinute = (int) getProperty(MIGRATIONS_PER_MINUTE,
+	    DEFAULT_MIGRATIONS_PER_MINUTE);
+
+	logger.info("Load check interval " + checkInterval
+	    + " ms, overload factor " + overloadFactor + ", send time "
+	    + sendTimeLow + " - " + sendTimeHigh + ", max send time "
+	    + maxSendTimeHigh + ", " + migrationsPerMinute
+	    + " migrations per minute");
+
+	if (checkInterval > 0 && migrationsPerMinute > 0) {
+	    setName("BridgeRebalancer");
+	    setDaemon(true);
+	    start();
+	}
+    }
+
+    private double getProperty(String name, double defaultValue) {
+	String s = System.getProperty(name);
+
+	if (s == null) {
+	    return defaultValue;
+	}
+
+	try {
+	    return Double.parseDouble(s);
+	} catch (NumberFormatException e) {
+	    logger.warning("Invalid value '" + s + "' for " + name
+		+ ".  Using " + defaultValue);
+	    return defaultValue;
+	}
+    }
+
+    public synchronized boolean isOverloaded(BridgeConnection bc) {
+	BridgeLoad load = loads.get(bc);
+
+	return load != null && load.overloaded;
+    }
+
+    public void done() {
+	synchronized (this) {
+	    done = true;
+	    notifyAll();
+	}
+    }
+
+    public void run() {
+	while (true) {
+	    synchronized (this) {
+		try {
+		    wait(checkInterval);
+		} catch (InterruptedException e) {
+		}
+
+		if (done) {
+		    break;
+		}
+	    }
+
+	    try {
+		rebalance();
+	    } catch (Exception e) {
+		logger.warning("Load rebalancing failed:  " + e.getMessage());
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    private void rebalance() {
+	bridgeManager.expireMovingCalls();
+
+	ArrayList<BridgeConnection> bridges = bridgeManager.getConnectedBridges();
+
+	HashMap<BridgeConnection, BridgeLoad> newLoads =
+	    new HashMap<BridgeConnection, BridgeLoad>();
+
+	for (BridgeConnection bc : bridges) {
+	    BridgeLoad load;
+
+	    synchronized (this) {
+		load = loads.get(bc);
+	    }
+
+	    if (load == null) {
+		load = new BridgeLoad();
+	    }
+
+	    try {
+		getLoad(bc, load);
+	    } catch (IOException e) {
+		logger.info("Unable to get status for " + bc + ":  "
+		    + e.getMessage());
+		continue;
+	    }
+
+	    newLoads.put(bc, load);
+	}
+
+	if (newLoads.size() < 2) {
+	    synchronized (this) {
+		loads = newLoads;
+	    }
+	    return;
+	}
+
+	int totalCalls = 0;
+
+	for (BridgeLoad load : newLoads.values()) {
+	    totalCalls += load.calls;
+	}
+
+	double average = (double) totalCalls / newLoads.size();
+
+	ArrayList<BridgeConnection> overloaded = new ArrayList<BridgeConnection>();
+	ArrayList<BridgeConnection> available = new ArrayList<BridgeConnection>();
+
+	synchronized (this) {
+	    for (BridgeConnection bc : newLoads.keySet()) {
+		BridgeLoad load = newLoads.get(bc);
+
+		updateState(bc, load, average);
+
+		if (load.overloaded) {
+		    overloaded.add(bc);
+		} else if (isBusy(load, average) == false &&
+			bc.isAcceptingCalls()) {
+
+		    available.add(bc);
+		}
+	    }
+
+	    loads = newLoads;
+	}
+
+	if (overloaded.size() == 0 || available.size() == 0) {
+	    return;
+	}
+
+	for (BridgeConnection bc : overloaded) {
+	    BridgeLoad load = newLoads.get(bc);
+
+	    /*
+	     * Move enough calls to get back to the load factor.
+	     * When it's the send time that's too high, move a tenth
+	     * of the calls and check again.
+	     */
+	    int n = load.calls -
+		(int) Math.ceil(average * placement.getLoadFactor());
+
+	    n = Math.max(n, Math.max(1, load.calls / 10));
+
+	    moveCalls(bc, n, available);
+	}
+    }
+
+    /*
+     * Get the number of calls and send times from the bridge status.
+     * Bridges which are too busy for new calls also say so here.
+     */
+    private void getLoad(BridgeConnection bc, BridgeLoad load)
+	    throws IOException {
+
+	String status = bc.getBridgeStatus();
+
+	load.calls = bc.getNumberOfCalls();
+	load.sendTime = -1;
+	load.maxSendTime = -1;
+
+	String[] lines = status.split("\n");
+
+	for (int i = 0; i < lines.length; i++) {
+	    String[] tokens = lines[i].replaceAll("\t", "").split(":");
+
+	    if (tokens.length != 2) {
+		continue;
+	    }
+
+	    try {
+		if (tokens[0].equals("Calls")) {
+		    load.calls = Integer.parseInt(tokens[1].trim());
+		} else if (tokens[0].equals("SendTime")) {
+		    load.sendTime = Double.parseDouble(tokens[1].trim());
+		} else if (tokens[0].equals("MaxSendTime")) {
+		    load.maxSendTime = Double.parseDouble(tokens[1].trim());
+		} else if (tokens[0].equals("AcceptingCalls")) {
+		    bc.setAcceptingCalls(
+			Boolean.valueOf(tokens[1].trim()).booleanValue());
+		}
+	    } catch (NumberFormatException e) {
+		logger.fine("Unable to parse status from " + bc + ":  "
+		    + lines[i]);
+	    }
+	}
+    }
+
+    private void updateState(BridgeConnection bc, BridgeLoad load,
+	    double average) {
+
+	if (load.overloaded) {
+	    boolean low = load.calls <=
+		Math.ceil(average * placement.getLoadFactor())
+		&& load.sendTime < sendTimeLow;
+
+	    if (low) {
+		logger.info(bc + " is no longer overloaded:  " + load);
+		load.overloaded = false;
+		load.highChecks = 0;
+	    }
+	    return;
+	}
+
+	if (isHigh(load, average) == false) {
+	    load.highChecks = 0;
+	    return;
+	}
+
+	if (++load.highChecks >= overloadChecks) {
+	    load.overloaded = true;
+
+	    logger.info(bc + " is overloaded:  " + load + ", average calls "
+		+ average);
+	}
+    }
+
+    private boolean isHigh(BridgeLoad load, double average) {
+	/*
+	 * Require at least two calls more than average so
+	 * a handful of calls don't count as an imbalance.
+	 */
+	if (load.calls > average * overloadFactor &&
+		load.calls - average >= 2) {
+
+	    return true;
+	}
+
+	return load.sendTime >= sendTimeHigh ||
+	    load.maxSendTime >= maxSendTimeHigh;
+    }
+
+    /*
+     * A bridge which can't take calls from an overloaded bridge
+     */
+    private boolean isBusy(BridgeLoad load, double average) {
+	return load.calls >= Math.ceil(average * placement.getLoadFactor()) ||
+	    load.sendTime >= sendTimeLow;
+    }
+
+    class Candidate {
+	public String callId;
+	public int neighbors;
+
+	public Candidate(String callId, int neighbors) {
+	    this.callId = callId;
+	    this.neighbors = neighbors;
+	}
+    }
+
+    private void moveCalls(BridgeConnection bc, int n,
+	    ArrayList<BridgeConnection> available) {
+
+	ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+
+	for (Player player : VoiceImpl.getInstance().getPlayers()) {
+	    Call call = player.getCall();
+
+	    if (call == null || player.getSetup().isLivePlayer == false ||
+		    call.getSetup().incomingCall == true ||
+		    bridgeManager.isMovable(call.getId()) == false) {
+
+		continue;
+	    }
+
+	    CallInfo callInfo = bridgeManager.getCallConnection(call.getId());
+
+	    if (callInfo == null || callInfo.bridgeConnection != bc) {
+		continue;
+	    }
+
+	    Integer neighbors =
+		placement.countNeighbors(call.getId()).get(bc);
+
+	    candidates.add(new Candidate(call.getId(),
+		neighbors == null ? 0 : neighbors.intValue()));
+	}
+
+	/*
+	 * Break up as few groups of neighbors as possible.
+	 */
+	Collections.sort(candidates, new Comparator<Candidate>() {
+	    public int compare(Candidate c1, Candidate c2) {
+		return c1.neighbors - c2.neighbors;
+	    }
+	});
+
+	for (Candidate candidate : candidates) {
+	    if (n == 0 || useBudget() == false) {
+		break;
+	    }
+
+	    BridgeConnection target = placement.chooseTarget(candidate.callId,
+		available);
+
+	    if (target == null) {
+		break;
+	    }
+
+	    logger.info("Moving " + candidate.callId + " from overloaded "
+		+ bc + " to " + target);
+
+	    if (bridgeManager.moveCall(candidate.callId, target)) {
+		n--;
+	    }
+	}
+    }
+
+    /*
+     * Account for moving a call.  Returns false if the
+     * budget for this minute has been used up.
+     */
+    private synchronized boolean useBudget() {
+	long now = System.currentTimeMillis();
+
+	Iterator<Long> it = moveTimes.iterator();
+
+	while (it.hasNext()) {
+	    if (now - it.next().longValue() >= 60000) {
+		it.remove();
+	    }
+	}
+
+	if (moveTimes.size() >= migrationsPerMinute) {
+	    logger.fine("Migration budget of " + migrationsPerMinute
+		+ " per minute used up");
+	    return false;
+	}
+
+	moveTimes.add(new Long(now));
+	moves++;
+	return true;
+    }
+
+    public synchronized String getStatistics() {
+	String s = "Load rebalancing:  " + moves + " calls moved";
+
+	for (BridgeConnection bc : loads.keySet()) {
+	    s += "\n    " + bc + " " + loads.get(bc);
+	}
+
+	return s;
+    }
+
+}
@@ -31,7 +31,6 @@ import com.sun.sgs.app.ManagedReference;
 import com.sun.mpk20.voicelib.app.AudioGroup;
 import com.sun.mpk20.voicelib.app.AudioSource;
 import com.sun.mpk20.voicelib.app.AudioSink;
-import com.sun.mpk20.voicelib.app.BridgeInfo;
 import com.sun.mpk20.voicelib.app.Call;
 import com.sun.mpk20.voicelib.app.CallBeginEndListener;
 import com.sun.mpk20.voicelib.app.CallSetup;
@@ -122,19 +121,10 @@ public class CallImpl implements Call, CallStatusListener {
 
 	setup.cp.setName(name);
 
-	if (setup.bridgeInfo == null) {
-            BridgeConnection bc = VoiceImpl.getInstance().getBridgeManager().getBridgeConnection();
-
-            BridgeInfo bridgeInfo = new BridgeInfo();
-
-	    bridgeInfo.privateHostName = bc.getPrivateHost();
-	    bridgeInfo.privateControlPort = bc.getPrivateControlPort();
-            bridgeInfo.publicHostName = bc.getPublicHost();
-	    bridgeInfo.publicControlPort = bc.getPublicControlPort();
-            bridgeInfo.publicSipPort = bc.getPublicSipPort();
-
-	    setup.bridgeInfo = bridgeInfo;
-	}
+	/*
+	 * If setup.bridgeInfo is null, the bridge is chosen 
+	 * when the call is initiated.
+	 */
 
 	//if (setup.managedListenerRef != null) {
         //    VoiceImpl.getInstance().addCallStatusListener(setup.managedListenerRef, id);
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.mpk20.voicelib.impl.service.voice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import java.util.logging.Logger;
+
+import com.sun.mpk20.voicelib.app.Player;
+
+/**
+ * Set the private mixes for a batch of player pairs on several threads.
+ *
+ * When many players move at once, for example during a crowd event,
+ * the SpatialUpdater collects every pair whose mix has to be set.
+ * The pairs are split into chunks which worker threads and the caller
+ * spatialize at the same time.  The mixes are queued with the
+ * PrivateMixManager and the caller commits them all when the batch is done.
+ *
+ * Small batches aren't worth handing to other threads and are
+ * spatialized by the caller.
+ */
+class ParallelSpatializer {
+
+    private static final Logger logger =
+        Logger.getLogger(ParallelSpatializer.class.getName());
+
+    private static final String PREFIX =
+	"com.sun.mpk20.voicelib.impl.service.voice.";
+
+    public static final String SPATIALIZER_THREADS =
+	PREFIX + "SPATIALIZER_THREADS";
+
+    /*
+     * Batches with fewer pairs than this per thread are done by the caller.
+     */
+    private static final int MINIMUM_PAIRS_PER_THREAD = 32;
+
+    /*
+     * Chunks per thread.  More chunks than threads evens out the work
+     * when some pairs take longer than others.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The private mix p1 has for p2, set by player.
+     */
+    static class Pair {
+	public PlayerImpl player;
+	public Player p1;
+	public Player p2;
+
+	public Pair(PlayerImpl player, Player p1, Player p2) {
+	    this.player = player;
+	    this.p1 = p1;
+	    this.p2 = p2;
+	}
+    }
+
+    class Chunk {
+	public List<Pair> pairs;
+	public CountDownLatch doneSignal;
+
+	public Chunk(List<Pair> pairs, CountDownLatch doneSignal) {
+	    this.pairs = pairs;
+	    this.doneSignal = doneSignal;
+	}
+    }
+
+    private ConcurrentLinkedQueue<Chunk> workToDo =
+	new ConcurrentLinkedQueue<Chunk>();
+
+    private ArrayList<WorkerThread> workerThreads =
+	new ArrayList<WorkerThread>();
+
+    private int nThreads;
+
+    /*
+     * Statistics
+     */
+    private long batches;
+    private long parallelBatches;
+    private long pairs;
+    private long elapsed;
+
+    public ParallelSpatializer() {
+	nThreads = Runtime.getRuntime().availableProcessors();
+
+	String s = System.getProperty(SPATIALIZER_THREADS);
+
+	if (s != null) {
+	    try {
+		nThreads = Integer.parseInt(s);
+	    } catch (NumberFormatException e) {
+		logger.warning("Invalid value '" + s + "' for "
+		    + SPATIALIZER_THREADS + ".  Using " + nThreads);
+	    }
+	}
+
+	nThreads = Math.max(1, nThreads);
+
+	/*
+	 * The caller is one of the threads.
+	 */
+	for (int i = 1; i < nThreads; i++) {
+	    workerThreads.add(new WorkerThread(i));
+	}
+
+	logger.info("Spatializing with " + nThreads + " threads");
+    }
+
+    /**
+     * Set the private mixes for all of the pairs and
+     * return when they've all been set.
+     */
+    public void spatialize(Collection<Pair> pairCollection) {
+	long start = System.nanoTime();
+
+	ArrayList<Pair> pairList = new ArrayList<Pair>(pairCollection);
+
+	int n = Math.min(nThreads,
+	    pairList.size() / MINIMUM_PAIRS_PER_THREAD);
+
+	if (n <= 1) {
+	    spatialize(pairList);
+	} else {
+	    int nChunks = n * CHUNKS_PER_THREAD;
+
+	    int chunkSize = (pairList.size() + nChunks - 1) / nChunks;
+
+	    nChunks = (pairList.size() + chunkSize - 1) / chunkSize;
+
+	    CountDownLatch doneSignal = new CountDownLatch(nChunks);
+
+	    for (int i = 0; i < pairList.size(); i += chunkSize) {
+		workToDo.add(new Chunk(pairList.subList(i,
+		    Math.min(pairList.size(), i + chunkSize)), doneSignal));
+	    }
+
+	    for (int i = 0; i < n - 1; i++) {
+		WorkerThread workerThread = workerThreads.get(i);
+
+		synchronized (workerThread) {
+		    workerThread.notify();
+		}
+	    }
+
+	    /*
+	     * Help out until there's nothing left to start
+	     */
+	    doWork();
+
+	    try {
+		doneSignal.await();
+	    } catch (InterruptedException e) {
+		logger.warning("Interrupted waiting for spatialization");
+	    }
+	}
+
+	synchronized (this) {
+	    batches++;
+
+	    if (n > 1) {
+		parallelBatches++;
+	    }
+
+	    pairs += pairList.size();
+	    elapsed += System.nanoTime() - start;
+	}
+    }
+
+    private void doWork() {
+	Chunk chunk;
+
+	while ((chunk = workToDo.poll()) != null) {
+	    try {
+		spatialize(chunk.pairs);
+	    } finally {
+		chunk.doneSignal.countDown();
+	    }
+	}
+    }
+
+    private void spatialize(List<Pair> pairList) {
+	for (Pair pair : pairList) {
+	    try {
+		pair.player.setPrivateMix(pair.p1, pair.p2);
+	    } catch (Exception e) {
+		logger.warning("Unable to set private mix " + pair.p1
+		    + " has for " + pair.p2 + ":  " + e.getMessage());
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    class WorkerThread extends Thread {
+
+	public WorkerThread(int i) {
+	    setName("ParallelSpatializer-WorkerThread-" + i);
+	    setDaemon(true);
+	    start();
+	}
+
+	public void run() {
+	    while (true) {
+		doWork();
+
+		synchronized (this) {
+		    if (workToDo.isEmpty() == false) {
+			continue;
+		    }
+
+		    try {
+			wait();
+		    } catch (InterruptedException e) {
+		    }
+		}
+	    }
+	}
+    }
+
+    public synchronized String getStatistics() {
+	String s = "Spatialized " + pairs + " pairs in " + batches
+	    + " batches, " + parallelBatches + " in parallel on "
+	    + nThreads + " threads";
+
+	if (pairs > 0) {
+	    s += ", " + Math.round(elapsed / pairs / 10.) / 100.
+		+ " us per pair";
+	}
+
+	return s;
+    }
+
+}
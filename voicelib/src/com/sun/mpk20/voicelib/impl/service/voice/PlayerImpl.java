@@ -33,8 +33,13 @@ import java.io.Serializable;
 import java.lang.Integer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import java.util.concurrent.ConcurrentHashMap;
@@ -68,13 +73,10 @@ import com.sun.mpk20.voicelib.app.VoiceManager;
 import com.sun.mpk20.voicelib.app.VoiceService;
 import com.sun.mpk20.voicelib.app.VoiceManagerParameters;
 import com.sun.mpk20.voicelib.app.ZeroVolumeSpatializer;
-import com.sun.mpk20.voicelib.app.Wall;
 
 import com.sun.voip.client.connector.CallStatus;
 import com.sun.voip.client.connector.CallStatusListener;
 
-import java.awt.geom.Line2D;
-
 public class PlayerImpl implements Player, CallStatusListener {
 
     private static final Logger logger =
@@ -149,6 +151,7 @@ public class PlayerImpl implements Player, CallStatusListener {
 
 	VoiceImpl.getInstance().addCallStatusListener(this, id);
 	VoiceImpl.getInstance().putPlayer(this);
+	VoiceImpl.getInstance().getSpatialGrid().update(this, isUnbounded());
     }
 
     public String getId() {
@@ -174,6 +177,7 @@ public class PlayerImpl implements Player, CallStatusListener {
 
         VoiceImpl.getInstance().removeCallStatusListener(this, id);
 	VoiceImpl.getInstance().removePlayer(this);
+	VoiceImpl.getInstance().getSpatialUpdater().removePlayer(this);
     }
 
     public void setCall(Call call) {
@@ -271,7 +275,7 @@ public class PlayerImpl implements Player, CallStatusListener {
 	logger.finest("Player " + this + " moved to " + x + ":" + y + ":" + z
 	    + " orientation " + orientation + " positionChanged = " + positionChanged);
 
-	setPrivateMixesCommit(positionChanged);
+	VoiceImpl.getInstance().getSpatialUpdater().moved(this, positionChanged);
     }
 
     private void setPosition(double x, double y, double z) {
@@ -321,6 +325,8 @@ public class PlayerImpl implements Player, CallStatusListener {
 
     private void setPublicSpatializerCommit(Spatializer publicSpatializer) {
 	this.publicSpatializer = publicSpatializer;
+
+	VoiceImpl.getInstance().getSpatialGrid().update(this, isUnbounded());
     }
 
     public Spatializer getPublicSpatializer() {
@@ -338,6 +344,7 @@ public class PlayerImpl implements Player, CallStatusListener {
     private void setPrivateSpatializerCommit(Player player, Spatializer spatializer) {
 	if (spatializer == null) {
 	    privateSpatializers.remove(player.getId());
+	    setPrivateMixesCommit(true);
 	    return;
 	}
 
@@ -493,26 +500,24 @@ public class PlayerImpl implements Player, CallStatusListener {
     public void addPlayerInRange(Player p) {
 	//System.out.println(p + " IN RANGE OF " + this);
 
-	if (playersInRange.contains(p)) {
+	if (playersInRange.addIfAbsent(p) == false) {
 	    logger.fine("playersInRange already contains " + p);
 	    //System.out.println("playersInRange already contains " + p);
 	    return;
 	}
 
-	playersInRange.add(p);
 	notifyPlayerInRangeListeners(p, true);
     }
 
     public void removePlayerInRange(Player p) {
 	//System.out.println(p + " NOT IN RANGE OF " + this);
 
-	if (playersInRange.contains(p) == false) {
+	if (playersInRange.remove(p) == false) {
 	    logger.fine("playersInRange doesn't contain " + p);
 	    //System.out.println("playersInRange doesn't contain " + p);
 	    return;
 	}
 
-	playersInRange.remove(p);
 	notifyPlayerInRangeListeners(p, false);
     }
 
@@ -532,29 +537,108 @@ public class PlayerImpl implements Player, CallStatusListener {
         if (VoiceImpl.getInstance().addWork(new SetPrivateMixesWork(
 	        this, positionChanged)) == false) {
 
-	    setPrivateMixesCommit(positionChanged);
+	    VoiceImpl.getInstance().getSpatialUpdater().setPrivateMixes(
+		this, positionChanged);
 	}
     }
 
+    /*
+     * Called by the SpatialUpdater to update our private mixes.
+     */
+    void spatialUpdate(boolean positionChanged) {
+	setPrivateMixesCommit(positionChanged);
+    }
+
     private boolean debug = false;
 
+    /*
+     * True if we could be heard or hear others beyond the neighboring
+     * cells of the spatial grid the last time mixes were set.
+     */
+    private boolean wasUnbounded;
+
+    /*
+     * Determine if we can hear or be heard beyond the neighboring cells
+     * of the spatial grid.
+     */
+    private boolean isUnbounded() {
+	SpatialGrid spatialGrid = VoiceImpl.getInstance().getSpatialGrid();
+
+	if (privateSpatializers.size() > 0 ||
+		spatialGrid.isBounded(publicSpatializer) == false) {
+
+	    return true;
+	}
+
+	for (AudioGroup audioGroup : audioGroups) {
+	    if (spatialGrid.isBounded(audioGroup.getSetup().spatializer) == false) {
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
     private void setPrivateMixesCommit(boolean positionChanged) {
+	LinkedHashMap<String, ParallelSpatializer.Pair> pairs =
+	    new LinkedHashMap<String, ParallelSpatializer.Pair>();
+
+	getPrivateMixPairs(positionChanged, pairs);
+
+	for (ParallelSpatializer.Pair pair : pairs.values()) {
+	    setPrivateMix(pair.p1, pair.p2);
+	}
+    }
+
+    /*
+     * Add to pairs the private mixes which have to be set because we've
+     * changed.  Each pair is keyed by the ids of the two players so a mix
+     * is only set once when both players have changed.
+     */
+    void getPrivateMixPairs(boolean positionChanged,
+	    Map<String, ParallelSpatializer.Pair> pairs) {
+
 	//Adjust private mixes for all calls
 	//For each call, we have to determine where it is
 	// in 3-space relative to each other call
 	// and set the private mix accordingly.
 
-        Player[] playersArray = VoiceImpl.getInstance().getPlayers();
+	VoiceImpl voiceImpl = VoiceImpl.getInstance();
+
+	boolean unbounded = isUnbounded();
+
+	Collection<Player> players;
 
-	logger.finer("Players " + playersArray.length + " changed " + this);
+	if (unbounded || wasUnbounded) {
+	    /*
+	     * Our mixes can reach anywhere so we have to check every player.
+	     * Do it once more after we become bounded to clear the mixes
+	     * for players who are now out of range.
+	     */
+	    voiceImpl.getSpatialGrid().update(this, unbounded);
+
+	    players = Arrays.asList(voiceImpl.getPlayers());
+	} else {
+	    /*
+	     * Only players near where we were or where we are now
+	     * can have a mix for us or we for them.
+	     */
+	    players = new HashSet<Player>();
+
+	    voiceImpl.getSpatialGrid().update(this, false, players);
+
+	    players.addAll(playersInRange);
+	}
+
+	wasUnbounded = unbounded;
+
+	logger.finer("Players " + players.size() + " changed " + this);
 
 	/*
 	 * We only need to adjust the private mixes between the
 	 * changed player and other calls.
 	 */
-	for (int i = 0; i < playersArray.length; i++) {
-	    Player player = playersArray[i];
-
+	for (Player player : players) {
 	    if (player.equals(this)) {
 		continue;
 	    }
@@ -572,7 +656,7 @@ public class PlayerImpl implements Player, CallStatusListener {
 		/*
 		 * Set the private mix player has for us
 		 */
-		setPrivateMix(player, this);
+		addPair(pairs, player, this);
 	    } 
 
 	    if (getSetup().isLivePlayer == true || isRecording() == false) {
@@ -580,15 +664,26 @@ public class PlayerImpl implements Player, CallStatusListener {
 		 * Only live players have private mixes
 		 * Set the private mix we have for player
 		 */
-		setPrivateMix(this, player);
+		addPair(pairs, this, player);
 	    }
 	}
     }
 
+    private void addPair(Map<String, ParallelSpatializer.Pair> pairs,
+	    Player p1, Player p2) {
+
+	String key = p1.getId() + "->" + p2.getId();
+
+	if (pairs.containsKey(key) == false) {
+	    pairs.put(key, new ParallelSpatializer.Pair(this, p1, p2));
+	}
+    }
+
     /*
-     * Set the private mix p1 has for p2
+     * Set the private mix p1 has for p2.  Mixes for different pairs
+     * may be set at the same time by the ParallelSpatializer.
      */
-    private void setPrivateMix(Player p1, Player p2) {
+    void setPrivateMix(Player p1, Player p2) {
 	logger.finest("setting pm which " + p1 + " has for " + p2);
 
 	//if (debug) {
@@ -923,54 +1018,33 @@ public class PlayerImpl implements Player, CallStatusListener {
     }
 
     private double getWallAttenuation(Player p2) {
-	double wallAttenuation = 1.0;
-
-	for (Wall wall : walls) {
-	    if (Line2D.linesIntersect(x, y, p2.getX(), p2.getY(), 
-		wall.startX, wall.startY, wall.endX, wall.endY)) {
-
-		logger.finest(wall + " between " + this + " and " + p2);
-
-		return wall.characteristic;
-	    }
-	}
+	VoiceImpl voiceImpl = VoiceImpl.getInstance();
 
-	return wallAttenuation;
+	return voiceImpl.getWallIndex().getAttenuation(this, p2,
+	    voiceImpl.getSpatialUpdater().getMinimumMovement());
     }
 
-    private static CopyOnWriteArrayList<Wall> walls = new CopyOnWriteArrayList<Wall>();
-
     public void addWall(double startX, double startY, double endX, double endY,
         double characteristic) {
 
-	for (Wall wall : walls) {
-	    if (wall.startX == startX && wall.startY == startY &&
-	    	    wall.endX == endX && wall.endY == endY) {
+	if (VoiceImpl.getInstance().getWallIndex().addWall(startX, startY,
+		endX, endY, characteristic) == false) {
 
-		logger.warning("Wall exists: startX " + startX
-		    + " startY " + startY + " endX " + endX + " endY " + endY);
-		return;
-	    }
+	    logger.warning("Wall exists: startX " + startX
+		+ " startY " + startY + " endX " + endX + " endY " + endY);
+	    return;
 	}
 
-        walls.add(new Wall(startX, startY, endX, endY, characteristic));
-
         setPrivateMixes(true);
     }
 
     public void removeWall(double startX, double startY, double endX, double endY) {
-	for (Wall wall : walls) {
-	    if (wall.startX == startX && wall.startY == startY &&
-	    	    wall.endX == endX && wall.endY == endY) {
-	
-		walls.remove(wall);
-		break;
-	    }
-	}
+	VoiceImpl.getInstance().getWallIndex().removeWall(startX, startY,
+	    endX, endY);
     }
 
     public void removeAllWalls() {
-	walls = new CopyOnWriteArrayList<Wall>();
+	VoiceImpl.getInstance().getWallIndex().removeAllWalls();
     }
 
     public Player[] getPlayersInRange() {
@@ -1072,7 +1146,8 @@ public class PlayerImpl implements Player, CallStatusListener {
         } 
 
 	if (work instanceof SetPrivateMixesWork) {
-	    setPrivateMixesCommit(((SetPrivateMixesWork) work).positionChanged);
+	    voiceImpl.getSpatialUpdater().setPrivateMixes(this,
+		((SetPrivateMixesWork) work).positionChanged);
 	    return;
         } 
 
@@ -1147,6 +1222,11 @@ public class PlayerImpl implements Player, CallStatusListener {
 	return id.equals(p.getId());
     }
 
+    @Override
+    public int hashCode() {
+	return id.hashCode();
+    }
+
     @Override
     public String toString() {
 	double xR = Util.round100(x);
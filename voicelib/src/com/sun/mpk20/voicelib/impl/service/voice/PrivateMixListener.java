@@ -0,0 +1,43 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+package com.sun.mpk20.voicelib.impl.service.voice;
+
+/**
+ * Told when a bridge didn't set private mixes it was sent.
+ */
+public interface PrivateMixListener {
+
+    /*
+     * The private mix from sourceCallId to targetCallId wasn't set.
+     */
+    public void privateMixNotSet(BridgeConnection bc, String sourceCallId,
+	String targetCallId);
+
+    /*
+     * Some private mixes sent to the bridge weren't set
+     * and the bridge didn't say which.
+     */
+    public void privateMixesNotSet(BridgeConnection bc);
+
+}
@@ -43,14 +43,13 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.Set;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.sun.voip.CallParticipant;
 
-public class PrivateMixManager extends Thread {
+public class PrivateMixManager extends Thread implements PrivateMixListener {
 
     private static final Logger logger = Logger.getLogger(
 	PrivateMixManager.class.getName());
@@ -76,11 +75,57 @@ public class PrivateMixManager extends Thread {
     private CallEnder callEnder;
 
     private BridgeManager bridgeManager;
+
+    public static final String PRIVATE_MIX_TOLERANCE =
+	"com.sun.mpk20.voicelib.impl.service.voice.PRIVATE_MIX_TOLERANCE";
+
+    private static final double DEFAULT_PRIVATE_MIX_TOLERANCE = .01;
+
+    /*
+     * A private mix isn't sent if none of its values has changed
+     * by more than this since it was last sent.
+     */
+    private double tolerance = DEFAULT_PRIVATE_MIX_TOLERANCE;
+
+    /*
+     * The last private mix sent to a bridge for each source and target.
+     */
+    class SentMix {
+	public BridgeConnection bc;
+	public double[] privateMixParameters;
+
+	public SentMix(BridgeConnection bc, double[] privateMixParameters) {
+	    this.bc = bc;
+	    this.privateMixParameters = privateMixParameters;
+	}
+    }
+
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, SentMix>>
+	sentMixes = new ConcurrentHashMap<String, 
+	ConcurrentHashMap<String, SentMix>>();
+
+    /*
+     * Statistics
+     */
+    private long mixesSent;
+    private long mixesUnchanged;
+    private long bytesSent;
   
     public PrivateMixManager(BridgeManager bridgeManager) {
 
 	this.bridgeManager = bridgeManager;
 
+	String s = System.getProperty(PRIVATE_MIX_TOLERANCE);
+
+	if (s != null) {
+	    try {
+		tolerance = Double.parseDouble(s);
+	    } catch (NumberFormatException e) {
+		logger.info("Invalid private mix tolerance:  " + s
+		    + ".  Using " + tolerance);
+	    }
+	}
+
 	callEnder = new CallEnder();
 
 	int n = Runtime.getRuntime().availableProcessors(); 
@@ -164,7 +209,8 @@ public class PrivateMixManager extends Thread {
 			    logger.info(this + ": elapsed " + seconds 
 				+ " seconds " + ", n " + n + ", avg " 
 				+ (seconds / n) + " seconds, "
-				+ (500. / elapsed) + " pm's / second");
+				+ (500. / elapsed) + " pm's / second, "
+				+ getStatistics());
 
 		            elapsed = 0;
 		            n = 0;
@@ -188,8 +234,21 @@ public class PrivateMixManager extends Thread {
 	    }
 	}
 
-	HashMap<BridgeConnection, ArrayList<String>>  bridgeMap =
-	    new HashMap<BridgeConnection, ArrayList<String>>();
+	/*
+	 * Private mixes to send to each bridge.  The buffers are reused.
+	 */
+	class BridgeBatch {
+	    public boolean bulk;
+	    public StringBuilder commands = new StringBuilder();
+	    public int count;
+
+	    public BridgeBatch(boolean bulk) {
+		this.bulk = bulk;
+	    }
+	}
+
+	HashMap<BridgeConnection, BridgeBatch>  bridgeMap =
+	    new HashMap<BridgeConnection, BridgeBatch>();
 
 	private void processPrivateMixes(ConcurrentHashMap<String, SetPrivateMixWork> pm) {
 	    ArrayList<SetPrivateMixWork> mixList = new ArrayList<SetPrivateMixWork>(pm.values());
@@ -267,51 +326,78 @@ public class PrivateMixManager extends Thread {
 		}
 	    }
 
-	    Set<BridgeConnection> keys = bridgeMap.keySet();
-
-	    Iterator<BridgeConnection> it = keys.iterator();
+	    Iterator<BridgeConnection> it = bridgeMap.keySet().iterator();
 
             while (it.hasNext()) {
                 BridgeConnection bc = it.next();
 
-                ArrayList<String> commands = bridgeMap.get(bc);
+		BridgeBatch batch = bridgeMap.get(bc);
 
-		String s = "";
+		if (batch.count == 0) {
+		    /*
+		     * Nothing for this bridge this time.
+		     * Don't hold on to bridges we no longer use.
+		     */
+		    it.remove();
+		    continue;
+		}
 
-		for (int i = 0; i < commands.size(); i++) {
-		    s += commands.get(i) + "\n";
+		if (batch.bulk) {
+		    batch.commands.insert(0, "bpm=" + batch.count + "\n");
 		}
 
+		String s = batch.commands.toString();
+
+		batch.commands.setLength(0);
+		batch.count = 0;
+
 		try {
 		    bc.setPrivateMix(s);
+
+		    synchronized (sentMixes) {
+			bytesSent += s.length();
+		    }
 		} catch (IOException e) {
 		    logger.info("Unable to send private mix command to "
 			+ bc + " " + e.getMessage());
+
+		    forgetSentMixes(bc);
 		}
 	    }
-	    
-	    bridgeMap.clear();
 	}
 
 	private void setPrivateMix(BridgeConnection bc, String targetCallId,
 	        String sourceCallId, double[] privateMixParameters) 
 		throws IOException {
 
-	    ArrayList<String> commands = bridgeMap.get(bc);
+	    if (isUnchanged(bc, targetCallId, sourceCallId, 
+		    privateMixParameters)) {
+
+		return;
+	    }
+
+	    BridgeBatch batch = bridgeMap.get(bc);
+
+	    if (batch == null) {
+		batch = new BridgeBatch(bc.supportsBulkPrivateMix());
+
+		bridgeMap.put(bc, batch);
+	    }
 
-	    if (commands == null) {
-		commands = new ArrayList<String>();
+	    StringBuilder commands = batch.commands;
 
-		bridgeMap.put(bc, commands);
+	    if (batch.bulk == false) {
+		commands.append("pmx=");
 	    }
 
-	    String s = "pmx=" +  privateMixParameters[0] + ":"
-                +  privateMixParameters[1] + ":"
-                +  privateMixParameters[2] + ":"
-                +  privateMixParameters[3] + ":"
-                + sourceCallId + ":" + targetCallId;
+	    commands.append(privateMixParameters[0]).append(":")
+                .append(privateMixParameters[1]).append(":")
+                .append(privateMixParameters[2]).append(":")
+                .append(privateMixParameters[3]).append(":")
+                .append(sourceCallId).append(":").append(targetCallId)
+		.append("\n");
 
-	    commands.add(s);
+	    batch.count++;
 	}
 
         /*
@@ -682,6 +768,8 @@ public class PrivateMixManager extends Thread {
 
 	privateMixMap.put(callId, new ConcurrentHashMap<String, SetPrivateMixWork>());
 
+	forgetSentMixes(callId);
+
 	DeferredPrivateMix dpm = deferredPrivateMixes.remove(callId);
 
 	if (dpm != null && deferredPrivateMixes.size() > 0) {
@@ -705,6 +793,115 @@ public class PrivateMixManager extends Thread {
         }
     }
 
+    /*
+     * Determine if the bridge already has this private mix.
+     * If it doesn't, remember that it's about to be sent.
+     * The bridge says which mixes it didn't set and they are
+     * forgotten then so they're sent again.
+     */
+    private boolean isUnchanged(BridgeConnection bc, String targetCallId,
+	    String sourceCallId, double[] privateMixParameters) {
+
+	ConcurrentHashMap<String, SentMix> mixes = sentMixes.get(sourceCallId);
+
+	if (mixes == null) {
+	    mixes = new ConcurrentHashMap<String, SentMix>();
+
+	    ConcurrentHashMap<String, SentMix> m = 
+		sentMixes.putIfAbsent(sourceCallId, mixes);
+
+	    if (m != null) {
+		mixes = m;
+	    }
+	}
+
+	SentMix sentMix = mixes.get(targetCallId);
+
+	if (sentMix != null && sentMix.bc == bc && 
+		isClose(sentMix.privateMixParameters, privateMixParameters)) {
+
+	    synchronized (sentMixes) {
+		mixesUnchanged++;
+	    }
+	    return true;
+	}
+
+	mixes.put(targetCallId, new SentMix(bc, privateMixParameters));
+
+	synchronized (sentMixes) {
+	    mixesSent++;
+	}
+	return false;
+    }
+
+    private boolean isClose(double[] p1, double[] p2) {
+	/*
+	 * Always send a change to or from zero volume
+	 */
+	if ((p1[3] == 0) != (p2[3] == 0)) {
+	    return false;
+	}
+
+	for (int i = 0; i < 4; i++) {
+	    if (Math.abs(p1[i] - p2[i]) > tolerance) {
+		return false;
+	    }
+	}
+
+	return true;
+    }
+
+    /*
+     * The bridge has forgotten the private mixes for callId,
+     * either because the call ended or because it was set up again.
+     */
+    private void forgetSentMixes(String callId) {
+	sentMixes.remove(callId);
+
+	for (ConcurrentHashMap<String, SentMix> mixes : sentMixes.values()) {
+	    mixes.remove(callId);
+	}
+    }
+
+    public void privateMixNotSet(BridgeConnection bc, String sourceCallId,
+	    String targetCallId) {
+
+	ConcurrentHashMap<String, SentMix> mixes = sentMixes.get(sourceCallId);
+
+	if (mixes == null) {
+	    return;
+	}
+
+	SentMix sentMix = mixes.get(targetCallId);
+
+	if (sentMix != null && sentMix.bc == bc) {
+	    mixes.remove(targetCallId, sentMix);
+	}
+    }
+
+    public void privateMixesNotSet(BridgeConnection bc) {
+	forgetSentMixes(bc);
+    }
+
+    private void forgetSentMixes(BridgeConnection bc) {
+	for (ConcurrentHashMap<String, SentMix> mixes : sentMixes.values()) {
+	    Iterator<SentMix> it = mixes.values().iterator();
+
+	    while (it.hasNext()) {
+		if (it.next().bc == bc) {
+		    it.remove();
+		}
+	    }
+	}
+    }
+
+    public String getStatistics() {
+	synchronized (sentMixes) {
+	    return "private mixes sent " + mixesSent + ", unchanged " 
+		+ mixesUnchanged + ", bytes sent " + bytesSent;
+	}
+    }
+
     private int replaced;
     private int count;
 
@@ -784,6 +981,8 @@ public class PrivateMixManager extends Thread {
         
 	deferredPrivateMixes.remove(callId);
 
+	forgetSentMixes(callId);
+
 	/*
 	 * There could be calls on many machines starting
 	 * with V-<callId>.  We need to end all of them because
@@ -862,6 +1061,8 @@ public class PrivateMixManager extends Thread {
     }
 
     public void dump() {
+	logger.info(getStatistics());
+
 	logger.info("Virtual call map " + virtualCallMap.size());
 
 	Enumeration<String> keys = virtualCallMap.keys();
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.mpk20.voicelib.impl.service.voice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import java.util.logging.Logger;
+
+import com.sun.mpk20.voicelib.app.DefaultSpatializer;
+import com.sun.mpk20.voicelib.app.InverseFalloff;
+import com.sun.mpk20.voicelib.app.NoAttenuationSpatializer;
+import com.sun.mpk20.voicelib.app.NoFalloff;
+import com.sun.mpk20.voicelib.app.Player;
+import com.sun.mpk20.voicelib.app.Spatializer;
+import com.sun.mpk20.voicelib.app.ZeroVolumeSpatializer;
+
+/**
+ * Uniform grid of players in the x / z plane.
+ *
+ * The cells are as wide as the largest zero volume radius so
+ * a player can only hear players in its own cell and the eight cells
+ * around it.  A move then only has to spatialize those players instead
+ * of every player in the world.
+ *
+ * Some players can be heard from further away, for example players
+ * with a full volume or ambient spatializer or a private spatializer.
+ * These are kept separately and are always included.
+ */
+class SpatialGrid {
+
+    private static final Logger logger =
+        Logger.getLogger(SpatialGrid.class.getName());
+
+    private double cellSize;
+
+    private HashMap<Long, ArrayList<Player>> cells =
+	new HashMap<Long, ArrayList<Player>>();
+
+    /*
+     * Cell each player was in when it was last updated
+     */
+    private HashMap<String, Long> playerCells = new HashMap<String, Long>();
+
+    private HashMap<String, Player> players = new HashMap<String, Player>();
+
+    /*
+     * Players which can be heard from beyond the neighboring cells
+     */
+    private HashMap<String, Player> unboundedPlayers =
+	new HashMap<String, Player>();
+
+    public SpatialGrid(double cellSize) {
+	setCellSize(cellSize);
+    }
+
+    /**
+     * Change the cell size and put every player back in the grid.
+     */
+    public synchronized void setCellSize(double cellSize) {
+	if (cellSize <= 0) {
+	    logger.warning("Invalid cell size " + cellSize + ", using 1");
+	    cellSize = 1;
+	}
+
+	this.cellSize = cellSize;
+
+	cells.clear();
+	playerCells.clear();
+
+	for (Player p : players.values()) {
+	    add(p, getKey(p.getX(), p.getZ()));
+	}
+
+	logger.fine("Spatial grid cell size " + cellSize);
+    }
+
+    public synchronized double getCellSize() {
+	return cellSize;
+    }
+
+    /**
+     * Determine if audio spatialized with spatializer is silent
+     * beyond the cell size.  A null spatializer means the default
+     * spatializer will be used.
+     */
+    public synchronized boolean isBounded(Spatializer spatializer) {
+	if (spatializer == null || spatializer instanceof ZeroVolumeSpatializer) {
+	    return true;
+	}
+
+	if (spatializer.getClass() != DefaultSpatializer.class &&
+		spatializer.getClass() != NoAttenuationSpatializer.class) {
+
+	    return false;
+	}
+
+	DefaultSpatializer ds = (DefaultSpatializer) spatializer;
+
+	Class falloffClass = ds.getFalloffFunction().getClass();
+
+	if (falloffClass != InverseFalloff.class &&
+		falloffClass != NoFalloff.class) {
+
+	    return false;
+	}
+
+	return ds.getZeroVolumeRadius() <= cellSize;
+    }
+
+    /**
+     * Put a player in the cell for its current position.
+     * @param unbounded true if the player can be heard beyond
+     *                  the neighboring cells.
+     */
+    public synchronized void update(Player p, boolean unbounded) {
+	update(p, unbounded, null);
+    }
+
+    /**
+     * Put a player in the cell for its current position and
+     * add to nearbyPlayers the players which were near the player's
+     * previous position or are near its new position.
+     */
+    public synchronized void update(Player p, boolean unbounded,
+	    Collection<Player> nearbyPlayers) {
+
+	Long previousKey = playerCells.get(p.getId());
+
+	Long key = getKey(p.getX(), p.getZ());
+
+	if (nearbyPlayers != null) {
+	    if (previousKey != null && previousKey.equals(key) == false) {
+		getNearbyPlayers(previousKey.longValue(), nearbyPlayers);
+	    }
+
+	    getNearbyPlayers(key.longValue(), nearbyPlayers);
+	}
+
+	players.put(p.getId(), p);
+
+	if (unbounded) {
+	    unboundedPlayers.put(p.getId(), p);
+	} else {
+	    unboundedPlayers.remove(p.getId());
+	}
+
+	if (key.equals(previousKey)) {
+	    return;
+	}
+
+	if (previousKey != null) {
+	    removeFromCell(p, previousKey);
+	}
+
+	add(p, key);
+    }
+
+    public synchronized void remove(Player p) {
+	players.remove(p.getId());
+	unboundedPlayers.remove(p.getId());
+
+	Long key = playerCells.remove(p.getId());
+
+	if (key != null) {
+	    removeFromCell(p, key);
+	}
+    }
+
+    /**
+     * Add to nearbyPlayers the players which might be heard at (x, z)
+     * or which might hear something at (x, z).
+     */
+    public synchronized void getNearbyPlayers(double x, double z,
+	    Collection<Player> nearbyPlayers) {
+
+	getNearbyPlayers(getKey(x, z).longValue(), nearbyPlayers);
+    }
+
+    public synchronized boolean isUnbounded(Player p) {
+	return unboundedPlayers.containsKey(p.getId());
+    }
+
+    public synchronized int size() {
+	return players.size();
+    }
+
+    public synchronized int getNumberOfCells() {
+	return cells.size();
+    }
+
+    public synchronized int getNumberOfUnboundedPlayers() {
+	return unboundedPlayers.size();
+    }
+
+    private void getNearbyPlayers(long key, Collection<Player> nearbyPlayers) {
+	int ix = (int) (key >> 32);
+	int iz = (int) key;
+
+	for (int i = ix - 1; i <= ix + 1; i++) {
+	    for (int j = iz - 1; j <= iz + 1; j++) {
+		ArrayList<Player> cell = cells.get(getKey(i, j));
+
+		if (cell != null) {
+		    nearbyPlayers.addAll(cell);
+		}
+	    }
+	}
+
+	nearbyPlayers.addAll(unboundedPlayers.values());
+    }
+
+    private void add(Player p, Long key) {
+	ArrayList<Player> cell = cells.get(key);
+
+	if (cell == null) {
+	    cell = new ArrayList<Player>();
+	    cells.put(key, cell);
+	}
+
+	cell.add(p);
+	playerCells.put(p.getId(), key);
+    }
+
+    private void removeFromCell(Player p, Long key) {
+	ArrayList<Player> cell = cells.get(key);
+
+	if (cell == null) {
+	    return;
+	}
+
+	cell.remove(p);
+
+	if (cell.size() == 0) {
+	    cells.remove(key);
+	}
+    }
+
+    private Long getKey(double x, double z) {
+	return getKey((int) Math.floor(x / cellSize),
+	    (int) Math.floor(z / cellSize));
+    }
+
+    private Long getKey(int ix, int iz) {
+	return new Long((((long) ix) << 32) | (iz & 0xffffffffL));
+    }
+
+    public synchronized String toString() {
+	return "SpatialGrid cell size " + cellSize + ", " + players.size()
+	    + " players in " + cells.size() + " cells, "
+	    + unboundedPlayers.size() + " unbounded";
+    }
+
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.mpk20.voicelib.impl.service.voice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import java.util.logging.Logger;
+
+/**
+ * Coalesce player movement and update private mixes at a fixed rate.
+ *
+ * Avatars report their position many times a second.  Instead of
+ * spatializing each move, the latest position of each player which
+ * moved is remembered and the private mixes for those players are
+ * updated SPATIAL_UPDATE_RATE times a second.  A player which has moved
+ * less than MINIMUM_MOVEMENT and turned less than MINIMUM_TURN degrees
+ * since its mixes were last updated isn't updated because
+ * the difference can't be heard.
+ *
+ * The mixes for all of the players updated in an interval are
+ * collected first so a mix between two players which both moved is only
+ * set once.  They're then set by the ParallelSpatializer and committed
+ * together.
+ *
+ * A SPATIAL_UPDATE_RATE of 0 updates private mixes as soon as a
+ * player moves.
+ */
+class SpatialUpdater extends Thread {
+
+    private static final Logger logger =
+        Logger.getLogger(SpatialUpdater.class.getName());
+
+    private static final String PREFIX =
+	"com.sun.mpk20.voicelib.impl.service.voice.";
+
+    public static final String SPATIAL_UPDATE_RATE =
+	PREFIX + "SPATIAL_UPDATE_RATE";
+
+    public static final String MINIMUM_MOVEMENT = PREFIX + "MINIMUM_MOVEMENT";
+
+    public static final String MINIMUM_TURN = PREFIX + "MINIMUM_TURN";
+
+    private static final double DEFAULT_SPATIAL_UPDATE_RATE = 10;
+
+    private static final double DEFAULT_MINIMUM_MOVEMENT = .1;
+
+    private static final double DEFAULT_MINIMUM_TURN = 5;
+
+    /*
+     * How often to log statistics
+     */
+    private static final long STATISTICS_INTERVAL = 60000;
+
+    class PlayerState {
+	public PlayerImpl player;
+
+	public boolean pending;
+
+	/*
+	 * Update even if the player hasn't moved
+	 */
+	public boolean force;
+	public boolean positionChanged;
+
+	/*
+	 * Where the player was when its mixes were last updated
+	 */
+	public boolean updated;
+	public double x;
+	public double y;
+	public double z;
+	public double orientation;
+
+	public PlayerState(PlayerImpl player) {
+	    this.player = player;
+	}
+    }
+
+    private HashMap<String, PlayerState> playerStates =
+	new HashMap<String, PlayerState>();
+
+    private long updateInterval;
+
+    private double minimumMovement;
+
+    private double minimumTurn;
+
+    private ParallelSpatializer parallelSpatializer;
+
+    private boolean done;
+
+    /*
+     * Statistics
+     */
+    private long moves;
+    private long requests;
+    private long updates;
+    private long suppressed;
+
+    private long totalMoves;
+    private long totalRequests;
+    private long totalUpdates;
+    private long totalSuppressed;
+
+    private long lastStatisticsTime;
+
+    public SpatialUpdater(double scale) {
+	double rate = getProperty(SPATIAL_UPDATE_RATE,
+	    DEFAULT_SPATIAL_UPDATE_RATE);
+
+	if (rate > 0) {
+	    updateInterval = Math.max(1, Math.round(1000 / rate));
+	}
+
+	minimumMovement = getProperty(MINIMUM_MOVEMENT,
+	    DEFAULT_MINIMUM_MOVEMENT) / scale;
+
+	minimumTurn = Math.toRadians(getProperty(MINIMUM_TURN,
+	    DEFAULT_MINIMUM_TURN));
+
+	logger.info("Spatial update interval " + updateInterval
+	    + " ms, minimum movement " + minimumMovement
+	    + ", minimum turn " + Math.toDegrees(minimumTurn) + " degrees");
+
+	lastStatisticsTime = System.currentTimeMillis();
+
+	if (updateInterval > 0) {
+	    parallelSpatializer = new ParallelSpatializer();
+
+	    setName("SpatialUpdater");
+	    setDaemon(true);
+	    start();
+	}
+    }
+
+    private double getProperty(String name, double defaultValue) {
+	String s = System.getProperty(name);
+
+	if (s == null) {
+	    return defaultValue;
+	}
+
+	try {
+	    return Double.parseDouble(s);
+	} catch (NumberFormatException e) {
+	    logger.warning("Invalid value '" + s + "' for " + name
+		+ ".  Using " + defaultValue);
+	    return defaultValue;
+	}
+    }
+
+    /**
+     * Players may be this far from where their mixes were last updated.
+     */
+    public double getMinimumMovement() {
+	return minimumMovement;
+    }
+
+    /**
+     * The player has moved.
+     */
+    public void moved(PlayerImpl player, boolean positionChanged) {
+	if (updateInterval == 0) {
+	    synchronized (this) {
+		moves++;
+		updates++;
+	    }
+
+	    player.spatialUpdate(positionChanged);
+	    return;
+	}
+
+	synchronized (this) {
+	    moves++;
+
+	    PlayerState state = getPlayerState(player);
+
+	    state.pending = true;
+	    state.positionChanged |= positionChanged;
+	}
+    }
+
+    /**
+     * Something other than the player's position has changed
+     * so its private mixes must be updated.
+     */
+    public void setPrivateMixes(PlayerImpl player, boolean positionChanged) {
+	if (updateInterval == 0) {
+	    synchronized (this) {
+		requests++;
+		updates++;
+	    }
+
+	    player.spatialUpdate(positionChanged);
+	    return;
+	}
+
+	synchronized (this) {
+	    requests++;
+
+	    PlayerState state = getPlayerState(player);
+
+	    state.pending = true;
+	    state.force = true;
+	    state.positionChanged |= positionChanged;
+	}
+    }
+
+    public synchronized void removePlayer(PlayerImpl player) {
+	playerStates.remove(player.getId());
+    }
+
+    private PlayerState getPlayerState(PlayerImpl player) {
+	PlayerState state = playerStates.get(player.getId());
+
+	if (state == null || state.player != player) {
+	    state = new PlayerState(player);
+	    playerStates.put(player.getId(), state);
+	}
+
+	return state;
+    }
+
+    public void done() {
+	synchronized (this) {
+	    done = true;
+	    notifyAll();
+	}
+    }
+
+    public void run() {
+	while (true) {
+	    synchronized (this) {
+		try {
+		    wait(updateInterval);
+		} catch (InterruptedException e) {
+		}
+
+		if (done) {
+		    break;
+		}
+	    }
+
+	    try {
+	        update();
+	    } catch (Exception e) {
+		logger.warning("Spatial update failed:  " + e.getMessage());
+		e.printStackTrace();
+	    }
+
+	    logStatistics();
+	}
+    }
+
+    class Update {
+	public PlayerImpl player;
+	public boolean positionChanged;
+
+	public Update(PlayerImpl player, boolean positionChanged) {
+	    this.player = player;
+	    this.positionChanged = positionChanged;
+	}
+    }
+
+    private void update() {
+	ArrayList<Update> updateList = new ArrayList<Update>();
+
+	synchronized (this) {
+	    for (PlayerState state : playerStates.values()) {
+		if (state.pending == false) {
+		    continue;
+		}
+
+		PlayerImpl player = state.player;
+
+		boolean moved = state.updated == false ||
+		    distance(state, player) >= minimumMovement;
+
+		boolean turned = state.updated == false ||
+		    Math.abs(player.getOrientation() - state.orientation)
+		    >= minimumTurn;
+
+		if (state.force == false && moved == false && turned == false) {
+		    /*
+		     * Small moves add up because the next move is compared
+		     * with where the player was when it was last updated.
+		     */
+		    state.pending = false;
+		    suppressed++;
+		    continue;
+		}
+
+		updateList.add(new Update(player,
+		    state.positionChanged && (moved || state.force)));
+
+		state.pending = false;
+		state.force = false;
+		state.positionChanged = false;
+
+		state.updated = true;
+		state.x = player.getX();
+		state.y = player.getY();
+		state.z = player.getZ();
+		state.orientation = player.getOrientation();
+	    }
+
+	    updates += updateList.size();
+	}
+
+	if (updateList.size() == 0) {
+	    return;
+	}
+
+	VoiceImpl voiceImpl = VoiceImpl.getInstance();
+
+	LinkedHashMap<String, ParallelSpatializer.Pair> pairs =
+	    new LinkedHashMap<String, ParallelSpatializer.Pair>();
+
+	for (Update update : updateList) {
+	    if (voiceImpl.getPlayer(update.player.getId()) != update.player) {
+		continue;	// player has been removed
+	    }
+
+	    update.player.getPrivateMixPairs(update.positionChanged, pairs);
+	}
+
+	parallelSpatializer.spatialize(pairs.values());
+
+	voiceImpl.getBridgeManager().commit();
+    }
+
+    private double distance(PlayerState state, PlayerImpl player) {
+	double dx = player.getX() - state.x;
+	double dy = player.getY() - state.y;
+	double dz = player.getZ() - state.z;
+
+	return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private void logStatistics() {
+	long now = System.currentTimeMillis();
+
+	if (now - lastStatisticsTime < STATISTICS_INTERVAL) {
+	    return;
+	}
+
+	lastStatisticsTime = now;
+
+	String s;
+
+	synchronized (this) {
+	    if (moves + requests == 0) {
+		return;
+	    }
+
+	    s = getStatistics(moves, requests, updates, suppressed);
+
+	    totalMoves += moves;
+	    totalRequests += requests;
+	    totalUpdates += updates;
+	    totalSuppressed += suppressed;
+
+	    moves = 0;
+	    requests = 0;
+	    updates = 0;
+	    suppressed = 0;
+	}
+
+	logger.info(s);
+    }
+
+    private String getStatistics(long moves, long requests, long updates,
+	    long suppressed) {
+
+	String s = "Spatial updates:  " + moves + " moves, " + requests
+	    + " other changes, " + updates + " updates, " + suppressed
+	    + " suppressed";
+
+	if (updates > 0) {
+	    s += ", coalescing ratio "
+		+ Math.round(100. * (moves + requests) / updates) / 100.;
+	}
+
+	return s;
+    }
+
+    public String getStatistics() {
+	String s;
+
+	synchronized (this) {
+	    s = getStatistics(totalMoves + moves, totalRequests + requests,
+		totalUpdates + updates, totalSuppressed + suppressed);
+	}
+
+	if (parallelSpatializer != null) {
+	    s += "\n" + parallelSpatializer.getStatistics();
+	}
+
+	return s;
+    }
+
+}
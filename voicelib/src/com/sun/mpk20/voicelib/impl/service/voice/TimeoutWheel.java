@@ -0,0 +1,209 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.mpk20.voicelib.impl.service.voice;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import java.util.logging.Logger;
+
+import com.sun.voip.MetricsRegistry;
+
+/**
+ * Timeouts for all bridge connections.
+ *
+ * Almost every timeout is cancelled long before it expires, so
+ * scheduling and cancelling have to be cheap.  Timeouts are put in
+ * the slot of a wheel for the tick at which they expire.  One thread
+ * moves around the wheel a tick at a time and runs the tasks for the
+ * timeouts which have expired.  Timeouts further away than one turn
+ * of the wheel stay in their slot until their turn comes.
+ *
+ * Tasks run on the wheel's thread and must not block.
+ */
+class TimeoutWheel extends Thread {
+
+    private static final Logger logger =
+        Logger.getLogger(TimeoutWheel.class.getName());
+
+    /*
+     * Milliseconds per tick
+     */
+    private static final long TICK = 100;
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static TimeoutWheel timeoutWheel;
+
+    /**
+     * A scheduled task which can be cancelled.
+     */
+    public class Timeout {
+	private Runnable task;
+	private long expiration;	// tick
+	private boolean cancelled;
+
+	Timeout(Runnable task, long expiration) {
+	    this.task = task;
+	    this.expiration = expiration;
+	}
+
+	/**
+	 * Keep the task from running.
+	 * @return false if the task has already run.
+	 */
+	public boolean cancel() {
+	    return TimeoutWheel.this.cancel(this);
+	}
+    }
+
+    private ArrayList<HashSet<Timeout>> wheel =
+	new ArrayList<HashSet<Timeout>>();
+
+    private long tick;
+
+    private int outstanding;
+
+    private long expired;
+
+    public static synchronized TimeoutWheel getInstance() {
+	if (timeoutWheel == null) {
+	    timeoutWheel = new TimeoutWheel();
+	}
+
+	return timeoutWheel;
+    }
+
+    private TimeoutWheel() {
+	for (int i = 0; i < WHEEL_SIZE; i++) {
+	    wheel.add(new HashSet<Timeout>());
+	}
+
+	MetricsRegistry.gauge("voicelib_bridge_timeouts_outstanding",
+	    "Bridge requests and watchdogs waiting to time out",
+	    new MetricsRegistry.GaugeSource() {
+		public double getValue() {
+		    return getOutstanding();
+		}
+	    });
+
+	setName("TimeoutWheel");
+	setDaemon(true);
+	start();
+    }
+
+    /**
+     * Run task after delay milliseconds unless it's cancelled first.
+     */
+    public synchronized Timeout schedule(Runnable task, long delay) {
+	long ticks = Math.max(1, (delay + TICK - 1) / TICK);
+
+	Timeout timeout = new Timeout(task, tick + ticks);
+
+	wheel.get((int) (timeout.expiration % WHEEL_SIZE)).add(timeout);
+
+	outstanding++;
+	return timeout;
+    }
+
+    private synchronized boolean cancel(Timeout timeout) {
+	if (timeout.cancelled) {
+	    return true;
+	}
+
+	if (wheel.get((int) (timeout.expiration % WHEEL_SIZE)).remove(timeout)
+		== false) {
+
+	    return false;	// it's already run
+	}
+
+	timeout.cancelled = true;
+	outstanding--;
+	return true;
+    }
+
+    public synchronized int getOutstanding() {
+	return outstanding;
+    }
+
+    public void run() {
+	long start = System.nanoTime();
+
+	ArrayList<Timeout> expiredList = new ArrayList<Timeout>();
+
+	while (true) {
+	    long next;
+
+	    synchronized (this) {
+		next = start + (tick + 1) * TICK * 1000000;
+	    }
+
+	    long sleep = (next - System.nanoTime()) / 1000000;
+
+	    if (sleep > 0) {
+		try {
+		    Thread.sleep(sleep);
+		} catch (InterruptedException e) {
+		}
+	    }
+
+	    synchronized (this) {
+		tick++;
+
+		Iterator<Timeout> it =
+		    wheel.get((int) (tick % WHEEL_SIZE)).iterator();
+
+		while (it.hasNext()) {
+		    Timeout timeout = it.next();
+
+		    if (timeout.expiration <= tick) {
+			it.remove();
+			expiredList.add(timeout);
+		    }
+		}
+
+		outstanding -= expiredList.size();
+		expired += expiredList.size();
+	    }
+
+	    for (Timeout timeout : expiredList) {
+		try {
+		    timeout.task.run();
+		} catch (Exception e) {
+		    logger.warning("Timeout task failed:  " + e.getMessage());
+		    e.printStackTrace();
+		}
+	    }
+
+	    expiredList.clear();
+	}
+    }
+
+    public synchronized String toString() {
+	return "TimeoutWheel " + outstanding + " outstanding, "
+	    + expired + " expired";
+    }
+
+}
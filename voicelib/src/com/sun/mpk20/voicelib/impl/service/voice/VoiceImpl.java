@@ -50,6 +50,7 @@ import com.sun.mpk20.voicelib.app.Player;
 import com.sun.mpk20.voicelib.app.PlayerSetup;
 import com.sun.mpk20.voicelib.app.Recorder;
 import com.sun.mpk20.voicelib.app.RecorderSetup;
+import com.sun.mpk20.voicelib.app.Spatializer;
 import com.sun.mpk20.voicelib.app.Treatment;
 import com.sun.mpk20.voicelib.app.TreatmentGroup;
 import com.sun.mpk20.voicelib.app.TreatmentSetup;
@@ -69,6 +70,7 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Iterator;
 
 import java.util.concurrent.ConcurrentHashMap;
@@ -194,6 +196,12 @@ public class VoiceImpl {
     private ConcurrentHashMap<String, Treatment> treatments = new ConcurrentHashMap();
 
     private ConcurrentHashMap<String, RecorderInfo> recorderInfoMap = new ConcurrentHashMap();
+
+    private SpatialGrid spatialGrid;
+
+    private SpatialUpdater spatialUpdater;
+
+    private WallIndex wallIndex = new WallIndex();
     
     private static VoiceImpl voiceImpl;
 
@@ -291,6 +299,36 @@ public class VoiceImpl {
 	    getConferenceId(), livePlayerSpatializer, stationarySpatializer, 
 	    outworlderSpatializer, livePlayerAudioGroup,
 	    stationaryPlayerAudioGroup);
+
+	spatialUpdater = new SpatialUpdater(scale);
+
+	spatialGrid = new SpatialGrid(getMaximumZeroVolumeRadius()
+	    + spatialUpdater.getMinimumMovement());
+    }
+
+    /*
+     * The spatial grid cells must be at least as wide as the
+     * distance at which the default spatializers become silent
+     * plus how far a player can be from where its mixes were set.
+     */
+    private double getMaximumZeroVolumeRadius() {
+	return Math.max(
+	    voiceManagerParameters.livePlayerSpatializer.getZeroVolumeRadius(),
+	    Math.max(
+	    voiceManagerParameters.stationarySpatializer.getZeroVolumeRadius(),
+	    voiceManagerParameters.outworlderSpatializer.getZeroVolumeRadius()));
+    }
+
+    public SpatialGrid getSpatialGrid() {
+	return spatialGrid;
+    }
+
+    public SpatialUpdater getSpatialUpdater() {
+	return spatialUpdater;
+    }
+
+    public WallIndex getWallIndex() {
+	return wallIndex;
     }
 
     public boolean bindingsInitialized() {
@@ -407,6 +445,9 @@ public class VoiceImpl {
 	    VoiceManagerParameters voiceManagerParameters) {
 
 	this.voiceManagerParameters = voiceManagerParameters;
+
+	spatialGrid.setCellSize(getMaximumZeroVolumeRadius()
+	    + spatialUpdater.getMinimumMovement());
     }
 
     public VoiceManagerParameters getVoiceManagerParameters() {
@@ -460,11 +501,13 @@ public class VoiceImpl {
 
     public void putPlayer(Player player) {
 	players.put(player.getId(), player);
+	spatialGrid.update(player, false);
     }
 
     public void removePlayer(Player player) {
 	//new Exception("removePlayer " + player.getId()).printStackTrace();
 	players.remove(player.getId());
+	spatialGrid.remove(player);
     }
 
     public AudioGroup getAudioGroup(String id) {
@@ -584,25 +627,27 @@ public class VoiceImpl {
 
     public int getNumberOfPlayersInRange(double x, double y, double z) {
 	/*
-	 * Create a player at the specified location so we can easily
-	 * determine the other players we can hear.
+	 * Convert the location the same way PlayerImpl.moved() does
+	 * and spatialize the players near it as a live player there would.
 	 */
-	PlayerSetup setup = new PlayerSetup();
 	double scale = voiceManagerParameters.scale;
-        setup.x = x / scale;
-        setup.y = y / scale;
-        setup.z = z / scale;
-        setup.isLivePlayer = true;
 
-	Player p1 = new PlayerImpl("NoCallID", setup);
+	x = -x / scale;
+	y = y / scale;
+	z = z / scale;
+
+	Spatializer livePlayerSpatializer =
+	    voiceManagerParameters.livePlayerSpatializer;
 
 	int n = 0;
 
 	logger.finest("location " + x + ":" + y + ":" + z);
 
-	Collection<Player> values = players.values();
+	HashSet<Player> nearbyPlayers = new HashSet<Player>();
+
+	spatialGrid.getNearbyPlayers(x, z, nearbyPlayers);
 
-	Iterator<Player> iterator = values.iterator();
+	Iterator<Player> iterator = nearbyPlayers.iterator();
 
 	while (iterator.hasNext()) {
 	    Player p2 = iterator.next();
@@ -611,7 +656,18 @@ public class VoiceImpl {
 		continue;  // skip recordings
 	    }
 
-	    double volume = p1.spatialize(p2);
+	    if (p2.getCall() == null || p2.getCall().isMuted()) {
+		continue;
+	    }
+
+	    Spatializer spatializer = p2.getPublicSpatializer();
+
+	    if (spatializer == null) {
+		spatializer = livePlayerSpatializer;
+	    }
+
+	    double volume = spatializer.spatialize(p2.getX(), p2.getY(),
+		p2.getZ(), p2.getOrientation(), x, y, z, 0)[3];
 
 	    if (volume == 0) {
 		continue;
@@ -1246,6 +1302,10 @@ public class VoiceImpl {
 	s += "-------\n";
 
 	if (players.size() > 0) {
+	    s += spatialGrid + "\n";
+	    s += spatialUpdater.getStatistics() + "\n";
+	    s += wallIndex + "\n";
+
 	    Iterator<Player> it = players.values().iterator();
 
 	    while (it.hasNext()) {
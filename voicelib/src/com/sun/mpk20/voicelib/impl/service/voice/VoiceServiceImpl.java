@@ -42,6 +42,8 @@ import com.sun.sgs.app.Task;
 import com.sun.sgs.app.TaskManager;
 import com.sun.sgs.app.TransactionNotActiveException;
 
+import com.sun.sgs.app.util.ScalableHashMap;
+
 import com.sun.sgs.auth.Identity;
 
 import com.sun.sgs.impl.sharedutil.LoggerWrapper;
@@ -258,15 +260,16 @@ public class VoiceServiceImpl extends AbstractService implements VoiceService,
     public Call createCall(String id, CallSetup setup) throws IOException {
 	DataManager dm = AppContext.getDataManager();
 
-        WarmStartCalls warmStartCalls;
+        ScalableHashMap<String, String> warmStartCallBridges;
 
         try {
-            warmStartCalls = (WarmStartCalls)
-		dm.getBinding(WarmStartInfo.DS_WARM_START_CALLS);
+            warmStartCallBridges = (ScalableHashMap<String, String>)
+		dm.getBinding(WarmStartInfo.DS_WARM_START_CALL_BRIDGES);
         } catch (NameNotBoundException e) {
             try {
-                warmStartCalls = new WarmStartCalls();
-                dm.setBinding(WarmStartInfo.DS_WARM_START_CALLS, warmStartCalls);
+                warmStartCallBridges = new ScalableHashMap<String, String>();
+                dm.setBinding(WarmStartInfo.DS_WARM_START_CALL_BRIDGES,
+		    warmStartCallBridges);
             }  catch (RuntimeException re) {
                 logger.log(Level.WARNING, "failed to bind map for warm starting calls " 
 		    + re.getMessage());
@@ -276,7 +279,12 @@ public class VoiceServiceImpl extends AbstractService implements VoiceService,
         }
 
 	Call call = new CallImpl(id, setup);
-        warmStartCalls.put(id, setup.bridgeInfo);
+
+	if (setup.bridgeInfo != null) {
+            warmStartCallBridges.put(id,
+		WarmStartInfo.getBridgeKey(setup.bridgeInfo));
+	}
+
 	return call;
     }
 
@@ -284,10 +292,11 @@ public class VoiceServiceImpl extends AbstractService implements VoiceService,
 	DataManager dm = AppContext.getDataManager();
 
 	try {
-            WarmStartCalls warmStartCalls = (WarmStartCalls)
-                dm.getBinding(WarmStartInfo.DS_WARM_START_CALLS);
+            ScalableHashMap<String, String> warmStartCallBridges = 
+		(ScalableHashMap<String, String>) dm.getBinding(
+		WarmStartInfo.DS_WARM_START_CALL_BRIDGES);
 
-	    warmStartCalls.remove(call.getId());
+	    warmStartCallBridges.remove(call.getId());
         } catch (NameNotBoundException e) {
 	    logger.log(Level.WARNING, "failed to bind map for warm starting calls "
                 + e.getMessage());
@@ -571,6 +580,12 @@ public class VoiceServiceImpl extends AbstractService implements VoiceService,
             } catch (NameNotBoundException e) {
 	    }
 
+            try {
+                dm.getBinding(WarmStartInfo.DS_WARM_START_CALL_BRIDGES);
+	        warmStart = true;
+            } catch (NameNotBoundException e) {
+	    }
+
             try {
                 dm.getBinding(WarmStartInfo.DS_WARM_START_TREATMENTGROUPS);
 	        warmStart = true;
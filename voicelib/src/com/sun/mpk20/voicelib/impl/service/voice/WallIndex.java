@@ -0,0 +1,504 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.mpk20.voicelib.impl.service.voice;
+
+import java.awt.geom.Line2D;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import java.util.logging.Logger;
+
+import com.sun.mpk20.voicelib.app.Player;
+import com.sun.mpk20.voicelib.app.Wall;
+
+/**
+ * Walls which attenuate the sound between two players.
+ *
+ * Checking every wall for every pair of players is expensive when
+ * a world has hundreds of walls.  The walls are put in a uniform grid
+ * so only the walls in the cells the line between two players passes
+ * through are checked.  The grid is rebuilt whenever a wall is added
+ * or removed.  Lookups use the grid which was current when they started
+ * so they never wait for a rebuild.
+ *
+ * The attenuation for each pair of players is also remembered and is
+ * reused until one of the players moves further than the cache
+ * resolution or the walls change.  Players closer than that to where
+ * they were last spatialized aren't updated anyway.
+ */
+class WallIndex {
+
+    private static final Logger logger =
+        Logger.getLogger(WallIndex.class.getName());
+
+    private static final String PREFIX =
+	"com.sun.mpk20.voicelib.impl.service.voice.";
+
+    /*
+     * The width of a grid cell.  0 means use the average wall length.
+     */
+    public static final String WALL_CELL_SIZE = PREFIX + "WALL_CELL_SIZE";
+
+    /*
+     * Walls which would be in more cells than this are always checked.
+     */
+    private static final int MAXIMUM_CELLS_PER_WALL = 1024;
+
+    private static final int MAXIMUM_CACHE_SIZE = 100000;
+
+    /*
+     * The grid for one set of walls.  It's never changed once built.
+     */
+    class Grid {
+	public ArrayList<Wall> walls;
+
+	public long version;
+
+	public double cellSize;
+
+	/*
+	 * Indices in walls of the walls in each cell, in ascending order
+	 */
+	public HashMap<Long, int[]> cells = new HashMap<Long, int[]>();
+
+	public int[] largeWalls;
+
+	public Grid(ArrayList<Wall> walls, long version) {
+	    this.walls = walls;
+	    this.version = version;
+
+	    cellSize = getCellSize(walls);
+
+	    HashMap<Long, ArrayList<Integer>> cellLists =
+		new HashMap<Long, ArrayList<Integer>>();
+
+	    ArrayList<Integer> largeList = new ArrayList<Integer>();
+
+	    /*
+	     * A wall on the edge of a cell is put in the cells on
+	     * both sides.
+	     */
+	    double e = cellSize * 1e-6;
+
+	    for (int i = 0; i < walls.size(); i++) {
+		Wall wall = walls.get(i);
+
+		int x1 = getCell(Math.min(wall.startX, wall.endX) - e);
+		int x2 = getCell(Math.max(wall.startX, wall.endX) + e);
+		int y1 = getCell(Math.min(wall.startY, wall.endY) - e);
+		int y2 = getCell(Math.max(wall.startY, wall.endY) + e);
+
+		if ((long) (x2 - x1 + 1) * (y2 - y1 + 1) >
+			MAXIMUM_CELLS_PER_WALL) {
+
+		    largeList.add(i);
+		    continue;
+		}
+
+		for (int ix = x1; ix <= x2; ix++) {
+		    for (int iy = y1; iy <= y2; iy++) {
+			Long key = getKey(ix, iy);
+
+			ArrayList<Integer> cell = cellLists.get(key);
+
+			if (cell == null) {
+			    cell = new ArrayList<Integer>();
+			    cellLists.put(key, cell);
+			}
+
+			cell.add(i);
+		    }
+		}
+	    }
+
+	    for (Long key : cellLists.keySet()) {
+		cells.put(key, toArray(cellLists.get(key)));
+	    }
+
+	    largeWalls = toArray(largeList);
+	}
+
+	private int[] toArray(ArrayList<Integer> list) {
+	    int[] a = new int[list.size()];
+
+	    for (int i = 0; i < a.length; i++) {
+		a[i] = list.get(i);
+	    }
+
+	    return a;
+	}
+
+	public int getCell(double d) {
+	    return (int) Math.floor(d / cellSize);
+	}
+
+	/*
+	 * Find the first wall in the list of walls between (x1, y1)
+	 * and (x2, y2) by walking through the cells the line passes through.
+	 * The number of walls checked is added to tested[0].
+	 */
+	public Wall getWall(double x1, double y1, double x2, double y2,
+		int[] tested) {
+
+	    int ix = getCell(x1);
+	    int iy = getCell(y1);
+
+	    int steps = Math.abs(getCell(x2) - ix) + Math.abs(getCell(y2) - iy);
+
+	    if (steps >= walls.size()) {
+		/*
+		 * The line is so long it's cheaper to check every wall.
+		 */
+		for (int i = 0; i < walls.size(); i++) {
+		    if (intersects(walls.get(i), x1, y1, x2, y2, tested)) {
+			return walls.get(i);
+		    }
+		}
+
+		return null;
+	    }
+
+	    int first = Integer.MAX_VALUE;
+
+	    for (int i = 0; i < largeWalls.length; i++) {
+		if (intersects(walls.get(largeWalls[i]), x1, y1, x2, y2,
+			tested)) {
+		    first = largeWalls[i];
+		    break;
+		}
+	    }
+
+	    double dx = x2 - x1;
+	    double dy = y2 - y1;
+
+	    int stepX = dx > 0 ? 1 : -1;
+	    int stepY = dy > 0 ? 1 : -1;
+
+	    double tMaxX = Double.MAX_VALUE;
+	    double tMaxY = Double.MAX_VALUE;
+	    double tDeltaX = Double.MAX_VALUE;
+	    double tDeltaY = Double.MAX_VALUE;
+
+	    if (dx != 0) {
+		tMaxX = ((ix + (dx > 0 ? 1 : 0)) * cellSize - x1) / dx;
+		tDeltaX = cellSize / Math.abs(dx);
+	    }
+
+	    if (dy != 0) {
+		tMaxY = ((iy + (dy > 0 ? 1 : 0)) * cellSize - y1) / dy;
+		tDeltaY = cellSize / Math.abs(dy);
+	    }
+
+	    for (int n = 0; n <= steps; n++) {
+		int[] cell = cells.get(getKey(ix, iy));
+
+		if (cell != null) {
+		    for (int i = 0; i < cell.length && cell[i] < first; i++) {
+			if (intersects(walls.get(cell[i]), x1, y1, x2, y2,
+			    tested)) {
+			    first = cell[i];
+			}
+		    }
+		}
+
+		if (tMaxX < tMaxY) {
+		    ix += stepX;
+		    tMaxX += tDeltaX;
+		} else {
+		    iy += stepY;
+		    tMaxY += tDeltaY;
+		}
+	    }
+
+	    if (first == Integer.MAX_VALUE) {
+		return null;
+	    }
+
+	    return walls.get(first);
+	}
+
+	private boolean intersects(Wall wall, double x1, double y1,
+		double x2, double y2, int[] tested) {
+
+	    tested[0]++;
+
+	    return Line2D.linesIntersect(x1, y1, x2, y2,
+		wall.startX, wall.startY, wall.endX, wall.endY);
+	}
+    }
+
+    /*
+     * The attenuation between a pair of players
+     */
+    class Occlusion {
+	public long version;
+
+	public long x1;
+	public long y1;
+	public long x2;
+	public long y2;
+
+	public double attenuation;
+    }
+
+    private ArrayList<Wall> walls = new ArrayList<Wall>();
+
+    private long version;
+
+    private Grid grid;
+
+    private HashMap<String, Occlusion> occlusions =
+	new HashMap<String, Occlusion>();
+
+    /*
+     * Statistics
+     */
+    private long lookups;
+    private long cacheHits;
+    private long wallsTested;
+
+    public WallIndex() {
+	grid = new Grid(walls, version);
+    }
+
+    /**
+     * Add a wall.
+     * @return false if the wall already exists.
+     */
+    public synchronized boolean addWall(double startX, double startY,
+	    double endX, double endY, double characteristic) {
+
+	if (findWall(startX, startY, endX, endY) >= 0) {
+	    return false;
+	}
+
+	ArrayList<Wall> w = new ArrayList<Wall>(walls);
+
+	w.add(new Wall(startX, startY, endX, endY, characteristic));
+
+	setWalls(w);
+	return true;
+    }
+
+    public synchronized void removeWall(double startX, double startY,
+	    double endX, double endY) {
+
+	int i = findWall(startX, startY, endX, endY);
+
+	if (i < 0) {
+	    return;
+	}
+
+	ArrayList<Wall> w = new ArrayList<Wall>(walls);
+
+	w.remove(i);
+
+	setWalls(w);
+    }
+
+    public synchronized void removeAllWalls() {
+	setWalls(new ArrayList<Wall>());
+    }
+
+    private int findWall(double startX, double startY, double endX,
+	    double endY) {
+
+	for (int i = 0; i < walls.size(); i++) {
+	    Wall wall = walls.get(i);
+
+	    if (wall.startX == startX && wall.startY == startY &&
+		    wall.endX == endX && wall.endY == endY) {
+
+		return i;
+	    }
+	}
+
+	return -1;
+    }
+
+    private void setWalls(ArrayList<Wall> walls) {
+	this.walls = walls;
+
+	version++;
+
+	grid = new Grid(walls, version);
+
+	occlusions.clear();
+
+	logger.fine(toString());
+    }
+
+    private double getCellSize(ArrayList<Wall> walls) {
+	String s = System.getProperty(WALL_CELL_SIZE);
+
+	if (s != null) {
+	    try {
+		double cellSize = Double.parseDouble(s);
+
+		if (cellSize > 0) {
+		    return cellSize;
+		}
+	    } catch (NumberFormatException e) {
+		logger.warning("Invalid value '" + s + "' for "
+		    + WALL_CELL_SIZE);
+	    }
+	}
+
+	double length = 0;
+
+	for (Wall wall : walls) {
+	    length += Math.hypot(wall.endX - wall.startX,
+		wall.endY - wall.startY);
+	}
+
+	if (length == 0) {
+	    return 1;
+	}
+
+	return length / walls.size();
+    }
+
+    private synchronized Grid getGrid() {
+	return grid;
+    }
+
+    /**
+     * Get the attenuation of the first wall between p1 and p2.
+     * @param resolution attenuation is remembered until a player
+     *                   moves at least this far.  0 means don't remember.
+     */
+    public double getAttenuation(Player p1, Player p2, double resolution) {
+	Grid grid = getGrid();
+
+	if (grid.walls.size() == 0) {
+	    return 1.0;
+	}
+
+	/*
+	 * The attenuation is the same in both directions.
+	 */
+	if (p1.getId().compareTo(p2.getId()) > 0) {
+	    Player p = p1;
+	    p1 = p2;
+	    p2 = p;
+	}
+
+	double x1 = p1.getX();
+	double y1 = p1.getY();
+	double x2 = p2.getX();
+	double y2 = p2.getY();
+
+	String key = null;
+
+	Occlusion occlusion = null;
+
+	if (resolution > 0) {
+	    key = p1.getId() + ":" + p2.getId();
+
+	    synchronized (this) {
+		lookups++;
+
+		occlusion = occlusions.get(key);
+
+		if (occlusion != null && occlusion.version == grid.version &&
+			occlusion.x1 == quantize(x1, resolution) &&
+			occlusion.y1 == quantize(y1, resolution) &&
+			occlusion.x2 == quantize(x2, resolution) &&
+			occlusion.y2 == quantize(y2, resolution)) {
+
+		    cacheHits++;
+		    return occlusion.attenuation;
+		}
+	    }
+	} else {
+	    synchronized (this) {
+		lookups++;
+	    }
+	}
+
+	double attenuation = 1.0;
+
+	int[] tested = new int[1];
+
+	Wall wall = grid.getWall(x1, y1, x2, y2, tested);
+
+	synchronized (this) {
+	    wallsTested += tested[0];
+	}
+
+	if (wall != null) {
+	    logger.finest(wall + " between " + p1 + " and " + p2);
+
+	    attenuation = wall.characteristic;
+	}
+
+	if (key == null) {
+	    return attenuation;
+	}
+
+	occlusion = new Occlusion();
+	occlusion.version = grid.version;
+	occlusion.x1 = quantize(x1, resolution);
+	occlusion.y1 = quantize(y1, resolution);
+	occlusion.x2 = quantize(x2, resolution);
+	occlusion.y2 = quantize(y2, resolution);
+	occlusion.attenuation = attenuation;
+
+	synchronized (this) {
+	    if (occlusions.size() >= MAXIMUM_CACHE_SIZE) {
+		occlusions.clear();
+	    }
+
+	    if (grid.version == version) {
+		occlusions.put(key, occlusion);
+	    }
+	}
+
+	return attenuation;
+    }
+
+    private long quantize(double d, double resolution) {
+	return (long) Math.floor(d / resolution);
+    }
+
+    private Long getKey(int ix, int iy) {
+	return new Long((((long) ix) << 32) | (iy & 0xffffffffL));
+    }
+
+    public synchronized String toString() {
+	String s = "Walls " + walls.size() + ", cell size "
+	    + Math.round(grid.cellSize * 100) / 100. + ", "
+	    + grid.cells.size() + " cells, " + lookups + " lookups, "
+	    + cacheHits + " cached";
+
+	if (lookups > cacheHits) {
+	    s += ", " + Math.round(100. * wallsTested / (lookups - cacheHits))
+		/ 100. + " walls tested per lookup";
+	}
+
+	return s;
+    }
+
+}
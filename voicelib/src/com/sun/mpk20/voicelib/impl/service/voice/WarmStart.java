@@ -26,6 +26,8 @@ import com.sun.sgs.app.AppContext;
 import com.sun.sgs.app.DataManager;
 import com.sun.sgs.app.NameNotBoundException;
 
+import com.sun.sgs.app.util.ScalableHashMap;
+
 import com.sun.mpk20.voicelib.app.BridgeInfo;
 import com.sun.mpk20.voicelib.app.Recorder;
 import com.sun.mpk20.voicelib.app.RecorderSetup;
@@ -37,6 +39,7 @@ import com.sun.voip.client.connector.CallStatus;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Enumeration;
@@ -82,50 +85,143 @@ public class WarmStart {
 	}
     }
 
+    /*
+     * End the calls which were in progress when we stopped.
+     * The calls are grouped by bridge and each bridge's calls are ended
+     * on a separate thread with the requests pipelined, so recovering
+     * thousands of calls doesn't take a round trip per call.
+     */
     private void endCalls() {
-        WarmStartCalls warmStartCalls;
+	HashMap<String, ArrayList<String>> bridgeCalls = 
+	    new HashMap<String, ArrayList<String>>();
 
-	DataManager dm = AppContext.getDataManager();
+	getWarmStartCalls(bridgeCalls);
 
-        try {
-            warmStartCalls = (WarmStartCalls) dm.getBinding(
-		WarmStartInfo.DS_WARM_START_CALLS);
-        } catch (NameNotBoundException e) {
+	if (bridgeCalls.size() == 0) {
 	    logger.fine("There are no calls to end...");
+	    callsEnded = true;
 	    return;
 	}
 
-	Enumeration<String> keys = warmStartCalls.keys();
+	long start = System.currentTimeMillis();
 
-	while (keys.hasMoreElements()) {
-	    String callID = keys.nextElement();
+	BridgeManager bridgeManager = voiceImpl.getBridgeManager();
 
-	    BridgeManager bridgeManager = voiceImpl.getBridgeManager();
+	ArrayList<Thread> threads = new ArrayList<Thread>();
 
-	    BridgeInfo info = warmStartCalls.get(callID);
+	int n = 0;
 
-	    BridgeConnection bc = bridgeManager.findBridge(
-		info.publicHostName, String.valueOf(info.publicSipPort));
+	for (Map.Entry<String, ArrayList<String>> entry : 
+		bridgeCalls.entrySet()) {
+
+	    final String bridge = entry.getKey();
+
+	    final ArrayList<String> callIds = entry.getValue();
+
+	    n += callIds.size();
+
+	    int ix = bridge.lastIndexOf(":");
+
+	    final BridgeConnection bc = bridgeManager.findBridge(
+		bridge.substring(0, ix), bridge.substring(ix + 1));
 
 	    if (bc == null) {
-		logger.warning("Unable to find BridgeConnection for " + callID);
-		sendStatus(callID);
+		logger.warning("Unable to find BridgeConnection " + bridge
+		    + " for " + callIds.size() + " calls");
 		continue;
 	    }
 
+	    Thread thread = new Thread("WarmStart-EndCalls-" + bridge) {
+		public void run() {
+		    try {
+			int ended = bc.endCalls(callIds);
+
+			logger.fine("Ended " + ended + " of " + callIds.size()
+			    + " calls on " + bc);
+		    } catch (IOException e) {
+			logger.warning("Unable to end calls on " + bc
+			    + ": " + e.getMessage());
+		    }
+		}
+	    };
+
+	    thread.start();
+	    threads.add(thread);
+	}
+
+	for (Thread thread : threads) {
 	    try {
-		bc.endCall(callID);
-	    } catch (IOException e) {
-		logger.warning("Unable to end call " + callID
-		    + ": " + e.getMessage());
+		thread.join();
+	    } catch (InterruptedException e) {
+	    }
+	}
+
+	for (ArrayList<String> callIds : bridgeCalls.values()) {
+	    for (String callID : callIds) {
+		sendStatus(callID);
 	    }
-	    sendStatus(callID);
 	}
 
-	warmStartCalls.clear();
+	logger.info("Warm start ended " + n + " calls on " 
+	    + bridgeCalls.size() + " bridges in "
+	    + (System.currentTimeMillis() - start) / 1000. + " seconds");
+
 	callsEnded = true;
     }
 
+    /*
+     * Get the calls for each bridge and forget them.
+     * Calls may also be in the map used before DS_WARM_START_CALL_BRIDGES.
+     */
+    private void getWarmStartCalls(
+	    HashMap<String, ArrayList<String>> bridgeCalls) {
+
+	DataManager dm = AppContext.getDataManager();
+
+        try {
+            WarmStartCalls warmStartCalls = (WarmStartCalls) dm.getBinding(
+		WarmStartInfo.DS_WARM_START_CALLS);
+
+	    for (Map.Entry<String, BridgeInfo> entry : 
+		    warmStartCalls.entrySet()) {
+
+		addCall(bridgeCalls, WarmStartInfo.getBridgeKey(
+		    entry.getValue()), entry.getKey());
+	    }
+
+	    warmStartCalls.clear();
+        } catch (NameNotBoundException e) {
+	}
+
+        try {
+            ScalableHashMap<String, String> warmStartCallBridges =
+		(ScalableHashMap<String, String>) dm.getBinding(
+		WarmStartInfo.DS_WARM_START_CALL_BRIDGES);
+
+	    for (Map.Entry<String, String> entry : 
+		    warmStartCallBridges.entrySet()) {
+
+		addCall(bridgeCalls, entry.getValue(), entry.getKey());
+	    }
+
+	    warmStartCallBridges.clear();
+        } catch (NameNotBoundException e) {
+	}
+    }
+
+    private void addCall(HashMap<String, ArrayList<String>> bridgeCalls,
+	    String bridge, String callID) {
+
+	ArrayList<String> callIds = bridgeCalls.get(bridge);
+
+	if (callIds == null) {
+	    callIds = new ArrayList<String>();
+	    bridgeCalls.put(bridge, callIds);
+	}
+
+	callIds.add(callID);
+    }
+
     private void sendStatus(String callID) {
 	HashMap<String, String> options = new HashMap();
 		
@@ -23,11 +23,21 @@
 
 package com.sun.mpk20.voicelib.impl.service.voice;
 
+import com.sun.mpk20.voicelib.app.BridgeInfo;
+
 public class WarmStartInfo {
 
     public static final String DS_WARM_START_CALLS =
         CallImpl.class.getName() + ".WARM_START_CALLS";
 
+    /*
+     * The bridge each call is on, as public host:public SIP port.
+     * This replaces DS_WARM_START_CALLS.  It's a ScalableHashMap so
+     * adding or removing a call only writes part of the map.
+     */
+    public static final String DS_WARM_START_CALL_BRIDGES =
+        CallImpl.class.getName() + ".WARM_START_CALL_BRIDGES";
+
     public static final String DS_WARM_START_TREATMENTGROUPS =
         TreatmentGroupImpl.class.getName() + ".WARM_START_TREATMENTGROUPS";
 
@@ -37,4 +47,8 @@ public class WarmStartInfo {
     public static final String DS_WARM_START_RECORDERS =
         RecorderImpl.class.getName() + ".WARM_START_RECORDERS";
 
+    public static String getBridgeKey(BridgeInfo bridgeInfo) {
+	return bridgeInfo.publicHostName + ":" + bridgeInfo.publicSipPort;
+    }
+
 }
@@ -49,9 +49,10 @@ public class CallEvent {
     public static final int RECORDER_DONE	  = 19;
     public static final int RECORDER_STOPPED	  = 20;
     public static final int TEST_UDP_PORT	  = 21;
-    public static final int INFO                  = 22;
+    public static final int BRIDGE_FULL           = 22;
+    public static final int INFO                  = 23;
 
-    private static final int LAST_EVENT = 22;
+    private static final int LAST_EVENT = 23;
 
     private static String[] eventString = {
         "000 New Connection",
@@ -76,6 +77,7 @@ public class CallEvent {
 	"958 RECORDER DONE",
 	"959 RECORDER STOPPED",
 	"977 TEST UDP PORT",
+	"930 Bridge is full",
 	""
     };
 
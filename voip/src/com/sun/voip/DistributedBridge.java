@@ -35,4 +35,11 @@ public interface DistributedBridge {
 
     public int getNumberOfMembers(String conferenceId);
 
+    /*
+     * Is trunkAddress the trunk address of another bridge
+     * running conferenceId?
+     */
+    public boolean isTrunkPeer(String conferenceId, 
+	InetSocketAddress trunkAddress);
+
 }
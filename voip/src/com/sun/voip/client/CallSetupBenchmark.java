@@ -0,0 +1,412 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip.client;
+
+import java.io.*;
+import java.net.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Place many calls at once and measure how long each one takes to
+ * be established and how many threads the bridge needs to do it.
+ *
+ * The calls go to a SIP stand-in in this process which answers every
+ * INVITE straight away, so the time measured is the bridge's.  Run
+ * the bridge with and without -Dcom.sun.voip.server.CALL_THREADS=virtual
+ * to compare.  The peak thread count comes from the bridge's metrics
+ * port if one is given.
+ */
+public class CallSetupBenchmark extends Thread {
+
+    private static final long MAX_WAIT = 5 * 60 * 1000000000L;	// ns
+
+    private Socket socket;
+    private PrintWriter writer;
+    private BufferedReader reader;
+
+    private HashMap<String, Long> started = new HashMap<String, Long>();
+
+    private ArrayList<Long> setupTimes = new ArrayList<Long>();
+
+    private int failed;
+
+    public static void main(String[] args) {
+	if (args.length < 4) {
+	    System.err.println("Usage:  java CallSetupBenchmark "
+		+ "<bridge host> <bridge port> <calls> <stand-in port> "
+		+ "[<bridge metrics port>]");
+	    System.exit(1);
+	}
+
+	try {
+	    SipStandIn sipStandIn = new SipStandIn(Integer.parseInt(args[3]));
+
+	    MetricsPoller metricsPoller = null;
+
+	    if (args.length > 4) {
+		metricsPoller = new MetricsPoller(args[0], 
+		    Integer.parseInt(args[4]));
+	    }
+
+	    CallSetupBenchmark benchmark = new CallSetupBenchmark(
+		args[0], Integer.parseInt(args[1]));
+
+	    benchmark.run(Integer.parseInt(args[2]), sipStandIn);
+
+	    if (metricsPoller != null) {
+		System.out.println("Peak bridge threads " 
+		    + metricsPoller.getPeakThreads());
+	    }
+	} catch (Exception e) {
+	    System.err.println(e.getMessage());
+	    System.exit(1);
+	}
+
+	System.exit(0);
+    }
+
+    public CallSetupBenchmark(String host, int port) throws IOException {
+	socket = new Socket(host, port);
+
+	writer = new PrintWriter(new BufferedWriter(
+	    new OutputStreamWriter(socket.getOutputStream())));
+
+	reader = new BufferedReader(
+	    new InputStreamReader(socket.getInputStream()));
+
+	reader.readLine();	// new connection
+
+	setDaemon(true);
+	start();
+    }
+
+    private void run(int calls, SipStandIn sipStandIn) throws IOException {
+	String host = InetAddress.getLocalHost().getHostAddress();
+
+	long start = System.nanoTime();
+
+	for (int i = 0; i < calls; i++) {
+	    String callId = "bench" + i;
+
+	    synchronized (this) {
+		started.put(callId, new Long(System.nanoTime()));
+	    }
+
+	    writer.println("callId=" + callId);
+	    writer.println("conferenceId=CallSetupBenchmark");
+	    writer.println("phoneNumber=sip:" + callId + "@" + host + ":" 
+		+ sipStandIn.getPort());
+	    writer.println();
+	    writer.flush();
+	}
+
+	synchronized (this) {
+	    while (setupTimes.size() + failed < calls) {
+		if (socket.isClosed()) {
+		    throw new IOException("Bridge closed the connection");
+		}
+
+		if (System.nanoTime() - start > MAX_WAIT) {
+		    System.out.println("Gave up waiting for "
+			+ (calls - setupTimes.size() - failed) + " calls");
+		    break;
+		}
+
+		try {
+		    wait(1000);
+		} catch (InterruptedException e) {
+		}
+	    }
+	}
+
+	long elapsed = System.nanoTime() - start;
+
+	for (int i = 0; i < calls; i++) {
+	    writer.println("cancel=bench" + i);
+	    writer.println();
+	}
+
+	writer.flush();
+
+	report(calls, elapsed);
+    }
+
+    private synchronized void report(int calls, long elapsed) {
+	System.out.println(calls + " calls, " + setupTimes.size() 
+	    + " established, " + failed + " failed in " 
+	    + (elapsed / 1000000) + " ms");
+
+	if (setupTimes.size() == 0) {
+	    return;
+	}
+
+	Collections.sort(setupTimes);
+
+	System.out.println("Setup time ms:  median " 
+	    + percentile(50) + ", 95th " + percentile(95) + ", max " 
+	    + percentile(100));
+    }
+
+    private long percentile(int p) {
+	int i = (setupTimes.size() - 1) * p / 100;
+
+	return setupTimes.get(i).longValue() / 1000000;
+    }
+
+    /*
+     * Status lines look like
+     * SIPDialer/1.0 200 ESTABLISHED ... CallId='bench0' ...
+     */
+    public void run() {
+	String s;
+
+	try {
+	    while ((s = reader.readLine()) != null) {
+		boolean established = s.indexOf(" 200 ESTABLISHED") >= 0;
+
+		if (established == false && s.indexOf(" 299 ENDED") < 0) {
+		    continue;
+		}
+
+		int ix = s.indexOf("CallId='");
+
+		if (ix < 0) {
+		    continue;
+		}
+
+		s = s.substring(ix + 8);
+
+		String callId = s.substring(0, s.indexOf("'"));
+
+		synchronized (this) {
+		    Long t = started.remove(callId);
+
+		    if (t == null) {
+			continue;
+		    }
+
+		    if (established) {
+			setupTimes.add(
+			    new Long(System.nanoTime() - t.longValue()));
+		    } else {
+			failed++;
+		    }
+
+		    notifyAll();
+		}
+	    }
+	} catch (IOException e) {
+	}
+
+	try {
+	    socket.close();
+	} catch (IOException e) {
+	}
+
+	synchronized (this) {
+	    notifyAll();
+	}
+    }
+
+    /**
+     * Answer INVITEs and BYEs the way a phone or gateway would,
+     * without sending any media.
+     */
+    static class SipStandIn extends Thread {
+
+	private DatagramSocket socket;
+
+	/*
+	 * The bridge sends media here.  Nobody reads it.
+	 */
+	private DatagramSocket mediaSocket;
+
+	public SipStandIn(int port) throws IOException {
+	    socket = new DatagramSocket(port);
+	    mediaSocket = new DatagramSocket();
+
+	    setName("SipStandIn");
+	    setDaemon(true);
+	    start();
+	}
+
+	public int getPort() {
+	    return socket.getLocalPort();
+	}
+
+	public void run() {
+	    byte[] buf = new byte[10000];
+
+	    while (true) {
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+		try {
+		    socket.receive(packet);
+
+		    String response = getResponse(new String(buf, 0, 
+			packet.getLength()));
+
+		    if (response == null) {
+			continue;
+		    }
+
+		    byte[] data = response.getBytes();
+
+		    socket.send(new DatagramPacket(data, data.length,
+			packet.getSocketAddress()));
+		} catch (IOException e) {
+		    System.err.println("SipStandIn:  " + e.getMessage());
+		}
+	    }
+	}
+
+	private String getResponse(String request) throws IOException {
+	    String[] lines = request.split("\r\n");
+
+	    String method = lines[0].split(" ")[0];
+
+	    if (method.equals("INVITE") == false && 
+		    method.equals("BYE") == false && 
+		    method.equals("CANCEL") == false) {
+
+		return null;	// ACK or a response
+	    }
+
+	    String response = "SIP/2.0 200 OK\r\n";
+
+	    for (int i = 1; i < lines.length && lines[i].length() > 0; i++) {
+		String name = 
+		    lines[i].substring(0, Math.max(0, lines[i].indexOf(':')));
+
+		if (name.equalsIgnoreCase("Via") || name.equalsIgnoreCase("v") 
+			|| name.equalsIgnoreCase("From") 
+			|| name.equalsIgnoreCase("f")
+			|| name.equalsIgnoreCase("Call-ID") 
+			|| name.equalsIgnoreCase("i")
+			|| name.equalsIgnoreCase("CSeq")) {
+
+		    response += lines[i] + "\r\n";
+		} else if (name.equalsIgnoreCase("To") 
+			|| name.equalsIgnoreCase("t")) {
+
+		    response += lines[i];
+
+		    if (lines[i].indexOf(";tag=") < 0) {
+			response += ";tag=standin";
+		    }
+
+		    response += "\r\n";
+		}
+	    }
+
+	    String host = socket.getLocalAddress().isAnyLocalAddress() ?
+		InetAddress.getLocalHost().getHostAddress() :
+		socket.getLocalAddress().getHostAddress();
+
+	    if (method.equals("INVITE") == false) {
+		return response + "Content-Length: 0\r\n\r\n";
+	    }
+
+	    String sdp = "v=0\r\n"
+		+ "o=standin 0 0 IN IP4 " + host + "\r\n"
+		+ "s=CallSetupBenchmark\r\n"
+		+ "c=IN IP4 " + host + "\r\n"
+		+ "t=0 0\r\n"
+		+ "m=audio " + mediaSocket.getLocalPort() + " RTP/AVP 0\r\n"
+		+ "a=rtpmap:0 PCMU/8000\r\n";
+
+	    return response
+		+ "Contact: <sip:standin@" + host + ":" + getPort() + ">\r\n"
+		+ "Content-Type: application/sdp\r\n"
+		+ "Content-Length: " + sdp.length() + "\r\n\r\n"
+		+ sdp;
+	}
+    }
+
+    /**
+     * Keep track of the most threads the bridge has had.
+     */
+    static class MetricsPoller extends Thread {
+
+	private URL url;
+
+	private int peakThreads;
+
+	public MetricsPoller(String host, int port) throws IOException {
+	    url = new URL("http://" + host + ":" + port + "/metrics");
+
+	    setName("MetricsPoller");
+	    setDaemon(true);
+	    start();
+	}
+
+	public synchronized int getPeakThreads() {
+	    return peakThreads;
+	}
+
+	public void run() {
+	    while (true) {
+		try {
+		    poll();
+		} catch (IOException e) {
+		    System.err.println("Can't get bridge metrics:  "
+			+ e.getMessage());
+		    return;
+		}
+
+		try {
+		    Thread.sleep(100);
+		} catch (InterruptedException e) {
+		}
+	    }
+	}
+
+	private void poll() throws IOException {
+	    BufferedReader reader = new BufferedReader(
+		new InputStreamReader(url.openStream()));
+
+	    try {
+		String s;
+
+		while ((s = reader.readLine()) != null) {
+		    if (s.startsWith("voicebridge_jvm_threads ")) {
+			int threads = (int) Double.parseDouble(
+			    s.substring(s.indexOf(' ') + 1));
+
+			synchronized (this) {
+			    peakThreads = Math.max(peakThreads, threads);
+			}
+		    }
+		}
+	    } finally {
+		reader.close();
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.voip.client;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Measure how many private mix updates per second the bridge accepts
+ * when sent one at a time with "pmx" and when sent in batches with
+ * "bulkPrivateMix".
+ *
+ * Each iteration sends a private mix for every pair of calls,
+ * the way a moving crowd in the virtual world does.  The calls
+ * must already exist on the bridge.
+ */
+public class PrivateMixBenchmark extends Thread {
+
+    private Socket socket;
+    private PrintWriter writer;
+    private BufferedReader reader;
+
+    private int responses;
+    private int failures;
+
+    public static void main(String[] args) {
+	if (args.length < 5) {
+	    System.err.println("Usage:  java PrivateMixBenchmark "
+		+ "<bridge host> <bridge port> <iterations> "
+		+ "<callId> <callId> [<callId> ...]");
+	    System.exit(1);
+	}
+
+	String[] callIds = new String[args.length - 3];
+
+	System.arraycopy(args, 3, callIds, 0, callIds.length);
+
+	try {
+	    PrivateMixBenchmark benchmark = new PrivateMixBenchmark(
+		args[0], Integer.parseInt(args[1]));
+
+	    int iterations = Integer.parseInt(args[2]);
+
+	    benchmark.run("pmx", iterations, callIds, false);
+	    benchmark.run("bulkPrivateMix", iterations, callIds, true);
+	} catch (Exception e) {
+	    System.err.println(e.getMessage());
+	    System.exit(1);
+	}
+
+	System.exit(0);
+    }
+
+    public PrivateMixBenchmark(String host, int port) throws IOException {
+	socket = new Socket(host, port);
+
+	/*
+	 * Don't let Nagle's algorithm hold back the end of a batch.
+	 */
+	socket.setTcpNoDelay(true);
+
+	writer = new PrintWriter(new BufferedWriter(
+	    new OutputStreamWriter(socket.getOutputStream())));
+
+	reader = new BufferedReader(
+	    new InputStreamReader(socket.getInputStream()));
+
+	reader.readLine();	// new connection
+
+	writer.println("sm=true");
+	writer.flush();
+
+	setDaemon(true);
+	start();
+    }
+
+    private void run(String name, int iterations, String[] callIds,
+	    boolean bulk) throws IOException {
+
+	int n = callIds.length;
+
+	int updates = n * (n - 1);
+
+	long start = System.nanoTime();
+
+	for (int i = 0; i < iterations; i++) {
+	    int expected;
+
+	    synchronized (this) {
+		expected = responses + (bulk ? 1 : updates);
+	    }
+
+	    if (bulk) {
+		writer.println("bpm=" + updates);
+	    }
+
+	    for (int j = 0; j < n; j++) {
+		for (int k = 0; k < n; k++) {
+		    if (j == k) {
+			continue;
+		    }
+
+		    String pmx = getPmx(i, j, k) + ":" + callIds[k] + ":"
+			+ callIds[j];
+
+		    if (bulk) {
+			writer.println(pmx);
+		    } else {
+			writer.println("pmx=" + pmx);
+		    }
+		}
+	    }
+
+	    writer.flush();
+
+	    waitForResponses(expected);
+	}
+
+	double seconds = (System.nanoTime() - start) / 1000000000.;
+
+	System.out.println(name + ":  " + (iterations * updates)
+	    + " updates in " + seconds + " seconds, "
+	    + Math.round(iterations * updates / seconds)
+	    + " updates per second, " + failures + " failures");
+
+	failures = 0;
+    }
+
+    /*
+     * Move call j around call k.
+     */
+    private String getPmx(int i, int j, int k) {
+	double angle = ((i + j + k) % 360) * Math.PI / 180;
+
+	double volume = .5 + (((i + j) % 10) / 20.);
+
+	return Math.cos(angle) + ":" + Math.sin(angle) + ":0:" + volume;
+    }
+
+    private synchronized void waitForResponses(int expected)
+	    throws IOException {
+
+	while (responses < expected) {
+	    if (socket.isClosed()) {
+		throw new IOException("Bridge closed the connection");
+	    }
+
+	    try {
+		wait(1000);
+	    } catch (InterruptedException e) {
+	    }
+	}
+    }
+
+    public void run() {
+	String s;
+
+	try {
+	    while ((s = reader.readLine()) != null) {
+		if (s.indexOf("END -- ") != 0) {
+		    continue;
+		}
+
+		synchronized (this) {
+		    if (s.indexOf("END -- SUCCESS") != 0) {
+			failures++;
+		    }
+
+		    responses++;
+		    notifyAll();
+		}
+	    }
+	} catch (IOException e) {
+	}
+
+	try {
+	    socket.close();
+	} catch (IOException e) {
+	}
+
+	synchronized (this) {
+	    notifyAll();
+	}
+    }
+
+}
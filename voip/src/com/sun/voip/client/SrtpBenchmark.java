@@ -0,0 +1,455 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+
+package com.sun.voip.client;
+
+import com.sun.voip.server.SrtpCryptoContext;
+
+import java.math.BigInteger;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Check SrtpCryptoContext against the RFC 3711 test vectors and
+ * measure how many packets per second it protects.
+ *
+ * The AES counter mode reference used here is checked against the
+ * key stream in appendix B.2.  SRTP packets from SrtpCryptoContext are
+ * then compared with packets made by the reference using the session
+ * keys from appendix B.3, which checks the key derivation, the IV
+ * and the authentication tag.  Packets are also sent across a
+ * rollover counter wrap, tampered with and replayed.
+ *
+ * The rate is compared with the javax.crypto doFinal() path which
+ * MemberSender uses for other algorithms.  Exits with status 1 if
+ * any check fails.
+ */
+public class SrtpBenchmark {
+
+    private static final int PAYLOAD_LENGTH = 160;
+
+    private static final int HEADER_LENGTH = 12;
+
+    /*
+     * RFC 3711 appendix B.2
+     */
+    private static final String B2_SESSION_KEY =
+	"2B7E151628AED2A6ABF7158809CF4F3C";
+
+    private static final String B2_OFFSET =
+	"F0F1F2F3F4F5F6F7F8F9FAFBFCFD0000";
+
+    private static final String[][] B2_KEY_STREAM = {
+	{ "0000", "E03EAD0935C95E80E166B16DD92B4EB4" },
+	{ "0001", "D23513162B02D0F72A43A2FE4A5F97AB" },
+	{ "0002", "41E95B3BB0A2E8DD477901E4FCA894C0" },
+	{ "FEFF", "EC8CDF7398607CB0F2D21675EA9EA1E4" },
+	{ "FF00", "362B7C3C6773516318A077D7FC5073AE" },
+	{ "FF01", "6A2CC3787889374FBEB4C81B17BA6C44" },
+    };
+
+    /*
+     * RFC 3711 appendix B.3
+     */
+    private static final String B3_MASTER_KEY =
+	"E1F97A0D3E018BE0D64FA32C06DE4139";
+
+    private static final String B3_MASTER_SALT =
+	"0EC675AD498AFEEBB6960B3AABE6";
+
+    private static final String B3_CIPHER_KEY =
+	"C61E7A93744F39EE10734AFE3FF7A087";
+
+    private static final String B3_CIPHER_SALT =
+	"30CBBC08863D8C85D49DB34A9AE1";
+
+    private static final String B3_AUTH_KEY =
+	"CEBE321F6FF7716B6FD4AB49AF256A156D38BAA4";
+
+    private static int failures;
+
+    public static void main(String[] args) {
+	int packets = 1000000;
+
+	if (args.length > 0) {
+	    try {
+		packets = Integer.parseInt(args[0]);
+	    } catch (NumberFormatException e) {
+		System.err.println("Usage:  java SrtpBenchmark [<packets>]");
+		System.exit(1);
+	    }
+	}
+
+	try {
+	    checkKeyStream();
+	    checkPackets();
+	    checkRoundTrip();
+
+	    if (failures != 0) {
+		System.out.println(failures + " checks failed");
+		System.exit(1);
+	    }
+
+	    /*
+	     * Once to warm up, then for real.
+	     */
+	    benchmark(packets / 10, false);
+	    benchmark(packets, true);
+	} catch (Exception e) {
+	    System.err.println(e.getMessage());
+	    System.exit(1);
+	}
+
+	System.exit(0);
+    }
+
+    private static void check(String name, boolean ok) {
+	System.out.println(name + (ok ? ":  ok" : ":  FAILED"));
+
+	if (ok == false) {
+	    failures++;
+	}
+    }
+
+    /*
+     * The reference key stream matches appendix B.2.
+     */
+    private static void checkKeyStream() throws GeneralSecurityException {
+	byte[] keyStream = keyStream(fromHex(B2_SESSION_KEY),
+	    new BigInteger(B2_OFFSET, 16), 0xff02 * 16);
+
+	boolean ok = true;
+
+	for (int i = 0; i < B2_KEY_STREAM.length; i++) {
+	    int counter = Integer.parseInt(B2_KEY_STREAM[i][0], 16);
+
+	    byte[] expected = fromHex(B2_KEY_STREAM[i][1]);
+
+	    for (int j = 0; j < 16; j++) {
+		if (keyStream[counter * 16 + j] != expected[j]) {
+		    ok = false;
+		}
+	    }
+	}
+
+	check("RFC 3711 B.2 AES-CM key stream", ok);
+    }
+
+    /*
+     * SrtpCryptoContext makes the same packets as the reference
+     * with the session keys from appendix B.3.
+     */
+    private static void checkPackets() throws Exception {
+	SrtpCryptoContext context = new SrtpCryptoContext(
+	    base64Encode(fromHex(B3_MASTER_KEY + B3_MASTER_SALT)));
+
+	int[][] packets = {
+	    { 0, 0 },
+	    { 0xdeadbeef, 0x1234 },
+	    { 0x12345678, 0xfffe },
+	};
+
+	boolean ok = true;
+
+	for (int i = 0; i < packets.length; i++) {
+	    int ssrc = packets[i][0];
+	    int sequence = packets[i][1];
+
+	    byte[] rtp = makePacket(ssrc, sequence, i);
+
+	    byte[] srtp = new byte[rtp.length +
+		SrtpCryptoContext.AUTH_TAG_LENGTH];
+
+	    int length = context.protect(rtp, rtp.length, srtp);
+
+	    byte[] expected = referenceProtect(rtp, ssrc, sequence);
+
+	    if (length != expected.length) {
+		ok = false;
+		continue;
+	    }
+
+	    for (int j = 0; j < length; j++) {
+		if (srtp[j] != expected[j]) {
+		    ok = false;
+		}
+	    }
+	}
+
+	check("RFC 3711 B.3 key derivation, IV and tag", ok);
+    }
+
+    /*
+     * Packets get through across a rollover counter wrap and
+     * tampered or replayed packets don't.
+     */
+    private static void checkRoundTrip() throws Exception {
+	String key = base64Encode(fromHex(B3_MASTER_KEY + B3_MASTER_SALT));
+
+	SrtpCryptoContext sender = new SrtpCryptoContext(key);
+	SrtpCryptoContext receiver = new SrtpCryptoContext(key);
+
+	byte[] srtp = new byte[HEADER_LENGTH + PAYLOAD_LENGTH +
+	    SrtpCryptoContext.AUTH_TAG_LENGTH];
+
+	boolean ok = true;
+
+	for (int i = 0; i < 70000; i++) {
+	    byte[] rtp = makePacket(0x11223344, (60000 + i) & 0xffff, i);
+
+	    int length = sender.protect(rtp, rtp.length, srtp);
+
+	    if (receiver.unprotect(srtp, length) != rtp.length) {
+		ok = false;
+		break;
+	    }
+
+	    for (int j = 0; j < rtp.length; j++) {
+		if (srtp[j] != rtp[j]) {
+		    ok = false;
+		}
+	    }
+	}
+
+	check("70000 packets across a rollover counter wrap", ok);
+
+	byte[] rtp = makePacket(0x11223344, (60000 + 70000) & 0xffff, 0);
+
+	int length = sender.protect(rtp, rtp.length, srtp);
+
+	byte[] copy = new byte[length];
+
+	System.arraycopy(srtp, 0, copy, 0, length);
+
+	srtp[HEADER_LENGTH] ^= 1;
+
+	check("tampered packet is rejected",
+	    receiver.unprotect(srtp, length) < 0 &&
+	    receiver.getAuthenticationFailures() == 1);
+
+	System.arraycopy(copy, 0, srtp, 0, length);
+
+	boolean first = receiver.unprotect(srtp, length) == rtp.length;
+
+	System.arraycopy(copy, 0, srtp, 0, length);
+
+	check("replayed packet is rejected", first &&
+	    receiver.unprotect(srtp, length) < 0 &&
+	    receiver.getReplayedPackets() == 1);
+    }
+
+    private static void benchmark(int packets, boolean report)
+	    throws Exception {
+
+	SrtpCryptoContext context = new SrtpCryptoContext(
+	    base64Encode(fromHex(B3_MASTER_KEY + B3_MASTER_SALT)));
+
+	byte[] rtp = makePacket(0x11223344, 0, 0);
+
+	byte[] srtp = new byte[rtp.length + SrtpCryptoContext.AUTH_TAG_LENGTH];
+
+	long start = System.nanoTime();
+
+	for (int i = 0; i < packets; i++) {
+	    rtp[2] = (byte) (i >> 8);
+	    rtp[3] = (byte) i;
+
+	    context.protect(rtp, rtp.length, srtp);
+	}
+
+	long srtpTime = System.nanoTime() - start;
+
+	Cipher cipher = Cipher.getInstance("DES");
+
+	cipher.init(Cipher.ENCRYPT_MODE,
+	    new SecretKeySpec("12345678".getBytes(), "DES"));
+
+	start = System.nanoTime();
+
+	for (int i = 0; i < packets; i++) {
+	    rtp[2] = (byte) (i >> 8);
+	    rtp[3] = (byte) i;
+
+	    cipher.doFinal(rtp, 0, rtp.length);
+	}
+
+	long desTime = System.nanoTime() - start;
+
+	if (report == false) {
+	    return;
+	}
+
+	System.out.println(packets + " packets of " + PAYLOAD_LENGTH
+	    + " bytes:  SRTP " + rate(packets, srtpTime)
+	    + " packets/s, DES doFinal() " + rate(packets, desTime)
+	    + " packets/s");
+    }
+
+    private static long rate(int packets, long elapsed) {
+	return Math.round(packets / (elapsed / 1000000000.));
+    }
+
+    private static byte[] makePacket(int ssrc, int sequence, int seed) {
+	byte[] rtp = new byte[HEADER_LENGTH + PAYLOAD_LENGTH];
+
+	rtp[0] = (byte) 0x80;
+	rtp[1] = 0;			// PCMU
+	rtp[2] = (byte) (sequence >> 8);
+	rtp[3] = (byte) sequence;
+	rtp[4] = (byte) (seed >> 24);	// timestamp
+	rtp[5] = (byte) (seed >> 16);
+	rtp[6] = (byte) (seed >> 8);
+	rtp[7] = (byte) seed;
+	rtp[8] = (byte) (ssrc >> 24);
+	rtp[9] = (byte) (ssrc >> 16);
+	rtp[10] = (byte) (ssrc >> 8);
+	rtp[11] = (byte) ssrc;
+
+	for (int i = HEADER_LENGTH; i < rtp.length; i++) {
+	    rtp[i] = (byte) (i + seed);
+	}
+
+	return rtp;
+    }
+
+    /*
+     * SRTP as written in RFC 3711 section 4 for a packet with a
+     * rollover counter of 0, using the appendix B.3 session keys.
+     */
+    private static byte[] referenceProtect(byte[] rtp, int ssrc,
+	    int sequence) throws GeneralSecurityException {
+
+	/*
+	 * IV = (k_s * 2^16) XOR (SSRC * 2^64) XOR (i * 2^16)
+	 */
+	BigInteger iv = new BigInteger(1, fromHex(B3_CIPHER_SALT)).shiftLeft(16)
+	    .xor(BigInteger.valueOf(ssrc & 0xffffffffL).shiftLeft(64))
+	    .xor(BigInteger.valueOf(sequence).shiftLeft(16));
+
+	byte[] keyStream = keyStream(fromHex(B3_CIPHER_KEY), iv,
+	    rtp.length - HEADER_LENGTH);
+
+	byte[] srtp = new byte[rtp.length + SrtpCryptoContext.AUTH_TAG_LENGTH];
+
+	System.arraycopy(rtp, 0, srtp, 0, HEADER_LENGTH);
+
+	for (int i = HEADER_LENGTH; i < rtp.length; i++) {
+	    srtp[i] = (byte) (rtp[i] ^ keyStream[i - HEADER_LENGTH]);
+	}
+
+	Mac mac = Mac.getInstance("HmacSHA1");
+
+	mac.init(new SecretKeySpec(fromHex(B3_AUTH_KEY), "HmacSHA1"));
+	mac.update(srtp, 0, rtp.length);
+
+	byte[] tag = mac.doFinal(new byte[4]);	// ROC
+
+	System.arraycopy(tag, 0, srtp, rtp.length,
+	    SrtpCryptoContext.AUTH_TAG_LENGTH);
+
+	return srtp;
+    }
+
+    /*
+     * AES counter mode, one block at a time:
+     * block j is E(key, IV + j).
+     */
+    private static byte[] keyStream(byte[] key, BigInteger iv, int length)
+	    throws GeneralSecurityException {
+
+	Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+
+	cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+
+	int nBlocks = (length + 15) / 16;
+
+	byte[] keyStream = new byte[nBlocks * 16];
+
+	for (int j = 0; j < nBlocks; j++) {
+	    byte[] block = toBlock(iv.add(BigInteger.valueOf(j)));
+
+	    System.arraycopy(cipher.doFinal(block), 0, keyStream, j * 16, 16);
+	}
+
+	byte[] result = new byte[length];
+
+	System.arraycopy(keyStream, 0, result, 0, length);
+	return result;
+    }
+
+    private static byte[] toBlock(BigInteger n) {
+	byte[] b = n.toByteArray();
+
+	byte[] block = new byte[16];
+
+	int length = Math.min(b.length, 16);
+
+	System.arraycopy(b, b.length - length, block, 16 - length, length);
+	return block;
+    }
+
+    private static byte[] fromHex(String s) {
+	byte[] b = new byte[s.length() / 2];
+
+	for (int i = 0; i < b.length; i++) {
+	    b[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+	}
+
+	return b;
+    }
+
+    private static final String BASE64 =
+	"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /*
+     * SrtpCryptoContext takes the key and salt in base64.
+     */
+    private static String base64Encode(byte[] b) {
+	StringBuffer sb = new StringBuffer();
+
+	for (int i = 0; i < b.length; i += 3) {
+	    int n = (b[i] & 0xff) << 16;
+
+	    if (i + 1 < b.length) {
+		n |= (b[i + 1] & 0xff) << 8;
+	    }
+
+	    if (i + 2 < b.length) {
+		n |= b[i + 2] & 0xff;
+	    }
+
+	    sb.append(BASE64.charAt((n >> 18) & 0x3f));
+	    sb.append(BASE64.charAt((n >> 12) & 0x3f));
+	    sb.append(i + 1 < b.length ? BASE64.charAt((n >> 6) & 0x3f) : '=');
+	    sb.append(i + 2 < b.length ? BASE64.charAt(n & 0x3f) : '=');
+	}
+
+	return sb.toString();
+    }
+
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+
+package com.sun.voip.client;
+
+import java.io.*;
+import java.net.*;
+
+import java.util.HashSet;
+
+/**
+ * Measure how long a restarted voice service takes to end the calls
+ * it left on a bridge.
+ *
+ * The calls are placed to the SIP stand-in from CallSetupBenchmark.
+ * A second connection, which knows nothing about the calls, then
+ * ends them the way warm start does.  This is done once with a round
+ * trip for each call and once with the cancel requests pipelined the
+ * way BridgeConnection.endCalls() sends them.
+ */
+public class WarmStartBenchmark extends Thread {
+
+    private static final long MAX_WAIT = 5 * 60 * 1000000000L;	// ns
+
+    /*
+     * The same window BridgeConnection.endCalls() uses.
+     */
+    private static final int END_CALLS_WINDOW = 100;
+
+    private String host;
+    private int port;
+
+    private Socket socket;
+    private PrintWriter writer;
+    private BufferedReader reader;
+
+    private HashSet<String> placed = new HashSet<String>();
+    private HashSet<String> established = new HashSet<String>();
+
+    private int failed;
+
+    public static void main(String[] args) {
+	if (args.length < 4) {
+	    System.err.println("Usage:  java WarmStartBenchmark "
+		+ "<bridge host> <bridge port> <calls> <stand-in port>");
+	    System.exit(1);
+	}
+
+	try {
+	    CallSetupBenchmark.SipStandIn sipStandIn =
+		new CallSetupBenchmark.SipStandIn(Integer.parseInt(args[3]));
+
+	    WarmStartBenchmark benchmark = new WarmStartBenchmark(
+		args[0], Integer.parseInt(args[1]));
+
+	    int calls = Integer.parseInt(args[2]);
+
+	    benchmark.run("one at a time", "warm0-", calls, sipStandIn, false);
+	    benchmark.run("pipelined", "warm1-", calls, sipStandIn, true);
+	} catch (Exception e) {
+	    System.err.println(e.getMessage());
+	    System.exit(1);
+	}
+
+	System.exit(0);
+    }
+
+    public WarmStartBenchmark(String host, int port) throws IOException {
+	this.host = host;
+	this.port = port;
+
+	socket = new Socket(host, port);
+
+	writer = new PrintWriter(new BufferedWriter(
+	    new OutputStreamWriter(socket.getOutputStream())));
+
+	reader = new BufferedReader(
+	    new InputStreamReader(socket.getInputStream()));
+
+	reader.readLine();	// new connection
+
+	setDaemon(true);
+	start();
+    }
+
+    private void run(String name, String prefix, int calls,
+	    CallSetupBenchmark.SipStandIn sipStandIn, boolean pipelined)
+	    throws IOException {
+
+	String[] callIds = placeCalls(prefix, calls, sipStandIn);
+
+	if (callIds.length == 0) {
+	    System.out.println(name + ":  no calls were established");
+	    return;
+	}
+
+	long start = System.nanoTime();
+
+	int ended = endCalls(callIds, pipelined);
+
+	long elapsed = System.nanoTime() - start;
+
+	System.out.println(name + ":  ended " + ended + " of "
+	    + callIds.length + " calls in " + (elapsed / 1000000) + " ms");
+
+	waitForCalls(0);
+    }
+
+    /*
+     * Place calls and wait for them to be established.
+     * Returns the calls which were established.
+     */
+    private String[] placeCalls(String prefix, int calls,
+	    CallSetupBenchmark.SipStandIn sipStandIn) throws IOException {
+
+	String address = InetAddress.getLocalHost().getHostAddress();
+
+	synchronized (this) {
+	    failed = 0;
+	}
+
+	for (int i = 0; i < calls; i++) {
+	    String callId = prefix + i;
+
+	    synchronized (this) {
+		placed.add(callId);
+	    }
+
+	    writer.println("callId=" + callId);
+	    writer.println("conferenceId=WarmStartBenchmark");
+	    writer.println("phoneNumber=sip:" + callId + "@" + address + ":"
+		+ sipStandIn.getPort());
+	    writer.println();
+	    writer.flush();
+	}
+
+	synchronized (this) {
+	    long start = System.nanoTime();
+
+	    while (placed.size() > 0) {
+		if (socket.isClosed()) {
+		    throw new IOException("Bridge closed the connection");
+		}
+
+		if (System.nanoTime() - start > MAX_WAIT) {
+		    System.out.println("Gave up waiting for "
+			+ placed.size() + " calls");
+		    break;
+		}
+
+		try {
+		    wait(1000);
+		} catch (InterruptedException e) {
+		}
+	    }
+
+	    if (failed > 0) {
+		System.out.println(failed + " calls failed");
+	    }
+
+	    return established.toArray(new String[established.size()]);
+	}
+    }
+
+    /*
+     * Wait until no more than n calls are established.
+     */
+    private synchronized void waitForCalls(int n) throws IOException {
+	long start = System.nanoTime();
+
+	while (established.size() > n) {
+	    if (socket.isClosed()) {
+		throw new IOException("Bridge closed the connection");
+	    }
+
+	    if (System.nanoTime() - start > MAX_WAIT) {
+		System.out.println("Gave up waiting for "
+		    + established.size() + " calls to end");
+		return;
+	    }
+
+	    try {
+		wait(1000);
+	    } catch (InterruptedException e) {
+	    }
+	}
+    }
+
+    /*
+     * End the calls on a new connection the way warm start does.
+     * Returns the number of cancel requests which succeeded.
+     */
+    private int endCalls(String[] callIds, boolean pipelined)
+	    throws IOException {
+
+	Socket socket = new Socket(host, port);
+
+	socket.setTcpNoDelay(true);
+
+	PrintWriter writer = new PrintWriter(new BufferedWriter(
+	    new OutputStreamWriter(socket.getOutputStream())));
+
+	BufferedReader reader = new BufferedReader(
+	    new InputStreamReader(socket.getInputStream()));
+
+	reader.readLine();	// new connection
+
+	int ended = 0;
+
+	try {
+	    if (pipelined == false) {
+		/*
+		 * The bridge doesn't reply to the request which
+		 * turns on synchronous mode.
+		 */
+		writer.println("sm=true");
+		writer.flush();
+
+		for (int i = 0; i < callIds.length; i++) {
+		    writer.println("cancel=" + callIds[i]);
+		    writer.flush();
+
+		    if (readResponse(reader, null)) {
+			ended++;
+		    }
+		}
+		return ended;
+	    }
+
+	    writer.println("rid=true");
+	    writer.flush();
+
+	    int outstanding = 0;
+
+	    for (int i = 0; i < callIds.length; i++) {
+		if (outstanding >= END_CALLS_WINDOW) {
+		    if (readResponse(reader, "[")) {
+			ended++;
+		    }
+		    outstanding--;
+		}
+
+		writer.println("[" + i + "]cancel=" + callIds[i]);
+		writer.flush();
+		outstanding++;
+	    }
+
+	    while (outstanding > 0) {
+		if (readResponse(reader, "[")) {
+		    ended++;
+		}
+		outstanding--;
+	    }
+	} finally {
+	    socket.close();
+	}
+
+	return ended;
+    }
+
+    /*
+     * Read up to the end of the next response, skipping status.
+     * Tagged responses start with the tag prefix.
+     */
+    private boolean readResponse(BufferedReader reader, String tag)
+	    throws IOException {
+
+	String s;
+
+	while ((s = reader.readLine()) != null) {
+	    if (tag != null) {
+		if (s.indexOf(tag) != 0) {
+		    continue;
+		}
+
+		s = s.substring(s.indexOf("]") + 1);
+	    }
+
+	    if (s.indexOf("END -- ") == 0) {
+		return s.indexOf("END -- SUCCESS") == 0;
+	    }
+	}
+
+	throw new IOException("Bridge closed the connection");
+    }
+
+    /*
+     * Status lines look like
+     * SIPDialer/1.0 200 ESTABLISHED ... CallId='warm0-0' ...
+     */
+    public void run() {
+	String s;
+
+	try {
+	    while ((s = reader.readLine()) != null) {
+		boolean isEstablished = s.indexOf(" 200 ESTABLISHED") >= 0;
+
+		if (isEstablished == false && s.indexOf(" 299 ENDED") < 0) {
+		    continue;
+		}
+
+		int ix = s.indexOf("CallId='");
+
+		if (ix < 0) {
+		    continue;
+		}
+
+		s = s.substring(ix + 8);
+
+		String callId = s.substring(0, s.indexOf("'"));
+
+		synchronized (this) {
+		    if (placed.remove(callId)) {
+			if (isEstablished) {
+			    established.add(callId);
+			} else {
+			    failed++;
+			}
+		    } else if (isEstablished == false) {
+			established.remove(callId);
+		    }
+
+		    notifyAll();
+		}
+	    }
+	} catch (IOException e) {
+	}
+
+	try {
+	    socket.close();
+	} catch (IOException e) {
+	}
+
+	synchronized (this) {
+	    notifyAll();
+	}
+    }
+
+}
@@ -63,6 +63,7 @@ public class CallStatus implements Serializable {
     public static final int ENDED           = 299;
     public static final int BUSY            = 486;
     public static final int BRIDGE_OFFLINE  = 666;
+    public static final int BRIDGE_FULL     = 930;
     public static final int MUTED	    = 937;
     public static final int UNMUTED	    = 938;
     public static final int INFO	    = 888;
@@ -219,6 +220,8 @@ public class CallStatus implements Serializable {
                 return "Ended";
 	    case BRIDGE_OFFLINE:
 		return "BridgeOffline";
+	    case BRIDGE_FULL:
+		return "Bridge Full";
             case BUSY:
                 return "Busy";
 	    case MUTED:
@@ -0,0 +1,713 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip.modules;
+
+import com.sun.voip.Logger;
+
+import java.net.InetSocketAddress;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * Which bridges are running which distributed conferences and how many 
+ * members each has, kept in memory on every bridge.
+ *
+ * Each bridge owns its own state:  its address, trunk port and the
+ * number of members it has in each conference.  Whenever that changes
+ * the version goes up and the state is announced to the other bridges.
+ * A bridge only takes another bridge's state if it's newer than what it
+ * has, so announcements which arrive late or twice do no harm.  The version
+ * starts at the time the bridge started so a bridge which restarts
+ * replaces what the others remember about it.
+ *
+ * How the state gets to the other bridges is up to the subclass.
+ * Changes never wait for the other bridges.  A state which is too big
+ * for the subclass to send at once is sent in parts, each with the
+ * same version, and only taken once all of its parts have arrived.
+ * Any part is enough to show the bridge is still there.
+ *
+ * Of two bridges running the same conference, the one with the lower
+ * address connects to the other.  It does so when it starts the
+ * conference if it already knows about the other bridge, or else when
+ * it hears about the other bridge running the conference.  So two
+ * bridges which start a conference at the same time still get connected.
+ */
+abstract class ClusterMembership {
+
+    /*
+     * Milliseconds
+     */
+    protected static final long HEARTBEAT = 1000;
+    protected static final long BRIDGE_TIMEOUT = 5 * HEARTBEAT;
+
+    private BridgeState localState;
+
+    /*
+     * Other bridges by address
+     */
+    private Hashtable<String, BridgeState> bridges = 
+	new Hashtable<String, BridgeState>();
+
+    /**
+     * Told about other bridges running the same conferences.
+     */
+    interface Listener {
+
+	/*
+	 * Another bridge is running a conference this bridge is running
+	 * and this bridge has to connect to it.  This is called each time
+	 * the other bridge's state changes so it may already be connected.
+	 */
+	public void connectBridge(BridgeInfo bridgeInfo);
+
+	/*
+	 * Another bridge has stopped running a conference or left
+	 * the cluster.
+	 */
+	public void bridgeLeft(BridgeInfo bridgeInfo);
+
+    }
+
+    private Listener listener;
+
+    /*
+     * States which are arriving in parts, by address
+     */
+    private Hashtable<String, BridgeState> partialStates = 
+	new Hashtable<String, BridgeState>();
+
+    protected ClusterMembership(InetSocketAddress localAddress, 
+	    int trunkPort) {
+
+	localState = new BridgeState(localAddress.getAddress().getHostAddress(),
+	    localAddress.getPort(), trunkPort, System.currentTimeMillis());
+    }
+
+    /**
+     * Send the local state to the other bridges.
+     */
+    protected abstract void announce();
+
+    public abstract void stop();
+
+    public synchronized void setListener(Listener listener) {
+	this.listener = listener;
+    }
+
+    /*
+     * Does this bridge start the connection to the other bridge?
+     */
+    private boolean startsConnection(BridgeState state) {
+	int c = localState.host.compareTo(state.host);
+
+	if (c == 0) {
+	    c = localState.port - state.port;
+	}
+
+	return c < 0;
+    }
+
+    /**
+     * Add this bridge to the list of bridges running this conference.
+     *
+     * @return the other bridges running the conference which this
+     * bridge has to connect to.  The rest connect to this bridge when
+     * they hear it's running the conference.
+     */
+    public ArrayList addBridge(String conferenceId) {
+	ArrayList bridgeList = new ArrayList();
+
+	synchronized (this) {
+	    Enumeration<BridgeState> e = bridges.elements();
+
+	    while (e.hasMoreElements()) {
+		BridgeState state = e.nextElement();
+
+		Integer n = state.conferences.get(conferenceId);
+
+		if (n != null && startsConnection(state)) {
+		    bridgeList.add(state.getBridgeInfo(conferenceId, 
+			n.intValue()));
+		}
+	    }
+
+	    localState.conferences.put(conferenceId, new Integer(0));
+	    localState.changed();
+	}
+
+	announce();
+	return bridgeList;
+    }
+
+    public void removeBridge(String conferenceId) {
+	synchronized (this) {
+	    if (localState.conferences.remove(conferenceId) == null) {
+		return;
+	    }
+
+	    localState.changed();
+	}
+
+	announce();
+    }
+
+    public void updateNumberOfBridgeMembers(String conferenceId, int n) {
+	synchronized (this) {
+	    Integer numberOfMembers = localState.conferences.get(conferenceId);
+
+	    if (numberOfMembers == null) {
+		return;
+	    }
+
+	    localState.conferences.put(conferenceId, 
+		new Integer(numberOfMembers.intValue() + n));
+
+	    localState.changed();
+	}
+
+	announce();
+    }
+
+    public synchronized int getNumberOfMembers(String conferenceId) {
+	int numberOfMembers = 0;
+
+	for (BridgeState state : getStates()) {
+	    Integer n = state.conferences.get(conferenceId);
+
+	    if (n != null) {
+		numberOfMembers += n.intValue();
+	    }
+	}
+
+	return numberOfMembers;
+    }
+
+    /**
+     * Is trunkAddress the trunk of another bridge which has said
+     * it's running this conference, which this bridge is also running?
+     */
+    public synchronized boolean isTrunkPeer(String conferenceId, 
+	    InetSocketAddress trunkAddress) {
+
+	if (localState.conferences.get(conferenceId) == null) {
+	    return false;
+	}
+
+	String host = trunkAddress.getAddress().getHostAddress();
+
+	Enumeration<BridgeState> e = bridges.elements();
+
+	while (e.hasMoreElements()) {
+	    BridgeState state = e.nextElement();
+
+	    if (state.trunkPort != 0 && 
+		    state.trunkPort == trunkAddress.getPort() &&
+		    state.host.equals(host) &&
+		    state.conferences.get(conferenceId) != null) {
+
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Get every bridge for every conference ordered by conference,
+     * host and port.
+     */
+    public synchronized ArrayList getBridgeList() {
+	ArrayList<BridgeInfo> bridgeList = new ArrayList<BridgeInfo>();
+
+	for (BridgeState state : getStates()) {
+	    Enumeration<String> e = state.conferences.keys();
+
+	    while (e.hasMoreElements()) {
+		String conferenceId = e.nextElement();
+
+		bridgeList.add(state.getBridgeInfo(conferenceId,
+		    state.conferences.get(conferenceId).intValue()));
+	    }
+	}
+
+	Collections.sort(bridgeList, new Comparator<BridgeInfo>() {
+	    public int compare(BridgeInfo b1, BridgeInfo b2) {
+		int c = b1.conferenceId.compareTo(b2.conferenceId);
+
+		if (c == 0) {
+		    c = b1.address.getAddress().getHostAddress().compareTo(
+			b2.address.getAddress().getHostAddress());
+		}
+
+		if (c == 0) {
+		    c = b1.address.getPort() - b2.address.getPort();
+		}
+
+		return c;
+	    }
+	});
+
+	return bridgeList;
+    }
+
+    private ArrayList<BridgeState> getStates() {
+	ArrayList<BridgeState> states = 
+	    new ArrayList<BridgeState>(bridges.values());
+
+	states.add(localState);
+	return states;
+    }
+
+    /**
+     * Forget about the other bridges.  They'll be back when they
+     * next announce themselves.
+     */
+    public synchronized void reset() {
+	bridges.clear();
+	partialStates.clear();
+    }
+
+    protected synchronized String getLocalState() {
+	return localState.toString();
+    }
+
+    /**
+     * The local state in parts of no more than maxLength bytes
+     * where possible.
+     */
+    protected synchronized ArrayList<String> getLocalState(int maxLength) {
+	return localState.split(maxLength);
+    }
+
+    protected synchronized String getLocalAddress() {
+	return localState.getAddress();
+    }
+
+    /**
+     * Another bridge has announced its state.
+     */
+    protected void received(String s) {
+	BridgeState state;
+
+	try {
+	    state = BridgeState.parse(s);
+	} catch (IllegalArgumentException e) {
+	    Logger.println("Invalid bridge state:  " + e.getMessage());
+	    return;
+	}
+
+	if (state.parts > 1) {
+	    state = addPart(state);
+
+	    if (state == null) {
+		return;
+	    }
+	}
+
+	ArrayList<BridgeInfo> connect = new ArrayList<BridgeInfo>();
+	ArrayList<BridgeInfo> left = new ArrayList<BridgeInfo>();
+
+	Listener listener;
+
+	synchronized (this) {
+	    String address = state.getAddress();
+
+	    if (address.equals(localState.getAddress())) {
+		return;
+	    }
+
+	    BridgeState current = bridges.get(address);
+
+	    if (current != null) {
+		if (state.version <= current.version) {
+		    current.lastHeard = System.currentTimeMillis();
+		    return;
+		}
+
+		Enumeration<String> e = current.conferences.keys();
+
+		while (e.hasMoreElements()) {
+		    String conferenceId = e.nextElement();
+
+		    if (state.conferences.get(conferenceId) == null) {
+			left.add(current.getBridgeInfo(conferenceId, 0));
+		    }
+		}
+	    } else {
+		Logger.println("Bridge " + address + " joined the cluster");
+	    }
+
+	    bridges.put(address, state);
+
+	    if (startsConnection(state)) {
+		Enumeration<String> e = state.conferences.keys();
+
+		while (e.hasMoreElements()) {
+		    String conferenceId = e.nextElement();
+
+		    if (localState.conferences.get(conferenceId) != null) {
+			connect.add(state.getBridgeInfo(conferenceId,
+			    state.conferences.get(conferenceId).intValue()));
+		    }
+		}
+	    }
+
+	    listener = this.listener;
+	}
+
+	notifyListener(listener, connect, left);
+    }
+
+    /*
+     * Add a part of another bridge's state to what has arrived so far.
+     * Returns the whole state once all of the parts are here.
+     */
+    private synchronized BridgeState addPart(BridgeState part) {
+	String address = part.getAddress();
+
+	if (address.equals(localState.getAddress())) {
+	    return null;
+	}
+
+	BridgeState current = bridges.get(address);
+
+	if (current != null) {
+	    current.lastHeard = System.currentTimeMillis();
+
+	    if (part.version <= current.version) {
+		return null;
+	    }
+	}
+
+	BridgeState partial = partialStates.get(address);
+
+	if (partial != null && partial.version > part.version) {
+	    return null;	// late
+	}
+
+	if (partial == null || partial.version != part.version || 
+		partial.parts != part.parts) {
+
+	    partial = new BridgeState(part.host, part.port, part.trunkPort,
+		part.version);
+
+	    partial.parts = part.parts;
+	    partial.partsReceived = new boolean[part.parts];
+
+	    partialStates.put(address, partial);
+	}
+
+	partial.lastHeard = System.currentTimeMillis();
+
+	if (partial.partsReceived[part.part]) {
+	    return null;
+	}
+
+	partial.partsReceived[part.part] = true;
+	partial.conferences.putAll(part.conferences);
+
+	for (int i = 0; i < partial.parts; i++) {
+	    if (partial.partsReceived[i] == false) {
+		return null;
+	    }
+	}
+
+	partialStates.remove(address);
+
+	partial.parts = 1;
+	partial.partsReceived = null;
+	return partial;
+    }
+
+    /*
+     * Called without holding the lock so the listener
+     * is free to change the local state.
+     */
+    private void notifyListener(Listener listener, 
+	    ArrayList<BridgeInfo> connect, ArrayList<BridgeInfo> left) {
+
+	if (listener == null) {
+	    return;
+	}
+
+	for (BridgeInfo bridgeInfo : left) {
+	    listener.bridgeLeft(bridgeInfo);
+	}
+
+	for (BridgeInfo bridgeInfo : connect) {
+	    listener.connectBridge(bridgeInfo);
+	}
+    }
+
+    /**
+     * Forget bridges which haven't been heard from.
+     */
+    protected void expire() {
+	ArrayList<BridgeInfo> left = new ArrayList<BridgeInfo>();
+
+	Listener listener;
+
+	synchronized (this) {
+	    long now = System.currentTimeMillis();
+
+	    for (BridgeState state : 
+		    new ArrayList<BridgeState>(bridges.values())) {
+
+		if (now - state.lastHeard > BRIDGE_TIMEOUT) {
+		    Logger.println("Bridge " + state.getAddress() 
+			+ " left the cluster");
+
+		    bridges.remove(state.getAddress());
+		    left.addAll(state.getBridgeInfo());
+		}
+	    }
+
+	    for (BridgeState state : 
+		    new ArrayList<BridgeState>(partialStates.values())) {
+
+		if (now - state.lastHeard > BRIDGE_TIMEOUT) {
+		    partialStates.remove(state.getAddress());
+		}
+	    }
+
+	    listener = this.listener;
+	}
+
+	notifyListener(listener, new ArrayList<BridgeInfo>(), left);
+    }
+
+    protected void forget(String address) {
+	ArrayList<BridgeInfo> left = new ArrayList<BridgeInfo>();
+
+	Listener listener;
+
+	synchronized (this) {
+	    BridgeState state = bridges.remove(address);
+
+	    partialStates.remove(address);
+
+	    if (state != null) {
+		left.addAll(state.getBridgeInfo());
+	    }
+
+	    listener = this.listener;
+	}
+
+	notifyListener(listener, new ArrayList<BridgeInfo>(), left);
+    }
+
+    static class BridgeState {
+	public String host;
+	public int port;
+	public int trunkPort;
+	public long version;
+	public long lastHeard;
+
+	/*
+	 * Which part of the state this is and how many parts there are
+	 */
+	public int part;
+	public int parts = 1;
+
+	public boolean[] partsReceived;
+
+	/*
+	 * Number of members by conference id
+	 */
+	public Hashtable<String, Integer> conferences = 
+	    new Hashtable<String, Integer>();
+
+	public BridgeState(String host, int port, int trunkPort, 
+		long version) {
+
+	    this.host = host;
+	    this.port = port;
+	    this.trunkPort = trunkPort;
+	    this.version = version;
+
+	    lastHeard = System.currentTimeMillis();
+	}
+
+	public String getAddress() {
+	    return host + ":" + port;
+	}
+
+	public void changed() {
+	    version = Math.max(version + 1, System.currentTimeMillis());
+	}
+
+	public BridgeInfo getBridgeInfo(String conferenceId, 
+		int numberOfMembers) {
+
+	    return new BridgeInfo(conferenceId, host, port, numberOfMembers,
+		trunkPort);
+	}
+
+	/*
+	 * BridgeInfo for each conference
+	 */
+	public ArrayList<BridgeInfo> getBridgeInfo() {
+	    ArrayList<BridgeInfo> bridgeList = new ArrayList<BridgeInfo>();
+
+	    Enumeration<String> e = conferences.keys();
+
+	    while (e.hasMoreElements()) {
+		String conferenceId = e.nextElement();
+
+		bridgeList.add(getBridgeInfo(conferenceId,
+		    conferences.get(conferenceId).intValue()));
+	    }
+
+	    return bridgeList;
+	}
+
+	/*
+	 * BRIDGE <host> <port> <trunkPort> <version> [<part> <parts>]
+	 * <conferenceId>=<numberOfMembers>
+	 * ...
+	 */
+	public static BridgeState parse(String s) {
+	    String[] lines = s.split("\n");
+
+	    String[] tokens = lines[0].split(" ");
+
+	    if ((tokens.length != 5 && tokens.length != 7) || 
+		    tokens[0].equals("BRIDGE") == false) {
+
+		throw new IllegalArgumentException(lines[0]);
+	    }
+
+	    BridgeState state;
+
+	    try {
+		state = new BridgeState(tokens[1], Integer.parseInt(tokens[2]),
+		    Integer.parseInt(tokens[3]), Long.parseLong(tokens[4]));
+
+		if (tokens.length == 7) {
+		    state.part = Integer.parseInt(tokens[5]);
+		    state.parts = Integer.parseInt(tokens[6]);
+
+		    if (state.parts < 1 || state.part < 0 || 
+			    state.part >= state.parts) {
+
+			throw new IllegalArgumentException(lines[0]);
+		    }
+		}
+
+		for (int i = 1; i < lines.length; i++) {
+		    int ix = lines[i].lastIndexOf("=");
+
+		    if (ix < 0) {
+			throw new IllegalArgumentException(lines[i]);
+		    }
+
+		    state.conferences.put(lines[i].substring(0, ix),
+			Integer.valueOf(lines[i].substring(ix + 1)));
+		}
+	    } catch (NumberFormatException e) {
+		throw new IllegalArgumentException(s);
+	    }
+
+	    return state;
+	}
+
+	/*
+	 * Split the state into parts of no more than maxLength bytes.
+	 * A state which fits is one part with the usual header.
+	 */
+	public ArrayList<String> split(int maxLength) {
+	    ArrayList<String> parts = new ArrayList<String>();
+
+	    String s = toString();
+
+	    if (s.getBytes().length <= maxLength) {
+		parts.add(s);
+		return parts;
+	    }
+
+	    /*
+	     * Leave room for the part numbers in the header.
+	     */
+	    String header = "BRIDGE " + host + " " + port + " " + trunkPort 
+		+ " " + version;
+
+	    int headerLength = header.getBytes().length + 24;
+
+	    ArrayList<String> bodies = new ArrayList<String>();
+
+	    String body = "";
+	    int length = headerLength;
+
+	    Enumeration<String> e = conferences.keys();
+
+	    while (e.hasMoreElements()) {
+		String conferenceId = e.nextElement();
+
+		String line = "\n" + conferenceId + "=" 
+		    + conferences.get(conferenceId);
+
+		int n = line.getBytes().length;
+
+		if (body.length() > 0 && length + n > maxLength) {
+		    bodies.add(body);
+		    body = "";
+		    length = headerLength;
+		}
+
+		body += line;
+		length += n;
+	    }
+
+	    bodies.add(body);
+
+	    for (int i = 0; i < bodies.size(); i++) {
+		parts.add(header + " " + i + " " + bodies.size() 
+		    + bodies.get(i));
+	    }
+
+	    return parts;
+	}
+
+	public String toString() {
+	    String s = "BRIDGE " + host + " " + port + " " + trunkPort 
+		+ " " + version;
+
+	    Enumeration<String> e = conferences.keys();
+
+	    while (e.hasMoreElements()) {
+		String conferenceId = e.nextElement();
+
+		s += "\n" + conferenceId + "=" + conferences.get(conferenceId);
+	    }
+
+	    return s;
+	}
+    }
+
+}
@@ -31,6 +31,7 @@ import com.sun.voip.Logger;
 
 import com.sun.voip.server.ConferenceManager;
 import com.sun.voip.server.SipServer;
+import com.sun.voip.server.TrunkManager;
 
 import java.io.IOException;
 
@@ -41,20 +42,12 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Hashtable;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
-import java.sql.Statement;
-import java.sql.SQLException;
-
 /**
  * Manage conferences which reside on more than one bridge.
  * 
- * There is 1 table in the database:
- *
- *	- BridgeInfo list
- *	  This is the list of bridges running conferences. 
- *	  Columns are <conferenceId> <bridgeAddress> <numberOfMembers>
+ * Every bridge keeps the list of bridges running conferences in memory
+ * (see ClusterMembership).  Each entry has the conferenceId, 
+ * bridgeAddress, numberOfMembers and trunkPort.
  *
  * A BridgeInfo entry is created when a bridge starts a conference.
  * 
@@ -63,11 +56,23 @@ import java.sql.SQLException;
  *
  * When a bridge joins the conference on another bridge, a ConnectionInfo entry 
  * is created and added to the ConnectionTable.  
+ *
+ * When both bridges have a trunk port, the new bridge starts a trunk to
+ * the other bridge rather than calling it.  Each bridge then sends the mix
+ * of its own members to the other in one stream and adds what it receives
+ * to the conference mix.  There's no call and no private mixes to set.
+ *
+ * Two bridges can start the same conference before either hears about
+ * the other.  Only the bridge with the lower address connects, so when
+ * it hears the other bridge is running the conference and they aren't
+ * connected, it connects then.
  */
-public class DistributedConferenceManager implements DistributedBridge {
+public class DistributedConferenceManager implements DistributedBridge,
+	ClusterMembership.Listener {
+
     private static DistributedConferenceManager distributedConferenceManager;
 
-    private DBManager dbM;
+    private ClusterMembership membership;
 
     /*
      * connectionTable keys are conferenceId's and entrys are ArrayLists
@@ -76,26 +81,68 @@ public class DistributedConferenceManager implements DistributedBridge {
     private Hashtable connectionTable = new Hashtable();
 
     private InetSocketAddress localAddress;	// local bridge address
-    private String driver;
-    private String connectionUrl;
 
     private BridgeConnector bridgeConnector;
 
-    private DistributedConferenceManager(String driver, String connectionUrl) 
-	    throws IOException {
+    private TrunkManager trunkManager;
 
-	this.driver = driver;
-	this.connectionUrl = connectionUrl;
+    /*
+     * Full conference id (with the optional media and display name)
+     * by conferenceId for the conferences running on this bridge.
+     */
+    private Hashtable<String, String> conferenceIds = 
+	new Hashtable<String, String>();
+
+    /*
+     * Bridges this bridge has called, by conferenceId and bridge address
+     */
+    private Hashtable<String, BridgeInfo> bridgeCalls =
+	new Hashtable<String, BridgeInfo>();
 
+    private DistributedConferenceManager(String[] args) throws IOException {
 	localAddress = SipServer.getSipAddress();
 
-	dbM = new DBManager(localAddress, driver, connectionUrl);
+	trunkManager = TrunkManager.getInstance();
+
+	String type = "multicast";
+
+	if (args.length > 0) {
+	    type = args[0];
+	}
+
+	if (type.equalsIgnoreCase("loopback")) {
+	    membership = new LoopbackMembership(localAddress, getTrunkPort());
+	} else {
+	    String group = MulticastMembership.DEFAULT_GROUP;
+
+	    if (type.equalsIgnoreCase("multicast")) {
+		if (args.length > 1) {
+		    group = args[1];
+		}
+	    } else {
+		Logger.println("Distributed conferences are no longer kept "
+		    + "in a database, ignoring " + type);
+	    }
+
+	    membership = new MulticastMembership(localAddress, 
+		getTrunkPort(), group);
+	}
+
+	membership.setListener(this);
+    }
+
+    private int getTrunkPort() {
+	if (trunkManager == null) {
+	    return 0;
+	}
+
+	return trunkManager.getPort();
     }
 
     /*
      * This is called by the ModuleLoader.  The argument is actually String[]
-     * with arg 0 being the driver name "org.postresgl.Driver" and arg 1 being
-     * the connection URL "jdbc:postgresql://proteus/postgres".
+     * with arg 0 being "multicast" or "loopback".  For multicast, arg 1 is
+     * the optional group <address>:<port>.
      */
     public static void initializeModule(Object o) throws IOException {
 	Logger.println(
@@ -118,8 +165,7 @@ public class DistributedConferenceManager implements DistributedBridge {
 	    }
 	}
 
-	distributedConferenceManager = new DistributedConferenceManager(
-	    args[0], args[1]);
+	distributedConferenceManager = new DistributedConferenceManager(args);
 
 	/*
 	 * Tell the conferenceManager we're here so we will be notified of
@@ -196,43 +242,104 @@ public class DistributedConferenceManager implements DistributedBridge {
 	 * joined <conferenceId>.  We use this list to join
 	 * the conference on the other bridges.
 	 */
-	ArrayList bridgeList = dbM.addBridge(conferenceId);
+	conferenceIds.put(conferenceId, event.getConferenceId());
+
+	ArrayList bridgeList = membership.addBridge(conferenceId);
 
 	addConference(conferenceId);
 	
 	for (int i = 0; i < bridgeList.size(); i++) {
-	    String cmd = "c=" + conferenceId;
+	    connect(event.getConferenceId(), (BridgeInfo) bridgeList.get(i));
+	}
+    }
 
-	    if (tokens.length >= 2) {
-		cmd += ":" + tokens[1];
-	    }
+    /*
+     * Another bridge is running a conference this bridge is running.
+     * Connect to it unless this bridge already has.
+     */
+    public synchronized void connectBridge(BridgeInfo bridgeInfo) {
+	String fullConferenceId = conferenceIds.get(bridgeInfo.conferenceId);
+
+	if (fullConferenceId == null || bridgeConnector == null) {
+	    return;
+	}
+
+	if (trunkManager != null && bridgeInfo.trunkPort != 0) {
+	    if (trunkManager.hasTrunk(bridgeInfo.conferenceId, 
+		    getTrunkAddress(bridgeInfo))) {
 
-	    if (tokens.length >= 3) {
-		cmd += ":" + tokens[2];
+		return;
 	    }
+	} else if (bridgeCalls.get(getBridgeKey(bridgeInfo)) != null) {
+	    return;
+	}
 
-	    cmd += "\n";
+	log("Connecting to " + bridgeInfo + " for conference " 
+	    + bridgeInfo.conferenceId);
 
-	    cmd += "m=true\n";	// mute call
-	    cmd += "mc=true\n";	// mute conference
-	    cmd += "db=true\n";	// distributed bridge
-	    cmd += "name=DistributedBridge" + "\n";
+	connect(fullConferenceId, bridgeInfo);
+    }
 
-	    BridgeInfo bridgeInfo = (BridgeInfo) bridgeList.get(i);
+    /*
+     * The other bridge stopped running the conference.  If it 
+     * starts it again, it has to be called again.
+     */
+    public synchronized void bridgeLeft(BridgeInfo bridgeInfo) {
+	bridgeCalls.remove(getBridgeKey(bridgeInfo));
+    }
 
-	    cmd += "phoneNumber=sip:6666@"
-		+ bridgeInfo.address.getAddress().getHostAddress() + ":" 
-		+ bridgeInfo.address.getPort() + "\n";
+    private String getBridgeKey(BridgeInfo bridgeInfo) {
+	return bridgeInfo.conferenceId + " " + bridgeInfo.address;
+    }
 
-	    if (Logger.logLevel >= Logger.LOG_INFO) {
-	        log("Sending " + cmd + " to " + bridgeInfo);
-	    }
+    private InetSocketAddress getTrunkAddress(BridgeInfo bridgeInfo) {
+	return new InetSocketAddress(bridgeInfo.address.getAddress(), 
+	    bridgeInfo.trunkPort);
+    }
 
-	    try {
-	        bridgeConnector.sendCommand(cmd);
-	    } catch (IOException e) {
-		log("Unable to send cmd to bridge: " + cmd);
-	    }
+    /*
+     * Start a trunk to the other bridge or call it.
+     */
+    private void connect(String fullConferenceId, BridgeInfo bridgeInfo) {
+	String conferenceId = bridgeInfo.conferenceId;
+
+	if (trunkManager != null && bridgeInfo.trunkPort != 0) {
+	    trunkManager.addTrunk(conferenceId, getTrunkAddress(bridgeInfo));
+	    return;
+	}
+
+	String[] tokens = fullConferenceId.split(":");
+
+	String cmd = "c=" + conferenceId;
+
+	if (tokens.length >= 2) {
+	    cmd += ":" + tokens[1];
+	}
+
+	if (tokens.length >= 3) {
+	    cmd += ":" + tokens[2];
+	}
+
+	cmd += "\n";
+
+	cmd += "m=true\n";	// mute call
+	cmd += "mc=true\n";	// mute conference
+	cmd += "db=true\n";	// distributed bridge
+	cmd += "name=DistributedBridge" + "\n";
+
+	cmd += "phoneNumber=sip:6666@"
+	    + bridgeInfo.address.getAddress().getHostAddress() + ":" 
+	    + bridgeInfo.address.getPort() + "\n";
+
+	if (Logger.logLevel >= Logger.LOG_INFO) {
+	    log("Sending " + cmd + " to " + bridgeInfo);
+	}
+
+	try {
+	    bridgeConnector.sendCommand(cmd);
+	    bridgeCalls.put(getBridgeKey(bridgeInfo), bridgeInfo);
+	} catch (IOException e) {
+	    log("Unable to send cmd to bridge: " + cmd);
 	}
     }
 
@@ -243,8 +350,22 @@ public class DistributedConferenceManager implements DistributedBridge {
 	    log("Distributed conference ending:  " + conferenceId);
 	}
 
-	dbM.removeBridge(conferenceId);
+	membership.removeBridge(conferenceId);
 	removeConference(conferenceId);
+
+	conferenceIds.remove(conferenceId);
+
+	for (BridgeInfo bridgeInfo : 
+		new ArrayList<BridgeInfo>(bridgeCalls.values())) {
+
+	    if (bridgeInfo.conferenceId.equals(conferenceId)) {
+		bridgeCalls.remove(getBridgeKey(bridgeInfo));
+	    }
+	}
+
+	if (trunkManager != null) {
+	    trunkManager.removeTrunks(conferenceId);
+	}
     }
 
     private void memberJoined(ConferenceEvent event) {
@@ -255,7 +376,7 @@ public class DistributedConferenceManager implements DistributedBridge {
 	}
 
 	if (event.isDistributedBridge() == false) {
-	    dbM.updateNumberOfBridgeMembers(event.getConferenceId(), 1);
+	    membership.updateNumberOfBridgeMembers(event.getConferenceId(), 1);
 	    return;
 	} 
 
@@ -280,7 +401,7 @@ public class DistributedConferenceManager implements DistributedBridge {
 	}
 
 	if (event.isDistributedBridge() == false) {
-	    dbM.updateNumberOfBridgeMembers(conferenceId, -1);
+	    membership.updateNumberOfBridgeMembers(conferenceId, -1);
 	    return;
 	}
 
@@ -356,15 +477,20 @@ public class DistributedConferenceManager implements DistributedBridge {
     }
 
     public int getNumberOfMembers(String conferenceId) {
-	return dbM.getNumberOfMembers(conferenceId);
+	return membership.getNumberOfMembers(conferenceId);
     }
 
-    public String getDistributedConferenceInfo() {
-	dbM.dumpLog();
+    public boolean isTrunkPeer(String conferenceId, 
+	    InetSocketAddress trunkAddress) {
 
+	return membership.isTrunkPeer(conferenceId.split(":")[0], 
+	    trunkAddress);
+    }
+
+    public String getDistributedConferenceInfo() {
 	String s = "";
 
-	ArrayList bridgeList = dbM.getBridgeList();
+	ArrayList bridgeList = membership.getBridgeList();
 
 	ArrayList conferenceList = getConferenceList(bridgeList);
 
@@ -378,6 +504,10 @@ public class DistributedConferenceManager implements DistributedBridge {
 	    if (Logger.logLevel >= Logger.LOG_INFO) {
 	        s += getConnections(conferenceId);
 
+		if (trunkManager != null) {
+		    s += trunkManager.getTrunkInfo(conferenceId);
+		}
+
 	        s += "\n";
 	    }
 	}
@@ -451,16 +581,14 @@ public class DistributedConferenceManager implements DistributedBridge {
 	return s;
     }
 
-    public void dropDb() {
-	try {
-    	    connectionTable = new Hashtable();
-	    dbM.dumpLog();
-	    dbM.dropDb();
-	    dbM = new DBManager(localAddress, driver, connectionUrl);
-	} catch (IOException e) {
-	    log("Unable to dropDb:  " + e.getMessage());
-	}
-
+    /*
+     * Forget what's known about the other bridges.
+     * They'll be back when they next announce themselves.
+     */
+    public synchronized void dropDb() {
+    	connectionTable = new Hashtable();
+	bridgeCalls.clear();
+	membership.reset();
     }
 
     class ConnectionInfo {
@@ -520,8 +648,6 @@ public class DistributedConferenceManager implements DistributedBridge {
 
     public void log(String s) {
 	Logger.println(s);
-
-	dbM.log(s);
     }
 
 }
@@ -530,325 +656,27 @@ class BridgeInfo {
     public String conferenceId;
     public InetSocketAddress address;
     public int numberOfMembers;
+    public int trunkPort;		// 0 if the bridge has no trunks
 
     public BridgeInfo(String conferenceId, String host, int port, 
-	    int numberOfMembers) {
+	    int numberOfMembers, int trunkPort) {
 
 	this.conferenceId = conferenceId;
 	this.address = new InetSocketAddress(host, port);
 	this.numberOfMembers = numberOfMembers;
+	this.trunkPort = trunkPort;
     }
 
     public String toString() {
-	return address.getAddress().getHostName()
+	String s = address.getAddress().getHostName()
 	    + "(" + address.getAddress().getHostAddress() + ")"
 	    + ":" + address.getPort() + ", Members=" + numberOfMembers;
-    }
-
-}
-
-/***** Database specific code *****/
-
-class DBManager {
-
-    InetSocketAddress localAddress;
-    private String connectionUrl;
-
-    private Connection db;
-    private Statement st;
-
-    public DBManager(InetSocketAddress localAddress, String driver, 
-	    String connectionUrl) throws IOException {
-
-	this.localAddress = localAddress;
-	this.connectionUrl = connectionUrl;
-
-	synchronized (this) {
-	    try {
-	        Class.forName(driver);	  // load the driver
-                Logger.println("Connecting to Database URL = " 
-		    + connectionUrl);
-
-                db = DriverManager.getConnection(connectionUrl, "jp", null); 
-                st = db.createStatement();
-
-		try {
-                    st.executeUpdate("create table BridgeList("
-                        + "conferenceId varchar, "
-                        + "host varchar, "
-                        + "port int4, "
-			+ "numberOfMembers int4, "
-			+ "constraint pk_bridgeList primary key "
-			+ "(conferenceId, host, port))");
-
-		    Logger.println("Created BridgeList table");
-                } catch (SQLException e) {
-                    if (e.getMessage().indexOf("exists") >= 0) {
-		        Logger.println(
-			    "DistributedConferenceManager using exising "
-			    + "BridgeList table");
-		    } else {
-	        	e.printStackTrace();
-			throw new IOException(e.getMessage());
-                    } 
-		}
-
-	        /*
-	         * remove any leftover entries for this host
-	         */
-                st.executeUpdate("DELETE FROM BridgeList WHERE host='"
-                    + localAddress.getAddress().getHostAddress() + "'"
-		    + " AND port=" + localAddress.getPort());
-
-		try {
-                    st.executeUpdate("create table BridgeLog("
-                        + "host varchar, message varchar)");
-
-                    Logger.println("Created BridgeLog table");
-                } catch (SQLException e) {
-                    if (e.getMessage().indexOf("exists") >= 0) {
-                        Logger.println(
-                            "DistributedConferenceManager using exising "
-                            + "BridgeLog table");
-                    } else {
-                        e.printStackTrace();
-                        throw new IOException(e.getMessage());
-                    }
-                }
-	    } catch (Exception e) {
-	        e.printStackTrace();
-	        throw new IOException(e.getMessage());
-	    }
-	}
-    }
-
-    private void reconnect() {
-	try {
-            db = DriverManager.getConnection(connectionUrl, "jp", null); 
-            st = db.createStatement();
-	} catch (SQLException e) {
-	    Logger.println("Unable to reconnect:  " + e.getMessage());
-	}
-    }
-
-    public void dropDb() throws IOException {
-	try {
-	    st.executeUpdate("drop table BridgeList");
-            Logger.println("BridgeList removed");
-
-	    st.executeUpdate("drop table BridgeLog");
-	    Logger.println("BridgeLog removed");
-
-	    st.close();
-	    db.close();
-	} catch (SQLException e) {
-            Logger.println("dropDb:  " + e.getMessage());
-	    throw new IOException("dropDb:  " + e.getMessage());
-        }
-    }
-
-    public int getNumberOfMembers(String conferenceId) {
-	int numberOfMembers = 0;
-
-	try {
-            ResultSet rs = st.executeQuery("SELECT * FROM BridgeList WHERE "
-		+ "conferenceId='" + conferenceId + "'");
-
-            if (rs != null) {
-                while (rs.next()) {
-                    numberOfMembers += rs.getInt("numberOfMembers");
-                }
-
-                rs.close();
-            }
-        } catch (SQLException e) {
-            Logger.println("getNumberOfMembers:  " + e.getMessage());
-	    reconnect();
-        }
-
-	return numberOfMembers;
-    }
-
-    public ArrayList getBridgeList() {
-        ArrayList bridgeList = new ArrayList();
-
-        try {
-            ResultSet rs = st.executeQuery("SELECT * FROM BridgeList "
-		+ "ORDER BY conferenceId, host, port");
-
-            if (rs != null) {
-                while (rs.next()) {
-		    String conferenceId = rs.getString("conferenceId");
-		    String host = rs.getString("host");
-		    int port = rs.getInt("port");
-		    int numberOfMembers = rs.getInt("numberOfMembers");
-
-                    bridgeList.add(new BridgeInfo(conferenceId, host, port, 
-			numberOfMembers));
-                }
-
-                rs.close();
-            }
-        } catch (SQLException e) {
-            Logger.println("getBridgeList:  " + e.getMessage());
-	    reconnect();
-        }
-
-        return bridgeList;
-    }
-
-    /*
-     * Add this bridge to the list of bridges running this conference.
-     */
-    public ArrayList addBridge(String conferenceId) {
-	ArrayList bridgeList = new ArrayList();
-
-	synchronized (this) {
-            try {
-                st.executeUpdate("BEGIN");
-                db.setAutoCommit(false);
-
-                ResultSet rs = 
-		    st.executeQuery("SELECT * FROM BridgeList");
-
-                if (rs != null) {
-                    while (rs.next()) {
-			BridgeInfo bridgeInfo = new BridgeInfo(
-			    rs.getString("conferenceId"), 
-			    rs.getString("host"),
-			    rs.getInt("port"),
-		    	    rs.getInt("numberOfMembers"));
-
-			if (bridgeInfo.conferenceId.equals(conferenceId)) {
-			    if (Logger.logLevel >= Logger.LOG_INFO) {
-			        Logger.println("Found bridge " + bridgeInfo);
-			    }
-		            bridgeList.add(bridgeInfo);
-			}
-                    }
-		    rs.close();
-                }
-
-                st.executeUpdate("INSERT INTO BridgeList values(" 
-		    + "'"   + conferenceId + "'"
-		    + ", '" + localAddress.getAddress().getHostAddress() + "'"
-		    + ", "  + localAddress.getPort() + ", 0)");
-
-                db.commit();
-                db.setAutoCommit(true);
-            } catch (SQLException e) {
-                Logger.println("addBridge for " + localAddress + ":  " 
-		    + e.getMessage());
-	        reconnect();
-            }
 
-	    try {
-	        st.executeUpdate("END");
-            } catch (SQLException e) {
-                Logger.println("addBridge for " + localAddress + ":  " 
-		    + e.getMessage());
-	        reconnect();
-            }
-
-	    return bridgeList;
+	if (trunkPort != 0) {
+	    s += ", TrunkPort=" + trunkPort;
 	}
-    }
-
-    public void removeBridge(String conferenceId) {
-	synchronized (this) {
-	    try {
-	        st.executeUpdate("DELETE FROM BridgeList WHERE "
-		    + "conferenceId='" + conferenceId + "' AND "
-		    + "host ='" +  localAddress.getAddress().getHostAddress() 
-		    + "'" + " AND port=" + localAddress.getPort());
-
-	    } catch (SQLException e) {
-                Logger.println("removeBridge for " + localAddress + ":  "
-                    + e.getMessage());
-	        reconnect();
-            }
-	}
-    }
-
-    public void updateNumberOfBridgeMembers(String conferenceId, int n) {
-        synchronized (this) {
-	    for (int i = 0; i < 2; i++) {
-                try {
-                    st.executeUpdate(
-                        "update BridgeList set numberOfMembers="
-                        + "numberOfMembers+" + n
-                        + " WHERE conferenceId='" + conferenceId + "' AND "
- 		        + "host='" + localAddress.getAddress().getHostAddress() 
-		        + "'" + " AND port=" + localAddress.getPort());
-		    break;
-                } catch (SQLException e) {
-                    Logger.println("updateNumberOfBridgeMembers for "
-                        + localAddress + " " + conferenceId + ":  "
-                        + e.getMessage());
-
-		    reconnect();
-		}
-            }
-        }
-    }
 
-    public void log(String s) {
-        synchronized (this) {
-	    try {
-                st.executeUpdate("INSERT INTO BridgeLog values("
-                    + "'" + Logger.getDate() + "--- "
-		    + localAddress.getAddress().getHostName()
-		    + "(" + localAddress.getAddress().getHostAddress() + ")'"
-                    + ", '"  + s + "')");
-            } catch (SQLException e) {
-                Logger.println("log for " + localAddress + ":  " 
-		    + e.getMessage());
-		reconnect();
-            }
-	}
-    }
-
-    public void dumpLog() {
-	Logger.println("--- DUMPING DISTRIBUTED BRIDGE LOG MESSAGES ---");
-
-	ArrayList messages = new ArrayList();
-
-	synchronized (this) {
-            try {
-                st.executeUpdate("BEGIN");
-
-                ResultSet rs =
-                    st.executeQuery("SELECT * FROM BridgeLog");
-
-                if (rs != null) {
-                    while (rs.next()) {
-                        messages.add(new String(
-			    rs.getString("host") + ": " 
-			    + rs.getString("message")));
-                    }
-                    rs.close();
-                }
-
-                st.executeUpdate("DELETE FROM BridgeLog");
-	    } catch (SQLException e) {
-		Logger.println("dumpLog:  " + e.getMessage());
-		reconnect();
-	    }
-
-            try {
-                st.executeUpdate("END");
-            } catch (SQLException e) {
-                Logger.println("dumpLog:  " + e.getMessage());
-		reconnect();
-	    }
-	}
-
-	for (int i = 0; i < messages.size(); i++) {
-	    System.out.println((String) messages.get(i));
-	}
-
-	Logger.println(
-	    "--- FINISHED DUMPING DISTRIBUTED BRIDGE LOG MESSAGES ---");
+	return s;
     }
 
 }
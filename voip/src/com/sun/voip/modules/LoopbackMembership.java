@@ -0,0 +1,96 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip.modules;
+
+import java.net.InetSocketAddress;
+
+import java.util.ArrayList;
+
+/**
+ * Cluster membership for bridges in the same process.
+ *
+ * Announcements are handed straight to the other instances, which
+ * makes this useful for trying out distributed conferences with
+ * several bridges in one JVM and for a single bridge on its own.
+ */
+class LoopbackMembership extends ClusterMembership {
+
+    private static ArrayList<LoopbackMembership> cluster =
+	new ArrayList<LoopbackMembership>();
+
+    public LoopbackMembership(InetSocketAddress localAddress, int trunkPort) {
+	super(localAddress, trunkPort);
+
+	ArrayList<LoopbackMembership> others;
+
+	synchronized (cluster) {
+	    others = new ArrayList<LoopbackMembership>(cluster);
+	    cluster.add(this);
+	}
+
+	/*
+	 * Learn about the bridges which are already here
+	 */
+	for (LoopbackMembership other : others) {
+	    received(other.getLocalState());
+	}
+
+	announce();
+    }
+
+    protected void announce() {
+	ArrayList<LoopbackMembership> others;
+
+	synchronized (cluster) {
+	    others = new ArrayList<LoopbackMembership>(cluster);
+	}
+
+	String state = getLocalState();
+
+	for (LoopbackMembership other : others) {
+	    if (other != this) {
+		other.received(state);
+	    }
+	}
+    }
+
+    public void stop() {
+	ArrayList<LoopbackMembership> others;
+
+	synchronized (cluster) {
+	    cluster.remove(this);
+	    others = new ArrayList<LoopbackMembership>(cluster);
+	}
+
+	for (LoopbackMembership other : others) {
+	    other.forget(getLocalAddress());
+	}
+    }
+
+    public String toString() {
+	return "LoopbackMembership";
+    }
+
+}
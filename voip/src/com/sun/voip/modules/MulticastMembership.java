@@ -0,0 +1,205 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip.modules;
+
+import com.sun.voip.Logger;
+
+import java.io.IOException;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+
+import java.util.ArrayList;
+
+/**
+ * Cluster membership announced on a multicast group.
+ *
+ * Each bridge sends its state to the group when it changes and
+ * every HEARTBEAT in case an announcement was lost.  A state which
+ * doesn't fit in MAX_STATE_LENGTH bytes is sent in several packets.  Bridges which
+ * haven't been heard from for BRIDGE_TIMEOUT are forgotten, so a bridge
+ * which goes away takes its conferences with it.  There's no server
+ * and nothing for a bridge to wait for.
+ */
+class MulticastMembership extends ClusterMembership {
+
+    public static final String DEFAULT_GROUP = "239.255.86.66:6668";
+
+    /*
+     * Largest state sent in one packet.  Anything bigger is likely
+     * to be fragmented, and losing any fragment loses the packet.
+     */
+    private static final int MAX_STATE_LENGTH = 1400;
+
+    private int lastParts = 1;
+
+    private MulticastSocket socket;
+
+    private InetSocketAddress group;
+
+    private boolean announcePending;
+
+    private boolean done;
+
+    /**
+     * @param group <multicast address>:<port>
+     */
+    public MulticastMembership(InetSocketAddress localAddress, 
+	    int trunkPort, String group) throws IOException {
+
+	super(localAddress, trunkPort);
+
+	String[] tokens = group.split(":");
+
+	if (tokens.length != 2) {
+	    throw new IOException("Invalid multicast group:  " + group);
+	}
+
+	try {
+	    this.group = new InetSocketAddress(
+		InetAddress.getByName(tokens[0]), Integer.parseInt(tokens[1]));
+	} catch (NumberFormatException e) {
+	    throw new IOException("Invalid multicast group:  " + group);
+	}
+
+	socket = new MulticastSocket(this.group.getPort());
+	socket.setTimeToLive(1);
+	socket.setLoopbackMode(false);	// bridges on this host hear us too
+	socket.joinGroup(this.group.getAddress());
+	socket.setSoTimeout((int) HEARTBEAT);
+
+	Logger.println("Cluster membership on multicast group " + group);
+
+	new Announcer().start();
+	new Listener().start();
+    }
+
+    protected void announce() {
+	synchronized (this) {
+	    announcePending = true;
+	    notifyAll();
+	}
+    }
+
+    public void stop() {
+	synchronized (this) {
+	    done = true;
+	    notifyAll();
+	}
+
+	socket.close();
+    }
+
+    class Announcer extends Thread {
+
+	public Announcer() {
+	    setName("MulticastMembership-Announcer");
+	    setDaemon(true);
+	}
+
+	public void run() {
+	    while (true) {
+		synchronized (MulticastMembership.this) {
+		    if (announcePending == false && done == false) {
+			try {
+			    MulticastMembership.this.wait(HEARTBEAT);
+			} catch (InterruptedException e) {
+			}
+		    }
+
+		    if (done) {
+			return;
+		    }
+
+		    announcePending = false;
+		}
+
+		ArrayList<String> parts = getLocalState(MAX_STATE_LENGTH);
+
+		if (parts.size() != lastParts) {
+		    lastParts = parts.size();
+
+		    if (lastParts > 1) {
+			Logger.println("Bridge state is more than " 
+			    + MAX_STATE_LENGTH + " bytes, announcing it in "
+			    + lastParts + " parts");
+		    }
+		}
+
+		for (String part : parts) {
+		    byte[] data = part.getBytes();
+
+		    try {
+			socket.send(new DatagramPacket(data, data.length, 
+			    group));
+		    } catch (IOException e) {
+			Logger.println("Unable to announce bridge state:  " 
+			    + e.getMessage());
+		    }
+		}
+
+		expire();
+	    }
+	}
+    }
+
+    class Listener extends Thread {
+
+	public Listener() {
+	    setName("MulticastMembership-Listener");
+	    setDaemon(true);
+	}
+
+	public void run() {
+	    byte[] buffer = new byte[65536];
+
+	    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+	    while (socket.isClosed() == false) {
+		try {
+		    packet.setLength(buffer.length);
+
+		    socket.receive(packet);
+
+		    received(new String(buffer, 0, packet.getLength()));
+		} catch (SocketTimeoutException e) {
+		} catch (IOException e) {
+		    if (socket.isClosed() == false) {
+			Logger.println("Unable to receive bridge state:  " 
+			    + e.getMessage());
+		    }
+		}
+	    }
+	}
+    }
+
+    public String toString() {
+	return "MulticastMembership " + group;
+    }
+
+}
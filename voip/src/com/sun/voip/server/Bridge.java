@@ -279,6 +279,25 @@ public class Bridge extends Thread {
 		+ e.getMessage());
 	}
 
+	/*
+	 * Listen for trunks from other bridges if TRUNK_PORT is set
+	 */
+	TrunkManager.getInstance();
+
+	String metricsPort = System.getProperty(
+	    "com.sun.voip.server.METRICS_PORT");
+
+	if (metricsPort != null) {
+	    try {
+		new MetricsServer(Integer.parseInt(metricsPort));
+	    } catch (NumberFormatException e) {
+		Logger.println("Invalid metrics port:  " + metricsPort);
+	    } catch (IOException e) {
+		Logger.println("Unable to start MetricsServer:  "
+		    + e.getMessage());
+	    }
+	}
+
         String longDistancePrefix = System.getProperty(
            "com.sun.voip.server.LONG_DISTANCE_PREFIX");
 
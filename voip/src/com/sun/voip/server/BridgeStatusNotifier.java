@@ -124,9 +124,7 @@ public class BridgeStatusNotifier extends Thread {
 	        DataOutputStream output = new DataOutputStream(
 		    socket.getOutputStream());
 	
-	        String s = "BridgeUP:";
-
-		s += Bridge.getPrivateHost() + ":" 
+		String s = Bridge.getPrivateHost() + ":" 
 		    + Bridge.getPrivateControlPort() + ":"
 		    + Bridge.getPrivateSipPort(); 
 
@@ -136,7 +134,15 @@ public class BridgeStatusNotifier extends Thread {
 
 		while (!done) {
 		    if (suspendPing == false) {
-	                output.write(s.getBytes());
+			/*
+			 * A full bridge is still up but 
+			 * shouldn't be given new calls.
+			 */
+			if (CallAdmission.isAcceptingCalls()) {
+	                    output.write(("BridgeUP:" + s).getBytes());
+			} else {
+	                    output.write(("BridgeFULL:" + s).getBytes());
+			}
 		
 		        if (firstTime) {
 	                    Logger.println("Successfully notified " + isa
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip.server;
+
+import com.sun.voip.CallParticipant;
+import com.sun.voip.Logger;
+import com.sun.voip.MediaInfo;
+import com.sun.voip.MetricsRegistry;
+import com.sun.voip.RtpPacket;
+
+import java.util.ArrayList;
+
+/**
+ * Decide whether the bridge has room for another call.
+ *
+ * The conference sender has to send a packet to every call every
+ * 20ms.  When that takes too long, every call's audio breaks up at
+ * once, so it's better to turn new calls away before that happens.
+ *
+ * The cost of a call is measured in units.  A PCMU call at 8000 Hz
+ * with no private mixes is one unit.  Higher sample rates and more
+ * channels cost proportionally more, Speex costs SPEEX_UNITS times as
+ * much, and each private mix another call has for it adds 
+ * PRIVATE_MIX_UNITS.  Each time the sender measures its send time, the
+ * time is divided by the units on the bridge to get the cost of a unit.
+ *
+ * A new call is admitted if the average and maximum send times
+ * projected with the new call are below ADMISSION_SEND_TIME and
+ * ADMISSION_MAX_SEND_TIME.  Calls which have been admitted but haven't
+ * joined their conference yet are counted so that a burst of calls
+ * can't all be admitted before any of them shows up in the send time.
+ * Until the sender has measured anything, a unit is assumed to cost
+ * ADMISSION_UNIT_SEND_TIME so an idle bridge doesn't admit any number
+ * of calls at once.
+ *
+ * Calls between bridges and calls being migrated are always admitted.
+ */
+public class CallAdmission {
+
+    private static final String ADMISSION_SEND_TIME =
+	"com.sun.voip.server.ADMISSION_SEND_TIME";
+
+    private static final String ADMISSION_MAX_SEND_TIME =
+	"com.sun.voip.server.ADMISSION_MAX_SEND_TIME";
+
+    private static final String ADMISSION_UNIT_SEND_TIME =
+	"com.sun.voip.server.ADMISSION_UNIT_SEND_TIME";
+
+    private static final double SPEEX_UNITS = 4;
+
+    private static final double PRIVATE_MIX_UNITS = .25;
+
+    /*
+     * Seconds.  0 disables admission control.
+     */
+    private static double maxAverageSendTime = .014;
+    private static double maxSendTime = .019;
+
+    /*
+     * Seconds to send a packet to one unit, measured.  Until then,
+     * a cautious guess which admits about 280 PCMU calls.
+     */
+    private static double unitSendTime = .00005;
+    private static double unitMaxSendTime = .00005;
+
+    /*
+     * Units for calls admitted which haven't joined yet
+     */
+    private static double pendingUnits;
+
+    private static long admitted;
+    private static long rejected;
+
+    private static MetricsRegistry.Counter admittedCounter =
+	MetricsRegistry.counter("voicebridge_calls_admitted_total",
+	    "Calls admitted by admission control");
+
+    private static MetricsRegistry.Counter rejectedCounter =
+	MetricsRegistry.counter("voicebridge_calls_rejected_total",
+	    "Calls rejected because the bridge was full");
+
+    static {
+	maxAverageSendTime = getProperty(ADMISSION_SEND_TIME, 
+	    maxAverageSendTime);
+
+	maxSendTime = getProperty(ADMISSION_MAX_SEND_TIME, maxSendTime);
+
+	unitSendTime = getProperty(ADMISSION_UNIT_SEND_TIME, unitSendTime);
+	unitMaxSendTime = unitSendTime;
+
+	MetricsRegistry.gauge("voicebridge_admission_headroom",
+	    "Fraction of the admission send time left for another call",
+	    new MetricsRegistry.GaugeSource() {
+		public double getValue() {
+		    return getHeadroom();
+		}
+	    });
+    }
+
+    private CallAdmission() {
+    }
+
+    private static double getProperty(String name, double defaultValue) {
+	String s = System.getProperty(name);
+
+	if (s == null) {
+	    return defaultValue;
+	}
+
+	try {
+	    return Double.parseDouble(s);
+	} catch (NumberFormatException e) {
+	    Logger.println("Invalid value '" + s + "' for " + name 
+		+ ", using " + defaultValue);
+	    return defaultValue;
+	}
+    }
+
+    /**
+     * Called by the conference sender each time it measures
+     * how long it takes to send a packet to every call.
+     */
+    public static void sendTimeMeasured(double averageSendTime,
+	    double maxSendTime) {
+
+	double units = getUnits();
+
+	synchronized (CallAdmission.class) {
+	    if (units < 1) {
+		return;
+	    }
+
+	    unitSendTime = averageSendTime / units;
+	    unitMaxSendTime = maxSendTime / units;
+	}
+    }
+
+    /**
+     * Admit a new call.  If the call is admitted, joined() must
+     * be called with the units returned once the call has joined
+     * its conference or failed to.
+     *
+     * @return the units for the call or -1 if the bridge is full.
+     */
+    public static double admit(CallParticipant cp) {
+	double units = getUnits(cp);
+
+	if (cp.isDistributedBridge() || isVirtualCall(cp) || cp.migrateCall()) {
+	    synchronized (CallAdmission.class) {
+		pendingUnits += units;
+	    }
+	    return units;
+	}
+
+	double current = getUnits();
+
+	synchronized (CallAdmission.class) {
+	    if (admits(current + pendingUnits + units) == false) {
+		rejected++;
+		rejectedCounter.increment();
+
+		Logger.println("Rejecting call " + cp + ", bridge is full:  "
+		    + getStatistics(current));
+		return -1;
+	    }
+
+	    pendingUnits += units;
+	    admitted++;
+	    admittedCounter.increment();
+	    return units;
+	}
+    }
+
+    public static synchronized void joined(double units) {
+	pendingUnits = Math.max(0, pendingUnits - units);
+    }
+
+    /**
+     * Is there room for a PCMU call?  Requests for new calls are
+     * turned away early when there isn't.
+     */
+    public static boolean isAcceptingCalls() {
+	double units = getUnits() + 1;
+
+	synchronized (CallAdmission.class) {
+	    return admits(units + pendingUnits);
+	}
+    }
+
+    /**
+     * The fraction of the admission send times which would be
+     * left after admitting one more call.  0 or less means full.
+     */
+    public static double getHeadroom() {
+	if (maxAverageSendTime <= 0) {
+	    return 1;
+	}
+
+	double units = getUnits() + 1;
+
+	synchronized (CallAdmission.class) {
+	    units += pendingUnits;
+
+	    return 1 - Math.max(unitSendTime * units / maxAverageSendTime,
+		unitMaxSendTime * units / maxSendTime);
+	}
+    }
+
+    private static boolean admits(double units) {
+	if (maxAverageSendTime <= 0) {
+	    return true;
+	}
+
+	return unitSendTime * units < maxAverageSendTime &&
+	    unitMaxSendTime * units < maxSendTime;
+    }
+
+    private static boolean isVirtualCall(CallParticipant cp) {
+	return cp.getCallId() != null && cp.getCallId().startsWith("V-");
+    }
+
+    /*
+     * Units for a new call using the conference's media 
+     * or the media the call asked for.
+     */
+    private static double getUnits(CallParticipant cp) {
+	ArrayList conferenceList = ConferenceManager.getConferenceList();
+
+	for (int i = 0; i < conferenceList.size(); i++) {
+	    ConferenceManager conferenceManager = 
+		(ConferenceManager) conferenceList.get(i);
+
+	    if (conferenceManager.getId().equals(cp.getConferenceId())) {
+		return getUnits(conferenceManager.getMediaInfo(), 0);
+	    }
+	}
+
+	String mediaPreference = cp.getMediaPreference();
+
+	if (mediaPreference == null) {
+	    return 1;
+	}
+
+	/*
+	 * <encoding>/<sample rate>/<channels>
+	 */
+	String[] tokens = mediaPreference.split("/");
+
+	double units = 1;
+
+	try {
+	    if (tokens.length > 1) {
+		units = Integer.parseInt(tokens[1]) / 8000.;
+	    }
+
+	    if (tokens.length > 2) {
+		units *= Integer.parseInt(tokens[2]);
+	    }
+	} catch (NumberFormatException e) {
+	}
+
+	if (tokens[0].equalsIgnoreCase("SPEEX")) {
+	    units *= SPEEX_UNITS;
+	}
+
+	return units;
+    }
+
+    private static double getUnits(MediaInfo mediaInfo, int privateMixes) {
+	double units = 1;
+
+	if (mediaInfo != null) {
+	    units = mediaInfo.getSampleRate() / 8000. * 
+		mediaInfo.getChannels();
+
+	    if (mediaInfo.getEncoding() == RtpPacket.SPEEX_ENCODING) {
+		units *= SPEEX_UNITS;
+	    }
+	}
+
+	return units + privateMixes * PRIVATE_MIX_UNITS;
+    }
+
+    /*
+     * Units for all of the calls on the bridge
+     */
+    private static double getUnits() {
+	double units = 0;
+
+	ArrayList conferenceList = ConferenceManager.getConferenceList();
+
+	for (int i = 0; i < conferenceList.size(); i++) {
+	    ConferenceManager conferenceManager = 
+		(ConferenceManager) conferenceList.get(i);
+
+	    ArrayList memberList = conferenceManager.getMemberList();
+
+	    synchronized (memberList) {
+		for (int j = 0; j < memberList.size(); j++) {
+		    ConferenceMember member = 
+			(ConferenceMember) memberList.get(j);
+
+		    MediaInfo mediaInfo = 
+			member.getMemberSender().getMediaInfo();
+
+		    if (mediaInfo == null) {
+			mediaInfo = conferenceManager.getMediaInfo();
+		    }
+
+		    ArrayList privateMixes = member.getPrivateMixesForMe();
+
+		    int n;
+
+		    synchronized (privateMixes) {
+			n = privateMixes.size();
+		    }
+
+		    units += getUnits(mediaInfo, n);
+		}
+	    }
+	}
+
+	return units;
+    }
+
+    public static String getStatistics() {
+	return getStatistics(getUnits());
+    }
+
+    private static synchronized String getStatistics(double units) {
+	return "Call admission:  " + Math.round(units * 10) / 10. 
+	    + " units, " + Math.round(pendingUnits * 10) / 10. 
+	    + " pending, " + Math.round(unitSendTime * 1000000000) / 1000.
+	    + " us per unit, " + admitted + " admitted, " + rejected
+	    + " rejected";
+    }
+
+}
@@ -89,6 +89,11 @@ public abstract class CallHandler extends Thread {
      */
     protected CallHandler otherCall;
 
+    /*
+     * Units admission control has reserved for this call until it joins
+     */
+    private double admissionUnits;
+
     public void suppressStatus(boolean suppressStatus) {
 	this.suppressStatus = suppressStatus;
     }
@@ -175,6 +180,40 @@ public abstract class CallHandler extends Thread {
         return s;
     }
 
+    /*
+     * Set up the call on a platform or virtual thread
+     * depending on how the bridge was started.
+     */
+    public void start() {
+	CallThreads.start(this, getName());
+    }
+
+    /*
+     * Make sure the bridge has room for this call.
+     * If it doesn't, tell the listeners the bridge is full.
+     */
+    protected boolean admitCall() {
+	admissionUnits = CallAdmission.admit(cp);
+
+	if (admissionUnits >= 0) {
+	    return true;
+	}
+
+	admissionUnits = 0;
+
+	sendCallEventNotification(new CallEvent(CallEvent.BRIDGE_FULL));
+	return false;
+    }
+
+    /*
+     * The call has joined its conference or failed to.
+     * Its cost is now part of the measured send time.
+     */
+    protected void admissionDone() {
+	CallAdmission.joined(admissionUnits);
+	admissionUnits = 0;
+    }
+
     /*
      * Overridden by OutgoingCallhandler.  There is no request handler
      * for incoming calls.
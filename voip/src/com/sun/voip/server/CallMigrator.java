@@ -37,6 +37,10 @@ public class CallMigrator extends Thread {
 	this.cp = cp;
     }
 
+    public void start() {
+	CallThreads.start(this, "CallMigrator for " + cp);
+    }
+
     /*
      * Migrate a call.  Set up the new call, join the conference and 
      * terminate the original call.
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip.server;
+
+import com.sun.voip.Logger;
+import com.sun.voip.MetricsRegistry;
+
+import java.lang.management.ManagementFactory;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for setting up calls and timeouts for calls which are
+ * being set up.
+ *
+ * Each call is set up by a call handler which spends most of its
+ * life waiting for the other end.  By default each call handler
+ * runs on its own thread.  When com.sun.voip.server.CALL_THREADS is
+ * "virtual" and the JVM has virtual threads, call handlers run on 
+ * virtual threads instead so that dialing out to a thousand people
+ * at once doesn't need a thousand threads.
+ *
+ * Invite and transfer timeouts don't need a thread each while they
+ * wait.  They're scheduled on one shared thread in either mode.
+ */
+class CallThreads {
+
+    private static final String CALL_THREADS =
+	"com.sun.voip.server.CALL_THREADS";
+
+    private static boolean useVirtualThreads;
+
+    /*
+     * Thread.ofVirtual() and Thread.Builder.name() and unstarted()
+     */
+    private static Method ofVirtual;
+    private static Method name;
+    private static Method unstarted;
+
+    private static ScheduledExecutorService scheduler =
+	Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, "CallTimeouts");
+
+		thread.setDaemon(true);
+		return thread;
+	    }
+	});
+
+    private static AtomicInteger running = new AtomicInteger();
+
+    static {
+	String s = System.getProperty(CALL_THREADS, "platform");
+
+	if (s.equalsIgnoreCase("virtual")) {
+	    try {
+		ofVirtual = Thread.class.getMethod("ofVirtual");
+
+		Class builder = Class.forName("java.lang.Thread$Builder");
+
+		name = builder.getMethod("name", String.class);
+		unstarted = builder.getMethod("unstarted", Runnable.class);
+
+		ofVirtual.invoke(null);		// preview may be disabled
+		useVirtualThreads = true;
+	    } catch (Exception e) {
+		Logger.println("Virtual threads aren't available, "
+		    + "using a thread per call:  " + e);
+	    }
+	} else if (s.equalsIgnoreCase("platform") == false) {
+	    Logger.println("Invalid " + CALL_THREADS + " " + s
+		+ ", using a thread per call");
+	}
+
+	Logger.println("Calls are set up on " 
+	    + (useVirtualThreads ? "virtual" : "platform") + " threads");
+
+	MetricsRegistry.gauge("voicebridge_call_threads",
+	    "Calls being set up or migrated", 
+	    new MetricsRegistry.GaugeSource() {
+		public double getValue() {
+		    return running.get();
+		}
+	    });
+
+	MetricsRegistry.gauge("voicebridge_jvm_threads",
+	    "Live platform threads in the bridge", 
+	    new MetricsRegistry.GaugeSource() {
+		public double getValue() {
+		    return ManagementFactory.getThreadMXBean().getThreadCount();
+		}
+	    });
+    }
+
+    private CallThreads() {
+    }
+
+    /**
+     * Run a call handler on a new thread.
+     */
+    public static void start(final Runnable runnable, String threadName) {
+	startThread(new Runnable() {
+	    public void run() {
+		running.incrementAndGet();
+
+		try {
+		    runnable.run();
+		} finally {
+		    running.decrementAndGet();
+		}
+	    }
+	}, threadName);
+    }
+
+    private static void startThread(Runnable task, String threadName) {
+	if (useVirtualThreads) {
+	    try {
+		Object builder = name.invoke(ofVirtual.invoke(null), 
+		    threadName);
+
+		((Thread) unstarted.invoke(builder, task)).start();
+		return;
+	    } catch (Exception e) {
+		/*
+		 * This can't happen because it worked when we checked.
+		 */
+		Logger.println("Can't start virtual thread for " 
+		    + threadName + ":  " + e);
+	    }
+	}
+
+	new Thread(task, threadName).start();
+    }
+
+    /**
+     * Run task after delay milliseconds unless it's cancelled first.
+     *
+     * Most timeouts are cancelled.  The few which expire end calls,
+     * which can wait on the network, so each runs on its own thread
+     * rather than holding up the others.
+     */
+    public static ScheduledFuture schedule(final Runnable task, long delay) {
+	return scheduler.schedule(new Runnable() {
+	    public void run() {
+		startThread(task, "CallTimeout");
+	    }
+	}, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public static String getStatistics() {
+	return (useVirtualThreads ? "Virtual" : "Platform") 
+	    + " call threads, " + running.get() + " running, "
+	    + ManagementFactory.getThreadMXBean().getThreadCount() 
+	    + " live threads";
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.voip.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Directory of active conferences.
+ *
+ * Conferences are indexed by conference id and, if they have one,
+ * by display name.  Lookups and iteration don't lock so that the
+ * sender and request handlers never wait for each other.  Iteration
+ * is weakly consistent; a conference added or removed while iterating
+ * may or may not be seen.
+ */
+class ConferenceDirectory {
+
+    private ConcurrentHashMap<String, ConferenceManager> conferences =
+	new ConcurrentHashMap<String, ConferenceManager>();
+
+    private ConcurrentHashMap<String, ConferenceManager> displayNames =
+	new ConcurrentHashMap<String, ConferenceManager>();
+
+    /**
+     * Find a conference by id or, if allowShortNames is true,
+     * by display name.
+     *
+     * @return ConferenceManager or null if there is no such conference.
+     */
+    public ConferenceManager find(String conferenceId,
+	    boolean allowShortNames) {
+
+	if (conferenceId == null) {
+	    return null;
+	}
+
+	ConferenceManager conferenceManager = conferences.get(conferenceId);
+
+	if (conferenceManager != null || allowShortNames == false) {
+	    return conferenceManager;
+	}
+
+	return displayNames.get(conferenceId);
+    }
+
+    /**
+     * Add a conference.
+     *
+     * @return the conference already using the same id, or null if the
+     * conference was added.
+     */
+    public ConferenceManager add(ConferenceManager conferenceManager) {
+	ConferenceManager existing = conferences.putIfAbsent(
+	    conferenceManager.getId(), conferenceManager);
+
+	if (existing != null) {
+	    return existing;
+	}
+
+	String displayName = conferenceManager.getDisplayName();
+
+	if (displayName != null) {
+	    /*
+	     * The most recently started conference with a given
+	     * display name wins the alias.
+	     */
+	    displayNames.put(displayName, conferenceManager);
+	}
+
+	return null;
+    }
+
+    public void remove(ConferenceManager conferenceManager) {
+	conferences.remove(conferenceManager.getId(), conferenceManager);
+
+	String displayName = conferenceManager.getDisplayName();
+
+	if (displayName != null) {
+	    displayNames.remove(displayName, conferenceManager);
+	}
+    }
+
+    public int size() {
+	return conferences.size();
+    }
+
+    /**
+     * Live view of all conferences.
+     */
+    public Collection<ConferenceManager> values() {
+	return conferences.values();
+    }
+
+    /**
+     * Copy of the conferences at the time of the call.
+     */
+    public ArrayList<ConferenceManager> snapshot() {
+	return new ArrayList<ConferenceManager>(conferences.values());
+    }
+
+}
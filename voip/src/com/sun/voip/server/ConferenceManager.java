@@ -28,6 +28,7 @@ import com.sun.voip.ConferenceEvent;
 import com.sun.voip.DistributedBridge;
 import com.sun.voip.Logger;
 import com.sun.voip.MediaInfo;
+import com.sun.voip.MetricsRegistry;
 import com.sun.voip.RtpPacket;
 import com.sun.voip.SdpManager;
 import com.sun.voip.TreatmentManager;
@@ -50,7 +51,41 @@ import java.util.ArrayList;
  * Members can join and leave the conference.
  */
 public class ConferenceManager {
-    private static ArrayList conferenceList = new ArrayList();  
+    /*
+     * Lookups don't lock.  Changes to a conference are made while
+     * holding that conference's lock so that work on one conference
+     * doesn't hold up the sender or any other conference.
+     */
+    private static ConferenceDirectory conferenceDirectory =
+	new ConferenceDirectory();
+
+    static {
+	MetricsRegistry.gauge("voicebridge_conferences",
+	    "Conferences in progress", new MetricsRegistry.GaugeSource() {
+		public double getValue() {
+		    return getNumberOfConferences();
+		}
+	    });
+
+	MetricsRegistry.gauge("voicebridge_members",
+	    "Members in all conferences", new MetricsRegistry.GaugeSource() {
+		public double getValue() {
+		    return getTotalMembers();
+		}
+	    });
+
+	MetricsRegistry.gauge("voicebridge_members_speaking",
+	    "Members who are speaking", new MetricsRegistry.GaugeSource() {
+		public double getValue() {
+		    return CallHandler.getTotalSpeaking();
+		}
+	    });
+    }
+
+    /*
+     * Serializes creation of new conferences only.
+     */
+    private static Object creationLock = new Object();
 
     private String             conferenceId;	      // conference identifier
 
@@ -87,6 +122,13 @@ public class ConferenceManager {
 
     private boolean done = false;
 
+    /*
+     * Held while members join and while deciding whether the conference
+     * has ended.  This is separate from the conference lock so that
+     * setting up a new member doesn't delay the sender.
+     */
+    private Object membershipLock = new Object();
+
     static {
 	String s = System.getProperty("com.sun.voip.server.LONE_RECEIVER_PORT");
 
@@ -124,7 +166,8 @@ public class ConferenceManager {
 
 	if (useSingleSender == true) {
 	    if (loneConferenceSender == null) {
-		loneConferenceSender = new ConferenceSender(conferenceList);
+		loneConferenceSender = new ConferenceSender(
+		    conferenceDirectory.values());
 	    }
 	    conferenceSender = loneConferenceSender;
 	} else {
@@ -232,19 +275,17 @@ public class ConferenceManager {
     public static WhisperGroup createWhisperGroup(String conferenceId, 
 	    String whisperGroupId, double attenuation) throws ParseException {
 
-	synchronized (conferenceList) {
-	    ConferenceManager conferenceManager = 
-		findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
-	    return conferenceManager.createWhisperGroup(whisperGroupId, 
-		attenuation);
-	}
+	return conferenceManager.createWhisperGroup(whisperGroupId, 
+	    attenuation);
     }
 
     public WhisperGroup createWhisperGroup(String whisperGroupId,
             double attenuation) throws ParseException {
 
-	synchronized (conferenceList) {
+	synchronized (this) {
 	    return wgManager.createWhisperGroup(whisperGroupId, attenuation);
 	}
     }
@@ -252,38 +293,31 @@ public class ConferenceManager {
     public static void destroyWhisperGroup(String conferenceId, 
 	    String whisperGroupId) throws ParseException {
 
-        synchronized (conferenceList) {
-            ConferenceManager conferenceManager =
-                findConferenceManager(conferenceId);
+        ConferenceManager conferenceManager =
+            findConferenceManager(conferenceId);
 
-            conferenceManager.destroyWhisperGroup(whisperGroupId);
-        }
+        conferenceManager.destroyWhisperGroup(whisperGroupId);
     }
 
     public void destroyWhisperGroup(String whisperGroupId) 
 	    throws ParseException {
 
-	synchronized (conferenceList) {
-	    synchronized (this) {
-	        wgManager.destroyWhisperGroup(whisperGroupId);
-	    }
+	synchronized (this) {
+	    wgManager.destroyWhisperGroup(whisperGroupId);
 	}
     }
 
     public static String getAbbreviatedWhisperGroupInfo(boolean showMembers) {
 	String s = "";
 
-	synchronized (conferenceList) {
-            for (int i = 0; i < conferenceList.size(); i++) {
-	        ConferenceManager conferenceManager = (ConferenceManager) 
-	            conferenceList.get(i);
+	for (ConferenceManager conferenceManager : 
+		conferenceDirectory.values()) {
 
-	        s += "Whisper groups for conference " 
-		    + conferenceManager.getId() + "\n";
+	    s += "Whisper groups for conference " 
+		+ conferenceManager.getId() + "\n";
 
-	        s += conferenceManager.getWGManager().getAbbreviatedWhisperGroupInfo(true);
-	        s += "\n";
-	    }
+	    s += conferenceManager.getWGManager().getAbbreviatedWhisperGroupInfo(true);
+	    s += "\n";
 	}
 
 	return s;
@@ -292,16 +326,13 @@ public class ConferenceManager {
     public static String getWhisperGroupInfo() {
 	String s = "";
 
-	synchronized (conferenceList) {
-            for (int i = 0; i < conferenceList.size(); i++) {
-	        ConferenceManager conferenceManager = (ConferenceManager) 
-	            conferenceList.get(i);
+	for (ConferenceManager conferenceManager : 
+		conferenceDirectory.values()) {
 
-	        s += "Whisper groups for conference " 
-		    + conferenceManager.getId() + "\n";
-	        s += conferenceManager.getWGManager().getWhisperGroupInfo();
-	        s += "\n";
-	    }
+	    s += "Whisper groups for conference " 
+		+ conferenceManager.getId() + "\n";
+	    s += conferenceManager.getWGManager().getWhisperGroupInfo();
+	    s += "\n";
 	}
 
 	return s;
@@ -310,10 +341,10 @@ public class ConferenceManager {
     public static void setTransientWhisperGroup(String conferenceId, 
 	    String whisperGroupId, boolean isTransient) throws ParseException {
 
-	synchronized (conferenceList) {
-	    ConferenceManager conferenceManager = 
-		findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
+	synchronized (conferenceManager) {
 	    conferenceManager.getWGManager().setTransientWhisperGroup(
 		whisperGroupId, isTransient);
 	}
@@ -322,10 +353,10 @@ public class ConferenceManager {
     public static void setLockedWhisperGroup(String conferenceId, 
 	    String whisperGroupId, boolean isLocked) throws ParseException {
 
-	synchronized (conferenceList) {
-	    ConferenceManager conferenceManager = 
-		findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
+	synchronized (conferenceManager) {
 	    conferenceManager.getWGManager().setLockedWhisperGroup(
 		whisperGroupId, isLocked);
 	}
@@ -334,10 +365,10 @@ public class ConferenceManager {
     public static void setWhisperGroupAttenuation(String conferenceId, 
 	    String whisperGroupId, double attenuation) throws ParseException {
 
-	synchronized (conferenceList) {
-	    ConferenceManager conferenceManager = 
-		findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
+	synchronized (conferenceManager) {
 	    conferenceManager.getWGManager().setWhisperGroupAttenuation(
 		whisperGroupId, attenuation);
 	}
@@ -346,33 +377,31 @@ public class ConferenceManager {
     public static void setWhisperGroupNoCommonMix(String conferenceId, 
 	    String whisperGroupId, boolean noCommonMix) throws ParseException {
 
-	synchronized (conferenceList) {
-	    ConferenceManager conferenceManager = 
-		findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
-	    synchronized (conferenceManager) {
-		WGManager wgManager = conferenceManager.getWGManager();
+	synchronized (conferenceManager) {
+	    WGManager wgManager = conferenceManager.getWGManager();
 
-		synchronized (wgManager.getWhisperGroups()) {
-	            wgManager.setWhisperGroupNoCommonMix(whisperGroupId, 
-			noCommonMix);
+	    synchronized (wgManager.getWhisperGroups()) {
+	        wgManager.setWhisperGroupNoCommonMix(whisperGroupId, 
+		    noCommonMix);
 
-		    ArrayList memberList = conferenceManager.getMemberList();
+		ArrayList memberList = conferenceManager.getMemberList();
 
-	 	    synchronized (memberList) {
-			for (int i = 0; i < memberList.size(); i++) {
-			    ConferenceMember member = (ConferenceMember) 
-				memberList.get(i);
+	 	synchronized (memberList) {
+		    for (int i = 0; i < memberList.size(); i++) {
+			ConferenceMember member = (ConferenceMember) 
+			    memberList.get(i);
 
-			    /*
-			     * Tell members
-			     */
-			    if (Logger.logLevel >= Logger.LOG_INFO) {
-			        Logger.println("Call " + member 
-				    + " no common mix");
-			    }
-			    member.setNoCommonMix(whisperGroupId);
+			/*
+			 * Tell members
+			 */
+			if (Logger.logLevel >= Logger.LOG_INFO) {
+			    Logger.println("Call " + member 
+				+ " no common mix");
 			}
+			member.setNoCommonMix(whisperGroupId);
 		    }
 		}
 	    }
@@ -417,9 +446,9 @@ public class ConferenceManager {
 		new ConferenceEvent(ConferenceEvent.CONFERENCE_ENDED, 
 		conferenceId));
 
-	    synchronized(conferenceList) {
-	        conferenceList.remove(this);
-	    }
+	    conferenceDirectory.remove(this);
+
+	    MetricsRegistry.remove("conference", conferenceId);
 
 	    if (conferenceReceiver != loneConferenceReceiver) {
 	        conferenceReceiver.end();
@@ -430,14 +459,11 @@ public class ConferenceManager {
 
 	int activeConferences = 0;
 
-	synchronized(conferenceList) {
-            for (int i = 0; i < conferenceList.size(); i++) {
-	        ConferenceManager conferenceManager = 
-		    (ConferenceManager) conferenceList.get(i);
+	for (ConferenceManager conferenceManager : 
+		conferenceDirectory.values()) {
 
-	        if (conferenceManager.getMemberList().size() > 0) {
-		    activeConferences++;
-	        }
+	    if (conferenceManager.getMemberList().size() > 0) {
+		activeConferences++;
 	    }
 	}
 
@@ -461,6 +487,20 @@ public class ConferenceManager {
 	ConferenceManager.distributedBridge = distributedBridge;
     }
 
+    /**
+     * Only bridges which are running a distributed conference
+     * may start a trunk for it.
+     */
+    public static boolean isTrunkPeer(String conferenceId,
+	    InetSocketAddress trunkAddress) {
+
+	if (distributedBridge == null) {
+	    return false;
+	}
+
+	return distributedBridge.isTrunkPeer(conferenceId, trunkAddress);
+    }
+
     private static void conferenceEventNotification(ConferenceEvent event) {
 	if (distributedBridge != null) {
 	    try {
@@ -474,7 +514,7 @@ public class ConferenceManager {
     }
 	
     public static int getNumberOfConferences() {
-	return conferenceList.size();
+	return conferenceDirectory.size();
     }
 
     public static int getTotalMembers() {
@@ -589,11 +629,25 @@ public class ConferenceManager {
      * Add a new member to the conference
      *
      * @param cp  CallParticipant wishing to join the conference.
-     * @return ConferenceMember 
+     * @return ConferenceMember or null if the conference ended before
+     * the member could join.  The caller should get the conference again
+     * which will start a new conference.
      */ 
     public ConferenceMember joinConference(CallParticipant cp) 
 	    throws IOException {
 
+	synchronized (membershipLock) {
+	    if (done) {
+		return null;
+	    }
+
+	    return addMember(cp);
+	}
+    }
+
+    private ConferenceMember addMember(CallParticipant cp) 
+	    throws IOException {
+
         if (conferenceJoinTreatment != null) {
             cp.setConferenceJoinTreatment(conferenceJoinTreatment);
         }
@@ -615,11 +669,22 @@ public class ConferenceManager {
 
 	ConferenceMember member = new ConferenceMember(this, cp);
 
-	joinConference(member);
+	addMember(member);
 	return member;
     }
 
     private void joinConference(ConferenceMember member) throws IOException {
+	synchronized (membershipLock) {
+	    if (done) {
+		throw new IOException("Conference " + conferenceId 
+		    + " has ended");
+	    }
+
+	    addMember(member);
+	}
+    }
+
+    private void addMember(ConferenceMember member) throws IOException {
         synchronized (memberList) {
             memberList.add(member);
 	    totalMembers++;
@@ -635,17 +700,15 @@ public class ConferenceManager {
     }
 
     public static boolean hasCommonMix(String conferenceId) {
-	synchronized(conferenceList) {
-	    try {
-                ConferenceManager conferenceManager = 
-		    findConferenceManager(conferenceId);
-	        return conferenceManager.hasCommonMix();
-	    } catch (ParseException e) {
-		Logger.println(e.getMessage());
-	    }
-
-	    return false;
+	try {
+            ConferenceManager conferenceManager = 
+		findConferenceManager(conferenceId);
+	    return conferenceManager.hasCommonMix();
+	} catch (ParseException e) {
+	    Logger.println(e.getMessage());
 	}
+
+	return false;
     }
 
     public boolean hasCommonMix() {
@@ -695,6 +758,12 @@ public class ConferenceManager {
     public void leave(ConferenceMember member, boolean keepMember) {
 	conferenceReceiver.removeMember(member);
 
+	synchronized (membershipLock) {
+	    leaveConference(member, keepMember);
+	}
+    }
+
+    private void leaveConference(ConferenceMember member, boolean keepMember) {
 	synchronized (this) {
 	    synchronized (memberList) {
 	        memberList.remove(member);
@@ -757,11 +826,11 @@ public class ConferenceManager {
     }
 
     /**
-     * Get the ArrayList identifying all conferences.
+     * Get a copy of the list of all conferences.
      * @return ArrayList list of Conferences
      */
     public static ArrayList getConferenceList() {
-	return conferenceList;
+	return conferenceDirectory.snapshot();
     }
 
     public static void useSingleSender(boolean useSingleSender) {
@@ -772,11 +841,11 @@ public class ConferenceManager {
 	if (useSingleSender == true) {
 	    ConferenceManager.useSingleSender = true;
 
-	    loneConferenceSender = new ConferenceSender(conferenceList);
+	    loneConferenceSender = new ConferenceSender(
+		conferenceDirectory.values());
 
-            for (int i = 0; i < conferenceList.size(); i++) {
-                ConferenceManager conferenceManager = 
-		    (ConferenceManager) conferenceList.get(i);
+	    for (ConferenceManager conferenceManager : 
+		    conferenceDirectory.values()) {
 
 		synchronized (conferenceManager) {
 		    conferenceManager.endConferenceSender();
@@ -786,7 +855,7 @@ public class ConferenceManager {
 		}
 	    }
 	} else {
-	    synchronized (conferenceList) {
+	    synchronized (creationLock) {
 		ConferenceManager.useSingleSender = false;
 
 		if (loneConferenceSender != null) {
@@ -794,9 +863,8 @@ public class ConferenceManager {
 		    loneConferenceSender = null;
 		}
 
-                for (int i = 0; i < conferenceList.size(); i++) {
-                    ConferenceManager conferenceManager =
-                        (ConferenceManager) conferenceList.get(i);
+		for (ConferenceManager conferenceManager : 
+			conferenceDirectory.values()) {
 
 		    conferenceManager.setNewConferenceSender();
                 }
@@ -847,9 +915,22 @@ public class ConferenceManager {
     public static void createConference(String conferenceId,
 	    String mediaPreference, String displayName) throws ParseException {
 
-	synchronized(conferenceList) {
-	    ConferenceManager conferenceManager = 
-		getConference(conferenceId, mediaPreference, displayName, true);
+	ConferenceManager conferenceManager = 
+	    getConference(conferenceId, mediaPreference, displayName, true);
+
+	if (conferenceManager == null) {
+	    throw new ParseException("Can't create conference " 
+		+ conferenceId, 0);
+	}
+
+	synchronized (conferenceManager.membershipLock) {
+	    if (conferenceManager.done) {
+		/*
+		 * The conference ended after we found it.  Start over.
+		 */
+		createConference(conferenceId, mediaPreference, displayName);
+		return;
+	    }
 
 	    if (conferenceManager.getMemberList().size() == 0) {
 		if (Logger.logLevel >= Logger.LOG_INFO) {
@@ -893,10 +974,10 @@ public class ConferenceManager {
     public static void removeConference(String conferenceId) 
 	    throws ParseException {
 
-	synchronized(conferenceList) {
-            ConferenceManager conferenceManager = 
-		findConferenceManager(conferenceId);
+        ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
+	synchronized (conferenceManager.membershipLock) {
 	    if (conferenceManager.getMemberList().size() > 0) {
 		throw new ParseException("can't remove conference:  '"
             	    + conferenceId 
@@ -914,11 +995,10 @@ public class ConferenceManager {
     public static void endConference(String conferenceId) 
 	    throws ParseException {
 
-	ConferenceManager conferenceManager;
-
-	synchronized (conferenceList) {
-            conferenceManager = findConferenceManager(conferenceId);
+        ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
+	synchronized (conferenceManager.membershipLock) {
 	    ArrayList memberList = conferenceManager.getMemberList();
 
 	    synchronized (memberList) {
@@ -947,21 +1027,11 @@ public class ConferenceManager {
     private static ConferenceManager findConferenceManager(
 	    String conferenceId) throws ParseException {
 
-	for (int i = 0; i < conferenceList.size(); i++) {
-	    ConferenceManager conferenceManager = (ConferenceManager) 
-		conferenceList.get(i);
-
-	    if (conferenceManager.getId().equals(conferenceId)) {
-		return conferenceManager;
-	    }
-
-	    if (allowShortNames == true) {
-	        String displayName = conferenceManager.getDisplayName();
+	ConferenceManager conferenceManager = 
+	    conferenceDirectory.find(conferenceId, allowShortNames);
 
-	        if (displayName != null && displayName.equals(conferenceId)) {
-		    return conferenceManager;
-		}
-	    }
+	if (conferenceManager != null) {
+	    return conferenceManager;
 	}
 
         throw new ParseException("Non-existent conference "
@@ -994,41 +1064,56 @@ public class ConferenceManager {
     public static ConferenceManager getConference(String conferenceId,
 	    String mediaPreference, String displayName, boolean permanent) {
 
-	ConferenceManager conferenceManager;
-
-	synchronized (conferenceList) {
-	    try {
-	        conferenceManager = findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    conferenceDirectory.find(conferenceId, allowShortNames);
 
-	        if (Logger.logLevel >= Logger.LOG_INFO) {
-	            Logger.println("found existing conference:  '" 
-		        + conferenceId + "'");
-	        }
-	        return conferenceManager;	
-	    } catch (ParseException e) {
+	if (conferenceManager != null) {
+	    if (Logger.logLevel >= Logger.LOG_INFO) {
+	        Logger.println("found existing conference:  '" 
+		    + conferenceId + "'");
 	    }
+	    return conferenceManager;	
 	}
 
-	try {
+	synchronized (creationLock) {
+	    /*
+	     * Someone else may have started the conference while
+	     * we were waiting.
+	     */
 	    conferenceManager = 
-		new ConferenceManager(conferenceId, mediaPreference,
-		    displayName);
-	} catch (SocketException e) {
-	    Logger.error("Can't create conference " + conferenceId 
-	        + " " + e.getMessage());
+		conferenceDirectory.find(conferenceId, allowShortNames);
 
-	    return null;
-	}
+	    if (conferenceManager != null) {
+		return conferenceManager;
+	    }
+
+	    try {
+	        conferenceManager = 
+		    new ConferenceManager(conferenceId, mediaPreference,
+		        displayName);
+	    } catch (SocketException e) {
+	        Logger.error("Can't create conference " + conferenceId 
+	            + " " + e.getMessage());
+
+	        return null;
+	    }
+
+	    conferenceManager.setPermanent(permanent);
+	    conferenceDirectory.add(conferenceManager);
+
+	    final ConferenceManager cm = conferenceManager;
 
-	synchronized(conferenceList) {
-	    conferenceList.add(conferenceManager);
+	    MetricsRegistry.gauge("voicebridge_conference_members",
+		"Members in the conference", new MetricsRegistry.GaugeSource() {
+		    public double getValue() {
+			return cm.getMemberList().size();
+		    }
+		}, "conference", conferenceId);
 	}
 
 	Logger.println("starting new conference:  '" 
 	    + conferenceId + "'.  " 
-	    + " conferences in progress:  " + conferenceList.size());
-
-	conferenceManager.setPermanent(permanent);
+	    + " conferences in progress:  " + conferenceDirectory.size());
 
 	String id = conferenceManager.getId();
 
@@ -1081,191 +1166,191 @@ public class ConferenceManager {
     }
 
     private static String getConferenceInfo(int format) {
-	synchronized(conferenceList) {
-	    if (conferenceList.size() == 0) {
-		if (format != 0) {
-	            return ("\n\n\n\n");
-		}
+	ArrayList<ConferenceManager> conferenceList = 
+	    conferenceDirectory.snapshot();
 
-		return "";
+	if (conferenceList.size() == 0) {
+	    if (format != 0) {
+		return ("\n\n\n\n");
 	    }
 
-	    String s = "";
+	    return "";
+	}
 
-	    for (int i = 0; i < conferenceList.size(); i++) {
-		ConferenceManager conferenceManager = (ConferenceManager)
-		    conferenceList.get(i);
-  
-		String id = conferenceManager.getId();
+	String s = "";
+
+	for (int i = 0; i < conferenceList.size(); i++) {
+	    ConferenceManager conferenceManager = conferenceList.get(i);
+
+	    String id = conferenceManager.getId();
 
-		String displayName = conferenceManager.getDisplayName();
+	    String displayName = conferenceManager.getDisplayName();
 
-		if (format != 1) {
-		    if (displayName != null) {
-			id += " '" + displayName + "'";
+	    if (format != 1) {
+		if (displayName != null) {
+		    id += " '" + displayName + "'";
+		}
+	    } else {
+		if (displayName == null) {
+		    if (id.length() >= 14) {
+			id = id.substring(0, 13);
 		    }
 		} else {
-		    if (displayName == null) {
-			if (id.length() >= 14) {
-		            id = id.substring(0, 13);
-			}
-		    } else {
-		        id = "'" + displayName + "'";
-		    }
+		    id = "'" + displayName + "'";
 		}
+	    }
 
-		s += "Conference Id: " + id + " ";
+	    s += "Conference Id: " + id + " ";
 
-		s += conferenceManager.getMediaInfo().toString();
+	    s += conferenceManager.getMediaInfo().toString();
 
-		s += " Members=" + conferenceManager.getMemberList().size();
+	    s += " Members=" + conferenceManager.getMemberList().size();
 
-		if (conferenceManager.isPermanent()) {
-		    s += " persistent";
+	    if (conferenceManager.isPermanent()) {
+		s += " persistent";
+	    }
+
+	    String recordingFile = 
+		conferenceManager.getWGManager().getRecordingFile();
+
+	    if (recordingFile != null) {
+		s += " Recording to " + recordingFile;
+	    }
+
+	    s += "\n";
+
+	    if (format == 0) {
+		continue;
+	    }
+
+	    /*
+	     * Copy the member list so we can avoid unnecessary 
+	     * synchronization
+	     */
+	    ArrayList memberList = (ArrayList) 
+		conferenceManager.getMemberList().clone();
+
+	    for (int n = 0; n < memberList.size(); n++) {
+		ConferenceMember member = (ConferenceMember)
+		    memberList.get(n);
+
+		MemberSender memberSender = member.getMemberSender();
+		MemberReceiver memberReceiver = member.getMemberReceiver();
+
+		String info = " ";
+
+		MediaInfo transmitMediaInfo = memberSender.getMediaInfo();
+
+		if (transmitMediaInfo != null) {
+		    info += transmitMediaInfo.toString();
+		} 
+
+		MediaInfo receiveMediaInfo = memberReceiver.getMediaInfo();
+
+		if (receiveMediaInfo != null) { 
+		    if (transmitMediaInfo.getEncoding() !=
+			    receiveMediaInfo.getEncoding() ||
+			    transmitMediaInfo.getSampleRate() !=
+			    receiveMediaInfo.getSampleRate() ||
+			    transmitMediaInfo.getChannels() !=
+			    receiveMediaInfo.getChannels()) {
+
+			/*
+			 * The member is transmitting at a different
+			 * media setting than it is receiving.
+			 */
+			info += " Transmit:" 
+			    + memberReceiver.getMediaInfo();
+		    }
 		}
 
-		String recordingFile = 
-		    conferenceManager.getWGManager().getRecordingFile();
+		CallParticipant cp = member.getCallParticipant();
 
-		if (recordingFile != null) {
-		    s += " Recording to " + recordingFile;
+		if (cp.isMuted()) {
+		    info += " MUTED";
 		}
 
-		s += "\n";
+		if (cp.isConferenceMuted()) {
+		    info += " CONFERENCE_MUTED";
+		}
 
-		if (format == 0) {
-		    continue;
+		if (cp.isConferenceSilenced()) {
+		    info += " MAIN_CONFERENCE_SILENCED";
 		}
 
-		/*
-		 * Copy the member list so we can avoid unnecessary 
-		 * synchronization
-		 */
-		ArrayList memberList = (ArrayList) 
-		    conferenceManager.getMemberList().clone();
-
-		for (int n = 0; n < memberList.size(); n++) {
-                    ConferenceMember member = (ConferenceMember)
-			memberList.get(n);
-
-		    MemberSender memberSender = member.getMemberSender();
-		    MemberReceiver memberReceiver = member.getMemberReceiver();
-
-		    String info = " ";
-
-		    MediaInfo transmitMediaInfo = memberSender.getMediaInfo();
-
-		    if (transmitMediaInfo != null) {
-		        info += transmitMediaInfo.toString();
-		    } 
-
-		    MediaInfo receiveMediaInfo = memberReceiver.getMediaInfo();
-
-		    if (receiveMediaInfo != null) { 
-			if (transmitMediaInfo.getEncoding() !=
-			        receiveMediaInfo.getEncoding() ||
-			        transmitMediaInfo.getSampleRate() !=
-			        receiveMediaInfo.getSampleRate() ||
-			        transmitMediaInfo.getChannels() !=
-			        receiveMediaInfo.getChannels()) {
-			    
-			    /*
-			     * The member is transmitting at a different
-			     * media setting than it is receiving.
-			     */
-			    info += " Transmit:" 
-				+ memberReceiver.getMediaInfo();
-			}
-		    }
+		if (memberReceiver.doNotRecord() == true) {
+		    info += " RECORDED NOT ALLOWED";
+		} 
 
-		    CallParticipant cp = member.getCallParticipant();
+		if (memberReceiver.getFromRecordingFile() != null) {
+		    info += " Recording from member in " 
+			+ memberReceiver.getFromRecordingFile();
+		}
 
-		    if (cp.isMuted()) {
-		        info += " MUTED";
-		    }
-		    	
-		    if (cp.isConferenceMuted()) {
-		        info += " CONFERENCE_MUTED";
-		    }
-		    	
-		    if (cp.isConferenceSilenced()) {
-			info += " MAIN_CONFERENCE_SILENCED";
-		    }
+		if (cp.isRecorder()) {
+		    String toRecordingFile = 
+			memberSender.getCallParticipant().getToRecordingFile();
 
-		    if (memberReceiver.doNotRecord() == true) {
-		        info += " RECORDED NOT ALLOWED";
-		    } 
-    
-    	            if (memberReceiver.getFromRecordingFile() != null) {
-    		        info += " Recording from member in " 
-    			    + memberReceiver.getFromRecordingFile();
-    		    }
-
-		    if (cp.isRecorder()) {
-		        String toRecordingFile = 
-			    memberSender.getCallParticipant().getToRecordingFile();
-
-    	                if (toRecordingFile != null) {
-    		            info += " Recording to member in " + toRecordingFile;
-    		        } else {
-			    info += " Recorder";
-			}
+		    if (toRecordingFile != null) {
+			info += " Recording to member in " + toRecordingFile;
+		    } else {
+			info += " Recorder";
 		    }
+		}
 
-    		    if (cp.speexEncode()) {
-    		        info += " SpeexEncode";
-    		    }
+		if (cp.speexEncode()) {
+		    info += " SpeexEncode";
+		}
 
-    		    //
-    		    // For debugging
-    		    //
-		    if (memberSender.getSendAddress() != null) {
-			String gateway = "";
+		//
+		// For debugging
+		//
+		if (memberSender.getSendAddress() != null) {
+		    String gateway = "";
 
-			String address = 
-			    memberSender.getSendAddress().toString();
+		    String address = 
+			memberSender.getSendAddress().toString();
 
-			int ix = address.indexOf("/");
+		    int ix = address.indexOf("/");
 
-			if (ix >= 0) {
-			    address = address.substring(ix + 1);
+		    if (ix >= 0) {
+			address = address.substring(ix + 1);
 
-			    if ((ix = address.indexOf(":")) >= 0) {
-				address = address.substring(0, ix);
-			    }
+			if ((ix = address.indexOf(":")) >= 0) {
+			    address = address.substring(0, ix);
 			}
-		
-			if (address.equals("10.6.4.192")) {
-			    gateway = " Menlo Park Gateway";
-			} else if (address.equals("129.148.75.22")) {
-			    gateway = " Burlington Gateway";
-			} else if (address.equals("10.1.224.22")) {
-			    gateway = " Broomfield Gateway";
-			}
-
-			info += gateway;
 		    }
 
-		    if (format == 2) {
-		        info += conferenceManager.getWGManager().getWhisperGroupInfo(member);
+		    if (address.equals("10.6.4.192")) {
+			gateway = " Menlo Park Gateway";
+		    } else if (address.equals("129.148.75.22")) {
+			gateway = " Burlington Gateway";
+		    } else if (address.equals("10.1.224.22")) {
+			gateway = " Broomfield Gateway";
 		    }
 
-		    cp = member.getCallParticipant();
+		    info += gateway;
+		}
+
+		if (format == 2) {
+		    info += conferenceManager.getWGManager().getWhisperGroupInfo(member);
+		}
 
-		    id = cp.toString();
+		cp = member.getCallParticipant();
 
-		    if (format == 1) {
-			id = cp.toConsiseString();
-		    }
+		id = cp.toString();
 
-		    s += "    " + id + info + "\n";
+		if (format == 1) {
+		    id = cp.toConsiseString();
 		}
 
-		s += "\n";
-            }
+		s += "    " + id + info + "\n";
+	    }
 
-	    return s + "\n";
+	    s += "\n";
 	}
+
+	return s + "\n";
     }
 
     /**
@@ -1274,18 +1359,12 @@ public class ConferenceManager {
     public static void recordConference(String conferenceId, boolean enabled,
 	    String recordingFile, String recordingType) throws ParseException {
 
-        synchronized(conferenceList) {
-	    ConferenceManager conferenceManager;
-
-	    if ((conferenceManager = findConferenceManager(conferenceId)) != 
-		    null) {
-
-		conferenceManager.recordConference(enabled, recordingFile, 
-		    recordingType);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
-		return;
-	    }
-	    throw new ParseException("No such conference " + conferenceId, 0);
+	synchronized (conferenceManager) {
+	    conferenceManager.recordConference(enabled, recordingFile, 
+		recordingType);
 	}
     }
 
@@ -1306,13 +1385,10 @@ public class ConferenceManager {
     public static void setConferenceJoinTreatment(String conferenceId,
             String treatment) throws ParseException {
 
-        synchronized(conferenceList) {
-	    ConferenceManager conferenceManager;
-
-	    conferenceManager = findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
-	    conferenceManager.setConferenceJoinTreatment(treatment);
-        }
+	conferenceManager.setConferenceJoinTreatment(treatment);
     }
 
     private String conferenceJoinTreatment;
@@ -1326,13 +1402,10 @@ public class ConferenceManager {
     public static void setConferenceLeaveTreatment(String conferenceId,
             String treatment) throws ParseException {
 
-        synchronized(conferenceList) {
-	    ConferenceManager conferenceManager;
-
-	    conferenceManager = findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
-	    conferenceManager.setConferenceLeaveTreatment(treatment);
-        }
+	conferenceManager.setConferenceLeaveTreatment(treatment);
     }
 
     public void setConferenceLeaveTreatment(String treatment) {
@@ -1344,13 +1417,10 @@ public class ConferenceManager {
     public static void setConferenceAnswerTreatment(String conferenceId,
             String treatment) throws ParseException {
 
-        synchronized(conferenceList) {
-            ConferenceManager conferenceManager;
-
-            conferenceManager = findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
-            conferenceManager.setConferenceAnswerTreatment(treatment);
-        }
+	conferenceManager.setConferenceAnswerTreatment(treatment);
     }
 
     public void setConferenceAnswerTreatment(String treatment) {
@@ -1371,13 +1441,10 @@ public class ConferenceManager {
     public static void playTreatmentToAllConferences(String treatment) 
 	    throws ParseException {
 
-        synchronized(conferenceList) {
-            for (int i = 0; i < conferenceList.size(); i++) {
-                ConferenceManager conferenceManager =
-                    (ConferenceManager) conferenceList.get(i);
+	for (ConferenceManager conferenceManager : 
+		conferenceDirectory.values()) {
 
-		playTreatment(conferenceManager.getId(), treatment);
-	    }
+	    playTreatment(conferenceManager.getId(), treatment);
 	}
     }
 
@@ -1396,19 +1463,15 @@ public class ConferenceManager {
 		+ conferenceId);
 	}
 	
-        synchronized(conferenceList) {
-	    ConferenceManager conferenceManager;
-
-	    conferenceManager = findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
-	    try {
-		conferenceManager.addTreatment(treatment);
-	    } catch (IOException e) {
-		throw new ParseException("bad treatment "
-		    + " " + e.getMessage(), 0);
-	    }
-	    return;
-        }
+	try {
+	    conferenceManager.addTreatment(treatment);
+	} catch (IOException e) {
+	    throw new ParseException("bad treatment "
+		+ " " + e.getMessage(), 0);
+	}
     }
 
     public void addTreatment(String treatment) throws IOException {
@@ -1442,11 +1505,10 @@ public class ConferenceManager {
                 + conferenceId);
         }
 
-        synchronized(conferenceList) {
-            ConferenceManager conferenceManager;
-
-            conferenceManager = findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
+	synchronized (conferenceManager) {
             conferenceManager.getWGManager().pauseConferenceTreatment(
                 treatment, isPaused);
         }
@@ -1460,11 +1522,10 @@ public class ConferenceManager {
 		+ conferenceId);
 	}
 
-        synchronized(conferenceList) {
-            ConferenceManager conferenceManager;
-
-            conferenceManager = findConferenceManager(conferenceId);
+	ConferenceManager conferenceManager = 
+	    findConferenceManager(conferenceId);
 
+	synchronized (conferenceManager) {
             conferenceManager.getWGManager().removeConferenceTreatment(
 		treatment);
         }
@@ -1474,30 +1535,27 @@ public class ConferenceManager {
      * get conference statistics
      */
     public static void printStatistics() {
-        synchronized(conferenceList) {
-	    if (loneConferenceSender != null) {
-		loneConferenceSender.printStatistics();
-	    }
+	if (loneConferenceSender != null) {
+	    loneConferenceSender.printStatistics();
+	}
 
-            for (int i = 0; i < conferenceList.size(); i++) {
-                ConferenceManager conferenceManager = 
-		    (ConferenceManager) conferenceList.get(i);
+	for (ConferenceManager conferenceManager : 
+		conferenceDirectory.values()) {
 
-		ConferenceSender conferenceSender = 
-                    conferenceManager.getConferenceSender();
+	    ConferenceSender conferenceSender = 
+                conferenceManager.getConferenceSender();
 
-		if (loneConferenceSender == null) {
-		    conferenceSender.printStatistics();
-		}
+	    if (loneConferenceSender == null) {
+		conferenceSender.printStatistics();
+	    }
 
-                ArrayList memberList = conferenceManager.getMemberList();
+            ArrayList memberList = conferenceManager.getMemberList();
 
-                for (int n = 0; n < memberList.size(); n++) {
-                    ConferenceMember member = (ConferenceMember)
-                        memberList.get(n);
+            for (int n = 0; n < memberList.size(); n++) {
+                ConferenceMember member = (ConferenceMember)
+                    memberList.get(n);
 
-                    member.printStatistics();
-                }
+                member.printStatistics();
             }
         }
         Logger.flush();
@@ -28,9 +28,11 @@ import com.sun.voip.CallEvent;
 import com.sun.voip.Logger;
 import com.sun.voip.MediaInfo;
 import com.sun.voip.MixDataSource;
+import com.sun.voip.RtcpPacket;
 import com.sun.voip.RtcpReceiver;
 import com.sun.voip.RtpPacket;
 import com.sun.voip.RtpSocket;
+import com.sun.voip.RtpStatistics;
 import com.sun.voip.SdpManager;
 import com.sun.voip.TreatmentDoneListener;
 import com.sun.voip.TreatmentManager;
@@ -98,6 +100,10 @@ public class ConferenceMember implements TreatmentDoneListener,
 
     InetSocketAddress rtcpAddress;
 
+    private InetSocketAddress rtcpReportAddress;
+
+    private RtpStatistics rtpStatistics;
+
     private static long startTime;
     private static int applyCount;
     private static int pmCount;
@@ -196,7 +202,10 @@ public class ConferenceMember implements TreatmentDoneListener,
 
 	initializeChannel();
 
-	memberSender = new MemberSender(cp, datagramChannel);
+	rtpStatistics = new RtpStatistics(cp.toString(), 
+	    conferenceManager.getId());
+
+	memberSender = new MemberSender(cp, datagramChannel, rtpStatistics);
 
 	memberReceiver = new MemberReceiver(this, cp, datagramChannel);
 
@@ -215,6 +224,24 @@ public class ConferenceMember implements TreatmentDoneListener,
 	addMemberDoneListener(this);
     }
 
+    /*
+     * The RtcpMultiplexer receives reports for the channel.
+     */
+    private static RtcpReceiver openRtcpReceiver(int port, 
+	    boolean loneChannel) throws IOException {
+
+	DatagramChannel rtcpChannel = DatagramChannel.open();
+
+	try {
+	    rtcpChannel.socket().bind(new InetSocketAddress(port));
+	} catch (SocketException e) {
+	    rtcpChannel.close();
+	    throw e;
+	}
+
+	return new RtcpReceiver(rtcpChannel, loneChannel);
+    }
+
     private void initializeChannel() throws IOException {
 	datagramChannel = conferenceManager.getConferenceReceiver().getChannel(cp);
 
@@ -226,8 +253,7 @@ public class ConferenceMember implements TreatmentDoneListener,
 		    Logger.println("Starting lone RtcpReceiver on port "
 			+ rtcpPort);
 
-                    loneRtcpReceiver = new RtcpReceiver(
-	        	new DatagramSocket(rtcpPort), true);
+                    loneRtcpReceiver = openRtcpReceiver(rtcpPort, true);
 		}
 	        rtcpReceiver = loneRtcpReceiver;
 	    }
@@ -307,8 +333,7 @@ public class ConferenceMember implements TreatmentDoneListener,
 		    Logger.writeFile("Call " + cp + " RTCP Port " 
 			+ (localPort + 1));
 
-        	    rtcpReceiver = new RtcpReceiver(
-			new DatagramSocket(localPort + 1), false);
+        	    rtcpReceiver = openRtcpReceiver(localPort + 1, false);
 		    break;
 		} catch (SocketException e) {
 		    /*
@@ -459,6 +484,23 @@ public class ConferenceMember implements TreatmentDoneListener,
 		memberAddress.getPort());
 	}
 
+	if (rtcpReportAddress != null) {
+	    rtcpReceiver.removeStatistics(rtcpReportAddress);
+	}
+
+	/*
+	 * Unless the member says otherwise, RTCP uses the port 
+	 * after the RTP port.
+	 */
+	if (this.rtcpAddress != null) {
+	    rtcpReportAddress = this.rtcpAddress;
+	} else {
+	    rtcpReportAddress = new InetSocketAddress(
+		memberAddress.getAddress(), memberAddress.getPort() + 1);
+	}
+
+	rtcpReceiver.addStatistics(rtcpReportAddress, rtpStatistics);
+
 	Logger.writeFile("Call " + cp 
 	    + " Initializing sender with member address " + memberAddress);
 
@@ -477,6 +519,8 @@ public class ConferenceMember implements TreatmentDoneListener,
 	try {
 	    myMediaInfo = SdpManager.findMediaInfo(receivePayload);
 
+	    rtpStatistics.setClockRate(myMediaInfo.getSampleRate());
+
 	    if (Logger.logLevel >= Logger.LOG_INFO) {
 	        Logger.println("Call " + cp + " media info " + myMediaInfo 
 		    + " telephoneEventPayload " + telephoneEventPayload);
@@ -573,6 +617,10 @@ public class ConferenceMember implements TreatmentDoneListener,
 	        + " ConferenceMember initialization done...");
 	}
 
+	if (cp.getInputTreatment() == null) {
+	    RtcpReporter.getInstance().add(this);
+	}
+
 	conferenceManager.joinDistributedConference(this);
 	joinedDistributedConference = true;
     }
@@ -646,6 +694,34 @@ public class ConferenceMember implements TreatmentDoneListener,
 	return rtcpAddress;
     }
 
+    public RtpStatistics getRtpStatistics() {
+	return rtpStatistics;
+    }
+
+    /**
+     * Send an RTCP sender or receiver report to the member.
+     */
+    public void sendRtcpReport(String cname) {
+	if (done || rtcpReportAddress == null) {
+	    return;
+	}
+
+	RtcpPacket report = rtpStatistics.createReport(cname);
+
+	if (report == null) {
+	    return;	// nothing received yet
+	}
+
+	try {
+	    rtcpReceiver.send(report, rtcpReportAddress);
+	} catch (IOException e) {
+	    if (!done) {
+		Logger.println("Call " + cp + " unable to send RTCP report to "
+		    + rtcpReportAddress + ":  " + e.getMessage());
+	    }
+	}
+    }
+
     /*
      * Maintain list of MixDescriptors.
      * 
@@ -927,25 +1003,51 @@ public class ConferenceMember implements TreatmentDoneListener,
 	}
 
         synchronized (mixMap) {
-	    HashMap<ConferenceMember, double[]> mixesToApply =
-		mixMap.get(this);
-
-	    if (mixesToApply == null) {
-		mixesToApply = new HashMap<ConferenceMember, double[]>();
+	    queuePrivateMix(member, spatialValues);
+        }
+    }
 
-		mixMap.put(this, mixesToApply);
-	    }
+    /*
+     * Set many private mixes at once.  All of the mixes are
+     * applied by the same call to applyPrivateMixes().
+     */
+    public static void setPrivateMixes(ArrayList<PrivateMix> mixes) {
+	synchronized (mixMap) {
+	    for (PrivateMix mix : mixes) {
+		CallParticipant cp = mix.memberWithMix.getCallParticipant();
 
-	    if (Logger.logLevel >= Logger.LOG_INFO) {
-	        if (mixesToApply.get(member) != null) {
-		    Logger.println(this + " Replacing mix for " + member);
+		if (cp.getInputTreatment() != null && cp.isRecorder() == false) {
+		    continue;
 		}
+
+		mix.memberWithMix.queuePrivateMix(mix.member, mix.spatialValues);
 	    }
+	}
+    }
+
+    /*
+     * Caller must hold the mixMap lock.
+     */
+    private void queuePrivateMix(ConferenceMember member, 
+	    double[] spatialValues) {
+
+	HashMap<ConferenceMember, double[]> mixesToApply = mixMap.get(this);
+
+	if (mixesToApply == null) {
+	    mixesToApply = new HashMap<ConferenceMember, double[]>();
+
+	    mixMap.put(this, mixesToApply);
+	}
 
-            if (mixesToApply.put(member, spatialValues) != null) {
-		replaced++;
+	if (Logger.logLevel >= Logger.LOG_INFO) {
+	    if (mixesToApply.get(member) != null) {
+		Logger.println(this + " Replacing mix for " + member);
 	    }
-        }
+	}
+
+        if (mixesToApply.put(member, spatialValues) != null) {
+	    replaced++;
+	}
     }
 
     static class PrivateMix {
@@ -1295,6 +1397,12 @@ public class ConferenceMember implements TreatmentDoneListener,
 	memberSender.end();
 	memberReceiver.end();
 
+	RtcpReporter.getInstance().remove(this);
+
+	if (rtcpReceiver != null && rtcpReportAddress != null) {
+	    rtcpReceiver.removeStatistics(rtcpReportAddress);
+	}
+
 	if (rtcpReceiver != null && rtcpReceiver != loneRtcpReceiver) {
 	    rtcpReceiver.end();
 	}
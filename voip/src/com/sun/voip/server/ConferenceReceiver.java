@@ -70,6 +70,12 @@ public class ConferenceReceiver extends Thread {
 
     private int memberCount = 0;
 
+    /*
+     * A receive error can repeat on every pass through the loop.
+     */
+    private static Logger.RateLimiter receiveErrorLog = 
+	new Logger.RateLimiter(10, 1000);
+
     ConferenceReceiver(String conferenceId, int loneReceiverPort) throws SocketException {
 	if (loneReceiverPort != 0) {
 	    conferenceId = "TheLoneReceiver";
@@ -360,7 +366,8 @@ public class ConferenceReceiver extends Thread {
 			dataLength = byteBuffer.position();
 
 	    	    	if (isStunBindingRequest(data) == true) {
-			    stunServerImpl.processStunRequest(datagramChannel, isa, data);
+			    stunServerImpl.processStunRequest(datagramChannel, isa, data,
+				dataLength);
 			    continue;
 	    	    	}
 
@@ -451,15 +458,15 @@ public class ConferenceReceiver extends Thread {
 		     * We're not sure why this happens but there appears to be
 		     * a timing problem with selectors when a call ends.
 		     */
-                    Logger.error("ConferenceReceiver:  receive failed! " + 
-		        e.getMessage());
-		    e.printStackTrace();
+                    Logger.exception(receiveErrorLog, 
+			"ConferenceReceiver:  receive failed! " 
+			+ e.getMessage(), e);
 		}
             } catch (Exception e) {
 		if (!done) {
-                    Logger.error("ConferenceReceiver:  unexpected exception " 
-			+ e.getMessage());
-		    e.printStackTrace();
+                    Logger.exception(receiveErrorLog,
+			"ConferenceReceiver:  unexpected exception " 
+			+ e.getMessage(), e);
 		}
 	    }
         }
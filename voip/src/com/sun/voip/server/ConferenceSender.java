@@ -24,12 +24,14 @@
 package com.sun.voip.server;
 
 import com.sun.voip.Logger;
+import com.sun.voip.MetricsRegistry;
 import com.sun.voip.RtpPacket;
 import com.sun.voip.Ticker;
 import com.sun.voip.TickerException;
 import com.sun.voip.TickerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.NoSuchElementException;
@@ -43,7 +45,7 @@ public class ConferenceSender extends Thread {
      */
     private static int senderThreads;
 
-    private ArrayList conferenceList;
+    private Collection<ConferenceManager> conferenceList;
 
     private boolean done = false;
 
@@ -53,6 +55,11 @@ public class ConferenceSender extends Thread {
 
     private long totalSendTime;
 
+    private static MetricsRegistry.Histogram tickTime =
+	MetricsRegistry.histogram("voicebridge_sender_tick_seconds",
+	    "Time to mix and send a packet to every member",
+	    MetricsRegistry.PACKET_TIME_BOUNDS, 1000000000.);
+
     private static double averageSendTime;
 
     private static double lastMaxSendTime;
@@ -65,7 +72,7 @@ public class ConferenceSender extends Thread {
     private static ArrayList<SenderCallbackListener> senderCallbackList =
         new ArrayList<SenderCallbackListener>();
 
-    public ConferenceSender(ArrayList conferenceList) {
+    public ConferenceSender(Collection<ConferenceManager> conferenceList) {
 	this.conferenceList = conferenceList;
 
 	setName("TheLoneSender");
@@ -73,7 +80,7 @@ public class ConferenceSender extends Thread {
     }
 
     public ConferenceSender(ConferenceManager conferenceManager) {
-	conferenceList = new ArrayList();
+	conferenceList = new ArrayList<ConferenceManager>();
 	conferenceList.add(conferenceManager);
 
 	setName("Sender-" + conferenceManager.getId());
@@ -119,9 +126,20 @@ public class ConferenceSender extends Thread {
         long sendTime = 0;
         long maxSendTime = 0;
 
+	long previousStartTime = 0;
+
 	while (!done) {
 	    long startTime = System.nanoTime();
 
+	    long lateness = 0;
+
+	    if (previousStartTime != 0) {
+		lateness = startTime - previousStartTime - 
+		    RtpPacket.PACKET_PERIOD * 1000000L;
+	    }
+
+	    previousStartTime = startTime;
+
             for (SenderCallbackListener listener : senderCallbackList) {
 		try {
                     listener.senderCallback();
@@ -153,11 +171,16 @@ public class ConferenceSender extends Thread {
 
 	    if (ConferenceManager.getTotalMembers() == 0) {
 		resetStatistics();
+		OverloadController.reset();
 		sendTime = 0;
 		maxSendTime = 0;
 		continue;
 	    }
 
+	    tickTime.observe(elapsed);
+
+	    OverloadController.tickDone(lateness, elapsed);
+
 	    packetsSent++;
 
 	    if ((packetsSent % 250) == 0) {
@@ -165,6 +188,9 @@ public class ConferenceSender extends Thread {
 
 		lastMaxSendTime = maxSendTime / 1000000000.;
 
+		CallAdmission.sendTimeMeasured(averageSendTime, 
+		    lastMaxSendTime);
+
 	        String s = getName()
 	            + " time to send a packet to " + ConferenceManager.getTotalMembers() 
 	            + " members in last 5 seconds is " + (sendTime / 1000000000.) 
@@ -212,10 +238,7 @@ public class ConferenceSender extends Thread {
 	 */
 	ArrayList memberList = new ArrayList();
 
-	for (int i = 0; i < conferenceList.size(); i++) {
-	    ConferenceManager conferenceManager = (ConferenceManager) 
-		conferenceList.get(i);
-
+	for (ConferenceManager conferenceManager : conferenceList) {
 	    //ArrayList ml = (ArrayList) conferenceManager.getMemberList();
 
 	    //memberList.addAll(ml);
@@ -280,6 +303,17 @@ public class ConferenceSender extends Thread {
 			 * from each whisperer mixed in a buffer.
 			 */
 			try {
+			    if (whisperGroup == 
+				    wgManager.getConferenceWhisperGroup()) {
+
+				/*
+				 * Swap mixes with the other bridges
+				 * this conference is on.
+				 */
+				TrunkManager.exchange(conferenceManager,
+				    whisperGroup);
+			    }
+
                             whisperGroup.saveCurrentContribution();
 			} catch (Exception e) {
                             e.printStackTrace();
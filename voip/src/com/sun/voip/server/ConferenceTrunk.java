@@ -0,0 +1,332 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip.server;
+
+import com.sun.voip.AudioConversion;
+import com.sun.voip.MixDataSource;
+import com.sun.voip.RtpPacket;
+
+import java.io.UnsupportedEncodingException;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One end of the trunk between this bridge and another bridge
+ * for a distributed conference.
+ *
+ * Each tick, the mix of the members of the conference on this bridge
+ * is sent to the other bridge in one packet and the other bridge's mix
+ * is added to the conference mix here as if it were one member.
+ * Only local members are sent so mixes never go around in circles
+ * no matter how many bridges the conference is on.
+ *
+ * Packets have an RTP header with the conference's trunk id as the
+ * SSRC, then the length of the conference id in two bytes and the
+ * conference id in UTF-8, followed by 16 bit linear samples at the 
+ * conference sample rate.  The trunk id is only a hash, so conferences
+ * are told apart by the conference id.  A packet without samples
+ * means the conference was silent.
+ */
+public class ConferenceTrunk implements MixDataSource {
+
+    public static final byte TRUNK_PAYLOAD = 125;
+
+    /*
+     * Packets buffered before playing after running dry and the
+     * most which are kept.
+     */
+    private static final int PREBUFFER = 2;
+    private static final int MAX_BUFFERED = 5;
+
+    private String conferenceId;
+    private InetSocketAddress remoteAddress;
+    private int trunkId;
+
+    private byte[] conferenceIdBytes;
+
+    private ConcurrentLinkedQueue<int[]> received = 
+	new ConcurrentLinkedQueue<int[]>();
+
+    private boolean playing;
+
+    private int[] previousContribution;
+    private int[] currentContribution;
+
+    private DatagramPacket packet;
+
+    private short sequenceNumber;
+    private int timestamp;
+
+    private long lastReceived;
+    private long created;
+
+    private int expectedSequenceNumber = -1;
+
+    /* Statistics */
+    private long packetsSent;
+    private long packetsReceived;
+    private long packetsLost;
+    private long packetsDropped;
+    private long underruns;
+
+    public ConferenceTrunk(String conferenceId, 
+	    InetSocketAddress remoteAddress) {
+
+	this.conferenceId = conferenceId;
+	this.remoteAddress = remoteAddress;
+
+	trunkId = getTrunkId(conferenceId);
+
+	conferenceIdBytes = getBytes(conferenceId);
+
+	created = System.currentTimeMillis();
+    }
+
+    /**
+     * The SSRC of the conference's packets.  Different conferences
+     * may have the same trunk id.
+     */
+    public static int getTrunkId(String conferenceId) {
+	return conferenceId.hashCode();
+    }
+
+    private static byte[] getBytes(String conferenceId) {
+	try {
+	    return conferenceId.getBytes("UTF-8");
+	} catch (UnsupportedEncodingException e) {
+	    return conferenceId.getBytes();
+	}
+    }
+
+    /**
+     * @return the conference id in a packet or null if the packet
+     * is too short for the conference id it says it has.
+     */
+    public static String getConferenceId(byte[] data, int offset, 
+	    int length) {
+
+	if (length < RtpPacket.HEADER_SIZE + 2) {
+	    return null;
+	}
+
+	int n = ((data[offset + RtpPacket.HEADER_SIZE] & 0xff) << 8) |
+	    (data[offset + RtpPacket.HEADER_SIZE + 1] & 0xff);
+
+	if (length < RtpPacket.HEADER_SIZE + 2 + n) {
+	    return null;
+	}
+
+	try {
+	    return new String(data, offset + RtpPacket.HEADER_SIZE + 2, n,
+		"UTF-8");
+	} catch (UnsupportedEncodingException e) {
+	    return null;
+	}
+    }
+
+    /*
+     * Where the samples start
+     */
+    private int getHeaderSize() {
+	return RtpPacket.HEADER_SIZE + 2 + conferenceIdBytes.length;
+    }
+
+    public String getConferenceId() {
+	return conferenceId;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+	return remoteAddress;
+    }
+
+    public int getTrunkId() {
+	return trunkId;
+    }
+
+    /**
+     * Build the packet for this tick's local mix, which may be null.
+     * The mix isn't clipped yet so it's clipped here.
+     */
+    public DatagramPacket getPacket(int[] mix) {
+	int size = getHeaderSize();
+
+	if (mix != null) {
+	    size += mix.length * 2;
+	}
+
+	if (packet == null || packet.getData().length < size) {
+	    packet = new DatagramPacket(new byte[size], size, remoteAddress);
+	}
+
+	byte[] buffer = packet.getData();
+
+	buffer[0] = (byte) 0x80;
+	buffer[1] = TRUNK_PAYLOAD;
+	buffer[2] = (byte) (sequenceNumber >> 8);
+	buffer[3] = (byte) sequenceNumber;
+	buffer[4] = (byte) (timestamp >> 24);
+	buffer[5] = (byte) (timestamp >> 16);
+	buffer[6] = (byte) (timestamp >> 8);
+	buffer[7] = (byte) timestamp;
+	buffer[8] = (byte) (trunkId >> 24);
+	buffer[9] = (byte) (trunkId >> 16);
+	buffer[10] = (byte) (trunkId >> 8);
+	buffer[11] = (byte) trunkId;
+	buffer[12] = (byte) (conferenceIdBytes.length >> 8);
+	buffer[13] = (byte) conferenceIdBytes.length;
+
+	System.arraycopy(conferenceIdBytes, 0, buffer, 14, 
+	    conferenceIdBytes.length);
+
+	sequenceNumber++;
+	timestamp += RtpPacket.PACKET_PERIOD;
+
+	int length = getHeaderSize();
+
+	if (mix != null) {
+	    for (int i = 0; i < mix.length; i++) {
+		int sample = mix[i];
+
+		if (sample > 32767) {
+		    sample = 32767;
+		} else if (sample < -32768) {
+		    sample = -32768;
+		}
+
+		buffer[length++] = (byte) (sample >> 8);
+		buffer[length++] = (byte) sample;
+	    }
+	}
+
+	packet.setLength(length);
+
+	packetsSent++;
+	return packet;
+    }
+
+    /**
+     * A packet has been received from the other bridge.
+     */
+    public void received(byte[] data, int offset, int length) {
+	int seq = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+
+	if (expectedSequenceNumber >= 0 && seq != expectedSequenceNumber) {
+	    packetsLost += (seq - expectedSequenceNumber) & 0xffff;
+	}
+
+	expectedSequenceNumber = (seq + 1) & 0xffff;
+
+	lastReceived = System.currentTimeMillis();
+	packetsReceived++;
+
+	int headerSize = getHeaderSize();
+
+	int[] contribution = new int[(length - headerSize) / 2];
+
+	if (contribution.length > 0) {
+	    AudioConversion.bytesToInts(data, offset + headerSize, 
+		contribution.length * 2, contribution);
+	}
+
+	received.add(contribution);
+
+	while (received.size() > MAX_BUFFERED) {
+	    received.poll();
+	    packetsDropped++;
+	}
+    }
+
+    /**
+     * Has the other bridge stopped sending?
+     */
+    public boolean isIdle(long timeout) {
+	long now = System.currentTimeMillis();
+
+	if (lastReceived == 0) {
+	    return now - created > timeout;
+	}
+
+	return now - lastReceived > timeout;
+    }
+
+    public String getSourceId() {
+	return "trunk-" + remoteAddress;
+    }
+
+    /*
+     * Called by the sender once each tick.
+     */
+    public void saveCurrentContribution() {
+	previousContribution = currentContribution;
+	currentContribution = null;
+
+	if (playing == false) {
+	    if (received.size() < PREBUFFER) {
+		return;
+	    }
+
+	    playing = true;
+	}
+
+	int[] contribution = received.poll();
+
+	if (contribution == null) {
+	    underruns++;
+	    playing = false;
+	    return;
+	}
+
+	if (contribution.length > 0) {
+	    currentContribution = contribution;
+	}
+    }
+
+    public int[] getPreviousContribution() {
+	return previousContribution;
+    }
+
+    public int[] getCurrentContribution() {
+	return currentContribution;
+    }
+
+    public boolean contributionIsInCommonMix() {
+	return true;
+    }
+
+    public String toAbbreviatedString() {
+	return getSourceId();
+    }
+
+    public String toString() {
+	return conferenceId + " trunk to " + remoteAddress 
+	    + ", sent " + packetsSent + ", received " + packetsReceived 
+	    + ", lost " + packetsLost + ", dropped " + packetsDropped 
+	    + ", underruns " + underruns;
+    }
+
+}
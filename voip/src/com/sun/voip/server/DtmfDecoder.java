@@ -46,6 +46,33 @@ public class DtmfDecoder {
 
     private static final int MAX_KEYS = 1;
 
+    /*
+     * Frames quieter than this (average absolute sample value)
+     * can't contain a dtmf tone.  The weakest valid dtmf tone is
+     * several times louder.
+     */
+    private static final int MINIMUM_LEVEL = 64;
+
+    /*
+     * The zero crossings of a dtmf tone put its dominant frequency
+     * between the lowest and highest dtmf frequencies (697 and 1633 Hz).
+     * There's some slop for the two tones beating against each other.
+     */
+    private static final int MINIMUM_FREQUENCY = 500;
+    private static final int MAXIMUM_FREQUENCY = 2000;
+
+    /*
+     * After a frame which might be part of a tone, this many more
+     * frames are decoded even if they can't be so that the decoder
+     * sees the key being released.
+     */
+    private static final int RELEASE_FRAMES = 3;
+
+    private int framesToDecode;
+    private int framesSkipped;
+
+    private int[] silence;
+
     private Decoder decoder;
     private int[] linearData;
 
@@ -64,6 +91,8 @@ public class DtmfDecoder {
 
 	linearData = new int[mediaInfo.getSamplesPerPacket()];
 
+	silence = new int[mediaInfo.getSamplesPerPacket()];
+
 	decoder.setRate(mediaInfo.getSampleRate());
 
 	if (mediaInfo.getChannels() != 1) {
@@ -96,8 +125,6 @@ public class DtmfDecoder {
 	 * silence so that the dtmf detector will return
 	 * the dtmf key.
 	 */
-        int[] silence = new int[mediaInfo.getSamplesPerPacket()];
-
 	String dtmfKeys = null;
 
 	dtmfKeys = processData(silence);
@@ -119,6 +146,20 @@ public class DtmfDecoder {
      */ 
     public String processData(int[] linearData) {
 	numberOfTimesCalled++;
+
+	if (mightBeDtmf(linearData)) {
+	    framesToDecode = RELEASE_FRAMES;
+	} else if (framesToDecode == 0) {
+	    /*
+	     * The decoder has already seen the end of the last tone
+	     * and this frame can't start a new one.
+	     */
+	    framesSkipped++;
+	    return null;
+	} else {
+	    framesToDecode--;
+	}
+
 	long start = System.currentTimeMillis();
 
 	if (sampleRateConverter != null) {
@@ -158,14 +199,68 @@ public class DtmfDecoder {
 	return dtmfKeys;
     }
 
+    /*
+     * A cheap check for frames which can't be part of a dtmf tone,
+     * either because they're too quiet or because the rate at which
+     * they cross zero is nowhere near a dtmf frequency.
+     * Only the first channel is looked at.
+     */
+    private boolean mightBeDtmf(int[] linearData) {
+	int channels = mediaInfo.getChannels();
+
+	long level = 0;
+	int crossings = 0;
+	int nSamples = 0;
+	boolean negative = false;
+
+	for (int i = 0; i < linearData.length; i += channels) {
+	    int sample = linearData[i];
+
+	    if (sample < 0) {
+		level -= sample;
+
+		if (negative == false && nSamples > 0) {
+		    crossings++;
+		}
+
+		negative = true;
+	    } else {
+		level += sample;
+
+		if (negative == true) {
+		    crossings++;
+		}
+
+		negative = false;
+	    }
+
+	    nSamples++;
+	}
+
+	if (nSamples == 0 || level / nSamples < MINIMUM_LEVEL) {
+	    return false;
+	}
+
+	/*
+	 * A sine wave crosses zero twice per cycle
+	 */
+	long frequency = (long) crossings * mediaInfo.getSampleRate()
+	    / (2 * nSamples);
+
+	return frequency >= MINIMUM_FREQUENCY && frequency <= MAXIMUM_FREQUENCY;
+    }
+
     public void printStatistics() {
 	Logger.writeFile("Call " + memberReceiver.toString() + ":  "
-	    + "Dtmf detector calls:  " + numberOfTimesCalled);
+	    + "Dtmf detector calls:  " + numberOfTimesCalled
+	    + ", frames skipped without decoding:  " + framesSkipped);
+
+	int framesDecoded = numberOfTimesCalled - framesSkipped;
 
-	if (numberOfTimesCalled != 0) {
+	if (framesDecoded != 0) {
 	    Logger.writeFile(memberReceiver.toString() 
 	    + ":  Dtmf decoder average ms per call:  " 
-	        + ((float)((float)totalDecodeTime / numberOfTimesCalled)));
+	        + ((float)((float)totalDecodeTime / framesDecoded)));
 	}
     }
 
@@ -39,6 +39,8 @@ import java.text.ParseException;
 
 import java.util.Vector;
 
+import java.util.concurrent.ScheduledFuture;
+
 /**
  * Handle an incoming call.  The call is placed into a temporary conference.
  * Based on dtmf (or voice) input from the caller, the call is transferred
@@ -55,6 +57,8 @@ public class IncomingCallHandler extends CallHandler
 
     private TreatmentManager treatmentManager;
 
+    private ScheduledFuture transferTimeout;
+
     private Object requestEvent;
 
     boolean haveIncomingConferenceId;
@@ -137,7 +141,10 @@ public class IncomingCallHandler extends CallHandler
 	super.cancelRequest(s);
     }
 
-    class TransferTimer extends Thread {
+    /*
+     * End the call if it isn't transferred in time.
+     */
+    class TransferTimer implements Runnable {
 	private ConferenceMember member;
 	private String conferenceId;
 
@@ -146,15 +153,10 @@ public class IncomingCallHandler extends CallHandler
 	public TransferTimer(ConferenceMember member) {
 	    this.member = member;
 	    conferenceId = member.getCallParticipant().getConferenceId();
-	    start();
+	    transferTimeout = CallThreads.schedule(this, TRANSFER_TIMEOUT);
 	}
 
 	public void run() {
-	    try {
-		Thread.sleep(TRANSFER_TIMEOUT);
-	    } catch (InterruptedException e) {
-	    }
-
 	    if (!done && member != null) {
 		if (member.getCallParticipant().getConferenceId().indexOf(
 		        incomingConferenceId) == 0) {
@@ -176,7 +178,11 @@ public class IncomingCallHandler extends CallHandler
 	    cp.setConferenceId(incomingConferenceId);
 	}
 
-	synchronized (ConferenceManager.getConferenceList()) {
+	if (admitCall() == false) {
+	    return;
+	}
+
+	do {
 	    String[] tokens = cp.getConferenceId().split(":");
 
 	    if (tokens.length == 2) {
@@ -190,6 +196,8 @@ public class IncomingCallHandler extends CallHandler
 	        Logger.error("Couldn't start conference " 
 	    	    + cp.getConferenceId());
 
+		admissionDone();
+
 	        sendCallEventNotification(
 		    new CallEvent(CallEvent.CANT_START_CONFERENCE));
 
@@ -216,21 +224,29 @@ public class IncomingCallHandler extends CallHandler
 	    }
 
 	    try {
+		/*
+		 * member is null if the conference ended before we
+		 * could join.  In that case, start a new one.
+		 */
 	        member = conferenceManager.joinConference(cp);
-		memberSender = member.getMemberSender();
-		memberReceiver = member.getMemberReceiver();
 	    } catch (IOException e) {
 		CallEvent callEvent = 
 		    new CallEvent(CallEvent.CANT_CREATE_MEMBER);
 
 		callEvent.setInfo(e.getMessage());
+		admissionDone();
 	        sendCallEventNotification(callEvent);
 	        return; 
 	    }
+	} while (member == null);
 
-	    Logger.println("Incoming Call " + cp + " joined conference " 
-		+ cp.getConferenceId());
-	}
+	admissionDone();
+
+	memberSender = member.getMemberSender();
+	memberReceiver = member.getMemberReceiver();
+
+	Logger.println("Incoming Call " + cp + " joined conference " 
+	    + cp.getConferenceId());
 
 	addCall(this);    // add to list of active calls
 
@@ -299,6 +315,10 @@ public class IncomingCallHandler extends CallHandler
 	cancelRequest("Incoming call ended");
 
 	done = true;
+
+	if (transferTimeout != null) {
+	    transferTimeout.cancel(false);
+	}
     }
 
     public static void setIncomingCallTreatment(String treatment) {
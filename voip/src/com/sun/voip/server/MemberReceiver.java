@@ -31,6 +31,7 @@ import com.sun.voip.JitterManager;
 import com.sun.voip.JitterObject;
 import com.sun.voip.Logger;
 import com.sun.voip.MediaInfo;
+import com.sun.voip.MetricsRegistry;
 import com.sun.voip.MixDataSource;
 import com.sun.voip.Recorder;
 import com.sun.voip.RecorderListener;
@@ -135,6 +136,19 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
     private int lastMediaPacketsReceived;
     private int badPayloads;
 
+    private MetricsRegistry.Counter packetsReceivedCounter;
+    private MetricsRegistry.Counter badPacketsCounter;
+
+    /*
+     * These are logged for every bad packet.  Limit how often
+     * so that a misbehaving endpoint can't flood the log.
+     */
+    private static Logger.RateLimiter payload18Log = 
+	new Logger.RateLimiter(10, 1000);
+
+    private static Logger.RateLimiter badLengthLog = 
+	new Logger.RateLimiter(10, 1000);
+
     private long previousRtpTimestamp = 0;
 
     private boolean joinConfirmationReceived = false;
@@ -143,6 +157,8 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 
     private Cipher decryptCipher;
 
+    private SrtpCryptoContext srtpContext;
+
     private String encryptionKey;
     private String encryptionAlgorithm;
 
@@ -169,7 +185,14 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 	encryptionKey = cp.getEncryptionKey();
 	encryptionAlgorithm = cp.getEncryptionAlgorithm();
 	
-	if (encryptionKey != null) {
+	if (encryptionKey != null &&
+		SrtpCryptoContext.isSrtp(encryptionAlgorithm)) {
+
+	    srtpContext = new SrtpCryptoContext(encryptionKey);
+
+	    Logger.println("Call " + cp + " Voice data will be decrypted "
+		+ "using SRTP " + encryptionAlgorithm);
+	} else if (encryptionKey != null) {
 	    try {
 		if (encryptionKey.length() < 8) {
 		    encryptionKey += 
@@ -288,6 +311,8 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
         s += "\tSeconds since last Rtcp report " 
 	    + rtcpReceiver.secondsSinceLastReport(member.getRtcpAddress()) + "\n";
 
+	s += "\t" + member.getRtpStatistics() + "\n";
+
 	s += "\tMilliseconds since last packet received "
 	    + (System.currentTimeMillis() - timeCurrentPacketReceived + "\n");
 	s += "\tMedia packets received " + mediaPacketsReceived + "\n";
@@ -331,6 +356,16 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 
         this.rtcpReceiver = rtcpReceiver;
 
+	packetsReceivedCounter = MetricsRegistry.counter(
+	    "voicebridge_rtp_packets_received_total",
+	    "RTP packets received from members", "conference",
+	    conferenceManager.getId());
+
+	badPacketsCounter = MetricsRegistry.counter(
+	    "voicebridge_bad_packets_received_total",
+	    "Packets dropped because they aren't RTP or have an "
+	    + "unexpected payload", "conference", conferenceManager.getId());
+
 	conferenceWhisperGroup = 
 	    conferenceManager.getWGManager().getConferenceWhisperGroup();
 
@@ -866,6 +901,8 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
         /*
          * Make sure the dtmf detector knows there's silence
          */
+	DtmfDecoder dtmfDecoder = this.dtmfDecoder;
+
 	if (dtmfDecoder != null) {
             String dtmfKeys = dtmfDecoder.noDataReceived();
 
@@ -1011,6 +1048,10 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 
 	if (RtpPacket.isRtpData(receivedData) == false) {
             Util.dump(cp + ":  Dropping non-Rtp packet" + length, receivedData, 0, 16);
+
+	    if (badPacketsCounter != null) {
+		badPacketsCounter.increment();
+	    }
             return;
         }
 
@@ -1024,6 +1065,10 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 
 	packetsReceived++;
 
+	if (packetsReceivedCounter != null) {
+	    packetsReceivedCounter.increment();
+	}
+
 	if (packetsReceived == 1) {
 	    Logger.println("Call " + cp + " got first packet, length " 
 		+ length);
@@ -1060,7 +1105,16 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 	 */
 	long start = 0;
 
-	if (decryptCipher != null) {
+	if (srtpContext != null) {
+	    length = srtpDecrypt(receivedData, length);
+
+	    if (length < 0) {
+		if (badPacketsCounter != null) {
+		    badPacketsCounter.increment();
+		}
+		return;
+	    }
+	} else if (decryptCipher != null) {
 	    if (traceCall || Logger.logLevel == -1) {
 	        start = System.nanoTime();
 	    }
@@ -1079,6 +1133,8 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 	packet.setBuffer(receivedData);
 	packet.setLength(length);
 
+	member.getRtpStatistics().received(packet);
+
 	byte payload = packet.getRtpPayload();
 
 	/*
@@ -1157,10 +1213,15 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 	     * the RFC.  The data looks like audio data. 
 	     * But for now, we just drop the packet.
 	     */
-	     Logger.error("Call " + cp + " unexpected payload " + payload
-		+ " dropping packet ");
+	     if (badPacketsCounter != null) {
+		 badPacketsCounter.increment();
+	     }
+
+	     if (Logger.error(payload18Log, "Call " + cp 
+		    + " unexpected payload " + payload + " dropping packet ")) {
 
-	     Util.dump("bad payload 18 data", packet.getData(), 0, 16);
+	         Util.dump("bad payload 18 data", packet.getData(), 0, 16);
+	     }
 	} else if (payload == myMediaInfo.getPayload()) {
 	    if (traceCall || Logger.logLevel == -1) {
 		start = System.nanoTime();
@@ -1191,6 +1252,10 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 	        receiveDtmfPayload(packet);
 	    }
 	} else {
+	    if (badPacketsCounter != null) {
+		badPacketsCounter.increment();
+	    }
+
 	    if ((badPayloads % 1000) == 0) {
 		badPayloads++;
 
@@ -1224,8 +1289,11 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 	int dataLength = length - RtpPacket.HEADER_SIZE;
 
 	if ((dataLength % 80) != 0) {
-	    Logger.println("Can't handle ulaw packet of length " + length);
-	    Util.dump("Bad length", receivedData, 0, length);
+	    if (Logger.println(badLengthLog, 
+		    "Can't handle ulaw packet of length " + length)) {
+
+	        Util.dump("Bad length", receivedData, 0, length);
+	    }
 	    return;
 	}
 
@@ -1595,6 +1663,21 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
     private void receiveDtmfPayload(RtpReceiverPacket packet) {
 	byte[] data = packet.getData();
 
+	if (dtmfDecoder != null) {
+	    /*
+	     * The endpoint sends telephone events so there's no
+	     * need to look for dtmf tones in the audio.
+	     */
+	    if (traceCall || Logger.logLevel >= Logger.LOG_INFO) {
+		Logger.println("Call " + cp 
+		    + " sends telephone events, stopping dtmf Detector");
+	    }
+
+	    dtmfDecoder.printStatistics();
+	    dtmfDecoder = null;
+	    isAutoMuted = false;
+	}
+
 	if (traceCall || Logger.logLevel >= Logger.LOG_MOREINFO) {
 	    Util.dump("received telephoneEventPayload", data, 0, 16);
 	}
@@ -1834,6 +1917,12 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
 		}
 	    } 
 
+	    if (currentContribution != null &&
+		    whisperGroup.mayContribute(this, currentContribution) == false) {
+
+		currentContribution = null;
+	    }
+
 	    if (currentContribution != null) {
         	/*
          	 * Add this packet's data to the appropriate whisperGroup
@@ -2417,6 +2506,36 @@ public class MemberReceiver implements MixDataSource, TreatmentDoneListener,
     private long decryptCount;
     private long decryptTime;
 
+    /*
+     * Decrypt in place.  Packets which fail authentication
+     * or were replayed are dropped.
+     */
+    private int srtpDecrypt(byte[] data, int length) {
+	try {
+	    decryptCount++;
+	    long start = System.currentTimeMillis();
+
+	    length = srtpContext.unprotect(data, length);
+
+	    decryptTime += (System.currentTimeMillis() - start);
+
+	    if (length < 0 && Logger.logLevel >= Logger.LOG_DETAIL) {
+		Logger.println("Call " + cp + " dropping SRTP packet, "
+		    + srtpContext.getAuthenticationFailures()
+		    + " authentication failures, "
+		    + srtpContext.getReplayedPackets() + " replayed");
+	    }
+
+	    return length;
+	} catch (Exception e) {
+	    Logger.println("Call " + cp + " Decryption failed, length " 
+		+ length + ": " + e.getMessage());
+	    callHandler.cancelRequest("Decryption failed: " 
+		+ e.getMessage());
+	    return -1;
+	}
+    }
+
     private byte[] decrypt(byte[] data) {
 	try {
 	    decryptCount++;
@@ -28,9 +28,11 @@ import com.sun.voip.CallParticipant;
 import com.sun.voip.CallEvent;
 import com.sun.voip.Logger;
 import com.sun.voip.MediaInfo;
+import com.sun.voip.MetricsRegistry;
 import com.sun.voip.Recorder;
 import com.sun.voip.RecorderListener;
 import com.sun.voip.RtpPacket;
+import com.sun.voip.RtpStatistics;
 import com.sun.voip.RtpSenderPacket;
 import com.sun.voip.SampleRateConverter;
 import com.sun.voip.SdpManager;
@@ -79,6 +81,13 @@ public class MemberSender implements RecorderListener {
 
     private SpeexEncoder speexEncoder;
 
+    /*
+     * The complexity the encoder was created with and the
+     * overload complexity it's set to, 0 if none.
+     */
+    private int speexComplexity;
+    private int overloadComplexity;
+
     private InetSocketAddress memberAddress;
 
     private boolean done = false;
@@ -90,8 +99,18 @@ public class MemberSender implements RecorderListener {
     private double totalTimeToGetData;
     private int comfortPayloadsSent = 0;
 
+    private MetricsRegistry.Counter packetsSentCounter;
+    private MetricsRegistry.Counter comfortPayloadsSentCounter;
+
     private Cipher encryptCipher;
 
+    private SrtpCryptoContext srtpContext;
+
+    /*
+     * SRTP packets are written here so the RTP packet isn't changed
+     */
+    private byte[] srtpData = new byte[0];
+
     private String encryptionKey;
     private String encryptionAlgorithm;
 
@@ -106,17 +125,27 @@ public class MemberSender implements RecorderListener {
 
     private boolean initializationDone = false;
 
-    public MemberSender(CallParticipant cp, DatagramChannel datagramChannel)
-	    throws IOException {
+    private RtpStatistics rtpStatistics;
+
+    public MemberSender(CallParticipant cp, DatagramChannel datagramChannel,
+	    RtpStatistics rtpStatistics) throws IOException {
 
 	this.cp = cp;
 
 	this.datagramChannel = datagramChannel;
+	this.rtpStatistics = rtpStatistics;
 
 	encryptionKey = cp.getEncryptionKey();
 	encryptionAlgorithm = cp.getEncryptionAlgorithm();
 	
-	if (encryptionKey != null) {
+	if (encryptionKey != null &&
+		SrtpCryptoContext.isSrtp(encryptionAlgorithm)) {
+
+	    srtpContext = new SrtpCryptoContext(encryptionKey);
+
+	    Logger.println("Call " + cp + " Voice data will be encrypted "
+		+ "using SRTP " + encryptionAlgorithm);
+	} else if (encryptionKey != null) {
 	    try {
 		if (encryptionKey.length() < 8) {
 		    encryptionKey += 
@@ -213,6 +242,16 @@ public class MemberSender implements RecorderListener {
 	this.memberAddress = memberAddress;
 	this.telephoneEventPayload = telephoneEventPayload;
 
+	packetsSentCounter = MetricsRegistry.counter(
+	    "voicebridge_rtp_packets_sent_total",
+	    "RTP packets sent to members", "conference",
+	    conferenceManager.getId());
+
+	comfortPayloadsSentCounter = MetricsRegistry.counter(
+	    "voicebridge_comfort_payloads_sent_total",
+	    "Comfort noise payloads sent to members", "conference",
+	    conferenceManager.getId());
+
 	try {
 	    myMediaInfo = SdpManager.findMediaInfo(mediaPayload);
 	} catch (ParseException e) {
@@ -261,6 +300,9 @@ public class MemberSender implements RecorderListener {
 	    try {
         	speexEncoder = new SpeexEncoder(inSampleRate, inChannels);
 		Logger.println("Call " + cp + " created SpeexEncoder");
+
+		speexComplexity = speexEncoder.getComplexity();
+		overloadComplexity = 0;
 	    } catch (SpeexException e) {
 		Logger.println("Call " + cp
 		    + " Speex initialization for encoding failed:  "
@@ -430,6 +472,8 @@ public class MemberSender implements RecorderListener {
 	            Logger.writeFile("Call " + cp + " speex encoding data ");
 	        }
 
+		setSpeexComplexity();
+
 	        int length = speexEncoder.encode(dataToSend, rtpData, 
 		    RtpPacket.HEADER_SIZE);
 
@@ -451,6 +495,8 @@ public class MemberSender implements RecorderListener {
 	recordAudio(rtpData, RtpPacket.HEADER_SIZE, 
 	    senderPacket.getLength() - RtpPacket.HEADER_SIZE);
 
+	int payloadLength = senderPacket.getLength() - RtpPacket.HEADER_SIZE;
+
 	/*
 	 * Encrypt data if required
 	 */
@@ -480,6 +526,9 @@ public class MemberSender implements RecorderListener {
 		    ByteBuffer.wrap(senderPacket.getData(), 0, 
 		        senderPacket.getLength()), memberAddress);
 
+		rtpStatistics.sent(senderPacket.getSynchronizationSource(),
+		    (int) senderPacket.getRtpTimestamp(), payloadLength);
+
                 if (Logger.logLevel >= Logger.LOG_MOREDETAIL) {
 	            Logger.writeFile("Call " + cp + " back from sending data");
 	        }
@@ -507,6 +556,11 @@ public class MemberSender implements RecorderListener {
 
 	totalTimeToGetData += (System.nanoTime() - start);
 	packetsSent++;
+
+	if (packetsSentCounter != null) {
+	    packetsSentCounter.increment();
+	}
+
 	senderPacket.updateRtpHeader(rtpData.length);
 	return true;
     }
@@ -719,17 +773,24 @@ public class MemberSender implements RecorderListener {
 		
 	byte[] data = senderPacket.getData();
 
+	ByteBuffer buffer = ByteBuffer.wrap(data);
+
 	if (needToEncrypt()) {
             senderPacket.setLength(RtpPacket.DATA + 1);
 
 	    encrypt(data, senderPacket.getLength());
+
+	    buffer = ByteBuffer.wrap(senderPacket.getData(), 0,
+		senderPacket.getLength());
 	}
 
         senderPacket.setSocketAddress(memberAddress);
 
 	try {
-	    datagramChannel.send(
-		ByteBuffer.wrap(senderPacket.getData()), memberAddress);
+	    datagramChannel.send(buffer, memberAddress);
+
+	    rtpStatistics.sent(senderPacket.getSynchronizationSource(),
+		(int) senderPacket.getRtpTimestamp(), 1);
 	} catch (IOException e) {
 	    if (!done) {
 		Logger.println("Call " + cp + " sendComfortNoisePayload "
@@ -753,6 +814,11 @@ public class MemberSender implements RecorderListener {
 	}
 
 	comfortPayloadsSent++;
+
+	if (comfortPayloadsSentCounter != null) {
+	    comfortPayloadsSentCounter.increment();
+	}
+
 	return true;
     }
 
@@ -1077,6 +1143,26 @@ public class MemberSender implements RecorderListener {
 	dtmfSendSequence = 0;
     }
 
+    /*
+     * Lower the encoder complexity while the bridge is overloaded
+     * and put it back when it isn't.
+     */
+    private void setSpeexComplexity() {
+	int complexity = OverloadController.getSpeexComplexity();
+
+	if (complexity == overloadComplexity) {
+	    return;
+	}
+
+	if (complexity == 0) {
+	    speexEncoder.setComplexity(speexComplexity);
+	} else {
+	    speexEncoder.setComplexity(complexity);
+	}
+
+	overloadComplexity = complexity;
+    }
+
     public void speexEncode(int[] intData, byte[] byteData) 
 	    throws SpeexException {
 
@@ -1094,7 +1180,7 @@ public class MemberSender implements RecorderListener {
     private long encryptTime;
 
     public boolean needToEncrypt() {
-        return encryptCipher != null;
+        return encryptCipher != null || srtpContext != null;
     }
 
     public void encrypt(byte[] data, int length) {
@@ -1102,6 +1188,23 @@ public class MemberSender implements RecorderListener {
 	try {
 	    encryptCount++;
 	    long start = System.currentTimeMillis();
+
+	    if (srtpContext != null) {
+		if (srtpData.length < length + 
+			SrtpCryptoContext.AUTH_TAG_LENGTH) {
+
+		    srtpData = new byte[length + 
+			SrtpCryptoContext.AUTH_TAG_LENGTH];
+		}
+
+		int srtpLength = srtpContext.protect(data, length, srtpData);
+
+	        encryptTime += (System.currentTimeMillis() - start);
+		senderPacket.setBuffer(srtpData);
+		senderPacket.setLength(srtpLength);
+		return;
+	    }
+
 	    byte[] cipherText = encryptCipher.doFinal(data, 0, length);
 	    encryptTime += (System.currentTimeMillis() - start);
 	    senderPacket.setBuffer(cipherText);
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.voip.server;
+
+import com.sun.voip.Logger;
+import com.sun.voip.MetricsRegistry;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Metrics Server
+ *
+ * Listen on a TCP socket for HTTP requests and answer each one
+ * with the bridge metrics in the Prometheus text format.
+ *
+ * Scrapes are infrequent so requests are answered one at a time.
+ */
+public class MetricsServer extends Thread {
+
+    /*
+     * How long to wait for a client to send its request
+     */
+    private static final int READ_TIMEOUT = 5000;
+
+    private ServerSocket serverSocket;
+
+    public MetricsServer(int port) throws IOException {
+	serverSocket = new ServerSocket(port);
+
+	setName("MetricsServer");
+	setDaemon(true);
+	start();
+
+	Logger.println("Metrics available at http://<bridge>:" + port
+	    + "/metrics");
+    }
+
+    public void run() {
+	while (true) {
+	    Socket socket;
+
+	    try {
+		socket = serverSocket.accept(); // wait for a connection
+	    } catch (IOException e) {
+		Logger.println("MetricsServer accept failed:  "
+		    + e.getMessage());
+		break;
+	    }
+
+	    try {
+		answer(socket);
+	    } catch (IOException e) {
+		if (Logger.logLevel >= Logger.LOG_INFO) {
+		    Logger.println("MetricsServer unable to answer "
+			+ socket + ":  " + e.getMessage());
+		}
+	    }
+
+	    try {
+		socket.close();
+	    } catch (IOException e) {
+	    }
+	}
+    }
+
+    private void answer(Socket socket) throws IOException {
+	socket.setSoTimeout(READ_TIMEOUT);
+
+	BufferedReader reader = new BufferedReader(
+	    new InputStreamReader(socket.getInputStream()));
+
+	String request = reader.readLine();
+
+	if (request == null) {
+	    return;
+	}
+
+	/*
+	 * Skip the headers
+	 */
+	String s;
+
+	while ((s = reader.readLine()) != null && s.length() > 0)
+	    ;
+
+	String status;
+	String body;
+
+	if (request.startsWith("GET ")) {
+	    status = "200 OK";
+	    body = MetricsRegistry.getMetrics();
+	} else {
+	    status = "405 Method Not Allowed";
+	    body = "Only GET is supported\n";
+	}
+
+	byte[] bytes = body.getBytes("UTF-8");
+
+	String header = "HTTP/1.0 " + status + "\r\n"
+	    + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+	    + "Content-Length: " + bytes.length + "\r\n"
+	    + "Connection: close\r\n"
+	    + "\r\n";
+
+	OutputStream output = socket.getOutputStream();
+
+	output.write(header.getBytes("ISO-8859-1"));
+	output.write(bytes);
+	output.flush();
+    }
+
+}
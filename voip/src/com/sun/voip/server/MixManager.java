@@ -408,6 +408,22 @@ public class MixManager {
 	    if (mixDescriptor.isPrivateMix() == true) {
 		double[] spatialValues = mixDescriptor.getSpatialValues();
 
+		if (spatialValues[3] < OverloadController.DISTANT_VOLUME &&
+			OverloadController.spatializeDistantSources() == false &&
+			MixDescriptor.isSpatiallyNeutral(spatialValues) == false) {
+
+		    /*
+		     * The bridge is overloaded.  Distant sources are
+		     * only made quieter, which is much cheaper than
+		     * placing them.
+		     */
+		    double[] sv = new double[4];
+
+		    sv[3] = spatialValues[3];
+
+		    spatialValues = sv;
+		}
+
 		if (MixDescriptor.isSpatiallyNeutral(spatialValues) &&
 			spatialValues[3] != 0) {
 
@@ -81,36 +81,52 @@ public class OutgoingCallHandler extends CallHandler
     private static int nCalls = 0;	// for debugging two gateways
     
     public void run() {
+	if (admitCall() == false) {
+	    removeCallEventListener(this);
+	    return;
+	}
+
         /*
          * Join an existing conference or create a new one.
          */
-        synchronized (ConferenceManager.getConferenceList()) {
+        do {
             conferenceManager = ConferenceManager.getConference(cp);
             
             if (conferenceManager == null) {
                 Logger.error("Couldn't start conference "
                         + cp.getConferenceId());
                 
+		admissionDone();
+
                 sendCallEventNotification(
 		    new CallEvent(CallEvent.CANT_START_CONFERENCE));
                 return;
             }
             
             try {
+		/*
+		 * member is null if the conference ended before we
+		 * could join.  In that case, start a new one.
+		 */
                 member = conferenceManager.joinConference(cp);
-                memberSender = member.getMemberSender();
-                memberReceiver = member.getMemberReceiver();
             } catch (IOException e) {
 		CallEvent callEvent = 
 		    new CallEvent(CallEvent.CANT_CREATE_MEMBER);
 
 		callEvent.setInfo(e.getMessage());
 
+		admissionDone();
+
                 sendCallEventNotification(callEvent);
         	removeCallEventListener(this);
                 return;
             }
-        }
+        } while (member == null);
+
+	admissionDone();
+
+        memberSender = member.getMemberSender();
+        memberReceiver = member.getMemberReceiver();
         
 	addCall(this);		// add to list of active calls
         
@@ -457,6 +473,14 @@ public class OutgoingCallHandler extends CallHandler
 		} catch (InterruptedException e) {
 		}
 	    }
+
+	    if (csa == null) {
+		/*
+		 * The call ended before it was initiated.
+		 */
+		return null;
+	    }
+
 	    return csa.getSdp();
 	}
     }
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip.server;
+
+import com.sun.voip.Logger;
+import com.sun.voip.MetricsRegistry;
+import com.sun.voip.RtpPacket;
+
+/**
+ * Shed audio quality when the conference sender falls behind.
+ *
+ * The sender has to mix and send a packet to every member every 20ms.
+ * When a tick overruns, the next one starts late and if that keeps
+ * happening, every call's audio breaks up.  Rather than letting that
+ * happen, the bridge steps through levels which each give up some
+ * quality to save time:
+ *
+ *	NO_ECHO		spatial audio doesn't add the echo and
+ *			attenuation for sources behind the listener.
+ *	NO_DISTANT_SPATIALIZATION
+ *			private mixes for sources quieter than
+ *			DISTANT_VOLUME only adjust the volume rather
+ *			than placing the source left or right.
+ *	LOW_SPEEX_COMPLEXITY
+ *			Speex encoders use the lowest complexity.
+ *	MAX_SPEAKERS	only OVERLOAD_MAX_SPEAKERS members of a whisper
+ *			group are mixed at once.
+ *
+ * The senders report every tick.  Once a second the ticks are looked at.
+ * If more than OVERLOAD_LATE_TICKS of them were late, the bridge goes
+ * down a level.  When there were no late ticks and the sender was busy
+ * for less than half of each tick for RECOVERY_SECONDS in a row, it
+ * comes back up a level.
+ */
+public class OverloadController {
+
+    private static final String OVERLOAD_CONTROL =
+	"com.sun.voip.server.OVERLOAD_CONTROL";
+
+    private static final String OVERLOAD_LATE_TICKS =
+	"com.sun.voip.server.OVERLOAD_LATE_TICKS";
+
+    private static final String OVERLOAD_MAX_SPEAKERS =
+	"com.sun.voip.server.OVERLOAD_MAX_SPEAKERS";
+
+    public static final int NORMAL = 0;
+    public static final int NO_ECHO = 1;
+    public static final int NO_DISTANT_SPATIALIZATION = 2;
+    public static final int LOW_SPEEX_COMPLEXITY = 3;
+    public static final int MAX_SPEAKERS = 4;
+
+    private static final String[] levelNames = {
+	"normal",
+	"no echo",
+	"no distant spatialization",
+	"low speex complexity",
+	"max speakers",
+    };
+
+    /*
+     * Private mixes with a volume below this are for distant sources
+     */
+    public static final double DISTANT_VOLUME = .3;
+
+    /*
+     * Complexity 0 breaks the encoder
+     */
+    public static final int LOW_SPEEX_COMPLEXITY_VALUE = 1;
+
+    /*
+     * A tick which starts more than this many nanoseconds late is late
+     */
+    private static final long LATE = 2000000;
+
+    private static final int TICKS_PER_WINDOW = RtpPacket.PACKETS_PER_SECOND;
+
+    private static final int RECOVERY_SECONDS = 5;
+
+    private static final long PERIOD = RtpPacket.PACKET_PERIOD * 1000000L;
+
+    private static boolean enabled = true;
+
+    private static int maxLateTicks = 5;
+
+    private static int maxSpeakers = 4;
+
+    private static int level;
+
+    /*
+     * The window being looked at
+     */
+    private static int ticks;
+    private static int lateTicks;
+    private static long busyTime;
+
+    private static int quietWindows;
+
+    private static long totalLateTicks;
+    private static long degraded;
+    private static long restored;
+
+    private static MetricsRegistry.Counter lateTickCounter =
+	MetricsRegistry.counter("voicebridge_sender_late_ticks_total",
+	    "Sender ticks which started late");
+
+    static {
+	enabled = Boolean.valueOf(
+	    System.getProperty(OVERLOAD_CONTROL, "true")).booleanValue();
+
+	maxLateTicks = getProperty(OVERLOAD_LATE_TICKS, maxLateTicks);
+	maxSpeakers = Math.max(1, 
+	    getProperty(OVERLOAD_MAX_SPEAKERS, maxSpeakers));
+
+	MetricsRegistry.gauge("voicebridge_overload_level",
+	    "Quality shedding level, 0 is full quality",
+	    new MetricsRegistry.GaugeSource() {
+		public double getValue() {
+		    return getLevel();
+		}
+	    });
+    }
+
+    private OverloadController() {
+    }
+
+    private static int getProperty(String name, int defaultValue) {
+	String s = System.getProperty(name);
+
+	if (s == null) {
+	    return defaultValue;
+	}
+
+	try {
+	    return Integer.parseInt(s);
+	} catch (NumberFormatException e) {
+	    Logger.println("Invalid value '" + s + "' for " + name 
+		+ ", using " + defaultValue);
+	    return defaultValue;
+	}
+    }
+
+    /**
+     * Called by a conference sender after each tick.
+     *
+     * @param lateness nanoseconds the tick started after it should have
+     * @param elapsed nanoseconds it took to mix and send
+     */
+    public static synchronized void tickDone(long lateness, long elapsed) {
+	if (enabled == false) {
+	    return;
+	}
+
+	ticks++;
+
+	if (lateness > LATE) {
+	    lateTicks++;
+	    totalLateTicks++;
+	    lateTickCounter.increment();
+	}
+
+	busyTime += elapsed;
+
+	if (ticks < TICKS_PER_WINDOW) {
+	    return;
+	}
+
+	if (lateTicks > maxLateTicks) {
+	    quietWindows = 0;
+
+	    if (level < MAX_SPEAKERS) {
+		setLevel(level + 1);
+	    }
+	} else if (lateTicks == 0 && busyTime < ticks * PERIOD / 2) {
+	    if (level > NORMAL && ++quietWindows >= RECOVERY_SECONDS) {
+		quietWindows = 0;
+		setLevel(level - 1);
+	    }
+	} else {
+	    quietWindows = 0;
+	}
+
+	ticks = 0;
+	lateTicks = 0;
+	busyTime = 0;
+    }
+
+    /**
+     * The senders are idle, go back to full quality.
+     */
+    public static synchronized void reset() {
+	ticks = 0;
+	lateTicks = 0;
+	busyTime = 0;
+	quietWindows = 0;
+
+	if (level != NORMAL) {
+	    setLevel(NORMAL);
+	}
+    }
+
+    private static void setLevel(int newLevel) {
+	String direction = newLevel > level ? "degrade" : "restore";
+
+	Logger.println("Sender " + (newLevel > level ? "overloaded" : 
+	    "has headroom") + ", " + levelNames[level] + " -> " 
+	    + levelNames[newLevel]);
+
+	if (newLevel > level) {
+	    degraded++;
+	} else {
+	    restored++;
+	}
+
+	level = newLevel;
+
+	MetricsRegistry.counter("voicebridge_overload_transitions_total",
+	    "Changes of quality shedding level",
+	    "direction", direction, "level", String.valueOf(level)).increment();
+    }
+
+    public static int getLevel() {
+	return level;
+    }
+
+    public static boolean echoEnabled() {
+	return level < NO_ECHO;
+    }
+
+    public static boolean spatializeDistantSources() {
+	return level < NO_DISTANT_SPATIALIZATION;
+    }
+
+    /**
+     * @return the complexity Speex encoders should use or 0 to
+     * leave them as they were created.
+     */
+    public static int getSpeexComplexity() {
+	return level < LOW_SPEEX_COMPLEXITY ? 0 : LOW_SPEEX_COMPLEXITY_VALUE;
+    }
+
+    /**
+     * @return the number of members of a whisper group which may
+     * be mixed at once or 0 for no limit.
+     */
+    public static int getMaxSpeakers() {
+	return level < MAX_SPEAKERS ? 0 : maxSpeakers;
+    }
+
+    public static synchronized String getStatistics() {
+	return "Overload level " + level + " (" + levelNames[level] + "), "
+	    + totalLateTicks + " late ticks, " + degraded + " times degraded, "
+	    + restored + " times restored";
+    }
+
+}
@@ -52,6 +52,15 @@ import java.util.TimerTask;
  * Each request line consists of ascii text and must be terminated 
  * with a newline.  The end of request is signaled by a line 
  * with only a newline character.
+ *
+ * When requestIds is enabled, a request line may be prefixed with
+ * "[<id>]".  Every line written in response to that request is prefixed
+ * with the same "[<id>]" and the response ends with "[<id>]END -- <status>"
+ * even if synchronousMode is off.  Lines without a prefix are status
+ * notifications.  This lets a client send many requests without waiting
+ * for each response and match responses to requests as they arrive.
+ * Call setup responses are sent when the call has been initiated
+ * so they may arrive after responses to later requests.
  */
 class RequestHandler extends Thread implements CallEventListener {
     private Socket socket;
@@ -64,6 +73,13 @@ class RequestHandler extends Thread implements CallEventListener {
 
     private boolean synchronousMode;
 
+    private boolean requestIds;
+
+    /*
+     * Id of the request currently being handled by this thread
+     */
+    private String requestId;
+
     private static String bridgePublicAddress;
     private static int bridgeSipPort;
 
@@ -148,6 +164,8 @@ class RequestHandler extends Thread implements CallEventListener {
 	     */
 	    String errorMsg = null;
 
+	    boolean replyPending = false;
+
 	    while (true) {
 		synchronousMode = requestParser.synchronousMode();
 
@@ -188,12 +206,25 @@ class RequestHandler extends Thread implements CallEventListener {
 		    return;
 		}
 
+		request = getRequestId(request);
+
 		if (suspended) {
 		    if (request.equalsIgnoreCase("resume") == false) {
 		        continue;	// ignore input
 		    }
 		}
 
+		if (request.indexOf("bpm=") == 0 ||
+			request.indexOf("bulkPrivateMix=") == 0) {
+
+		    if (bulkPrivateMix(requestParser, request) == false) {
+		        endAllCalls("client socket closed");
+		        removeHandler(this);
+		        return;
+		    }
+		    continue;
+		}
+
 		if (request.indexOf("pm=") == 0 || 
 			request.indexOf("privateMix=") == 0 ||
 			request.indexOf("pmx") == 0) {
@@ -231,7 +262,7 @@ class RequestHandler extends Thread implements CallEventListener {
 			writeToSocket("Too many calls to the same number! "
 			   + cp.getPhoneNumber());
 
-			if (synchronousMode) {
+			if (replyExpected()) {
 			    writeToSocket(
 				"END -- FAILED:  Too many calls "
 				+ "to the same number!");
@@ -239,6 +270,29 @@ class RequestHandler extends Thread implements CallEventListener {
 			continue;
 		    }
 
+		    if (cp.migrateCall() == false && 
+			    cp.isDistributedBridge() == false &&
+			    CallAdmission.isAcceptingCalls() == false) {
+
+			/*
+			 * Turn the call away now rather than let
+			 * every call's audio suffer.
+			 */
+			Logger.println("Bridge is full, rejecting call " + cp);
+
+			CallEvent callEvent = 
+			    new CallEvent(CallEvent.BRIDGE_FULL);
+
+			callEvent.setCallId(cp.getCallId());
+			callEvent.setConferenceId(cp.getConferenceId());
+			callEventNotification(callEvent);
+
+			if (replyExpected()) {
+			    writeToSocket("END -- FAILED:  Bridge is full");
+			}
+			continue;
+		    }
+
 		    if (cp.getRemoteMediaInfo() != null) {
 			cp.setProtocol("NS");
 			cp.setConferenceId(null);
@@ -251,7 +305,14 @@ class RequestHandler extends Thread implements CallEventListener {
 			
 			callHandler.start();
 
-			if (synchronousMode) {
+			if (requestId != null) {
+			    /*
+			     * Don't hold up other requests while
+			     * the call is being initiated.
+			     */
+			    new SdpWriter(callHandler, requestId);
+			    replyPending = true;
+			} else if (synchronousMode) {
 			    String sdp = callHandler.getSdp();
 
 			    if (Logger.logLevel >= Logger.LOG_INFO) {
@@ -272,7 +333,7 @@ class RequestHandler extends Thread implements CallEventListener {
 
 		if (request.indexOf("?") == 0) {
 		    writeToSocket(cp.getCallSetupRequest());
-		    if (synchronousMode) {
+		    if (replyExpected()) {
 		        writeToSocket("END -- SUCCESS");
 		    }
 		    continue;
@@ -284,7 +345,7 @@ class RequestHandler extends Thread implements CallEventListener {
 		    OutgoingCallHandler.hangup(
 			this, "client requested call end");
 
-		    if (synchronousMode) {
+		    if (replyExpected()) {
 		        writeToSocket("END -- SUCCESS");
 		    }
 		    continue;
@@ -299,7 +360,7 @@ class RequestHandler extends Thread implements CallEventListener {
 
 	        try {
 	            if (requestParser.parseRequest(request) == true) {
-		        if (synchronousMode) {
+		        if (replyExpected()) {
 			    writeToSocket("END -- SUCCESS");
 		        }
 		    }
@@ -307,13 +368,13 @@ class RequestHandler extends Thread implements CallEventListener {
 	            Logger.error(e.getMessage());
 	            writeToSocket(e.getMessage());
 
-		    if (synchronousMode) {
+		    if (replyExpected()) {
 		        writeToSocket("END -- FAILED:  " + e.getMessage());
 		    }
 	        }
 	    }
 
-	    if (synchronousMode) {
+	    if (replyPending == false && replyExpected()) {
 		if (errorMsg == null) {
 	            writeToSocket("END -- SUCCESS");
 		} else {
@@ -323,6 +384,179 @@ class RequestHandler extends Thread implements CallEventListener {
 	}
     }
 
+    /*
+     * Most private mixes a single bulk private mix request may carry.
+     * That's every pair of about 300 calls.
+     */
+    private static final int MAX_BULK_PRIVATE_MIXES = 100000;
+
+    /*
+     * Read the private mixes which follow a bulk private mix request
+     * and set them all at once so they are applied together.
+     *
+     * @return false if the client closed the socket.
+     */
+    private boolean bulkPrivateMix(RequestParser requestParser,
+	    String request) {
+
+	Logger.writeFile(request);
+
+	int count;
+
+	try {
+	    count = Integer.parseInt(
+		request.substring(request.indexOf("=") + 1).trim());
+	} catch (NumberFormatException e) {
+	    count = -1;
+	}
+
+	if (count < 0 || count > MAX_BULK_PRIVATE_MIXES) {
+	    /*
+	     * We don't know how many lines follow or we won't read
+	     * that many.  They will be rejected as invalid requests.
+	     */
+	    String errorMsg = "Invalid private mix count:  " + request;
+
+	    Logger.error(errorMsg);
+	    writeToSocket(errorMsg);
+
+	    if (replyExpected()) {
+		writeToSocket("END -- FAILED:  " + errorMsg);
+	    }
+	    return true;
+	}
+
+	/*
+	 * The count comes from the client so don't size the list from it.
+	 */
+	ArrayList<String> records = new ArrayList<String>();
+
+	String tag = null;
+
+	if (requestId != null) {
+	    tag = "[" + requestId + "]";
+	}
+
+	for (int i = 0; i < count; i++) {
+	    String record;
+
+	    try {
+	        record = bufferedReader.readLine();
+	    } catch (IOException e) {
+		return false;
+	    }
+
+	    if (record == null) {
+		return false;
+	    }
+
+	    if (tag != null && record.startsWith(tag)) {
+		record = record.substring(tag.length());
+	    }
+
+	    records.add(record);
+	}
+
+	if (ignorePmx == false) {
+	    /*
+	     * Report the records which weren't set, one line each,
+	     * and still set the others.
+	     */
+	    for (String s : requestParser.parseBulkPrivateMix(records)) {
+	        Logger.println(s);
+	        writeToSocket(s);
+	    }
+	}
+
+	if (replyExpected()) {
+	    writeToSocket("END -- SUCCESS");
+	}
+	return true;
+    }
+
+    /*
+     * Strip the "[<id>]" prefix from a request and remember the id
+     * so the response can be tagged with it.
+     */
+    private String getRequestId(String request) {
+	requestId = null;
+
+	if (requestIds == false || request.indexOf("[") != 0) {
+	    return request;
+	}
+
+	int ix = request.indexOf("]");
+
+	if (ix < 0) {
+	    return request;
+	}
+
+	requestId = request.substring(1, ix);
+	return request.substring(ix + 1);
+    }
+
+    private boolean replyExpected() {
+	return synchronousMode || requestId != null;
+    }
+
+    public void setRequestIds(boolean requestIds) {
+	this.requestIds = requestIds;
+
+	/*
+	 * Responses are written a line at a time.  With many requests
+	 * outstanding, waiting to coalesce them only adds latency.
+	 */
+	try {
+	    socket.setTcpNoDelay(requestIds);
+	} catch (IOException e) {
+	    Logger.println("Unable to set TCP_NODELAY for " + socket
+		+ ": " + e.getMessage());
+	}
+    }
+
+    /*
+     * Wait for a call to be initiated then send the sdp and the
+     * end of the response for the request which started the call.
+     */
+    class SdpWriter extends Thread {
+
+	private OutgoingCallHandler callHandler;
+	private String requestId;
+
+	public SdpWriter(OutgoingCallHandler callHandler, String requestId) {
+	    this.callHandler = callHandler;
+	    this.requestId = requestId;
+
+	    setName("SdpWriter-" + requestId);
+	    start();
+	}
+
+	public void run() {
+	    String sdp = callHandler.getSdp();
+
+	    if (callHandler.isCallEnding()) {
+		String reason = callHandler.getReasonCallEnded();
+
+		if (reason == null) {
+		    reason = "Call ended before it was initiated";
+		}
+
+		writeToSocket("END -- FAILED:  " + reason, requestId);
+		return;
+	    }
+
+	    if (Logger.logLevel >= Logger.LOG_INFO) {
+		Logger.println("Writing sdp to socket " + sdp);
+	    }
+
+	    if (sdp != null) {
+		writeToSocket(sdp, requestId);
+	    }
+
+	    writeToSocket("END -- SUCCESS", requestId);
+	}
+    }
+
     private static boolean ignorePmx;
 
     public static void ignorePmx(boolean ignorePmx) {
@@ -916,7 +1150,7 @@ class RequestHandler extends Thread implements CallEventListener {
 	    return;
 	}
 
-	writeToSocket(callEvent.toString());
+	writeToSocket(callEvent.toString(), null);
     }
 
     public static void notifyConferenceMonitors(CallEvent callEvent) {
@@ -950,7 +1184,7 @@ class RequestHandler extends Thread implements CallEventListener {
 
 	    for (ConferenceMonitor m : conferenceMonitors) {
                 if (conferenceId.equals(m.getConferenceId())) {
-		    m.getRequestHandler().writeToSocket(s);
+		    m.getRequestHandler().writeToSocket(s, null);
 		}
 	    }
 	}
@@ -1003,6 +1237,9 @@ class RequestHandler extends Thread implements CallEventListener {
 		    + (Math.round(ConferenceSender.getMaxSendTime() * 10000) / 10000.)
 		    + " ms");
 
+		writeToSocket(CallAdmission.getStatistics());
+		writeToSocket(OverloadController.getStatistics());
+
 		writeToSocket("");
 
 	        try {
@@ -1091,10 +1328,28 @@ class RequestHandler extends Thread implements CallEventListener {
     }
 
     public void writeToSocket(String s) {
+	if (Thread.currentThread() == this) {
+	    writeToSocket(s, requestId);
+	} else {
+	    writeToSocket(s, null);
+	}
+    }
+
+    /*
+     * Write a String to the client's socket prefixing every line
+     * with the request id, if there is one.
+     */
+    private void writeToSocket(String s, String requestId) {
 	if (socket == null || s == null) {
 	    return;
 	}
 
+	if (requestId != null) {
+	    String tag = "[" + requestId + "]";
+
+	    s = tag + s.replace("\n", "\n" + tag);
+	}
+
 	if (suspended) {
 	    return;
 	}
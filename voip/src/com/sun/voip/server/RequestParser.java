@@ -31,6 +31,7 @@ import com.sun.voip.CallParticipant;
 import com.sun.voip.CallEvent;
 import com.sun.voip.CallEventListener;
 import com.sun.voip.Logger;
+import com.sun.voip.MetricsRegistry;
 import com.sun.voip.Recorder;
 import com.sun.voip.RtpPacket;
 import com.sun.voip.RtpSocket;
@@ -58,6 +59,8 @@ import java.lang.NumberFormatException;
 
 import java.net.Socket;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.logging.Level;
 
 import java.util.NoSuchElementException;
@@ -137,8 +140,17 @@ import java.util.Vector;
  *
  *	allowShortNames | asn     = <true> | <false>
  *
+ *	asyncLogging | alog       = true | false
+ *
  *	bridgeLocation | bl       = <3 charaction location of bridge>
  *
+ *	bulkPrivateMix | bpm      = <number of private mixes>
+ *				    followed by one line for each private mix,
+ *				    <FrontBack> : <LeftRight> : <upDown> :
+ *				    <volume> : <callId> : <pmCallId>
+ *				    Records which can't be set are
+ *				    reported and skipped.
+ *
  *      callAnswerTimeout | cat   = <seconds>
  *
  *	cancel			  = <callId>
@@ -216,6 +228,9 @@ import java.util.Vector;
  *
  *      maxJitterBufferSize | maxjb = <int> : <callId>
  *
+ *	metrics			  (counters, gauges and histograms in
+ *				   the Prometheus text format)
+ *
  *	migrate			  = <existing callId> : 
  * 	    <new Phone Number> | Id-<new CallId>
  *
@@ -273,6 +288,8 @@ import java.util.Vector;
  *
  *	removeConference | rconf  = <conferenceId>
  *
+ *	requestIds | rid          = true | false
+ *
  * 	restartInputTreatment = <callId>
  *
  *	resumeTreatmentToCall | rtc = <callId>
@@ -1647,11 +1664,31 @@ public class RequestParser {
             	+ ConferenceManager.getNumberOfConferences()
         	+ "\nCalls:\t\t" + ConferenceManager.getTotalMembers()
         	+ "\nSpeaking:\t" + CallHandler.getTotalSpeaking()
+		+ "\nSendTime:\t" + ConferenceSender.getAverageSendTime()
+		+ "\nMaxSendTime:\t" + ConferenceSender.getMaxSendTime()
+		+ "\nHeadroom:\t" 
+		+ Math.round(CallAdmission.getHeadroom() * 1000) / 1000.
+		+ "\nAcceptingCalls:\t" + CallAdmission.isAcceptingCalls()
+		+ "\nOverloadLevel:\t" + OverloadController.getLevel()
 		+ "\n" + ConferenceManager.getBriefConferenceInfo());
             return true;
         } catch (ParameterException e) {
         }
 
+        try {
+            parameterMatch("metrics", "", request);
+
+	    String s = MetricsRegistry.getMetrics();
+
+	    if (s.endsWith("\n")) {
+		s = s.substring(0, s.length() - 1);
+	    }
+
+            requestHandler.writeToSocket(s);
+            return true;
+        } catch (ParameterException e) {
+        }
+
 	try {
 	    parameterMatch("help", "h", request);
 	    displayCallParameters();
@@ -2327,82 +2364,9 @@ public class RequestParser {
 	     */
 	    String s = getValue("pmx", "", request);
 
-	    String[] tokens = s.split(":");
-
-	    if (tokens.length < 6) {
-		if (tokens.length != 5) {
-		    throw new ParseException("missing parameters " + s, 0);
-		}
-
-		/*
-		 * For compatibility before up/down was added
-		 */
-		String[] t = new String[6];
-
-		t[0] = tokens[0];
-		t[1] = tokens[1];
-		t[2] = "0";
-		t[3] = tokens[2];
-		t[4] = tokens[3];
-		t[5] = tokens[4];
-
-		tokens = t;
-	    }
-
-	    double[] spatialValues = new double[4];
-
-	    try {
-		// frontBack
-                spatialValues[0] = Double.parseDouble(tokens[0]);
-            } catch (NumberFormatException e) {
-                throw new ParseException("Invalid front/back value:  "
-                    + tokens[0], 0);
-            }
-
-	    try {
-		// leftRight
-                spatialValues[1] = Double.parseDouble(tokens[1]);
-            } catch (NumberFormatException e) {
-                throw new ParseException("Invalid left/right value:  "
-                    + tokens[1], 0);
-            }
-
-	    try {
-		// upDown 
-                spatialValues[2] = Double.parseDouble(tokens[2]);
-            } catch (NumberFormatException e) {
-                throw new ParseException("Invalid up/down value:  "
-                    + tokens[2], 0);
-            }
-
-	    try {
-		spatialValues[3] = Double.parseDouble(tokens[3]);
-	    } catch (NumberFormatException e) {
-	    	throw new ParseException("Invalid volume value:  " 
-		    + tokens[3], 0);
-	    }
-
-	    String callId = tokens[4];
-
-	    CallHandler callHandler = CallHandler.findCall(callId);
-
-	    if (callHandler == null) {
-                throw new ParseException("Invalid callId:  " + callId, 0);
-	    }
-
-	    String privateMixCallId = tokens[5];
-
-	    CallHandler privateMixCallHandler = 
-		CallHandler.findCall(privateMixCallId);
-
-	    if (privateMixCallHandler == null) {
-                throw new ParseException("Invalid callId:  " 
-		    + privateMixCallId, 0);
-	    }
-
-	    privateMixCallHandler.getMember().setPrivateMix(
-		callHandler.getMember(), spatialValues);
+	    ConferenceMember.PrivateMix mix = parsePrivateMix(s, null);
 
+	    mix.memberWithMix.setPrivateMix(mix.member, mix.spatialValues);
             return true;
         } catch (ParameterException e) {
         }
@@ -2968,6 +2932,13 @@ public class RequestParser {
 	}  catch (ParameterException e) {
         }
 
+	try {
+	   requestHandler.setRequestIds(
+	       getBooleanValue("requestIds", "rid", request));
+	   return true;
+	}  catch (ParameterException e) {
+        }
+
 	try {
 	    integerValue = getIntegerValue("shutdown", "", request);
 	    /*
@@ -3312,6 +3283,12 @@ public class RequestParser {
         } catch (ParameterException e) {
         }
 
+	try {
+            Logger.setAsync(getBooleanValue("asyncLogging", "alog", request));
+	    return true;
+	} catch (ParameterException e) {
+	}
+
 	try {
             Logger.writeThru = getBooleanValue("writeThru", "wt", request);
 	    return true;
@@ -3321,12 +3298,143 @@ public class RequestParser {
 	return false;
     }
 
+    /*
+     * Parse the private mixes of a bulk private mix request
+     * and queue them all at once so they are applied together.
+     * A record which is invalid, for instance because one of its
+     * calls has just ended, is skipped so the rest are still set.
+     *
+     * @return a message for each record which was skipped.
+     */
+    public ArrayList<String> parseBulkPrivateMix(ArrayList<String> records) {
+	ArrayList<ConferenceMember.PrivateMix> mixes = 
+	    new ArrayList<ConferenceMember.PrivateMix>(records.size());
+
+	ArrayList<String> skipped = new ArrayList<String>();
+
+	/*
+	 * The same calls appear in many records.
+	 */
+	HashMap<String, CallHandler> calls = new HashMap<String, CallHandler>();
+
+	for (String record : records) {
+	    try {
+	        mixes.add(parsePrivateMix(record, calls));
+	    } catch (ParseException e) {
+		/*
+		 * The record goes last so the client can find it.
+		 */
+		skipped.add("Private mix not set:  " + e.getMessage() 
+		    + ":  " + record);
+	    }
+	}
+
+	ConferenceMember.setPrivateMixes(mixes);
+	return skipped;
+    }
+
+    /*
+     * <FrontBack> : <LeftRight> : <upDown> : <volume> : <callId> : <pmCallId>
+     */
+    private ConferenceMember.PrivateMix parsePrivateMix(String s,
+	    HashMap<String, CallHandler> calls) throws ParseException {
+
+	String[] tokens = s.split(":");
+
+	if (tokens.length < 6) {
+	    if (tokens.length != 5) {
+		throw new ParseException("missing parameters " + s, 0);
+	    }
+
+	    /*
+	     * For compatibility before up/down was added
+	     */
+	    String[] t = new String[6];
+
+	    t[0] = tokens[0];
+	    t[1] = tokens[1];
+	    t[2] = "0";
+	    t[3] = tokens[2];
+	    t[4] = tokens[3];
+	    t[5] = tokens[4];
+
+	    tokens = t;
+	}
+
+	double[] spatialValues = new double[4];
+
+	try {
+	    // frontBack
+            spatialValues[0] = Double.parseDouble(tokens[0]);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid front/back value:  "
+                + tokens[0], 0);
+        }
+
+	try {
+	    // leftRight
+            spatialValues[1] = Double.parseDouble(tokens[1]);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid left/right value:  "
+                + tokens[1], 0);
+        }
+
+	try {
+	    // upDown 
+            spatialValues[2] = Double.parseDouble(tokens[2]);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid up/down value:  "
+                + tokens[2], 0);
+        }
+
+	try {
+	    spatialValues[3] = Double.parseDouble(tokens[3]);
+	} catch (NumberFormatException e) {
+	    throw new ParseException("Invalid volume value:  " 
+		+ tokens[3], 0);
+	}
+
+	CallHandler callHandler = findCall(tokens[4], calls);
+
+	CallHandler privateMixCallHandler = findCall(tokens[5], calls);
+
+	return new ConferenceMember.PrivateMix(privateMixCallHandler.getMember(),
+	    callHandler.getMember(), spatialValues);
+    }
+
+    private CallHandler findCall(String callId, 
+	    HashMap<String, CallHandler> calls) throws ParseException {
+
+	CallHandler callHandler = null;
+
+	if (calls != null) {
+	    callHandler = calls.get(callId);
+	}
+
+	if (callHandler == null) {
+	    callHandler = CallHandler.findCall(callId);
+
+	    if (callHandler == null) {
+                throw new ParseException("Invalid callId:  " + callId, 0);
+	    }
+
+	    if (calls != null) {
+		calls.put(callId, callHandler);
+	    }
+	}
+
+	return callHandler;
+    }
+
     private void displayTuneableParameters() {
 	requestHandler.writeToSocket("Build date			= " + BuildDate.getBuildDate());
 
 	requestHandler.writeToSocket("allowShortNames			= "
 	    + ConferenceManager.allowShortNames());
 
+	requestHandler.writeToSocket("asyncLogging			= "
+	    + Logger.isAsync() + ", dropped " + Logger.getDroppedMessages());
+
 	requestHandler.writeToSocket("available processors		= "
 	    + Runtime.getRuntime().availableProcessors());
 
@@ -3591,8 +3699,12 @@ public class RequestParser {
 
  	requestHandler.writeToSocket("allowShortNames | asn = true | false");
 
+	requestHandler.writeToSocket("asyncLogging | alog = true | false");
+
 	requestHandler.writeToSocket(
 	    "bridgeLocation | bl = <3 character bridge location>");
+	requestHandler.writeToSocket(
+	    "bulkPrivateMix | bpm = <count> followed by <count> pmx values");
 
         requestHandler.writeToSocket("callAnswerTimeout | cat = <seconds>");
 
@@ -3672,6 +3784,8 @@ public class RequestParser {
 
         requestHandler.writeToSocket("maxJitterBufferSize | maxjb = <int> : <callId>");
 
+	requestHandler.writeToSocket("metrics");
+
         requestHandler.writeToSocket("minJitterBufferSize | minjb = <int> : <callId>");
 
 	requestHandler.writeToSocket(
@@ -3789,6 +3903,8 @@ public class RequestParser {
 
 	requestHandler.writeToSocket("synchronousMode = true | false");
 
+	requestHandler.writeToSocket("requestIds | rid = true | false");
+
 	requestHandler.writeToSocket("defaultProtocol | dp = <SIP Proxy host name>");
 
 	requestHandler.writeToSocket("defaultSipProxy | dsp = <ip address>");
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip.server;
+
+import com.sun.voip.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Send RTCP sender and receiver reports to all members.
+ *
+ * A report goes to each member every RTCP_INTERVAL seconds on average.
+ * Each interval is randomized between half and one and a half times
+ * that as RFC 3550 recommends so that the reports for calls which 
+ * started together don't all go out at once.
+ */
+class RtcpReporter extends Thread {
+
+    private static final String RTCP_INTERVAL =
+	"com.sun.voip.server.RTCP_INTERVAL";
+
+    private static int interval = 5;	// seconds, 0 means don't send
+
+    private static RtcpReporter rtcpReporter;
+
+    /*
+     * Member to the time its next report is due
+     */
+    private HashMap<ConferenceMember, Long> members =
+	new HashMap<ConferenceMember, Long>();
+
+    private Random random = new Random();
+
+    private String cname;
+
+    static {
+	String s = System.getProperty(RTCP_INTERVAL);
+
+	if (s != null && s.length() > 0) {
+	    try {
+		interval = Integer.parseInt(s);
+	    } catch (NumberFormatException e) {
+		Logger.println("Invalid RTCP interval, using " + interval
+		    + ":  " + s);
+	    }
+	}
+    }
+
+    public static synchronized RtcpReporter getInstance() {
+	if (rtcpReporter == null) {
+	    rtcpReporter = new RtcpReporter();
+	}
+
+	return rtcpReporter;
+    }
+
+    private RtcpReporter() {
+	try {
+	    cname = "bridge@" + InetAddress.getLocalHost().getHostAddress();
+	} catch (UnknownHostException e) {
+	    cname = "bridge";
+	}
+
+	if (interval <= 0) {
+	    Logger.println("RTCP reports won't be sent");
+	    return;
+	}
+
+	setName("RtcpReporter");
+	setDaemon(true);
+	start();
+    }
+
+    public synchronized void add(ConferenceMember member) {
+	if (interval <= 0 || members.containsKey(member)) {
+	    return;
+	}
+
+	members.put(member, new Long(nextReport(System.currentTimeMillis())));
+    }
+
+    public synchronized void remove(ConferenceMember member) {
+	members.remove(member);
+    }
+
+    private long nextReport(long now) {
+	return now + interval * 500L + random.nextInt(interval * 1000);
+    }
+
+    public void run() {
+	ArrayList<ConferenceMember> due = new ArrayList<ConferenceMember>();
+
+	while (true) {
+	    try {
+		Thread.sleep(1000);
+	    } catch (InterruptedException e) {
+	    }
+
+	    long now = System.currentTimeMillis();
+
+	    synchronized (this) {
+		Iterator<Map.Entry<ConferenceMember, Long>> it =
+		    members.entrySet().iterator();
+
+		while (it.hasNext()) {
+		    Map.Entry<ConferenceMember, Long> entry = it.next();
+
+		    if (entry.getValue().longValue() <= now) {
+			due.add(entry.getKey());
+			entry.setValue(new Long(nextReport(now)));
+		    }
+		}
+	    }
+
+	    for (ConferenceMember member : due) {
+		try {
+		    member.sendRtcpReport(cname);
+		} catch (Exception e) {
+		    Logger.println("Unable to send RTCP report to " + member
+			+ ":  " + e.getMessage());
+		}
+	    }
+
+	    due.clear();
+	}
+    }
+
+    public synchronized String toString() {
+	return "RtcpReporter sending to " + members.size() 
+	    + " members every " + interval + " seconds";
+    }
+
+}
@@ -330,6 +330,13 @@ public class SipServer implements SipListener {
 	     * An INVITE for an incoming call goes to the IncomingCallHandler.
 	     */
 	    if (request.getMethod().equals(Request.INVITE)) {
+		if (CallAdmission.isAcceptingCalls() == false &&
+			SipUtil.getDistributedBridgeFromSdp(request) == false) {
+
+		    bridgeFull(request, requestEvent);
+		    return;
+		}
+
 		if (SipIncomingCallAgent.addSipCallId(sipCallId) == false) {
 		    duplicateInvite(request);
 		    return;
@@ -410,6 +417,31 @@ public class SipServer implements SipListener {
 	    + from + " to " + to);
     }
 
+    /*
+     * Tell the caller to try again later or somewhere else.
+     */
+    private void bridgeFull(Request request, RequestEvent requestEvent) 
+	    throws Exception {
+
+	FromHeader fromHeader = (FromHeader) request.getHeader(FromHeader.NAME);
+
+	Logger.println("SipServer:  bridge is full, rejecting INVITE from "
+	    + fromHeader.getAddress());
+
+	Response response = messageFactory.createResponse(
+	    Response.SERVICE_UNAVAILABLE, request);
+
+	response.addHeader(headerFactory.createRetryAfterHeader(30));
+
+        ServerTransaction serverTransaction = requestEvent.getServerTransaction();
+
+        if (serverTransaction != null) {
+            serverTransaction.sendResponse(response);
+        } else {
+	    sipProvider.sendResponse(response);
+	}
+    }
+
     private void handleRegister(Request request, RequestEvent requestEvent) 
 	    throws Exception {
 
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 2 as
+ * published by the Free Software Foundation and distributed hereunder
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this
+ * code.
+ */
+
+package com.sun.voip.server;
+
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * SRTP (RFC 3711) protection of RTP packets for one direction of a call
+ * using AES counter mode and HMAC-SHA1 with an 80 bit tag
+ * (AES_CM_128_HMAC_SHA1_80).
+ *
+ * The key is the base64 encoded 16 byte master key followed by the
+ * 14 byte master salt, as in an SDES crypto attribute.
+ *
+ * The key stream for a packet is made by encrypting counter blocks
+ * built from the session salt, the SSRC and the packet index with AES
+ * in ECB mode.  The buffers are reused so packets are protected and
+ * unprotected without allocating anything.  A context isn't thread safe;
+ * each MemberSender and MemberReceiver has its own.
+ */
+public class SrtpCryptoContext {
+
+    public static final String AES_CM_128_HMAC_SHA1_80 =
+	"AES_CM_128_HMAC_SHA1_80";
+
+    public static final int AUTH_TAG_LENGTH = 10;
+
+    private static final int MASTER_KEY_LENGTH = 16;
+    private static final int MASTER_SALT_LENGTH = 14;
+    private static final int AUTH_KEY_LENGTH = 20;
+
+    /*
+     * Key derivation labels
+     */
+    private static final int LABEL_ENCRYPTION = 0;
+    private static final int LABEL_AUTHENTICATION = 1;
+    private static final int LABEL_SALT = 2;
+
+    private static final int REPLAY_WINDOW_SIZE = 64;
+
+    private Cipher cipher;
+    private Mac mac;
+
+    private byte[] sessionSalt;
+
+    private byte[] counterBlocks = new byte[0];
+    private byte[] keyStream = new byte[0];
+
+    private byte[] rocBytes = new byte[4];
+    private byte[] tag = new byte[20];
+
+    /*
+     * Highest sequence number sent or received and its rollover counter
+     */
+    private boolean started;
+    private int highestSequence;
+    private long roc;
+
+    /*
+     * Bit i is set if the packet with index (highest index - i)
+     * has been received.
+     */
+    private long replayWindow;
+
+    private long authenticationFailures;
+    private long replayedPackets;
+
+    public static boolean isSrtp(String encryptionAlgorithm) {
+	return AES_CM_128_HMAC_SHA1_80.equals(encryptionAlgorithm);
+    }
+
+    public SrtpCryptoContext(String key) throws IOException {
+	byte[] keyAndSalt = base64Decode(key);
+
+	if (keyAndSalt.length != MASTER_KEY_LENGTH + MASTER_SALT_LENGTH) {
+	    throw new IOException("SRTP key must be "
+		+ (MASTER_KEY_LENGTH + MASTER_SALT_LENGTH)
+		+ " bytes, not " + keyAndSalt.length);
+	}
+
+	byte[] masterKey = new byte[MASTER_KEY_LENGTH];
+	byte[] masterSalt = new byte[MASTER_SALT_LENGTH];
+
+	System.arraycopy(keyAndSalt, 0, masterKey, 0, MASTER_KEY_LENGTH);
+	System.arraycopy(keyAndSalt, MASTER_KEY_LENGTH, masterSalt, 0,
+	    MASTER_SALT_LENGTH);
+
+	try {
+	    cipher = Cipher.getInstance("AES/ECB/NoPadding");
+
+	    cipher.init(Cipher.ENCRYPT_MODE,
+		new SecretKeySpec(masterKey, "AES"));
+
+	    byte[] encryptionKey = deriveKey(masterSalt, LABEL_ENCRYPTION,
+		MASTER_KEY_LENGTH);
+
+	    byte[] authenticationKey = deriveKey(masterSalt,
+		LABEL_AUTHENTICATION, AUTH_KEY_LENGTH);
+
+	    sessionSalt = deriveKey(masterSalt, LABEL_SALT,
+		MASTER_SALT_LENGTH);
+
+	    cipher.init(Cipher.ENCRYPT_MODE,
+		new SecretKeySpec(encryptionKey, "AES"));
+
+	    mac = Mac.getInstance("HmacSHA1");
+	    mac.init(new SecretKeySpec(authenticationKey, "HmacSHA1"));
+	} catch (GeneralSecurityException e) {
+	    throw new IOException("SRTP initialization failed:  "
+		+ e.getMessage());
+	}
+    }
+
+    /*
+     * Session key derivation with a key derivation rate of 0.
+     * The master key has to be set in the cipher.
+     */
+    private byte[] deriveKey(byte[] masterSalt, int label, int length)
+	    throws GeneralSecurityException {
+
+	byte[] iv = new byte[16];
+
+	System.arraycopy(masterSalt, 0, iv, 0, MASTER_SALT_LENGTH);
+
+	iv[7] ^= (byte) label;
+
+	int nBlocks = (length + 15) / 16;
+
+	byte[] blocks = new byte[nBlocks * 16];
+
+	for (int i = 0; i < nBlocks; i++) {
+	    System.arraycopy(iv, 0, blocks, i * 16, 16);
+	    blocks[i * 16 + 14] = (byte) (i >> 8);
+	    blocks[i * 16 + 15] = (byte) i;
+	}
+
+	byte[] out = cipher.doFinal(blocks);
+
+	byte[] key = new byte[length];
+
+	System.arraycopy(out, 0, key, 0, length);
+	return key;
+    }
+
+    /**
+     * Encrypt and authenticate an RTP packet.
+     * @param data the RTP packet, which isn't changed
+     * @param length the length of the packet
+     * @param out where to put the SRTP packet.  It must have room for
+     *            length + AUTH_TAG_LENGTH bytes and may be data.
+     * @return the length of the SRTP packet
+     */
+    public int protect(byte[] data, int length, byte[] out)
+	    throws GeneralSecurityException {
+
+	int headerLength = getHeaderLength(data, length);
+
+	int sequence = getSequence(data);
+
+	if (started == false) {
+	    started = true;
+	} else if (sequence < highestSequence &&
+		highestSequence - sequence > 0x8000) {
+
+	    roc = (roc + 1) & 0xffffffffL;
+	}
+
+	highestSequence = sequence;
+
+	long index = (roc << 16) | sequence;
+
+	if (out != data) {
+	    System.arraycopy(data, 0, out, 0, headerLength);
+	}
+
+	transform(data, out, headerLength, length - headerLength,
+	    getSsrc(data), index);
+
+	authenticate(out, length, roc, out, length);
+
+	return length + AUTH_TAG_LENGTH;
+    }
+
+    /**
+     * Authenticate and decrypt an SRTP packet in place.
+     * @param data the SRTP packet
+     * @param length the length of the packet
+     * @return the length of the RTP packet or -1 if the packet
+     *         failed authentication or was replayed.
+     */
+    public int unprotect(byte[] data, int length)
+	    throws GeneralSecurityException {
+
+	int rtpLength = length - AUTH_TAG_LENGTH;
+
+	int headerLength = -1;
+
+	if (rtpLength >= 12) {
+	    headerLength = getHeaderLength(data, rtpLength);
+	}
+
+	if (headerLength < 0) {
+	    authenticationFailures++;
+	    return -1;
+	}
+
+	int sequence = getSequence(data);
+
+	long v = estimateRoc(sequence);
+
+	long index = (v << 16) | sequence;
+
+	long highestIndex = (roc << 16) | highestSequence;
+
+	if (started) {
+	    long delta = index - highestIndex;
+
+	    if (delta <= 0) {
+		if (-delta >= REPLAY_WINDOW_SIZE ||
+			(replayWindow & (1L << -delta)) != 0) {
+
+		    replayedPackets++;
+		    return -1;
+		}
+	    }
+	}
+
+	authenticate(data, rtpLength, v, tag, 0);
+
+	for (int i = 0; i < AUTH_TAG_LENGTH; i++) {
+	    if (tag[i] != data[rtpLength + i]) {
+		authenticationFailures++;
+		return -1;
+	    }
+	}
+
+	transform(data, data, headerLength, rtpLength - headerLength,
+	    getSsrc(data), index);
+
+	/*
+	 * Only authenticated packets move the replay window
+	 */
+	if (started == false) {
+	    started = true;
+	    replayWindow = 1;
+	    roc = v;
+	    highestSequence = sequence;
+	} else if (index > highestIndex) {
+	    long delta = index - highestIndex;
+
+	    replayWindow = delta < REPLAY_WINDOW_SIZE ?
+		(replayWindow << delta) | 1 : 1;
+
+	    roc = v;
+	    highestSequence = sequence;
+	} else {
+	    replayWindow |= 1L << (highestIndex - index);
+	}
+
+	return rtpLength;
+    }
+
+    /*
+     * RFC 3711 Appendix A
+     */
+    private long estimateRoc(int sequence) {
+	if (started == false) {
+	    return 0;
+	}
+
+	if (highestSequence < 0x8000) {
+	    if (sequence - highestSequence > 0x8000) {
+		return (roc - 1) & 0xffffffffL;
+	    }
+
+	    return roc;
+	}
+
+	if (highestSequence - 0x8000 > sequence) {
+	    return (roc + 1) & 0xffffffffL;
+	}
+
+	return roc;
+    }
+
+    /*
+     * XOR length bytes of in starting at offset with the key stream
+     * and put the result in out at the same offset.
+     */
+    private void transform(byte[] in, byte[] out, int offset, int length,
+	    int ssrc, long index) throws GeneralSecurityException {
+
+	if (length <= 0) {
+	    return;
+	}
+
+	int nBlocks = (length + 15) / 16;
+
+	if (counterBlocks.length < nBlocks * 16) {
+	    counterBlocks = new byte[nBlocks * 16];
+	    keyStream = new byte[nBlocks * 16];
+	}
+
+	/*
+	 * IV = (salt * 2^16) XOR (SSRC * 2^64) XOR (index * 2^16)
+	 */
+	for (int i = 0; i < nBlocks; i++) {
+	    int b = i * 16;
+
+	    System.arraycopy(sessionSalt, 0, counterBlocks, b,
+		MASTER_SALT_LENGTH);
+
+	    counterBlocks[b + 4] ^= (byte) (ssrc >> 24);
+	    counterBlocks[b + 5] ^= (byte) (ssrc >> 16);
+	    counterBlocks[b + 6] ^= (byte) (ssrc >> 8);
+	    counterBlocks[b + 7] ^= (byte) ssrc;
+
+	    counterBlocks[b + 8] ^= (byte) (index >> 40);
+	    counterBlocks[b + 9] ^= (byte) (index >> 32);
+	    counterBlocks[b + 10] ^= (byte) (index >> 24);
+	    counterBlocks[b + 11] ^= (byte) (index >> 16);
+	    counterBlocks[b + 12] ^= (byte) (index >> 8);
+	    counterBlocks[b + 13] ^= (byte) index;
+
+	    counterBlocks[b + 14] = (byte) (i >> 8);
+	    counterBlocks[b + 15] = (byte) i;
+	}
+
+	cipher.update(counterBlocks, 0, nBlocks * 16, keyStream, 0);
+
+	for (int i = 0; i < length; i++) {
+	    out[offset + i] = (byte) (in[offset + i] ^ keyStream[i]);
+	}
+    }
+
+    /*
+     * Put the first AUTH_TAG_LENGTH bytes of
+     * HMAC-SHA1(packet || ROC) in out at offset.
+     */
+    private void authenticate(byte[] data, int length, long roc,
+	    byte[] out, int offset) throws GeneralSecurityException {
+
+	rocBytes[0] = (byte) (roc >> 24);
+	rocBytes[1] = (byte) (roc >> 16);
+	rocBytes[2] = (byte) (roc >> 8);
+	rocBytes[3] = (byte) roc;
+
+	mac.update(data, 0, length);
+	mac.update(rocBytes);
+	mac.doFinal(tag, 0);
+
+	if (out != tag || offset != 0) {
+	    System.arraycopy(tag, 0, out, offset, AUTH_TAG_LENGTH);
+	}
+    }
+
+    /*
+     * The fixed header, the CSRC list and the header extension
+     * aren't encrypted.
+     */
+    private int getHeaderLength(byte[] data, int length) {
+	int headerLength = 12 + 4 * (data[0] & 0xf);
+
+	if ((data[0] & 0x10) != 0) {
+	    if (headerLength + 4 > length) {
+		return -1;
+	    }
+
+	    headerLength += 4 + 4 * (((data[headerLength + 2] & 0xff) << 8) |
+		(data[headerLength + 3] & 0xff));
+	}
+
+	if (headerLength > length) {
+	    return -1;
+	}
+
+	return headerLength;
+    }
+
+    private int getSequence(byte[] data) {
+	return ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+    }
+
+    private int getSsrc(byte[] data) {
+	return ((data[8] & 0xff) << 24) | ((data[9] & 0xff) << 16) |
+	    ((data[10] & 0xff) << 8) | (data[11] & 0xff);
+    }
+
+    public long getAuthenticationFailures() {
+	return authenticationFailures;
+    }
+
+    public long getReplayedPackets() {
+	return replayedPackets;
+    }
+
+    private static final String BASE64 =
+	"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /*
+     * Java 5 doesn't have a public base64 decoder.
+     */
+    static byte[] base64Decode(String s) throws IOException {
+	s = s.trim();
+
+	if (s.startsWith("inline:")) {
+	    s = s.substring(7);
+	}
+
+	int ix = s.indexOf('|');	// lifetime and MKI aren't supported
+
+	if (ix >= 0) {
+	    s = s.substring(0, ix);
+	}
+
+	while (s.endsWith("=")) {
+	    s = s.substring(0, s.length() - 1);
+	}
+
+	byte[] out = new byte[s.length() * 3 / 4];
+
+	int bits = 0;
+	int nBits = 0;
+	int n = 0;
+
+	for (int i = 0; i < s.length(); i++) {
+	    int v = BASE64.indexOf(s.charAt(i));
+
+	    if (v < 0) {
+		throw new IOException("Invalid base64 character in key");
+	    }
+
+	    bits = (bits << 6) | v;
+	    nBits += 6;
+
+	    if (nBits >= 8) {
+		nBits -= 8;
+		out[n++] = (byte) (bits >> nBits);
+	    }
+	}
+
+	return out;
+    }
+
+}
@@ -175,7 +175,9 @@ public class SunSpatialAudio implements SpatialAudio {
 
 	double frontBack = spatialValues[0];
 
-	if (echoVolume == 0 || echoDelay == 0) {
+	if (echoVolume == 0 || echoDelay == 0 || 
+		OverloadController.echoEnabled() == false) {
+
 	    frontBack = 0;
 	}
 
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2007 Sun Microsystems, Inc.
+ *
+ * This file is part of jVoiceBridge.
+ *
+ * jVoiceBridge is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License version 2 as 
+ * published by the Free Software Foundation and distributed hereunder 
+ * to you.
+ *
+ * jVoiceBridge is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Sun designates this particular file as subject to the "Classpath"
+ * exception as provided by Sun in the License file that accompanied this 
+ * code. 
+ */
+
+
+package com.sun.voip.server;
+
+import com.sun.voip.Logger;
+import com.sun.voip.MetricsRegistry;
+import com.sun.voip.RtpPacket;
+
+import java.io.IOException;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+import java.util.ArrayList;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Trunks between bridges for distributed conferences.
+ *
+ * A conference which is on several bridges has one ConferenceTrunk
+ * to each of the other bridges.  All of the trunks share one UDP socket
+ * on TRUNK_PORT.  When a trunk packet arrives for a conference on this 
+ * bridge from a bridge there isn't a trunk to yet, a trunk back to that 
+ * bridge is started.  So only the bridge which joins a conference last
+ * has to know the trunk addresses of the others.  A trunk is only
+ * started for a bridge which membership lists with that trunk address
+ * for the same conference.  Packets from anywhere else are counted and
+ * dropped.  Trunks which haven't received anything for TRUNK_TIMEOUT
+ * or whose bridge has left the conference are removed.
+ *
+ * Trunks are only used when TRUNK_PORT is set.
+ */
+public class TrunkManager extends Thread {
+
+    private static final String TRUNK_PORT =
+	"com.sun.voip.server.TRUNK_PORT";
+
+    /*
+     * Milliseconds
+     */
+    private static final long TRUNK_TIMEOUT = 10000;
+
+    private static TrunkManager trunkManager;
+
+    private DatagramSocket socket;
+
+    /*
+     * Trunks by conference id
+     */
+    private ConcurrentHashMap<String, CopyOnWriteArrayList<ConferenceTrunk>> 
+	conferenceTrunks = 
+	new ConcurrentHashMap<String, CopyOnWriteArrayList<ConferenceTrunk>>();
+
+    /*
+     * Trunks by remote address and conference id
+     */
+    private ConcurrentHashMap<String, ConferenceTrunk> trunks =
+	new ConcurrentHashMap<String, ConferenceTrunk>();
+
+    private static MetricsRegistry.Counter packetsSentCounter =
+	MetricsRegistry.counter("voicebridge_trunk_packets_sent_total",
+	    "Packets sent to other bridges on trunks");
+
+    private static MetricsRegistry.Counter bytesSentCounter =
+	MetricsRegistry.counter("voicebridge_trunk_bytes_sent_total",
+	    "Bytes sent to other bridges on trunks");
+
+    private static MetricsRegistry.Counter packetsReceivedCounter =
+	MetricsRegistry.counter("voicebridge_trunk_packets_received_total",
+	    "Packets received from other bridges on trunks");
+
+    private static MetricsRegistry.Counter badPacketsCounter =
+	MetricsRegistry.counter("voicebridge_trunk_bad_packets_total",
+	    "Trunk packets which weren't for a conference on this bridge "
+	    + "or didn't fit its media");
+
+    private static MetricsRegistry.Counter rejectedPacketsCounter =
+	MetricsRegistry.counter("voicebridge_trunk_rejected_packets_total",
+	    "Trunk packets from addresses which aren't a bridge "
+	    + "running the conference");
+
+    /**
+     * @return the trunk manager or null if TRUNK_PORT isn't set.
+     */
+    public static synchronized TrunkManager getInstance() {
+	if (trunkManager != null) {
+	    return trunkManager;
+	}
+
+	String s = System.getProperty(TRUNK_PORT);
+
+	if (s == null || s.length() == 0) {
+	    return null;
+	}
+
+	try {
+	    trunkManager = new TrunkManager(Integer.parseInt(s));
+	} catch (NumberFormatException e) {
+	    Logger.println("Invalid trunk port:  " + s);
+	} catch (IOException e) {
+	    Logger.println("Unable to start trunks on port " + s + ":  "
+		+ e.getMessage());
+	}
+
+	return trunkManager;
+    }
+
+    private TrunkManager(int port) throws IOException {
+	socket = new DatagramSocket(port);
+
+	socket.setSoTimeout((int) (TRUNK_TIMEOUT / 10));
+
+	MetricsRegistry.gauge("voicebridge_trunks",
+	    "Trunks to other bridges",
+	    new MetricsRegistry.GaugeSource() {
+		public double getValue() {
+		    return trunks.size();
+		}
+	    });
+
+	Logger.println("Trunks to other bridges on port " 
+	    + socket.getLocalPort());
+
+	setName("TrunkManager");
+	setDaemon(true);
+	start();
+    }
+
+    public int getPort() {
+	return socket.getLocalPort();
+    }
+
+    private String getKey(InetSocketAddress remoteAddress, 
+	    String conferenceId) {
+
+	return remoteAddress + "/" + conferenceId;
+    }
+
+    /**
+     * @return true if there's a trunk to the bridge at remoteAddress
+     * for conferenceId.
+     */
+    public boolean hasTrunk(String conferenceId,
+	    InetSocketAddress remoteAddress) {
+
+	return trunks.get(getKey(remoteAddress, conferenceId)) != null;
+    }
+
+    /**
+     * Start a trunk to the bridge at remoteAddress for conferenceId.
+     */
+    public ConferenceTrunk addTrunk(String conferenceId, 
+	    InetSocketAddress remoteAddress) {
+
+	ConferenceTrunk trunk = new ConferenceTrunk(conferenceId, 
+	    remoteAddress);
+
+	String key = getKey(remoteAddress, conferenceId);
+
+	synchronized (this) {
+	    ConferenceTrunk t = trunks.get(key);
+
+	    if (t != null) {
+		return t;
+	    }
+
+	    CopyOnWriteArrayList<ConferenceTrunk> trunkList =
+		conferenceTrunks.get(conferenceId);
+
+	    if (trunkList == null) {
+		trunkList = new CopyOnWriteArrayList<ConferenceTrunk>();
+		conferenceTrunks.put(conferenceId, trunkList);
+	    }
+
+	    trunkList.add(trunk);
+	    trunks.put(key, trunk);
+	}
+
+	Logger.println("Started " + trunk);
+	return trunk;
+    }
+
+    private synchronized void removeTrunk(ConferenceTrunk trunk) {
+	trunks.remove(getKey(trunk.getRemoteAddress(), 
+	    trunk.getConferenceId()));
+
+	CopyOnWriteArrayList<ConferenceTrunk> trunkList =
+	    conferenceTrunks.get(trunk.getConferenceId());
+
+	if (trunkList != null) {
+	    trunkList.remove(trunk);
+
+	    if (trunkList.size() == 0) {
+		conferenceTrunks.remove(trunk.getConferenceId());
+	    }
+	}
+
+	Logger.println("Removed " + trunk);
+    }
+
+    /**
+     * The conference has ended on this bridge.
+     */
+    public void removeTrunks(String conferenceId) {
+	CopyOnWriteArrayList<ConferenceTrunk> trunkList =
+	    conferenceTrunks.get(conferenceId);
+
+	if (trunkList == null) {
+	    return;
+	}
+
+	for (ConferenceTrunk trunk : trunkList) {
+	    removeTrunk(trunk);
+	}
+    }
+
+    /**
+     * Called by the conference sender for the conference whisper group
+     * after the members have contributed and before the mix is saved.
+     * The members' mix is sent on each trunk and what came in on
+     * each trunk is added to the mix.
+     */
+    public static void exchange(ConferenceManager conferenceManager,
+	    WhisperGroup whisperGroup) {
+
+	if (trunkManager == null) {
+	    return;
+	}
+
+	CopyOnWriteArrayList<ConferenceTrunk> trunkList = 
+	    trunkManager.conferenceTrunks.get(conferenceManager.getId());
+
+	if (trunkList == null) {
+	    return;
+	}
+
+	trunkManager.exchange(trunkList, 
+	    conferenceManager.getMediaInfo().getSamplesPerPacket(), 
+	    whisperGroup);
+    }
+
+    private void exchange(CopyOnWriteArrayList<ConferenceTrunk> trunkList,
+	    int samplesPerPacket, WhisperGroup whisperGroup) {
+
+	ArrayList<DatagramPacket> packets = new ArrayList<DatagramPacket>();
+
+	synchronized (whisperGroup) {
+	    int[] mix = whisperGroup.getMemberMix();
+
+	    for (ConferenceTrunk trunk : trunkList) {
+		packets.add(trunk.getPacket(mix));
+	    }
+
+	    for (ConferenceTrunk trunk : trunkList) {
+		trunk.saveCurrentContribution();
+
+		int[] contribution = trunk.getCurrentContribution();
+
+		if (contribution == null) {
+		    continue;
+		}
+
+		if (contribution.length != samplesPerPacket) {
+		    badPacketsCounter.increment();
+		    continue;
+		}
+
+		whisperGroup.addToLinearDataMix(contribution, false);
+	    }
+	}
+
+	for (DatagramPacket packet : packets) {
+	    try {
+		socket.send(packet);
+
+		packetsSentCounter.increment();
+		bytesSentCounter.add(packet.getLength());
+	    } catch (IOException e) {
+		Logger.println("Unable to send trunk packet to " 
+		    + packet.getSocketAddress() + ":  " + e.getMessage());
+	    }
+	}
+    }
+
+    public void run() {
+	byte[] buffer = new byte[65536];
+
+	DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+	long lastCheck = System.currentTimeMillis();
+
+	while (true) {
+	    try {
+		packet.setLength(buffer.length);
+
+		socket.receive(packet);
+
+		received(packet);
+	    } catch (SocketTimeoutException e) {
+	    } catch (IOException e) {
+		Logger.println("Trunk receive failed:  " + e.getMessage());
+	    }
+
+	    long now = System.currentTimeMillis();
+
+	    if (now - lastCheck >= TRUNK_TIMEOUT / 10) {
+		lastCheck = now;
+		removeIdleTrunks();
+	    }
+	}
+    }
+
+    private void received(DatagramPacket packet) {
+	byte[] data = packet.getData();
+	int offset = packet.getOffset();
+	int length = packet.getLength();
+
+	if (length < RtpPacket.HEADER_SIZE || (data[offset] & 0xc0) != 0x80 ||
+		(data[offset + 1] & 0x7f) != ConferenceTrunk.TRUNK_PAYLOAD) {
+
+	    badPacketsCounter.increment();
+	    return;
+	}
+
+	String conferenceId = 
+	    ConferenceTrunk.getConferenceId(data, offset, length);
+
+	if (conferenceId == null) {
+	    badPacketsCounter.increment();
+	    return;
+	}
+
+	InetSocketAddress remoteAddress = 
+	    (InetSocketAddress) packet.getSocketAddress();
+
+	ConferenceTrunk trunk = trunks.get(getKey(remoteAddress, conferenceId));
+
+	if (trunk == null) {
+	    trunk = acceptTrunk(remoteAddress, conferenceId);
+
+	    if (trunk == null) {
+		return;
+	    }
+	}
+
+	packetsReceivedCounter.increment();
+	trunk.received(data, offset, length);
+    }
+
+    /*
+     * Another bridge has started sending for a conference.
+     * Start sending back if the conference is on this bridge
+     * and the sender is a bridge running the conference.
+     */
+    private ConferenceTrunk acceptTrunk(InetSocketAddress remoteAddress,
+	    String conferenceId) {
+
+	ArrayList conferenceList = ConferenceManager.getConferenceList();
+
+	for (int i = 0; i < conferenceList.size(); i++) {
+	    ConferenceManager conferenceManager = 
+		(ConferenceManager) conferenceList.get(i);
+
+	    if (conferenceManager.getId().equals(conferenceId) == false) {
+		continue;
+	    }
+
+	    if (ConferenceManager.isTrunkPeer(conferenceId, 
+		    remoteAddress) == false) {
+
+		/*
+		 * The bridge may have just joined and not been heard
+		 * from yet.  It keeps sending so it will get its trunk
+		 * once it is.
+		 */
+		if (rejectedPacketsCounter.getValue() % 1000 == 0) {
+		    Logger.println("Rejecting trunk for " + conferenceId 
+			+ " from " + remoteAddress);
+		}
+
+		rejectedPacketsCounter.increment();
+		return null;
+	    }
+
+	    return addTrunk(conferenceId, remoteAddress);
+	}
+
+	badPacketsCounter.increment();
+	return null;
+    }
+
+    private void removeIdleTrunks() {
+	for (ConferenceTrunk trunk : trunks.values()) {
+	    if (trunk.isIdle(TRUNK_TIMEOUT) ||
+		    ConferenceManager.isTrunkPeer(trunk.getConferenceId(),
+		    trunk.getRemoteAddress()) == false) {
+
+		removeTrunk(trunk);
+	    }
+	}
+    }
+
+    public String getTrunkInfo(String conferenceId) {
+	CopyOnWriteArrayList<ConferenceTrunk> trunkList =
+	    conferenceTrunks.get(conferenceId);
+
+	if (trunkList == null) {
+	    return "";
+	}
+
+	String s = "";
+
+	for (ConferenceTrunk trunk : trunkList) {
+	    s += "    " + trunk + "\n";
+	}
+
+	return s;
+    }
+
+}
@@ -36,6 +36,10 @@ public class TwoPartyCallHandler extends Thread {
 	this.cp = cp;
     }
 
+    public void start() {
+	CallThreads.start(this, "TwoPartyCallHandler for " + cp);
+    }
+
     /*
      * start a two party call
      */
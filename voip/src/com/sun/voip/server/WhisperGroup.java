@@ -27,6 +27,7 @@ import com.sun.voip.AudioConversion;
 import com.sun.voip.CallParticipant;
 import com.sun.voip.Logger;
 import com.sun.voip.MediaInfo;
+import com.sun.voip.MetricsRegistry;
 import com.sun.voip.MixDataSource;
 import com.sun.voip.Recorder;
 import com.sun.voip.RtpPacket;
@@ -61,6 +62,32 @@ public class WhisperGroup implements MixDataSource, TreatmentDoneListener {
 
     private MediaInfo mediaInfo;
 
+    /*
+     * While the bridge is overloaded only a few members are mixed.
+     * A member which is loud enough gets a place if there is one
+     * and keeps it until it has been quiet for SPEAKER_HOLD_TIME.
+     */
+    private static final int SPEAKING_LEVEL = 200;
+
+    private static final long SPEAKER_HOLD_TIME = 1000;
+
+    class Speaker {
+	public MixDataSource source;
+	public long lastSpoke;
+
+	public Speaker(MixDataSource source, long lastSpoke) {
+	    this.source = source;
+	    this.lastSpoke = lastSpoke;
+	}
+    }
+
+    private ArrayList<Speaker> speakers = new ArrayList<Speaker>();
+
+    private static MetricsRegistry.Counter notMixedCounter =
+	MetricsRegistry.counter("voicebridge_speaker_cap_dropped_total",
+	    "Contributions left out of the mix because too many "
+	    + "members were speaking");
+
     public WhisperGroup(String id, double attenuation, MediaInfo mediaInfo) {
 	this.id = id;
 	this.attenuation = attenuation;
@@ -258,6 +285,86 @@ public class WhisperGroup implements MixDataSource, TreatmentDoneListener {
         mixData(contribution, linearMixBuffer, true);
     }
 
+    /*
+     * Decide whether a member's contribution goes into the mix.
+     * Called with the whisper group locked.
+     */
+    public boolean mayContribute(MixDataSource source, int[] contribution) {
+	int maxSpeakers = OverloadController.getMaxSpeakers();
+
+	if (maxSpeakers == 0) {
+	    if (speakers.size() > 0) {
+		speakers.clear();
+	    }
+	    return true;
+	}
+
+	long now = System.currentTimeMillis();
+
+	boolean isSpeaking = isSpeaking(contribution);
+
+	Speaker speaker = null;
+
+	for (int i = speakers.size() - 1; i >= 0; i--) {
+	    Speaker s = speakers.get(i);
+
+	    if (s.source == source) {
+		speaker = s;
+	    } else if (now - s.lastSpoke > SPEAKER_HOLD_TIME) {
+		speakers.remove(i);
+	    }
+	}
+
+	if (speaker != null) {
+	    if (isSpeaking) {
+		speaker.lastSpoke = now;
+	    }
+	    return true;
+	}
+
+	if (isSpeaking == false) {
+	    return false;
+	}
+
+	if (speakers.size() < maxSpeakers) {
+	    speakers.add(new Speaker(source, now));
+	    return true;
+	}
+
+	notMixedCounter.increment();
+	return false;
+    }
+
+    private boolean isSpeaking(int[] contribution) {
+	long sum = 0;
+
+	for (int i = 0; i < contribution.length; i++) {
+	    sum += Math.abs(contribution[i]);
+	}
+
+	return sum >= (long) SPEAKING_LEVEL * contribution.length;
+    }
+
+    /**
+     * The mix of the whisperers so far this tick or null if
+     * there isn't any.  The mix may be shared and must not be changed.
+     */
+    public int[] getMemberMix() {
+	if (doNotRecordMix == null) {
+	    return linearMixBuffer;
+	}
+
+	if (linearMixBuffer == null) {
+	    return doNotRecordMix;
+	}
+
+	int[] mix = new int[linearMixBuffer.length];
+
+	System.arraycopy(linearMixBuffer, 0, mix, 0, mix.length);
+	mixData(doNotRecordMix, mix, true);
+	return mix;
+    }
+
     public static void mixData(int[] inData, int[] mixData, boolean add) {
 	try {
 	    if (add) {